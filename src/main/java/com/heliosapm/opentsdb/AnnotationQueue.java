@@ -0,0 +1,231 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.heliosapm.opentsdb.AnnotationBuilder.TSDBAnnotation;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Title: AnnotationQueue</p>
+ * <p>Description: Bounded queue of annotations sent asynchronously in batches to the OpenTSDB
+ * <b><code>/api/annotation/bulk</code></b> endpoint. Batching, request permits and retries are handled by {@link BatchingHttpSender}.</p>
+ * <p>OpenTSDB versions before 2.1 have no bulk endpoint. The first 404 from it switches the queue to posting each annotation 
+ * to <b><code>/api/annotation</code></b>, the failed batch included.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.AnnotationQueue</code></p>
+ */
+
+public class AnnotationQueue extends BatchingHttpSender<TSDBAnnotation> {
+	/** The connection supplying the http client and base URL */
+	protected final TSDBSubmitterConnection conn;
+	/** Indicates if the server supports the bulk endpoint, cleared on the first 404 from it */
+	protected volatile boolean bulk = true;
+
+	/** The config property name for the maximum number of queued annotations */
+	public static final String CONFIG_MAX_QUEUED = "helios.opentsdb.annotations.maxqueued";
+	/** The default maximum number of queued annotations */
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+	/** The config property name for the maximum number of annotations per request */
+	public static final String CONFIG_BATCH_SIZE = "helios.opentsdb.annotations.batchsize";
+	/** The default maximum number of annotations per request */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	/** The config property name for the time in ms. a queued annotation waits to be batched */
+	public static final String CONFIG_FLUSH_DELAY = "helios.opentsdb.annotations.flushdelay";
+	/** The default time in ms. a queued annotation waits to be batched */
+	public static final long DEFAULT_FLUSH_DELAY = 200L;
+	/** The config property name for the maximum number of in-flight requests */
+	public static final String CONFIG_MAX_CONCURRENT = "helios.opentsdb.annotations.maxconcurrent";
+	/** The default maximum number of in-flight requests */
+	public static final int DEFAULT_MAX_CONCURRENT = 2;
+	/** The config property name for the maximum number of retries of a failed request */
+	public static final String CONFIG_MAX_RETRIES = "helios.opentsdb.annotations.retries";
+	/** The default maximum number of retries of a failed request */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	/** The config property name for the initial retry backoff in ms. */
+	public static final String CONFIG_RETRY_BACKOFF = "helios.opentsdb.annotations.backoff";
+	/** The default initial retry backoff in ms. */
+	public static final long DEFAULT_RETRY_BACKOFF = 250L;
+	/** The config property name for the maximum retry backoff in ms. */
+	public static final String CONFIG_MAX_BACKOFF = "helios.opentsdb.annotations.maxbackoff";
+	/** The default maximum retry backoff in ms. */
+	public static final long DEFAULT_MAX_BACKOFF = 10000L;
+
+	/**
+	 * Creates a new AnnotationQueue configured from system properties or the environment
+	 * @param conn The connection supplying the http client and base URL
+	 */
+	public AnnotationQueue(final TSDBSubmitterConnection conn) {
+		this(conn, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_QUEUED, DEFAULT_MAX_QUEUED),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_FLUSH_DELAY, DEFAULT_FLUSH_DELAY),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_RETRIES, DEFAULT_MAX_RETRIES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_MAX_BACKOFF, DEFAULT_MAX_BACKOFF));
+	}
+
+	/**
+	 * Creates a new AnnotationQueue
+	 * @param conn The connection supplying the http client and base URL
+	 * @param maxQueued The maximum number of queued annotations
+	 * @param batchSize The maximum number of annotations per request
+	 * @param flushDelay The time in ms. a queued annotation waits to be batched
+	 * @param maxConcurrent The maximum number of in-flight requests
+	 * @param maxRetries The maximum number of retries of a failed request
+	 * @param retryBackoff The initial retry backoff in ms.
+	 * @param maxBackoff The maximum retry backoff in ms.
+	 */
+	public AnnotationQueue(final TSDBSubmitterConnection conn, final int maxQueued, final int batchSize, final long flushDelay,
+			final int maxConcurrent, final int maxRetries, final long retryBackoff, final long maxBackoff) {
+		super("annotations", maxQueued, batchSize, Long.MAX_VALUE, flushDelay, maxConcurrent, maxRetries, retryBackoff, maxBackoff);
+		this.conn = conn;
+	}
+
+	/**
+	 * Returns the http client used to send annotations
+	 * @return the http client
+	 */
+	@Override
+	protected AsyncHttpClient client() {
+		return conn.httpClient;
+	}
+
+	/**
+	 * Returns the base URL of the OpenTSDB http API
+	 * @return the base URL
+	 */
+	@Override
+	protected String baseURL() {
+		return conn.baseURL;
+	}
+
+	/**
+	 * Queues an annotation to be sent. Never blocks.
+	 * @param annotation The annotation to send
+	 * @return true if the annotation was queued, false if it was dropped because the queue is full or closed
+	 */
+	public boolean offer(final TSDBAnnotation annotation) {
+		if(annotation==null) throw new IllegalArgumentException("The passed annotation was null");
+		return offer(annotation, 0L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.BatchingHttpSender#send(java.util.List, java.util.concurrent.atomic.AtomicInteger)
+	 */
+	@Override
+	protected void send(final List<TSDBAnnotation> batch, final AtomicInteger outstanding) {
+		if(bulk) {
+			post(new BulkRequest(batch, outstanding));
+		} else {
+			postEach(batch, outstanding);
+		}
+	}
+
+	/**
+	 * Renders a batch of annotations as a JSON array
+	 * @param batch The annotations
+	 * @return the JSON array
+	 */
+	static String toJSON(final List<TSDBAnnotation> batch) {
+		final StringBuilder b = new StringBuilder(batch.size() * 128).append('[');
+		for(TSDBAnnotation annotation: batch) {
+			b.append(annotation.toJSON()).append(',');
+		}
+		b.setCharAt(b.length() - 1, ']');
+		return b.toString();
+	}
+
+	/**
+	 * Posts each annotation of a batch to the single annotation endpoint
+	 * @param batch The annotations
+	 * @param outstanding The number of unfinished requests sharing the caller's request permit
+	 */
+	protected void postEach(final List<TSDBAnnotation> batch, final AtomicInteger outstanding) {
+		for(TSDBAnnotation annotation: batch) {
+			post(new Request("api/annotation", "application/json", annotation.toJSON(), 1, outstanding, 0));
+		}
+	}
+
+	/**
+	 * <p>Title: BulkRequest</p>
+	 * <p>Description: A post of a batch of annotations to the bulk endpoint, re-posted one at a time if the endpoint is not found</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.AnnotationQueue.BulkRequest</code></p>
+	 */
+	class BulkRequest extends Request {
+		/** The annotations */
+		final List<TSDBAnnotation> batch;
+
+		/**
+		 * Creates a new BulkRequest
+		 * @param batch The annotations
+		 * @param outstanding The number of unfinished requests sharing the caller's request permit
+		 */
+		BulkRequest(final List<TSDBAnnotation> batch, final AtomicInteger outstanding) {
+			super("api/annotation/bulk", "application/json", toJSON(batch), batch.size(), outstanding, 0);
+			this.batch = batch;
+		}
+
+		@Override
+		protected void onRejected(final int status, final Response response) throws Exception {
+			if(status!=404) {
+				super.onRejected(status, response);
+				return;
+			}
+			if(bulk) {
+				bulk = false;
+				log.warn("OpenTSDB has no bulk annotation endpoint, posting annotations one at a time");
+			}
+			postEach(batch, outstanding);
+			complete(outstanding);
+		}
+	}
+
+	/**
+	 * Returns the number of annotations sent
+	 * @return the number of annotations sent
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AnnotationQueue [queued:" + getQueued() + ", sent:" + getSent() + ", dropped:" + getDropped() + ", failed:" + getFailed()
+			+ ", requests:" + getRequests() + ", retries:" + getRetries() + "]";
+	}
+}
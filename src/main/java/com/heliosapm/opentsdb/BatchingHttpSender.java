@@ -0,0 +1,503 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Title: BatchingHttpSender</p>
+ * <p>Description: Base of the bounded queues that send items asynchronously in batches over HTTP, such as {@link AnnotationQueue} 
+ * and {@link ElasticSearchSink}.</p>
+ * <p>{@link #offer(Object, long)} never blocks: when the queue is full the item is dropped and counted.
+ * Queued items wait up to the flush delay to be batched, or are sent as soon as a batch's worth of items or bytes is queued.
+ * Each batch takes one of a capped number of request permits, which it holds until all the requests it was sent as, including 
+ * their retries, complete. Requests failing with a 429, 5xx or I/O error are retried with an exponential backoff, so a struggling 
+ * server is not sent more work. On close, pending retries are sent at once rather than dropped.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.BatchingHttpSender</code></p>
+ * @param <T> The type of the queued items
+ */
+
+public abstract class BatchingHttpSender<T> {
+	/** The queued items */
+	protected final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+	/** The number of queued items */
+	protected final AtomicInteger queued = new AtomicInteger(0);
+	/** The number of queued bytes */
+	protected final AtomicLong queuedBytes = new AtomicLong(0L);
+	/** Set while a delayed drain is scheduled */
+	protected final AtomicBoolean scheduled = new AtomicBoolean(false);
+	/** Set once closed */
+	protected final AtomicBoolean closed = new AtomicBoolean(false);
+	/** The retries waiting for their backoff to elapse */
+	protected final NonBlockingHashSet<Request> pendingRetries = new NonBlockingHashSet<Request>();
+	/** The name of the sent items used in log messages */
+	protected final String itemName;
+	/** The maximum number of queued items */
+	protected final int maxQueued;
+	/** The maximum number of items per batch */
+	protected final int batchSize;
+	/** The maximum number of bytes per batch */
+	protected final long batchBytes;
+	/** The time in ms. a queued item waits to be batched */
+	protected final long flushDelay;
+	/** The maximum number of in-flight batches */
+	protected final int maxConcurrent;
+	/** Caps the number of in-flight batches */
+	protected final Semaphore permits;
+	/** The maximum number of retries of a failed request */
+	protected final int maxRetries;
+	/** The initial retry backoff in ms., doubled on each attempt */
+	protected final long retryBackoff;
+	/** The maximum retry backoff in ms. */
+	protected final long maxBackoff;
+
+	/** The number of items queued */
+	protected final Counter offered = new Counter();
+	/** The number of items sent */
+	protected final Counter sent = new Counter();
+	/** The number of items dropped because the queue was full or closed */
+	protected final Counter dropped = new Counter();
+	/** The number of items given up on */
+	protected final Counter failed = new Counter();
+	/** The number of retried requests */
+	protected final Counter retries = new Counter();
+	/** The number of requests */
+	protected final Counter requests = new Counter();
+
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Creates a new BatchingHttpSender
+	 * @param itemName The name of the sent items used in log messages
+	 * @param maxQueued The maximum number of queued items
+	 * @param batchSize The maximum number of items per batch
+	 * @param batchBytes The maximum number of bytes per batch
+	 * @param flushDelay The time in ms. a queued item waits to be batched
+	 * @param maxConcurrent The maximum number of in-flight batches
+	 * @param maxRetries The maximum number of retries of a failed request
+	 * @param retryBackoff The initial retry backoff in ms.
+	 * @param maxBackoff The maximum retry backoff in ms.
+	 */
+	protected BatchingHttpSender(final String itemName, final int maxQueued, final int batchSize, final long batchBytes, final long flushDelay,
+			final int maxConcurrent, final int maxRetries, final long retryBackoff, final long maxBackoff) {
+		if(maxQueued < 1) throw new IllegalArgumentException("Invalid max queued [" + maxQueued + "]");
+		if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size [" + batchSize + "]");
+		if(batchBytes < 1) throw new IllegalArgumentException("Invalid batch bytes [" + batchBytes + "]");
+		if(flushDelay < 0) throw new IllegalArgumentException("Invalid flush delay [" + flushDelay + "]");
+		if(maxConcurrent < 1) throw new IllegalArgumentException("Invalid max concurrent requests [" + maxConcurrent + "]");
+		if(maxRetries < 0) throw new IllegalArgumentException("Invalid max retries [" + maxRetries + "]");
+		if(retryBackoff < 1 || maxBackoff < retryBackoff) throw new IllegalArgumentException("Invalid retry backoff [" + retryBackoff + "/" + maxBackoff + "]");
+		this.itemName = itemName;
+		this.maxQueued = maxQueued;
+		this.batchSize = batchSize;
+		this.batchBytes = batchBytes;
+		this.flushDelay = flushDelay;
+		this.maxConcurrent = maxConcurrent;
+		this.maxRetries = maxRetries;
+		this.retryBackoff = retryBackoff;
+		this.maxBackoff = maxBackoff;
+		permits = new Semaphore(maxConcurrent);
+	}
+
+	/**
+	 * Returns the http client used to send requests
+	 * @return the http client
+	 */
+	protected abstract AsyncHttpClient client();
+
+	/**
+	 * Returns the base URL request paths are relative to
+	 * @return the base URL
+	 */
+	protected abstract String baseURL();
+
+	/**
+	 * Sends a batch as one or more {@link Request}s. Each request created counts against the batch's request permit, 
+	 * which is released once the last of them completes.
+	 * @param batch The items
+	 * @param outstanding The number of unfinished requests sharing the batch's request permit
+	 */
+	protected abstract void send(List<T> batch, AtomicInteger outstanding);
+
+	/**
+	 * Queues an item to be sent. Never blocks.
+	 * @param item The item to send
+	 * @param bytes The size of the item counted against the batch bytes
+	 * @return true if the item was queued, false if it was dropped because the queue is full or closed
+	 */
+	protected boolean offer(final T item, final long bytes) {
+		if(closed.get()) {
+			dropped.increment();
+			return false;
+		}
+		final int size = queued.incrementAndGet();
+		if(size > maxQueued) {
+			queued.decrementAndGet();
+			dropped.increment();
+			return false;
+		}
+		queue.add(item);
+		offered.increment();
+		final long total = queuedBytes.addAndGet(bytes);
+		if(size % batchSize==0 || (total - bytes) / batchBytes != total / batchBytes) {
+			drainAsync();
+		} else if(scheduled.compareAndSet(false, true)) {
+			FlushPolicy.getTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(final Timeout timeout) throws Exception {
+					scheduled.set(false);
+					drainAsync();
+				}
+			}, flushDelay, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the size of a queued item counted against the batch bytes
+	 * @param item The item
+	 * @return the size of the item
+	 */
+	protected long sizeOf(final T item) {
+		return 0L;
+	}
+
+	/**
+	 * Drains the queue on the shared executor
+	 */
+	protected void drainAsync() {
+		FlushPolicy.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	/**
+	 * Sends queued items in batches while request permits are available.
+	 * When all permits are taken, the completion of an in-flight batch drains the rest.
+	 */
+	protected void drain() {
+		while(queued.get() > 0 && permits.tryAcquire()) {
+			final List<T> batch = new ArrayList<T>(Math.min(batchSize, queued.get()));
+			long bytes = 0L;
+			T item;
+			while(batch.size() < batchSize && bytes < batchBytes && (item = queue.poll())!=null) {
+				final long size = sizeOf(item);
+				queued.decrementAndGet();
+				queuedBytes.addAndGet(-size);
+				bytes += size;
+				batch.add(item);
+			}
+			if(batch.isEmpty()) {
+				permits.release();
+				return;
+			}
+			// held until send returns, so requests completing while others are still being created do not release the permit
+			final AtomicInteger outstanding = new AtomicInteger(1);
+			try {
+				send(batch, outstanding);
+			} catch (Exception ex) {
+				log.error("Failed to send [{}] {}", batch.size(), itemName, ex);
+			} finally {
+				complete(outstanding);
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: Request</p>
+	 * <p>Description: One HTTP post of some items, re-sent as is when retried. Subclasses override the response callbacks.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.BatchingHttpSender.Request</code></p>
+	 */
+	protected class Request implements Runnable {
+		/** The request path relative to the base URL */
+		protected final String path;
+		/** The request content type */
+		protected final String contentType;
+		/** The request body */
+		protected final String body;
+		/** The number of items in the request */
+		protected final int count;
+		/** The number of unfinished requests sharing the request permit */
+		protected final AtomicInteger outstanding;
+		/** The attempt number */
+		protected volatile int attempt;
+		/** Set when a scheduled retry has been sent */
+		final AtomicBoolean retried = new AtomicBoolean(false);
+
+		/**
+		 * Creates a new Request, counted against the passed request permit
+		 * @param path The request path relative to the base URL
+		 * @param contentType The request content type
+		 * @param body The request body
+		 * @param count The number of items in the request
+		 * @param outstanding The number of unfinished requests sharing the request permit
+		 * @param attempt The attempt number
+		 */
+		public Request(final String path, final String contentType, final String body, final int count, final AtomicInteger outstanding, final int attempt) {
+			this.path = path;
+			this.contentType = contentType;
+			this.body = body;
+			this.count = count;
+			this.outstanding = outstanding;
+			this.attempt = attempt;
+			outstanding.incrementAndGet();
+		}
+
+		/**
+		 * Handles a 2xx response. By default counts the items sent and completes the request.
+		 * @param response The response
+		 * @throws Exception thrown on any error
+		 */
+		protected void onSuccess(final Response response) throws Exception {
+			sent.add(count);
+			complete(outstanding);
+		}
+
+		/**
+		 * Handles a response that is neither a 2xx nor retriable. By default counts the items failed and completes the request.
+		 * @param status The response status
+		 * @param response The response
+		 * @throws Exception thrown on any error
+		 */
+		protected void onRejected(final int status, final Response response) throws Exception {
+			log.error("Rejected [{}] {}: {} {}", count, itemName, status, response.getResponseBody("UTF-8"));
+			failed.add(count);
+			complete(outstanding);
+		}
+
+		/**
+		 * Sends a scheduled retry, once, when its backoff elapses or the sender is closed
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			if(retried.compareAndSet(false, true)) {
+				pendingRetries.remove(this);
+				post(this);
+			}
+		}
+	}
+
+	/**
+	 * Posts a request
+	 * @param request The request
+	 */
+	protected void post(final Request request) {
+		requests.increment();
+		try {
+			client().preparePost(baseURL() + request.path)
+				.setHeader("Content-Type", request.contentType)
+				.setBody(request.body)
+				.execute(new AsyncCompletionHandler<Object>() {
+					@Override
+					public Object onCompleted(final Response response) throws Exception {
+						final int status = response.getStatusCode();
+						if(status >= 200 && status < 300) {
+							request.onSuccess(response);
+						} else if(status >= 500 || status==429) {
+							log.warn("Post of [{}] {} failed: {} {}", request.count, itemName, status, response.getStatusText());
+							retry(request);
+						} else {
+							request.onRejected(status, response);
+						}
+						return null;
+					}
+					@Override
+					public void onThrowable(final Throwable t) {
+						log.warn("Post of [{}] {} failed", request.count, itemName, t);
+						retry(request);
+					}
+				});
+		} catch (Exception ex) {
+			log.error("Failed to post [{}] {}", request.count, itemName, ex);
+			failed.add(request.count);
+			complete(request.outstanding);
+		}
+	}
+
+	/**
+	 * Schedules a re-post of the passed request after an exponential backoff, or gives up if the retries are exhausted.
+	 * The request permit is held until the retry completes. Once the sender is closed, retries are sent without a backoff.
+	 * @param request The failed request
+	 */
+	protected void retry(final Request request) {
+		final int attempt = request.attempt;
+		if(attempt >= maxRetries) {
+			log.error("Dropping [{}] {} after [{}] retries", request.count, itemName, attempt);
+			failed.add(request.count);
+			complete(request.outstanding);
+			return;
+		}
+		retries.increment();
+		request.attempt = attempt + 1;
+		request.retried.set(false);
+		if(closed.get()) {
+			FlushPolicy.getExecutor().execute(request);
+			return;
+		}
+		pendingRetries.add(request);
+		final long backoff = Math.min(maxBackoff, retryBackoff << Math.min(attempt, 20));
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				request.run();
+			}
+		}, backoff, TimeUnit.MILLISECONDS);
+		// closed while scheduling
+		if(closed.get()) request.run();
+	}
+
+	/**
+	 * Finishes one of the requests sharing a request permit. The last one releases the permit
+	 * and drains any items queued in the meantime.
+	 * @param outstanding The number of unfinished requests sharing the request permit
+	 */
+	protected void complete(final AtomicInteger outstanding) {
+		if(outstanding.decrementAndGet() > 0) return;
+		permits.release();
+		if(queued.get() > 0) drainAsync();
+	}
+
+	/**
+	 * Waits for the queue to drain and all in-flight requests to complete
+	 * @param timeout The maximum time to wait in ms.
+	 * @return true if everything was sent or given up on, false if the timeout elapsed
+	 */
+	public boolean flush(final long timeout) {
+		final long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while(true) {
+				drain();
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) return false;
+				if(permits.tryAcquire(maxConcurrent, Math.min(remaining, 50L), TimeUnit.MILLISECONDS)) {
+					permits.release(maxConcurrent);
+					if(queued.get()==0) return true;
+				}
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Stops accepting items, sends pending retries at once and waits up to the passed timeout for the queued items to be sent
+	 * @param timeout The maximum time to wait in ms.
+	 */
+	public void close(final long timeout) {
+		if(closed.compareAndSet(false, true)) {
+			for(Request request: pendingRetries) {
+				request.run();
+			}
+			if(!flush(timeout)) {
+				log.warn("Closed with [{}] {} unsent", queued.get(), itemName);
+			}
+		}
+	}
+
+	/**
+	 * Indicates if this sender is closed
+	 * @return true if closed
+	 */
+	public boolean isClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * Returns the number of queued items
+	 * @return the number of queued items
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of items queued since start
+	 * @return the number of items queued
+	 */
+	public long getOffered() {
+		return offered.get();
+	}
+
+	/**
+	 * Returns the number of items dropped because the queue was full or closed
+	 * @return the number of dropped items
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of items given up on
+	 * @return the number of failed items
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the number of retried requests
+	 * @return the number of retried requests
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * Returns the number of requests
+	 * @return the number of requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+}
@@ -0,0 +1,580 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanNotificationInfo;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.notif.SharedNotificationExecutor;
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.heliosapm.jmx.util.helpers.JMXHelper;
+
+/**
+ * <p>Title: CardinalityLimiter</p>
+ * <p>Description: Caps the number of distinct series traced per metric name, so one misbehaving source
+ * (for example an MBean with a session id in its key properties) cannot explode the cardinality sent to OpenTSDB.</p>
+ * <p>Each metric name gets a guard holding a HyperLogLog sketch of the distinct series offered and a bit set filter of the series admitted.
+ * A point whose series hash hits the admitted filter passes with a map lookup and three bit probes. Only a series not seen before
+ * takes the guard's lock, updates the sketch and is admitted while the estimate is within the limit. Once the estimate crosses the limit
+ * the metric is limited for the rest of the window: new series are dropped, or in <b><code>collapse</code></b> mode the value of the tag key
+ * with the highest estimated distinct value count is replaced with <b><code>other</code></b>. The first crossing in each window is logged
+ * and broadcast as a {@link CardinalityLimiterMXBean#NOTIF_LIMITED} notification.</p>
+ * <p>The admitted filter can report a series as seen when it was not (about 0.1% at the limit), which lets a few over limit series through
+ * but never limits an admitted one. Points of rejected series skip the lock through a second filter, so once that filter saturates the estimate
+ * of a limited metric stops growing and is a lower bound. A guard costs about 1KB plus 4 bytes per series of the limit.
+ * All admitted series are forgotten at the end of each window, so series that stop reporting free their slots.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.CardinalityLimiter</code></p>
+ */
+
+public class CardinalityLimiter extends NotificationBroadcasterSupport implements CardinalityLimiterMXBean {
+	/** The maximum distinct series admitted per metric name */
+	protected final int limit;
+	/** true to collapse over limit series, false to drop them */
+	protected final boolean collapse;
+	/** The window in ms. after which admitted series are forgotten, or 0 for never */
+	protected final long window;
+	/** The maximum number of metric names tracked */
+	protected final int maxMetrics;
+	/** The filter size in bits, a power of two */
+	protected final int filterBits;
+	/** The guards keyed by metric name */
+	protected final NonBlockingHashMap<String, Guard> guards = new NonBlockingHashMap<String, Guard>();
+	/** The MBean ObjectName */
+	protected final ObjectName objectName;
+	/** The endpoint name used in log messages */
+	protected final String endpoint;
+	/** Notification sequence number factory */
+	protected final AtomicLong sequence = new AtomicLong(0L);
+	/** The number of dropped points */
+	protected final Counter dropped = new Counter();
+	/** The number of collapsed points */
+	protected final Counter collapsed = new Counter();
+	/** The number of points for untracked metric names */
+	protected final Counter untracked = new Counter();
+	/** Set once closed, which stops the window reset */
+	protected volatile boolean closed = false;
+
+	private static final Logger LOG = LoggerFactory.getLogger(CardinalityLimiter.class);
+
+	/** The config property name for the maximum distinct series per metric name, 0 to disable limiting */
+	public static final String CONFIG_LIMIT = "helios.opentsdb.cardinality.limit";
+	/** The default maximum distinct series per metric name */
+	public static final int DEFAULT_LIMIT = 0;
+	/** The config property name for the over limit action, <b><code>drop</code></b> or <b><code>collapse</code></b> */
+	public static final String CONFIG_MODE = "helios.opentsdb.cardinality.mode";
+	/** The default over limit action */
+	public static final String DEFAULT_MODE = "collapse";
+	/** The config property name for the window in ms. after which admitted series are forgotten */
+	public static final String CONFIG_WINDOW = "helios.opentsdb.cardinality.window";
+	/** The default window in ms. */
+	public static final long DEFAULT_WINDOW = 3600000L;
+	/** The config property name for the maximum number of metric names tracked */
+	public static final String CONFIG_MAX_METRICS = "helios.opentsdb.cardinality.maxmetrics";
+	/** The default maximum number of metric names tracked */
+	public static final int DEFAULT_MAX_METRICS = 1000;
+	/** The tag value offending tags are collapsed to */
+	public static final String OTHER = "other";
+
+	/** The series sketch precision, giving 1024 registers and about 3% standard error */
+	static final int PRECISION = 10;
+	/** The tag key sketch precision, giving 64 registers, enough to rank keys */
+	static final int KEY_PRECISION = 6;
+	/** The maximum number of tag keys sketched per metric name */
+	static final int MAX_KEYS = 32;
+	/** The filter bits per admitted series */
+	static final int BITS_PER_SERIES = 32;
+	/** The number of filter bits probed per series */
+	static final int PROBES = 3;
+
+	/** The descriptors of the JMX notifications emitted by this service */
+	private static final MBeanNotificationInfo[] notificationInfos = new MBeanNotificationInfo[] {
+		new MBeanNotificationInfo(new String[] {NOTIF_LIMITED}, Notification.class.getName(), "Notification emitted when a metric name first exceeds the series limit in a window")
+	};
+
+	/**
+	 * <p>Title: Sketch</p>
+	 * <p>Description: A HyperLogLog sketch that maintains its harmonic sum incrementally, so the estimate is constant time</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.CardinalityLimiter.Sketch</code></p>
+	 */
+	static final class Sketch {
+		/** The register index bits */
+		final int p;
+		/** The registers */
+		final byte[] registers;
+		/** The sum of 2^-register over all registers */
+		double sum;
+		/** The number of zero registers */
+		int zeros;
+		/** The bias correction constant times the register count squared */
+		final double alphaMM;
+
+		/**
+		 * Creates a new Sketch
+		 * @param p The register index bits
+		 */
+		Sketch(final int p) {
+			this.p = p;
+			final int m = 1 << p;
+			registers = new byte[m];
+			sum = m;
+			zeros = m;
+			final double alpha = m >= 128 ? 0.7213D / (1D + 1.079D / m) : m==64 ? 0.709D : m==32 ? 0.697D : 0.673D;
+			alphaMM = alpha * m * m;
+		}
+
+		/**
+		 * Adds a hash
+		 * @param hash A well mixed 64 bit hash
+		 * @return true if a register changed
+		 */
+		boolean add(final long hash) {
+			final int index = (int)(hash >>> (64 - p));
+			final int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+			final int current = registers[index];
+			if(rank <= current) return false;
+			if(current==0) zeros--;
+			sum += Math.scalb(1D, -rank) - Math.scalb(1D, -current);
+			registers[index] = (byte)rank;
+			return true;
+		}
+
+		/**
+		 * Returns the estimated distinct count, using linear counting in the small range
+		 * @return the estimate
+		 */
+		long estimate() {
+			final int m = registers.length;
+			final double raw = alphaMM / sum;
+			if(raw <= 2.5D * m && zeros > 0) return Math.round(m * Math.log((double)m / zeros));
+			return Math.round(raw);
+		}
+	}
+
+	/**
+	 * <p>Title: Guard</p>
+	 * <p>Description: The cardinality state of one metric name in the current window</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.CardinalityLimiter.Guard</code></p>
+	 */
+	static final class Guard {
+		/** The sketch of distinct series offered */
+		final Sketch series = new Sketch(PRECISION);
+		/** The filter of admitted series */
+		final long[] admitted;
+		/** The filter of series seen over the limit, so their later points skip the lock. Allocated once limited. */
+		volatile long[] rejected = null;
+		/** The filter bit mask */
+		final int mask;
+		/** The sketches of distinct values per tag key */
+		final Map<String, Sketch> keys = new HashMap<String, Sketch>();
+		/** Set once the limit is crossed */
+		volatile boolean limited = false;
+		/** The tag key blamed once limited, or null if none could be */
+		volatile String offendingKey = null;
+
+		/**
+		 * Creates a new Guard
+		 * @param bits The filter size in bits, a power of two
+		 */
+		Guard(final int bits) {
+			admitted = new long[Math.max(1, bits >>> 6)];
+			mask = bits - 1;
+		}
+
+		/**
+		 * Tests the passed filter for a series hash
+		 * @param filter The filter
+		 * @param hash The series hash
+		 * @return true if the series is probably in the filter, false if it definitely is not
+		 */
+		boolean contains(final long[] filter, final long hash) {
+			final int h1 = (int)hash;
+			final int h2 = (int)(hash >>> 32);
+			for(int i = 0; i < PROBES; i++) {
+				final int bit = (h1 + i * h2) & mask;
+				if((filter[bit >>> 6] & (1L << bit))==0) return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Adds a series hash to the passed filter
+		 * @param filter The filter
+		 * @param hash The series hash
+		 */
+		void put(final long[] filter, final long hash) {
+			final int h1 = (int)hash;
+			final int h2 = (int)(hash >>> 32);
+			for(int i = 0; i < PROBES; i++) {
+				final int bit = (h1 + i * h2) & mask;
+				filter[bit >>> 6] |= (1L << bit);
+			}
+		}
+
+		/**
+		 * Returns the tag key with the highest estimated distinct value count
+		 * @return the offending tag key, or null if no tags were seen
+		 */
+		String worstKey() {
+			String worst = null;
+			long max = -1L;
+			for(Map.Entry<String, Sketch> entry: keys.entrySet()) {
+				final long est = entry.getValue().estimate();
+				if(est > max) {
+					max = est;
+					worst = entry.getKey();
+				}
+			}
+			return worst;
+		}
+	}
+
+	/**
+	 * Creates a new CardinalityLimiter configured from system properties or the environment
+	 * @param conn The connection whose traces are limited
+	 * @return the new limiter, or null if limiting is disabled
+	 */
+	static CardinalityLimiter configured(final TSDBSubmitterConnection conn) {
+		final int limit = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_LIMIT, DEFAULT_LIMIT);
+		if(limit < 1) return null;
+		final String mode = ConfigurationHelper.getSystemThenEnvProperty(CONFIG_MODE, DEFAULT_MODE).trim().toLowerCase();
+		final CardinalityLimiter limiter = new CardinalityLimiter(conn.host + ":" + conn.port,
+			JMXHelper.objectName("%s:service=TSDBCardinalityLimiter,host=%s,port=%s", ConnectionStatsMXBean.DOMAIN, conn.host, conn.port),
+			limit, mode, ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_WINDOW, DEFAULT_WINDOW),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_METRICS, DEFAULT_MAX_METRICS));
+		limiter.start();
+		return limiter;
+	}
+
+	/**
+	 * Creates a new CardinalityLimiter
+	 * @param endpoint The endpoint name used in log messages
+	 * @param objectName The MBean ObjectName, or null to not register
+	 * @param limit The maximum distinct series admitted per metric name
+	 * @param mode The over limit action, <b><code>drop</code></b> or <b><code>collapse</code></b>
+	 * @param window The window in ms. after which admitted series are forgotten, or 0 for never
+	 * @param maxMetrics The maximum number of metric names tracked
+	 */
+	public CardinalityLimiter(final String endpoint, final ObjectName objectName, final int limit, final String mode, final long window, final int maxMetrics) {
+		super(SharedNotificationExecutor.getInstance(), notificationInfos);
+		if(limit < 1) throw new IllegalArgumentException("Invalid limit [" + limit + "]");
+		if(window < 0) throw new IllegalArgumentException("Invalid window [" + window + "]");
+		if(maxMetrics < 1) throw new IllegalArgumentException("Invalid max metrics [" + maxMetrics + "]");
+		if("collapse".equals(mode)) collapse = true;
+		else if("drop".equals(mode)) collapse = false;
+		else throw new IllegalArgumentException("Invalid mode [" + mode + "]");
+		this.endpoint = endpoint;
+		this.objectName = objectName;
+		this.limit = limit;
+		this.window = window;
+		this.maxMetrics = maxMetrics;
+		filterBits = Math.max(64, Integer.highestOneBit(limit * BITS_PER_SERIES - 1) << 1);
+	}
+
+	/**
+	 * Registers the MBean and schedules the window reset
+	 */
+	void start() {
+		if(objectName!=null) {
+			try {
+				if(!JMXHelper.getHeliosMBeanServer().isRegistered(objectName)) {
+					JMXHelper.registerMBean(objectName, this);
+				}
+			} catch (Exception ex) {
+				LOG.warn("Failed to register cardinality limiter MBean [{}]", objectName, ex);
+			}
+		}
+		scheduleReset();
+	}
+
+	/**
+	 * Stops the window reset and unregisters the MBean
+	 */
+	void close() {
+		closed = true;
+		if(objectName!=null) {
+			try {
+				if(JMXHelper.getHeliosMBeanServer().isRegistered(objectName)) {
+					JMXHelper.unregisterMBean(objectName);
+				}
+			} catch (Exception ex) {
+				LOG.debug("Failed to unregister cardinality limiter MBean [{}]", objectName, ex);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the next window reset on the shared flush timer
+	 */
+	protected void scheduleReset() {
+		if(closed || window < 1) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				if(closed) return;
+				reset();
+				scheduleReset();
+			}
+		}, window, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Admits a point, returning the tags it should be traced with
+	 * @param seriesHash The series hash of the metric name, root tags and tags
+	 * @param metric The metric name
+	 * @param tags The point's tags, which are never modified
+	 * @return the passed tags, a collapsed copy, or null if the point should be dropped
+	 */
+	public Map<String, String> admit(final long seriesHash, final String metric, final Map<String, String> tags) {
+		Guard guard = guards.get(metric);
+		if(guard==null) {
+			if(guards.size() >= maxMetrics) {
+				untracked.increment();
+				return tags;
+			}
+			final Guard created = new Guard(filterBits);
+			guard = guards.putIfAbsent(metric, created);
+			if(guard==null) guard = created;
+		}
+		if(guard.contains(guard.admitted, seriesHash)) return tags;
+		final long[] rejected = guard.rejected;
+		if(rejected==null || !guard.contains(rejected, seriesHash)) {
+			if(offer(guard, seriesHash, metric, tags)) return tags;
+		}
+		return overLimit(guard, tags);
+	}
+
+	/**
+	 * Processes a series the guard has not admitted
+	 * @param guard The metric name's guard
+	 * @param seriesHash The series hash
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return true if the series was admitted, false if it is over the limit
+	 */
+	protected boolean offer(final Guard guard, final long seriesHash, final String metric, final Map<String, String> tags) {
+		boolean notify = false;
+		long estimate;
+		synchronized(guard) {
+			if(guard.contains(guard.admitted, seriesHash)) return true;
+			guard.series.add(seriesHash);
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				Sketch ks = guard.keys.get(tag.getKey());
+				if(ks==null) {
+					if(guard.keys.size() >= MAX_KEYS) continue;
+					ks = new Sketch(KEY_PRECISION);
+					guard.keys.put(tag.getKey(), ks);
+				}
+				ks.add(SeriesHash.tagHash(tag.getKey(), tag.getValue()));
+			}
+			estimate = guard.series.estimate();
+			if(!guard.limited) {
+				if(estimate <= limit) {
+					guard.put(guard.admitted, seriesHash);
+					return true;
+				}
+				guard.offendingKey = guard.worstKey();
+				guard.rejected = new long[guard.admitted.length];
+				guard.limited = true;
+				notify = true;
+			}
+			guard.put(guard.rejected, seriesHash);
+		}
+		if(notify) {
+			final String message = "Metric [" + metric + "] on [" + endpoint + "] exceeded [" + limit + "] series with offending tag key ["
+				+ guard.offendingKey + "]. New series will be " + (collapse ? "collapsed" : "dropped");
+			LOG.warn(message);
+			final Notification notif = new Notification(NOTIF_LIMITED, objectName==null ? this : objectName, sequence.incrementAndGet(), System.currentTimeMillis(), message);
+			notif.setUserData(metric);
+			sendNotification(notif);
+		}
+		return false;
+	}
+
+	/**
+	 * Drops or collapses a point of an over limit series
+	 * @param guard The metric name's guard
+	 * @param tags The tags
+	 * @return the collapsed tags, or null to drop
+	 */
+	protected Map<String, String> overLimit(final Guard guard, final Map<String, String> tags) {
+		final String key = guard.offendingKey;
+		if(collapse && key!=null && tags.containsKey(key)) {
+			collapsed.increment();
+			final Map<String, String> copy = new LinkedHashMap<String, String>(tags);
+			copy.put(key, OTHER);
+			return copy;
+		}
+		dropped.increment();
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#reset()
+	 */
+	@Override
+	public void reset() {
+		guards.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getLimit()
+	 */
+	@Override
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getMode()
+	 */
+	@Override
+	public String getMode() {
+		return collapse ? "collapse" : "drop";
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getWindow()
+	 */
+	@Override
+	public long getWindow() {
+		return window;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getTrackedMetrics()
+	 */
+	@Override
+	public int getTrackedMetrics() {
+		return guards.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getLimitedMetrics()
+	 */
+	@Override
+	public int getLimitedMetrics() {
+		int count = 0;
+		for(Guard guard: guards.values()) {
+			if(guard.limited) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getDroppedPoints()
+	 */
+	@Override
+	public long getDroppedPoints() {
+		return dropped.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getCollapsedPoints()
+	 */
+	@Override
+	public long getCollapsedPoints() {
+		return collapsed.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getUntrackedPoints()
+	 */
+	@Override
+	public long getUntrackedPoints() {
+		return untracked.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getLimitedEstimates()
+	 */
+	@Override
+	public Map<String, Long> getLimitedEstimates() {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for(Map.Entry<String, Guard> entry: guards.entrySet()) {
+			final Guard guard = entry.getValue();
+			if(!guard.limited) continue;
+			synchronized(guard) {
+				map.put(entry.getKey(), guard.series.estimate());
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.CardinalityLimiterMXBean#getOffendingKeys()
+	 */
+	@Override
+	public Map<String, String> getOffendingKeys() {
+		final Map<String, String> map = new TreeMap<String, String>();
+		for(Map.Entry<String, Guard> entry: guards.entrySet()) {
+			final Guard guard = entry.getValue();
+			if(guard.limited) map.put(entry.getKey(), String.valueOf(guard.offendingKey));
+		}
+		return map;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CardinalityLimiter [" + endpoint + ", limit:" + limit + ", mode:" + getMode() + ", limited:" + getLimitedMetrics()
+			+ ", dropped:" + getDroppedPoints() + ", collapsed:" + getCollapsedPoints() + "]";
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Map;
+
+/**
+ * <p>Title: CardinalityLimiterMXBean</p>
+ * <p>Description: MXBean interface for {@link CardinalityLimiter}, the per metric series cardinality guard of a {@link TSDBSubmitterConnection}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.CardinalityLimiterMXBean</code></p>
+ */
+
+public interface CardinalityLimiterMXBean {
+	/** The notification type emitted when a metric first exceeds the limit in a window */
+	public static final String NOTIF_LIMITED = "tsdb.cardinality.limited";
+
+	/**
+	 * Returns the maximum number of distinct series admitted per metric name in each window
+	 * @return the series limit
+	 */
+	public int getLimit();
+
+	/**
+	 * Returns the action taken on series over the limit, <b><code>drop</code></b> or <b><code>collapse</code></b>
+	 * @return the over limit action
+	 */
+	public String getMode();
+
+	/**
+	 * Returns the window in ms. after which all admitted series are forgotten, or 0 if they never are
+	 * @return the window
+	 */
+	public long getWindow();
+
+	/**
+	 * Returns the number of metric names being tracked
+	 * @return the tracked metric count
+	 */
+	public int getTrackedMetrics();
+
+	/**
+	 * Returns the number of metric names over the limit in the current window
+	 * @return the limited metric count
+	 */
+	public int getLimitedMetrics();
+
+	/**
+	 * Returns the number of points dropped because their series was over the limit
+	 * @return the dropped point count
+	 */
+	public long getDroppedPoints();
+
+	/**
+	 * Returns the number of points whose offending tag value was collapsed
+	 * @return the collapsed point count
+	 */
+	public long getCollapsedPoints();
+
+	/**
+	 * Returns the number of points for metric names first seen after the tracked metric cap was reached, which are not limited
+	 * @return the untracked point count
+	 */
+	public long getUntrackedPoints();
+
+	/**
+	 * Returns the estimated distinct series count of the metric names over the limit in the current window
+	 * @return the estimates keyed by metric name
+	 */
+	public Map<String, Long> getLimitedEstimates();
+
+	/**
+	 * Returns the tag key blamed for the cardinality of each metric name over the limit in the current window
+	 * @return the offending tag keys keyed by metric name
+	 */
+	public Map<String, String> getOffendingKeys();
+
+	/**
+	 * Forgets all admitted series and starts a new window
+	 */
+	public void reset();
+}
@@ -0,0 +1,561 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.heliosapm.jmx.util.helpers.JMXHelper;
+
+/**
+ * <p>Title: ConnectionStats</p>
+ * <p>Description: Self-telemetry of a {@link TSDBSubmitterConnection}, registered as an MXBean named
+ * <b><code>com.heliosapm.opentsdb:service=TSDBSubmitterConnection,host=&lt;host&gt;,port=&lt;port&gt;</code></b>.</p>
+ * <p>Everything recorded on the trace path is a striped counter that the connection or its components already maintain,
+ * so the instrumentation adds no shared writes to the hot path. Flush latencies and write stalls are recorded
+ * under the connection's flush lock. Rates and the flush latency histogram are computed once per sample period
+ * on the shared flush timer, which optionally also traces the stats through the connection itself.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.ConnectionStats</code></p>
+ */
+
+public class ConnectionStats implements ConnectionStatsMXBean {
+	/** The connection these stats describe */
+	protected final TSDBSubmitterConnection conn;
+	/** The MBean ObjectName */
+	protected final ObjectName objectName;
+	/** The sample period in ms. */
+	protected final long period;
+	/** Indicates if the stats are traced through the connection on each sample */
+	protected volatile boolean emitting;
+	/** Indicates if the sampler is running */
+	protected volatile boolean started = false;
+	/** The submitters writing to the connection, keyed by submitter id and held weakly so an abandoned submitter is not retained */
+	protected final NonBlockingHashMapLong<SubmitterRef> submitters = new NonBlockingHashMapLong<SubmitterRef>();
+	/** The trace count of submitters that were closed or collected */
+	protected final Counter retiredTraces = new Counter();
+	/** The flush latencies in microseconds since the last sample */
+	protected final QuantileSketch flushLatency = new QuantileSketch();
+	/** The cumulative time flushes spent in transport writes in ns. */
+	protected final Counter writeStallNs = new Counter();
+	/** The number of times the transport was connected again after being lost */
+	protected final Counter reconnects = new Counter();
+	/** The number of traces discarded from the full retry buffer */
+	protected final Counter retryDropped = new Counter();
+
+	/** The flush latency summary of the last sample period */
+	protected volatile Map<String, Long> lastFlushLatency = Collections.emptyMap();
+	/** The flushed points per second over the last sample period */
+	protected volatile double pointsPerSecond = 0D;
+	/** The flushed bytes per second over the last sample period */
+	protected volatile double bytesPerSecond = 0D;
+	/** The traced points per second over the last sample period */
+	protected volatile double tracesPerSecond = 0D;
+	/** The flushed trace count at the last sample */
+	protected long lastPoints = 0L;
+	/** The flushed byte count at the last sample */
+	protected long lastBytes = 0L;
+	/** The submitter trace count at the last sample */
+	protected long lastTraces = 0L;
+	/** The time of the last sample in ms. */
+	protected long lastSample = System.currentTimeMillis();
+	/** The reusable latency snapshot */
+	private final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectionStats.class);
+
+	/** The config property name for the stats sample period in ms. */
+	public static final String CONFIG_PERIOD = "helios.opentsdb.stats.period";
+	/** The default stats sample period in ms. */
+	public static final long DEFAULT_PERIOD = 15000L;
+	/** The config property name for enabling tracing of the stats through the connection */
+	public static final String CONFIG_EMIT = "helios.opentsdb.stats.emit";
+	/** The default stats emission enablement */
+	public static final boolean DEFAULT_EMIT = false;
+	/** The metric name prefix of emitted stats */
+	public static final String METRIC_PREFIX = "tsdb.submitter.";
+	/** The names of the flush latency summary entries, in {@link QuantileSketch#QUANTILES} order */
+	private static final String[] LATENCY_KEYS = {"p50", "p95", "p99", "p999"};
+
+	/**
+	 * <p>Title: SubmitterRef</p>
+	 * <p>Description: A weak reference to a submitter that strongly holds its trace counter, so its count outlives it</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.ConnectionStats.SubmitterRef</code></p>
+	 */
+	static class SubmitterRef extends WeakReference<TSDBSubmitterImpl> {
+		/** The submitter's trace counter */
+		final Counter traces;
+
+		/**
+		 * Creates a new SubmitterRef
+		 * @param submitter The submitter
+		 */
+		SubmitterRef(final TSDBSubmitterImpl submitter) {
+			super(submitter);
+			traces = submitter.traceCount;
+		}
+	}
+
+	/**
+	 * Creates a new ConnectionStats configured from system properties or the environment
+	 * @param conn The connection these stats describe
+	 */
+	ConnectionStats(final TSDBSubmitterConnection conn) {
+		if(conn==null) throw new IllegalArgumentException("The passed connection was null");
+		this.conn = conn;
+		period = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PERIOD, DEFAULT_PERIOD);
+		if(period < 1) throw new IllegalArgumentException("Invalid stats period [" + period + "]");
+		emitting = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_EMIT, DEFAULT_EMIT);
+		objectName = JMXHelper.objectName("%s:service=TSDBSubmitterConnection,host=%s,port=%s", DOMAIN, conn.host, conn.port);
+	}
+
+	/**
+	 * Registers the MXBean and starts the sampler. Does nothing if already started.
+	 */
+	void start() {
+		if(started) return;
+		started = true;
+		try {
+			if(!JMXHelper.getHeliosMBeanServer().isRegistered(objectName)) {
+				JMXHelper.registerMBean(objectName, this);
+			}
+		} catch (Exception ex) {
+			LOG.warn("Failed to register connection stats MBean [{}]", objectName, ex);
+		}
+		scheduleSample();
+	}
+
+	/**
+	 * Stops the sampler and unregisters the MXBean
+	 */
+	void stop() {
+		started = false;
+		try {
+			if(JMXHelper.getHeliosMBeanServer().isRegistered(objectName)) {
+				JMXHelper.unregisterMBean(objectName);
+			}
+		} catch (Exception ex) {
+			LOG.debug("Failed to unregister connection stats MBean [{}]", objectName, ex);
+		}
+	}
+
+	/**
+	 * Callback from the connection when its transport is connected again after being lost
+	 */
+	void onReconnect() {
+		reconnects.increment();
+	}
+
+	/**
+	 * Callback from the connection when a flush completes. Called holding the connection's flush lock.
+	 * @param elapsedNs The flush elapsed time in ns.
+	 * @param writeNs The time spent in the transport write in ns.
+	 */
+	void onFlush(final long elapsedNs, final long writeNs) {
+		flushLatency.update(TimeUnit.MICROSECONDS.convert(elapsedNs, TimeUnit.NANOSECONDS));
+		writeStallNs.add(writeNs);
+	}
+
+	/**
+	 * Callback from the connection when a transport write fails. Called holding the connection's flush lock.
+	 * @param writeNs The time spent in the failed transport write in ns.
+	 */
+	void onWriteFailed(final long writeNs) {
+		writeStallNs.add(writeNs);
+	}
+
+	/**
+	 * Callback from the connection when it discards the oldest held traces because the retry buffer is full.
+	 * Called holding the connection's flush lock.
+	 * @param traces The number of discarded traces
+	 */
+	void onRetryDropped(final int traces) {
+		retryDropped.add(traces);
+	}
+
+	/**
+	 * Adds a submitter whose trace count is reported
+	 * @param submitter The submitter
+	 */
+	void register(final TSDBSubmitterImpl submitter) {
+		submitters.put(submitter.id, new SubmitterRef(submitter));
+	}
+
+	/**
+	 * Removes a closed submitter, keeping its trace count in the total
+	 * @param submitter The submitter
+	 */
+	void unregister(final TSDBSubmitterImpl submitter) {
+		retire(submitter.id);
+	}
+
+	/**
+	 * Removes a submitter and adds its trace count to the retired total
+	 * @param id The submitter id
+	 */
+	protected void retire(final long id) {
+		final SubmitterRef ref = submitters.remove(id);
+		if(ref!=null) retiredTraces.add(ref.traces.get());
+	}
+
+	/**
+	 * Schedules the next sample on the shared flush timer
+	 */
+	protected void scheduleSample() {
+		if(!started) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							sample();
+						} catch (Exception ex) {
+							LOG.error("Connection stats sample failed", ex);
+						} finally {
+							scheduleSample();
+						}
+					}
+				});
+			}
+		}, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Computes the rates and flush latency histogram of the elapsed period, and traces them if emitting is enabled
+	 */
+	protected synchronized void sample() {
+		final long now = System.currentTimeMillis();
+		final double elapsedSecs = Math.max(1L, now - lastSample) / 1000D;
+		final FlushPolicy policy = conn.flushPolicy;
+		final long points = policy.getFlushedTraces();
+		final long bytes = policy.getFlushedBytes();
+		final long traces = getTotalTraces();
+		pointsPerSecond = (points - lastPoints) / elapsedSecs;
+		bytesPerSecond = (bytes - lastBytes) / elapsedSecs;
+		tracesPerSecond = (traces - lastTraces) / elapsedSecs;
+		lastPoints = points;
+		lastBytes = bytes;
+		lastTraces = traces;
+		lastSample = now;
+		final Map<String, Long> latency = new LinkedHashMap<String, Long>();
+		if(flushLatency.snapshot(snapshot)) {
+			for(int i = 0; i < LATENCY_KEYS.length; i++) {
+				latency.put(LATENCY_KEYS[i], snapshot.quantiles[i]);
+			}
+			latency.put("max", snapshot.max);
+			latency.put("count", snapshot.count);
+		}
+		lastFlushLatency = Collections.unmodifiableMap(latency);
+		if(emitting && conn.isConnected()) emit(TimeUnit.SECONDS.convert(now, TimeUnit.MILLISECONDS), latency);
+	}
+
+	/**
+	 * Traces the current stats through the connection
+	 * @param timestamp The timestamp in seconds
+	 * @param latency The flush latency summary of the last period
+	 */
+	protected void emit(final long timestamp, final Map<String, Long> latency) {
+		final List<String> rootTags = Collections.singletonList("host=" + LOCAL_HOST);
+		final Map<String, String> tags = Collections.singletonMap("tsd", conn.host.replace(':', '_') + "_" + conn.port);
+		conn.trace(timestamp, METRIC_PREFIX + "points.rate", pointsPerSecond, rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "bytes.rate", bytesPerSecond, rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "traces.rate", tracesPerSecond, rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "buffer.bytes", getBufferedBytes(), rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "buffer.traces", getBufferedTraces(), rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "stall.time", getWriteStallTime(), rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "reconnects", getReconnectCount(), rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "dropped", getDroppedPoints(), rootTags, tags);
+		conn.trace(timestamp, METRIC_PREFIX + "rejected", getRejections(), rootTags, tags);
+		final CardinalityLimiter limiter = conn.limiter;
+		if(limiter!=null) {
+			conn.trace(timestamp, METRIC_PREFIX + "cardinality.dropped", limiter.getDroppedPoints(), rootTags, tags);
+			conn.trace(timestamp, METRIC_PREFIX + "cardinality.collapsed", limiter.getCollapsedPoints(), rootTags, tags);
+			conn.trace(timestamp, METRIC_PREFIX + "cardinality.limited", limiter.getLimitedMetrics(), rootTags, tags);
+		}
+		for(Map.Entry<String, Long> entry: latency.entrySet()) {
+			conn.trace(timestamp, METRIC_PREFIX + "flush." + entry.getKey(), entry.getValue().longValue(), rootTags, tags);
+		}
+	}
+
+	/**
+	 * Returns the sum of the trace counts of all submitters, open or not, and retires collected submitters
+	 * @return the total trace count
+	 */
+	protected long getTotalTraces() {
+		long total = 0L;
+		for(Map.Entry<Long, SubmitterRef> entry: submitters.entrySet()) {
+			final SubmitterRef ref = entry.getValue();
+			if(ref.get()==null) {
+				retire(entry.getKey());
+			} else {
+				total += ref.traces.get();
+			}
+		}
+		return total + retiredTraces.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getEndpoint()
+	 */
+	@Override
+	public String getEndpoint() {
+		return conn.host + ":" + conn.port;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return conn.isConnected();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getPointsPerSecond()
+	 */
+	@Override
+	public double getPointsPerSecond() {
+		return pointsPerSecond;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getBytesPerSecond()
+	 */
+	@Override
+	public double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getTracesPerSecond()
+	 */
+	@Override
+	public double getTracesPerSecond() {
+		return tracesPerSecond;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getBufferedBytes()
+	 */
+	@Override
+	public long getBufferedBytes() {
+		return conn.dataBuffer.getBufferedBytes();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getBufferedTraces()
+	 */
+	@Override
+	public long getBufferedTraces() {
+		return conn.dataBuffer.getBufferedTraces();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getBufferOccupancy()
+	 */
+	@Override
+	public int getBufferOccupancy() {
+		final int max = conn.flushPolicy.getMaxBytes();
+		if(max < 1) return -1;
+		return (int)(getBufferedBytes() * 100L / max);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getFlushLatency()
+	 */
+	@Override
+	public Map<String, Long> getFlushLatency() {
+		return lastFlushLatency;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getFlushCount()
+	 */
+	@Override
+	public long getFlushCount() {
+		return conn.flushPolicy.getFlushCount();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getWriteStallTime()
+	 */
+	@Override
+	public long getWriteStallTime() {
+		return TimeUnit.MILLISECONDS.convert(writeStallNs.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getReconnectCount()
+	 */
+	@Override
+	public long getReconnectCount() {
+		return reconnects.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getDroppedPoints()
+	 */
+	@Override
+	public long getDroppedPoints() {
+		return conn.transport.getDroppedTraces() + retryDropped.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getRejections()
+	 */
+	@Override
+	public long getRejections() {
+		return conn.rejections.getRejections();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getRejectionsByReason()
+	 */
+	@Override
+	public Map<String, Long> getRejectionsByReason() {
+		return conn.rejections.getRejectionsByReason();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getRejectionSamples()
+	 */
+	@Override
+	public List<String> getRejectionSamples() {
+		return conn.rejections.getSamples();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getSubmitterTraceCounts()
+	 */
+	@Override
+	public Map<String, Long> getSubmitterTraceCounts() {
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for(SubmitterRef ref: submitters.values()) {
+			final TSDBSubmitterImpl submitter = ref.get();
+			if(submitter==null) continue;
+			counts.put("#" + submitter.id + " " + (submitter.rootTags.isEmpty() ? "<none>" : submitter.rootTags.toString()), ref.traces.get());
+		}
+		return counts;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#isEmitting()
+	 */
+	@Override
+	public boolean isEmitting() {
+		return emitting;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#setEmitting(boolean)
+	 */
+	@Override
+	public void setEmitting(final boolean emit) {
+		emitting = emit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.ConnectionStatsMXBean#getPeriod()
+	 */
+	@Override
+	public long getPeriod() {
+		return period;
+	}
+
+	/**
+	 * Returns the MBean ObjectName
+	 * @return the ObjectName
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectionStats [" + getEndpoint() + ", points/s:" + pointsPerSecond + ", bytes/s:" + bytesPerSecond
+			+ ", buffered:" + getBufferedBytes() + ", stall:" + getWriteStallTime() + "ms, reconnects:" + getReconnectCount()
+			+ ", dropped:" + getDroppedPoints() + "]";
+	}
+
+	/** The local host name tagged on emitted stats */
+	private static final String LOCAL_HOST = localHost();
+
+	/**
+	 * Returns the local host name, cleaned for use as a tag value
+	 * @return the local host name
+	 */
+	private static String localHost() {
+		try {
+			return InetAddress.getLocalHost().getHostName().replace(':', '_');
+		} catch (Exception ex) {
+			return "unknown";
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: ConnectionStatsMXBean</p>
+ * <p>Description: MXBean interface for {@link ConnectionStats}, the self-telemetry of a {@link TSDBSubmitterConnection}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.ConnectionStatsMXBean</code></p>
+ */
+
+public interface ConnectionStatsMXBean {
+	/** The JMX domain of connection stats MBeans */
+	public static final String DOMAIN = "com.heliosapm.opentsdb";
+
+	/**
+	 * Returns the OpenTSDB endpoint of the connection as <b><code>host:port</code></b>
+	 * @return the OpenTSDB endpoint
+	 */
+	public String getEndpoint();
+
+	/**
+	 * Indicates if the connection's transport is connected
+	 * @return true if connected, false otherwise
+	 */
+	public boolean isConnected();
+
+	/**
+	 * Returns the rate data points were flushed to the transport over the last sample period
+	 * @return the flushed points per second
+	 */
+	public double getPointsPerSecond();
+
+	/**
+	 * Returns the rate bytes were flushed to the transport over the last sample period
+	 * @return the flushed bytes per second
+	 */
+	public double getBytesPerSecond();
+
+	/**
+	 * Returns the rate submitters traced data points over the last sample period
+	 * @return the traced points per second
+	 */
+	public double getTracesPerSecond();
+
+	/**
+	 * Returns the approximate number of bytes buffered awaiting a flush
+	 * @return the buffered byte count
+	 */
+	public long getBufferedBytes();
+
+	/**
+	 * Returns the approximate number of traces buffered awaiting a flush
+	 * @return the buffered trace count
+	 */
+	public long getBufferedTraces();
+
+	/**
+	 * Returns the buffered byte count as a percentage of the byte count that triggers a flush
+	 * @return the buffer occupancy percentage, or -1 if the byte flush trigger is disabled
+	 */
+	public int getBufferOccupancy();
+
+	/**
+	 * Returns the flush latency quantiles in microseconds over the last sample period,
+	 * keyed by <b><code>p50</code></b>, <b><code>p95</code></b>, <b><code>p99</code></b>, <b><code>p999</code></b>,
+	 * <b><code>max</code></b> and <b><code>count</code></b>
+	 * @return the flush latency histogram summary
+	 */
+	public Map<String, Long> getFlushLatency();
+
+	/**
+	 * Returns the total number of flushes
+	 * @return the flush count
+	 */
+	public long getFlushCount();
+
+	/**
+	 * Returns the cumulative time flushes spent writing to the transport, in ms.
+	 * Includes time writers were blocked by transport back pressure.
+	 * @return the cumulative write stall time in ms.
+	 */
+	public long getWriteStallTime();
+
+	/**
+	 * Returns the number of times the transport was connected again after being lost
+	 * @return the reconnect count
+	 */
+	public long getReconnectCount();
+
+	/**
+	 * Returns the number of data points the transport, or the connection's full retry buffer, has given up on
+	 * @return the dropped point count
+	 */
+	public long getDroppedPoints();
+
+	/**
+	 * Returns the number of puts OpenTSDB reported as rejected
+	 * @return the rejection count
+	 */
+	public long getRejections();
+
+	/**
+	 * Returns the put rejection counts keyed by the reason OpenTSDB gave
+	 * @return the rejection counts by reason
+	 */
+	public Map<String, Long> getRejectionsByReason();
+
+	/**
+	 * Returns a bounded sample of the most recent rejection lines, oldest first
+	 * @return the sampled rejection lines
+	 */
+	public List<String> getRejectionSamples();
+
+	/**
+	 * Returns the cumulative trace count of each open submitter on this connection, keyed by the submitter's id and root tags
+	 * @return the per submitter trace counts
+	 */
+	public Map<String, Long> getSubmitterTraceCounts();
+
+	/**
+	 * Indicates if these stats are traced through the connection on each sample
+	 * @return true if the stats are emitted, false otherwise
+	 */
+	public boolean isEmitting();
+
+	/**
+	 * Enables or disables tracing these stats through the connection on each sample
+	 * @param emit true to emit the stats, false otherwise
+	 */
+	public void setEmitting(boolean emit);
+
+	/**
+	 * Returns the sample period in ms.
+	 * @return the sample period
+	 */
+	public long getPeriod();
+}
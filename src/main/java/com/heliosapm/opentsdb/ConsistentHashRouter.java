@@ -0,0 +1,360 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: ConsistentHashRouter</p>
+ * <p>Description: Shards traced series across a set of OpenTSDB endpoints using a consistent hash ring of the
+ * series identity (metric name plus tags), so each series keeps going to the same endpoint.</p>
+ * <p>Each endpoint owns a number of virtual nodes on the ring. A periodic health check on the shared flush timer 
+ * ejects endpoints whose transport is down and re-admits them once they reconnect. Only the ring ranges owned by the 
+ * ejected endpoint move to its successors, so the other series keep their endpoint.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.ConsistentHashRouter</code></p>
+ */
+
+public class ConsistentHashRouter {
+	/** The endpoint connections */
+	protected final TSDBSubmitterConnection[] endpoints;
+	/** The health state of each endpoint */
+	protected final boolean[] healthy;
+	/** The number of series traces routed to each endpoint */
+	protected final Counter[] routed;
+	/** The number of virtual nodes per endpoint */
+	protected final int virtualNodes;
+	/** The health check period in ms. */
+	protected final long healthCheckPeriod;
+	/** The current ring */
+	protected volatile Ring ring;
+	/** Set while a health check is running */
+	protected final AtomicBoolean checking = new AtomicBoolean(false);
+	/** Indicates if this router has been closed */
+	protected volatile boolean closed = false;
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ConsistentHashRouter.class);
+	
+	/** The config property name for the number of virtual nodes per endpoint */
+	public static final String CONFIG_VNODES = "helios.opentsdb.router.vnodes";
+	/** The default number of virtual nodes per endpoint */
+	public static final int DEFAULT_VNODES = 128;
+	/** The config property name for the health check period in ms. */
+	public static final String CONFIG_HEALTH_PERIOD = "helios.opentsdb.router.healthcheck";
+	/** The default health check period in ms. */
+	public static final long DEFAULT_HEALTH_PERIOD = 5000L;
+	
+	/**
+	 * <p>Title: Ring</p>
+	 * <p>Description: An immutable snapshot of the hash ring</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.ConsistentHashRouter.Ring</code></p>
+	 */
+	static class Ring {
+		/** The sorted virtual node hashes */
+		final long[] hashes;
+		/** The endpoint index owning each virtual node */
+		final int[] owners;
+		
+		/**
+		 * Creates a new Ring
+		 * @param hashes The sorted virtual node hashes
+		 * @param owners The endpoint index owning each virtual node
+		 */
+		Ring(final long[] hashes, final int[] owners) {
+			this.hashes = hashes;
+			this.owners = owners;
+		}
+		
+		/**
+		 * Returns the index of the endpoint owning the passed hash, or -1 if the ring is empty
+		 * @param hash The series hash
+		 * @return the owning endpoint index
+		 */
+		int owner(final long hash) {
+			if(hashes.length==0) return -1;
+			int index = Arrays.binarySearch(hashes, hash);
+			if(index < 0) index = -index - 1;
+			if(index==hashes.length) index = 0;
+			return owners[index];
+		}
+	}
+	
+	/**
+	 * Creates a new ConsistentHashRouter configured from system properties or the environment
+	 * @param endpoints The endpoints as <b><code>host:port</code></b> strings. The port defaults to 4242.
+	 */
+	public ConsistentHashRouter(final String...endpoints) {
+		this(ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_VNODES, DEFAULT_VNODES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_HEALTH_PERIOD, DEFAULT_HEALTH_PERIOD),
+			endpoints);
+	}
+	
+	/**
+	 * Creates a new ConsistentHashRouter
+	 * @param virtualNodes The number of virtual nodes per endpoint
+	 * @param healthCheckPeriod The health check period in ms.
+	 * @param endpoints The endpoints as <b><code>host:port</code></b> strings. The port defaults to 4242.
+	 */
+	public ConsistentHashRouter(final int virtualNodes, final long healthCheckPeriod, final String...endpoints) {
+		if(endpoints==null || endpoints.length==0) throw new IllegalArgumentException("No endpoints specified");
+		if(virtualNodes < 1) throw new IllegalArgumentException("Invalid virtual node count [" + virtualNodes + "]");
+		if(healthCheckPeriod < 1) throw new IllegalArgumentException("Invalid health check period [" + healthCheckPeriod + "]");
+		this.virtualNodes = virtualNodes;
+		this.healthCheckPeriod = healthCheckPeriod;
+		this.endpoints = new TSDBSubmitterConnection[endpoints.length];
+		healthy = new boolean[endpoints.length];
+		routed = new Counter[endpoints.length];
+		for(int i = 0; i < endpoints.length; i++) {
+			if(endpoints[i]==null || endpoints[i].trim().isEmpty()) throw new IllegalArgumentException("Endpoint #" + i + " was null or empty");
+			final String ep = endpoints[i].trim();
+			final int index = ep.lastIndexOf(':');
+			final String host = index==-1 ? ep : ep.substring(0, index);
+			final int port = index==-1 ? 4242 : Integer.parseInt(ep.substring(index+1));
+			this.endpoints[i] = TSDBSubmitterConnection.getUnconnectedTSDBSubmitterConnection(host, port);
+			routed[i] = new Counter();
+			try {
+				this.endpoints[i].connect();
+				healthy[i] = true;
+			} catch (Exception ex) {
+				LOG.warn("Endpoint [{}] is not available. It will join the ring when it connects.", ep);
+			}
+		}
+		ring = buildRing();
+		scheduleHealthCheck();
+	}
+	
+	/**
+	 * Builds a ring from the currently healthy endpoints. 
+	 * Virtual node positions depend only on the endpoint identity, so an endpoint joining or leaving only moves its own ranges.
+	 * @return the new ring
+	 */
+	protected synchronized Ring buildRing() {
+		int count = 0;
+		for(boolean h: healthy) {
+			if(h) count++;
+		}
+		final long[] hashes = new long[count * virtualNodes];
+		final int[] owners = new int[count * virtualNodes];
+		int n = 0;
+		for(int i = 0; i < endpoints.length; i++) {
+			if(!healthy[i]) continue;
+			final String id = endpoints[i].host + ":" + endpoints[i].port + "#";
+			for(int v = 0; v < virtualNodes; v++) {
+				hashes[n] = SeriesHash.hash(id + v);
+				owners[n] = i;
+				n++;
+			}
+		}
+		// sort hashes and carry the owners along
+		final Integer[] order = new Integer[n];
+		for(int i = 0; i < n; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Long.compare(hashes[a], hashes[b]);
+			}
+		});
+		final long[] sortedHashes = new long[n];
+		final int[] sortedOwners = new int[n];
+		for(int i = 0; i < n; i++) {
+			sortedHashes[i] = hashes[order[i]];
+			sortedOwners[i] = owners[order[i]];
+		}
+		return new Ring(sortedHashes, sortedOwners);
+	}
+	
+	/**
+	 * Returns the endpoint connection for the passed series
+	 * @param metric The metric name
+	 * @param rootTags Optional pre-rendered <b><code>k=v</code></b> tags
+	 * @param tags Optional tags
+	 * @return the endpoint connection
+	 */
+	public TSDBSubmitterConnection route(final CharSequence metric, final Collection<String> rootTags, final Map<String, String> tags) {
+		int owner = ring.owner(SeriesHash.seriesHash(metric, rootTags, tags));
+		// with no healthy endpoints, keep routing to the first endpoint so its buffer, retry and spool logic apply
+		if(owner==-1) owner = 0;
+		routed[owner].increment();
+		return endpoints[owner];
+	}
+	
+	/**
+	 * Creates a new submitter that routes its traces through this router
+	 * @param rootTags Optional root tags for the new submitter
+	 * @return the new submitter
+	 */
+	public TSDBSubmitter submitter(final Map<String, String> rootTags) {
+		return new TSDBSubmitterImpl(endpoints[0], this).addRootTags(rootTags);
+	}
+	
+	/**
+	 * Flushes every endpoint
+	 * @param logTraces true to log the flushed traces
+	 * @return an int array containing the total number of bytes and traces flushed
+	 */
+	public int[] flush(final boolean logTraces) {
+		final int[] total = new int[]{0, 0};
+		for(TSDBSubmitterConnection conn: endpoints) {
+			final int[] flushed = conn.flush(logTraces);
+			total[0] += flushed[0];
+			total[1] += flushed[1];
+		}
+		return total;
+	}
+	
+	/**
+	 * Indicates if any endpoint is healthy
+	 * @return true if at least one endpoint is healthy
+	 */
+	public boolean isConnected() {
+		return ring.hashes.length > 0;
+	}
+	
+	/**
+	 * Schedules the next health check on the shared flush timer
+	 */
+	protected void scheduleHealthCheck() {
+		if(closed) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				if(!checking.compareAndSet(false, true)) return;
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							healthCheck();
+						} catch (Exception ex) {
+							LOG.error("Router health check failed", ex);
+						} finally {
+							checking.set(false);
+							scheduleHealthCheck();
+						}
+					}
+				});
+			}
+		}, healthCheckPeriod, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Checks each endpoint, reconnecting unhealthy ones, and rebuilds the ring if any endpoint changed state
+	 */
+	protected void healthCheck() {
+		final boolean[] up = new boolean[endpoints.length];
+		for(int i = 0; i < endpoints.length; i++) {
+			final TSDBSubmitterConnection conn = endpoints[i];
+			up[i] = conn.isConnected();
+			if(!up[i]) {
+				try {
+					conn.connect();
+					up[i] = conn.isConnected();
+				} catch (Exception ex) {
+					up[i] = false;
+				}
+			}
+		}
+		// the health flags and the ring change together, so no reader sees one without the other
+		synchronized(this) {
+			boolean changed = false;
+			for(int i = 0; i < endpoints.length; i++) {
+				final TSDBSubmitterConnection conn = endpoints[i];
+				if(up[i]!=healthy[i]) {
+					healthy[i] = up[i];
+					changed = true;
+					if(up[i]) {
+						LOG.info("Endpoint [{}:{}] is healthy. Re-admitting to ring.", conn.host, conn.port);
+					} else {
+						LOG.warn("Endpoint [{}:{}] failed health check. Ejecting from ring.", conn.host, conn.port);
+					}
+				}
+			}
+			if(changed) {
+				ring = buildRing();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the endpoint connections
+	 * @return the endpoint connections
+	 */
+	public List<TSDBSubmitterConnection> getEndpoints() {
+		return Collections.unmodifiableList(Arrays.asList(endpoints));
+	}
+	
+	/**
+	 * Returns the currently healthy endpoint connections
+	 * @return the healthy endpoint connections
+	 */
+	public synchronized List<TSDBSubmitterConnection> getHealthyEndpoints() {
+		final List<TSDBSubmitterConnection> list = new ArrayList<TSDBSubmitterConnection>(endpoints.length);
+		for(int i = 0; i < endpoints.length; i++) {
+			if(healthy[i]) list.add(endpoints[i]);
+		}
+		return list;
+	}
+	
+	/**
+	 * Returns the number of series traces routed to each endpoint, in endpoint order
+	 * @return the routed counts
+	 */
+	public long[] getRoutedCounts() {
+		final long[] counts = new long[routed.length];
+		for(int i = 0; i < routed.length; i++) {
+			counts[i] = routed[i].get();
+		}
+		return counts;
+	}
+	
+	/**
+	 * Stops the health checks and closes every endpoint
+	 */
+	public void close() {
+		closed = true;
+		for(TSDBSubmitterConnection conn: endpoints) {
+			try { conn.close(); } catch (Exception x) {/* No Op */}
+		}
+	}
+
+}
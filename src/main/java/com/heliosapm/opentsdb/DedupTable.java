@@ -0,0 +1,250 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Arrays;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: DedupTable</p>
+ * <p>Description: A fixed size, open addressed set of 128 bit keys used to drop duplicate series/timestamp puts.</p>
+ * <p>Keys are stored as two parallel primitive arrays and probed linearly, so adding a key allocates nothing 
+ * until the table grows. The table is cleared when its window expires. When it reaches half its slots within a window it doubles 
+ * and rehashes, so every key added in the window is kept, up to the maximum capacity. Memory is therefore bounded at 16 bytes 
+ * per slot of the maximum capacity, which holds half that many keys per window. A table that fills at its maximum capacity is 
+ * cleared early instead, and a duplicate that straddles a clear is let through, which only costs a redundant put.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.DedupTable</code></p>
+ */
+
+public class DedupTable {
+	/** The high 64 bits of each key */
+	protected long[] highs;
+	/** The low 64 bits of each key */
+	protected long[] lows;
+	/** The slot index mask */
+	protected int mask;
+	/** The number of keys at which the table grows, or is cleared at the maximum capacity */
+	protected int threshold;
+	/** The maximum number of slots */
+	protected final int maxSlots;
+	/** The window in ms. after which the table is cleared */
+	protected final long window;
+	/** The number of keys in the table */
+	protected int size = 0;
+	/** The time the current window started */
+	protected long windowStart = System.currentTimeMillis();
+	
+	/** The config property name for the dedup table capacity */
+	public static final String CONFIG_CAPACITY = "helios.opentsdb.dedup.capacity";
+	/** The default dedup table capacity */
+	public static final int DEFAULT_CAPACITY = 8192;
+	/** The config property name for the maximum dedup table capacity */
+	public static final String CONFIG_MAX_CAPACITY = "helios.opentsdb.dedup.maxcapacity";
+	/** The default maximum dedup table capacity (4 MB of keys) */
+	public static final int DEFAULT_MAX_CAPACITY = 262144;
+	/** The config property name for the dedup window in ms. */
+	public static final String CONFIG_WINDOW = "helios.opentsdb.dedup.window";
+	/** The default dedup window in ms. */
+	public static final long DEFAULT_WINDOW = 300000L;
+	
+	/**
+	 * Creates a new DedupTable
+	 * @param capacity The initial number of slots, rounded up to a power of 2
+	 * @param maxCapacity The maximum number of slots, rounded up to a power of 2
+	 * @param window The window in ms. after which the table is cleared
+	 */
+	public DedupTable(final int capacity, final int maxCapacity, final long window) {
+		if(capacity < 2) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		if(maxCapacity < capacity || maxCapacity > (1 << 30)) throw new IllegalArgumentException("Invalid max capacity [" + maxCapacity + "]");
+		if(window < 1) throw new IllegalArgumentException("Invalid window [" + window + "]");
+		maxSlots = slots(maxCapacity);
+		allocate(slots(capacity));
+		this.window = window;
+	}
+	
+	/**
+	 * Creates a new DedupTable which may grow to the larger of the passed capacity and the default maximum capacity
+	 * @param capacity The initial number of slots, rounded up to a power of 2
+	 * @param window The window in ms. after which the table is cleared
+	 */
+	public DedupTable(final int capacity, final long window) {
+		this(capacity, Math.max(capacity, DEFAULT_MAX_CAPACITY), window);
+	}
+	
+	/**
+	 * Creates a new DedupTable sized from system properties or the environment
+	 */
+	public DedupTable() {
+		this(ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_CAPACITY, DEFAULT_CAPACITY), 
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_CAPACITY, DEFAULT_MAX_CAPACITY),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_WINDOW, DEFAULT_WINDOW));
+	}
+	
+	/**
+	 * Rounds a capacity up to a power of 2
+	 * @param capacity The capacity
+	 * @return the number of slots
+	 */
+	private static int slots(final int capacity) {
+		return Integer.highestOneBit(capacity - 1) << 1;
+	}
+	
+	/**
+	 * Replaces the key arrays with empty arrays of the passed size
+	 * @param slots The number of slots, a power of 2
+	 */
+	private void allocate(final int slots) {
+		highs = new long[slots];
+		lows = new long[slots];
+		mask = slots - 1;
+		threshold = slots / 2;
+		size = 0;
+	}
+	
+	/**
+	 * Adds the key for a series at a timestamp
+	 * @param seriesHigh The first lane of the 128 bit series hash
+	 * @param seriesLow The second lane of the 128 bit series hash
+	 * @param timestamp The timestamp
+	 * @return true if the key was added, false if it was already present
+	 */
+	public boolean add(final long seriesHigh, final long seriesLow, final long timestamp) {
+		final long t = SeriesHash.fmix64(timestamp);
+		final long high = SeriesHash.fmix64(seriesHigh ^ t);
+		long low = SeriesHash.fmix64(seriesLow + t);
+		// 0/0 marks an empty slot
+		if(high==0L && low==0L) low = 1L;
+		return add(high, low);
+	}
+	
+	/**
+	 * Adds a 128 bit key
+	 * @param high The high 64 bits
+	 * @param low The low 64 bits, which must not be zero if high is zero
+	 * @return true if the key was added, false if it was already present
+	 */
+	protected synchronized boolean add(final long high, final long low) {
+		final long now = System.currentTimeMillis();
+		if(now - windowStart >= window) {
+			clear(now);
+		}
+		int slot = probe(high, low);
+		if(highs[slot]==high && lows[slot]==low) return false;
+		if(size >= threshold) {
+			// only reachable at the maximum capacity, since the table grows when it reaches its threshold
+			clear(now);
+			slot = probe(high, low);
+		}
+		highs[slot] = high;
+		lows[slot] = low;
+		size++;
+		if(size >= threshold && highs.length < maxSlots) grow();
+		return true;
+	}
+	
+	/**
+	 * Probes linearly from a key's home slot
+	 * @param high The high 64 bits
+	 * @param low The low 64 bits
+	 * @return the slot holding the key, or the empty slot where it belongs
+	 */
+	private int probe(final long high, final long low) {
+		int slot = (int)low & mask;
+		while(true) {
+			final long h = highs[slot], l = lows[slot];
+			if((h==high && l==low) || (h==0L && l==0L)) return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	/**
+	 * Doubles the number of slots and rehashes the current keys into them
+	 */
+	private void grow() {
+		final long[] oldHighs = highs, oldLows = lows;
+		allocate(oldHighs.length << 1);
+		for(int i = 0; i < oldHighs.length; i++) {
+			final long h = oldHighs[i], l = oldLows[i];
+			if(h!=0L || l!=0L) {
+				final int slot = probe(h, l);
+				highs[slot] = h;
+				lows[slot] = l;
+				size++;
+			}
+		}
+	}
+	
+	/**
+	 * Removes all keys and starts a new window
+	 */
+	public synchronized void clear() {
+		clear(System.currentTimeMillis());
+	}
+	
+	private void clear(final long now) {
+		if(size > 0) {
+			Arrays.fill(highs, 0L);
+			Arrays.fill(lows, 0L);
+			size = 0;
+		}
+		windowStart = now;
+	}
+	
+	/**
+	 * Returns the number of keys in the table
+	 * @return the number of keys
+	 */
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Returns the number of slots in the table
+	 * @return the number of slots
+	 */
+	public synchronized int getCapacity() {
+		return highs.length;
+	}
+	
+	/**
+	 * Returns the maximum number of slots the table can grow to
+	 * @return the maximum number of slots
+	 */
+	public int getMaxCapacity() {
+		return maxSlots;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DedupTable [capacity:" + getCapacity() + ", maxCapacity:" + maxSlots + ", size:" + size() + ", window:" + window + "]";
+	}
+}
@@ -24,14 +24,18 @@
  */
 package com.heliosapm.opentsdb;
 
-import gnu.trove.map.hash.TObjectDoubleHashMap;
-import gnu.trove.map.hash.TObjectLongHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
 
 /**
  * <p>Title: DeltaManager</p>
- * <p>Description: A utility class for managing monotonic deltas.</p> 
+ * <p>Description: A utility class for managing monotonic deltas.</p>
+ * <p>Sample state is keyed by a 64 bit hash of the delta id and kept in primitive, open addressed tables 
+ * split into lock stripes, so a delta call neither boxes its state nor contends with calls for other ids.
+ * Each entry holds the last value and the time it was seen. Entries that have not been updated within the TTL 
+ * are dropped when their stripe is swept or needs to grow, and a stripe never grows past its maximum capacity, 
+ * so memory stays bounded when MBeans come and go.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.opentsdb.DeltaManager</code></p>
@@ -43,19 +47,40 @@ public class DeltaManager {
 	/** The singleton instance ctor lock */
 	private static final Object lock = new Object();
 	
-	/** The container for tracking long deltas */
-	protected final TObjectLongHashMap<java.lang.String> longDeltas;
-	/** The container for tracking double deltas */
-	protected final TObjectDoubleHashMap<java.lang.String> doubleDeltas;
+	/** The lock stripes */
+	protected final Stripe[] stripes;
+	/** The stripe index mask */
+	protected final int stripeMask;
+	/** The TTL of an entry in ms. */
+	protected final long ttl;
+	/** The maximum number of entries per stripe */
+	protected final int maxStripeCapacity;
+	/** The number of entries evicted */
+	protected final AtomicLong evictions = new AtomicLong(0L);
 	
 	/** The default initial capacity of the delta container */
 	public static final int DELTA_CAPACITY_DEFAULT = 100;	
 	/** The default load factor of the delta container */
 	public static final float DELTA_LOAD_FACTOR_DEFAULT = 0.5F;
+	/** The default maximum number of tracked deltas */
+	public static final int DELTA_MAX_CAPACITY_DEFAULT = 1 << 20;
+	/** The default TTL of a delta entry in ms. */
+	public static final long DELTA_TTL_DEFAULT = 15L * 60L * 1000L;
+	/** The number of lock stripes */
+	public static final int STRIPES = 16;
 	/** The name of the system property to override the configured initial capacity of the delta container */
 	protected static final String DELTA_CAPACITY = "helios.opentrace.deltas.initialcapacity";
 	/** The name of the system property to override the configured load capacity of the delta container */
 	protected static final String DELTA_LOAD_FACTOR = "helios.opentrace.deltas.loadfactor";
+	/** The name of the system property to override the maximum number of tracked deltas */
+	protected static final String DELTA_MAX_CAPACITY = "helios.opentrace.deltas.maxcapacity";
+	/** The name of the system property to override the TTL of a delta entry in ms. */
+	protected static final String DELTA_TTL = "helios.opentrace.deltas.ttl";
+	
+	/** Salt applied to the keys of double deltas so they do not share state with long deltas of the same id */
+	private static final long DOUBLE_SALT = 0x5bd1e9955bd1e995L;
+	/** Salt applied to the keys of int deltas so they do not share state with long deltas of the same id */
+	private static final long INT_SALT = 0xc6a4a7935bd1e995L;
 	
 
 	/**
@@ -73,14 +98,48 @@ public class DeltaManager {
 		return instance;
 	}
 	
+	/**
+	 * Creates a new DeltaManager configured from system properties or the environment
+	 */
+	public DeltaManager() {
+		this(ConfigurationHelper.getIntSystemThenEnvProperty(DELTA_CAPACITY, DELTA_CAPACITY_DEFAULT),
+			ConfigurationHelper.getFloatSystemThenEnvProperty(DELTA_LOAD_FACTOR, DELTA_LOAD_FACTOR_DEFAULT),
+			ConfigurationHelper.getIntSystemThenEnvProperty(DELTA_MAX_CAPACITY, DELTA_MAX_CAPACITY_DEFAULT),
+			ConfigurationHelper.getLongSystemThenEnvProperty(DELTA_TTL, DELTA_TTL_DEFAULT));
+	}
+	
 	/**
 	 * Creates a new DeltaManager
+	 * @param initialCapacity The initial number of tracked deltas
+	 * @param loadFactor The load factor at which a stripe grows
+	 * @param maxCapacity The maximum number of tracked deltas
+	 * @param ttl The time in ms. after which an entry that has not been updated is evicted
 	 */
-	private DeltaManager() {
-		final int initialDeltaCapacity = ConfigurationHelper.getIntSystemThenEnvProperty(DELTA_CAPACITY, DELTA_CAPACITY_DEFAULT);
-		final float initialDeltaLoadFactor = ConfigurationHelper.getFloatSystemThenEnvProperty(DELTA_LOAD_FACTOR, DELTA_LOAD_FACTOR_DEFAULT);
-		longDeltas = new TObjectLongHashMap<java.lang.String>(initialDeltaCapacity, initialDeltaLoadFactor, Long.MIN_VALUE);
-		doubleDeltas = new TObjectDoubleHashMap<java.lang.String>(initialDeltaCapacity, initialDeltaLoadFactor, Double.MIN_NORMAL);
+	public DeltaManager(final int initialCapacity, final float loadFactor, final int maxCapacity, final long ttl) {
+		if(loadFactor <= 0F || loadFactor >= 1F) throw new IllegalArgumentException("Invalid load factor [" + loadFactor + "]");
+		if(maxCapacity < STRIPES) throw new IllegalArgumentException("Invalid max capacity [" + maxCapacity + "]");
+		if(ttl < 1) throw new IllegalArgumentException("Invalid TTL [" + ttl + "]");
+		this.ttl = ttl;
+		stripes = new Stripe[STRIPES];
+		stripeMask = STRIPES - 1;
+		maxStripeCapacity = pow2(maxCapacity / STRIPES);
+		final int stripeCapacity = Math.min(maxStripeCapacity, pow2(Math.max(2, (int)(initialCapacity / STRIPES / loadFactor))));
+		for(int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe(stripeCapacity, loadFactor);
+		}
+	}
+	
+	/**
+	 * Computes the delta key of the passed id, equal to the key of the concatenated id parts
+	 * @param id The id parts
+	 * @return the delta key
+	 */
+	public static long key(final String...id) {
+		long h = SeriesHash.FNV_OFFSET;
+		for(String s: id) {
+			if(s!=null) h = SeriesHash.hash(h, s);
+		}
+		return SeriesHash.fmix64(h);
 	}
 	
 	/**
@@ -90,15 +149,7 @@ public class DeltaManager {
 	 * @return The delta or null if this was the first sample, or the last sample caused a reset
 	 */
 	public Long deltaLong(final String key, final long value) {
-		Long result = null;
-		long prior;
-		synchronized(longDeltas) {
-			prior = longDeltas.put(key, value);
-		}
-		if(prior!=Long.MIN_VALUE && prior <= value) {
-			result = value - prior;
-		}
-		return result;
+		return deltaLong(key(key), value);
 	}
 	
 	/**
@@ -108,16 +159,248 @@ public class DeltaManager {
 	 * @return The delta or null if this was the first sample, or the last sample caused a reset
 	 */
 	public Double deltaDouble(final String key, final double value) {
-		Double result = null;
-		double prior;
-		synchronized(doubleDeltas) {
-			prior = doubleDeltas.put(key, value);
+		return deltaDouble(key(key), value);
+	}
+	
+	/**
+	 * Registers a sample value and returns the delta between this sample and the prior
+	 * @param key The delta key from {@link #key(String...)} or a series hash
+	 * @param value The absolute sample value
+	 * @return The delta or null if this was the first sample, or the last sample caused a reset
+	 */
+	public Long deltaLong(final long key, final long value) {
+		final Stripe stripe = stripe(key);
+		final long prior;
+		synchronized(stripe) {
+			if(!stripe.put(key, value, System.currentTimeMillis())) return null;
+			prior = stripe.prior;
 		}
-		if(prior!=Double.MIN_VALUE && prior <= value) {			
-			result = value - prior;
+		return prior <= value ? value - prior : null;
+	}
+	
+	/**
+	 * Registers a sample value and returns the delta between this sample and the prior
+	 * @param key The delta key from {@link #key(String...)} or a series hash
+	 * @param value The absolute sample value
+	 * @return The delta or null if this was the first sample, or the last sample caused a reset
+	 */
+	public Double deltaDouble(final long key, final double value) {
+		final long k = key ^ DOUBLE_SALT;
+		final Stripe stripe = stripe(k);
+		final double prior;
+		synchronized(stripe) {
+			if(!stripe.put(k, Double.doubleToRawLongBits(value), System.currentTimeMillis())) return null;
+			prior = Double.longBitsToDouble(stripe.prior);
 		}
-		return result;
+		return prior <= value ? value - prior : null;
 	}
 	
-
+	/**
+	 * Registers a sample value and returns the delta between this sample and the prior
+	 * @param key The delta key from {@link #key(String...)} or a series hash
+	 * @param value The absolute sample value
+	 * @return The delta or null if this was the first sample, or the last sample caused a reset
+	 */
+	public Integer deltaInt(final long key, final int value) {
+		final long k = key ^ INT_SALT;
+		final Stripe stripe = stripe(k);
+		final long prior;
+		synchronized(stripe) {
+			if(!stripe.put(k, value, System.currentTimeMillis())) return null;
+			prior = stripe.prior;
+		}
+		return prior <= value ? (int)(value - prior) : null;
+	}
+	
+	/**
+	 * Removes all delta state
+	 */
+	public void clear() {
+		for(Stripe stripe: stripes) {
+			synchronized(stripe) {
+				stripe.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Evicts all entries that have not been updated within the TTL
+	 */
+	public void evictExpired() {
+		final long now = System.currentTimeMillis();
+		for(Stripe stripe: stripes) {
+			synchronized(stripe) {
+				stripe.rehash(stripe.keys.length, now);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of tracked deltas
+	 * @return the number of tracked deltas
+	 */
+	public int size() {
+		int size = 0;
+		for(Stripe stripe: stripes) {
+			synchronized(stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the number of evicted entries
+	 * @return the number of evicted entries
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DeltaManager [size:" + size() + ", evictions:" + getEvictions() + ", ttl:" + ttl + "]";
+	}
+	
+	/**
+	 * Returns the stripe for the passed key
+	 * @param key The delta key
+	 * @return the stripe
+	 */
+	Stripe stripe(final long key) {
+		return stripes[(int)(key >>> 58) & stripeMask];
+	}
+	
+	/**
+	 * Returns the smallest power of 2 greater than or equal to the passed value
+	 * @param n The value
+	 * @return the power of 2
+	 */
+	private static int pow2(final int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+	
+	/**
+	 * <p>Title: Stripe</p>
+	 * <p>Description: One lock stripe of the delta store, a linearly probed table of key, value and last update time. 
+	 * All access must be synchronized on the stripe.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.DeltaManager.Stripe</code></p>
+	 */
+	final class Stripe {
+		/** The keys. Zero marks an empty slot. */
+		long[] keys;
+		/** The last values */
+		long[] values;
+		/** The last update times */
+		long[] times;
+		/** The number of entries */
+		int size = 0;
+		/** The number of entries at which the stripe grows */
+		int threshold;
+		/** The load factor */
+		final float loadFactor;
+		/** The time of the last TTL sweep */
+		long lastSweep = System.currentTimeMillis();
+		/** The prior value of the last successful put */
+		long prior;
+		/** The prior update time of the last successful put */
+		long priorTime;
+		
+		/**
+		 * Creates a new Stripe
+		 * @param capacity The initial capacity, a power of 2
+		 * @param loadFactor The load factor
+		 */
+		Stripe(final int capacity, final float loadFactor) {
+			this.loadFactor = loadFactor;
+			allocate(capacity);
+		}
+		
+		private void allocate(final int capacity) {
+			keys = new long[capacity];
+			values = new long[capacity];
+			times = new long[capacity];
+			threshold = Math.max(1, (int)(capacity * loadFactor));
+		}
+		
+		/**
+		 * Stores a value
+		 * @param key The key
+		 * @param value The value
+		 * @param now The current time
+		 * @return true if a prior value was replaced and is in {@link #prior} and {@link #priorTime}, false if the key was new
+		 */
+		boolean put(long key, final long value, final long now) {
+			if(key==0L) key = 1L;
+			if(now - lastSweep >= ttl) {
+				rehash(keys.length, now);
+			}
+			int mask = keys.length - 1;
+			int slot = (int)key & mask;
+			while(keys[slot]!=0L) {
+				if(keys[slot]==key) {
+					prior = values[slot];
+					priorTime = times[slot];
+					values[slot] = value;
+					times[slot] = now;
+					return true;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if(size >= threshold) {
+				rehash(keys.length < maxStripeCapacity ? keys.length << 1 : keys.length, now);
+				if(size >= threshold) {
+					// full of live entries at max capacity: start over rather than grow
+					evictions.addAndGet(size);
+					clear();
+				}
+				mask = keys.length - 1;
+				slot = (int)key & mask;
+				while(keys[slot]!=0L) slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = value;
+			times[slot] = now;
+			size++;
+			return false;
+		}
+		
+		/**
+		 * Copies the entries updated within the TTL into tables of the passed capacity
+		 * @param capacity The new capacity, a power of 2
+		 * @param now The current time
+		 */
+		void rehash(final int capacity, final long now) {
+			final long[] oldKeys = keys, oldValues = values, oldTimes = times;
+			allocate(capacity);
+			final int mask = capacity - 1;
+			final int oldSize = size;
+			size = 0;
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i]==0L || now - oldTimes[i] >= ttl) continue;
+				int slot = (int)oldKeys[i] & mask;
+				while(keys[slot]!=0L) slot = (slot + 1) & mask;
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				times[slot] = oldTimes[i];
+				size++;
+			}
+			if(oldSize > size) evictions.addAndGet(oldSize - size);
+			lastSweep = now;
+		}
+		
+		/**
+		 * Removes all entries
+		 */
+		void clear() {
+			java.util.Arrays.fill(keys, 0L);
+			size = 0;
+		}
+	}
 }
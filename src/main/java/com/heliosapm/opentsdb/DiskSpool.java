@@ -0,0 +1,679 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: DiskSpool</p>
+ * <p>Description: A store-and-forward spool of fixed size, memory-mapped segment files that holds buffered puts
+ * while the OpenTSDB endpoint is unreachable, and a rate limited drainer that replays them once it comes back.</p>
+ * <p>Each segment starts with a header holding a magic number, the committed write offset and the committed read offset,
+ * followed by length prefixed records of complete put lines. An append is only visible once the header write offset
+ * is updated, and a record is only consumed once the header read offset moves past it, so a process that dies mid-append
+ * leaves no partial record, and a restart resumes replay from the last committed record. Records are never split across lines,
+ * so a record that was sent but whose read offset had not been committed before a crash is the only thing that can be replayed twice.</p>
+ * <p>When the spool reaches its segment limit the oldest segment is discarded and counted.
+ * While spooled data remains, the connection spools new data behind it rather than writing it directly, so the endpoint receives puts in order.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.DiskSpool</code></p>
+ */
+
+public class DiskSpool implements NettyTransport.Spiller {
+	/** The connection this spool replays into */
+	protected final TSDBSubmitterConnection conn;
+	/** The spool directory */
+	protected final File directory;
+	/** The segment file size in bytes */
+	protected final int segmentSize;
+	/** The maximum number of segments */
+	protected final int maxSegments;
+	/** Indicates if segments are forced to disk after each append */
+	protected final boolean sync;
+	/** The replay rate limiter in bytes per second */
+	protected final RateLimiter rateLimiter;
+	/** The replay check interval in ms. */
+	protected final long drainInterval;
+	/** The segments, oldest first */
+	protected final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	/** The next segment sequence number */
+	protected long nextSequence = 0;
+	/** Set while a drain is scheduled or running */
+	protected final AtomicBoolean draining = new AtomicBoolean(false);
+	/** Set while a drain is writing records to the transport */
+	protected volatile boolean replaying = false;
+	/** Indicates if this spool has been closed */
+	protected volatile boolean closed = false;
+	/** The sequence of the segment the last {@link #peek()} read from, or -1 if there is no peeked record */
+	protected long peekedSequence = -1L;
+	/** The segment offset of the last peeked record */
+	protected int peekedOffset = -1;
+	
+	/** The number of bytes spooled */
+	protected final Counter spooledBytes = new Counter();
+	/** The number of bytes replayed */
+	protected final Counter replayedBytes = new Counter();
+	/** The number of bytes discarded when the spool was full */
+	protected final Counter discardedBytes = new Counter();
+	
+	private static final Logger LOG = LoggerFactory.getLogger(DiskSpool.class);
+	
+	/** The config property name for enabling the spool */
+	public static final String CONFIG_ENABLED = "helios.opentsdb.spool.enabled";
+	/** The default spool enablement */
+	public static final boolean DEFAULT_ENABLED = false;
+	/** The config property name for the spool root directory */
+	public static final String CONFIG_DIR = "helios.opentsdb.spool.dir";
+	/** The default spool root directory */
+	public static final String DEFAULT_DIR = System.getProperty("java.io.tmpdir") + File.separator + "tsdb-spool";
+	/** The config property name for the segment size in bytes */
+	public static final String CONFIG_SEGMENT_SIZE = "helios.opentsdb.spool.segmentsize";
+	/** The default segment size in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+	/** The config property name for the maximum number of segments */
+	public static final String CONFIG_MAX_SEGMENTS = "helios.opentsdb.spool.maxsegments";
+	/** The default maximum number of segments */
+	public static final int DEFAULT_MAX_SEGMENTS = 64;
+	/** The config property name for the replay rate in bytes per second */
+	public static final String CONFIG_RATE = "helios.opentsdb.spool.rate";
+	/** The default replay rate in bytes per second */
+	public static final int DEFAULT_RATE = 1024 * 1024;
+	/** The config property name for forcing segments to disk after each append */
+	public static final String CONFIG_SYNC = "helios.opentsdb.spool.sync";
+	/** The default segment sync */
+	public static final boolean DEFAULT_SYNC = false;
+	/** The config property name for the replay check interval in ms. */
+	public static final String CONFIG_DRAIN_INTERVAL = "helios.opentsdb.spool.interval";
+	/** The default replay check interval in ms. */
+	public static final long DEFAULT_DRAIN_INTERVAL = 1000L;
+	
+	/** The segment file magic number */
+	static final int MAGIC = 0x54534442;
+	/** The header offset of the committed write offset */
+	static final int WRITE_OFFSET = 4;
+	/** The header offset of the committed read offset */
+	static final int READ_OFFSET = 8;
+	/** The segment header size */
+	static final int HEADER_SIZE = 16;
+	/** The record length prefix size */
+	static final int PREFIX_SIZE = 4;
+	/** The segment file extension */
+	static final String EXTENSION = ".seg";
+	
+	/** The <b><code>sun.misc.Unsafe</code></b> instance used to unmap segments on Java 9+, or null */
+	private static final Object UNSAFE;
+	/** The <b><code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code></b> method, or null before Java 9 */
+	private static final Method INVOKE_CLEANER;
+	/** Set once a failure to unmap has been logged */
+	private static final AtomicBoolean UNMAP_WARNED = new AtomicBoolean(false);
+	
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		} catch (Throwable t) {
+			// before Java 9, where the buffer's own cleaner is used
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	
+	/**
+	 * <p>Title: Segment</p>
+	 * <p>Description: A single memory-mapped spool segment file</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.DiskSpool.Segment</code></p>
+	 */
+	static class Segment {
+		/** The segment file */
+		final File file;
+		/** The segment sequence number */
+		final long sequence;
+		/** The mapped segment */
+		final MappedByteBuffer map;
+		
+		/**
+		 * Opens or creates a segment
+		 * @param file The segment file
+		 * @param sequence The segment sequence number
+		 * @param size The segment size for new segments
+		 * @throws IOException thrown on any error mapping the file
+		 */
+		Segment(final File file, final long sequence, final int size) throws IOException {
+			this.file = file;
+			this.sequence = sequence;
+			final boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				final FileChannel fc = raf.getChannel();
+				map = fc.map(FileChannel.MapMode.READ_WRITE, 0, exists ? raf.length() : size);
+			} finally {
+				raf.close();
+			}
+			if(!exists || map.getInt(0)!=MAGIC) {
+				map.putInt(0, MAGIC);
+				map.putInt(WRITE_OFFSET, HEADER_SIZE);
+				map.putInt(READ_OFFSET, HEADER_SIZE);
+			}
+		}
+		
+		/**
+		 * Returns the committed write offset
+		 * @return the committed write offset
+		 */
+		int writeOffset() {
+			return map.getInt(WRITE_OFFSET);
+		}
+		
+		/**
+		 * Returns the committed read offset
+		 * @return the committed read offset
+		 */
+		int readOffset() {
+			return map.getInt(READ_OFFSET);
+		}
+		
+		/**
+		 * Returns the number of unconsumed bytes
+		 * @return the number of unconsumed bytes
+		 */
+		int pending() {
+			return writeOffset() - readOffset();
+		}
+		
+		/**
+		 * Returns the number of bytes available for a record payload
+		 * @return the available payload capacity
+		 */
+		int available() {
+			return map.capacity() - writeOffset() - PREFIX_SIZE;
+		}
+		
+		/**
+		 * Appends a record and commits it
+		 * @param buff The buffer to read the record from
+		 * @param length The record length
+		 */
+		void append(final ChannelBuffer buff, final int length) {
+			final int w = writeOffset();
+			map.putInt(w, length);
+			final ByteBuffer dst = map.duplicate();
+			dst.position(w + PREFIX_SIZE);
+			dst.limit(w + PREFIX_SIZE + length);
+			buff.readBytes(dst);
+			map.putInt(WRITE_OFFSET, w + PREFIX_SIZE + length);
+		}
+		
+		/**
+		 * Returns the next unconsumed record without consuming it
+		 * @return the next record, or null if there is none
+		 */
+		ChannelBuffer peek() {
+			final int r = readOffset();
+			if(r >= writeOffset()) return null;
+			final int length = map.getInt(r);
+			final byte[] record = new byte[length];
+			final ByteBuffer src = map.duplicate();
+			src.position(r + PREFIX_SIZE);
+			src.get(record);
+			return ChannelBuffers.wrappedBuffer(record);
+		}
+		
+		/**
+		 * Commits the consumption of the record returned by the prior {@link #peek()}
+		 */
+		void consume() {
+			final int r = readOffset();
+			map.putInt(READ_OFFSET, r + PREFIX_SIZE + map.getInt(r));
+		}
+		
+		/**
+		 * Unmaps and deletes this segment
+		 */
+		void delete() {
+			unmap(map);
+			if(!file.delete()) {
+				LOG.warn("Failed to delete spool segment [{}]", file);
+			}
+		}
+		
+		/**
+		 * Unmaps this segment without deleting it
+		 */
+		void close() {
+			map.force();
+			unmap(map);
+		}
+	}
+	
+	/**
+	 * Creates a new DiskSpool configured from system properties or the environment, 
+	 * opening any segments left by a previous process for the same endpoint
+	 * @param conn The connection this spool replays into
+	 * @throws IOException thrown on any error opening the spool directory or its segments
+	 */
+	DiskSpool(final TSDBSubmitterConnection conn) throws IOException {
+		this(conn, 
+			new File(ConfigurationHelper.getSystemThenEnvProperty(CONFIG_DIR, DEFAULT_DIR), conn.host + "_" + conn.port),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_SEGMENTS, DEFAULT_MAX_SEGMENTS),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_RATE, DEFAULT_RATE),
+			ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_SYNC, DEFAULT_SYNC),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_DRAIN_INTERVAL, DEFAULT_DRAIN_INTERVAL)
+		);
+	}
+	
+	/**
+	 * Creates a new DiskSpool, opening any segments left in the directory by a previous process
+	 * @param conn The connection this spool replays into
+	 * @param directory The spool directory
+	 * @param segmentSize The segment file size in bytes
+	 * @param maxSegments The maximum number of segments
+	 * @param rate The replay rate in bytes per second
+	 * @param sync true to force segments to disk after each append
+	 * @param drainInterval The replay check interval in ms.
+	 * @throws IOException thrown on any error opening the spool directory or its segments
+	 */
+	DiskSpool(final TSDBSubmitterConnection conn, final File directory, final int segmentSize, final int maxSegments, final int rate, final boolean sync, final long drainInterval) throws IOException {
+		if(conn==null) throw new IllegalArgumentException("The passed connection was null");
+		if(directory==null) throw new IllegalArgumentException("The passed directory was null");
+		if(segmentSize < 1024) throw new IllegalArgumentException("Invalid segment size [" + segmentSize + "]");
+		if(maxSegments < 1) throw new IllegalArgumentException("Invalid max segments [" + maxSegments + "]");
+		if(rate < 1) throw new IllegalArgumentException("Invalid rate [" + rate + "]");
+		this.conn = conn;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.sync = sync;
+		this.drainInterval = drainInterval;
+		rateLimiter = RateLimiter.create(rate);
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Failed to create spool directory [" + directory + "]");
+		final File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(final File f) {
+				return f.isFile() && f.getName().endsWith(EXTENSION);
+			}
+		});
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File f1, final File f2) {
+				return f1.getName().compareTo(f2.getName());
+			}
+		});
+		long pending = 0;
+		for(File f: files) {
+			final String name = f.getName();
+			final long seq;
+			try {
+				seq = Long.parseLong(name.substring(0, name.length() - EXTENSION.length()));
+			} catch (NumberFormatException nex) {
+				continue;
+			}
+			final Segment segment = new Segment(f, seq, segmentSize);
+			nextSequence = seq + 1;
+			if(segment.pending() > 0) {
+				segments.addLast(segment);
+				pending += segment.pending();
+			} else {
+				segment.delete();
+			}
+		}
+		if(pending > 0) {
+			LOG.info("Recovered [{}] spooled bytes in [{}] segments from [{}]", pending, segments.size(), directory);
+		}
+	}
+	
+	/**
+	 * Appends the readable bytes of the passed buffer to the spool, split into records on line boundaries
+	 * so that each record fits in a segment. The buffer is fully consumed.
+	 * @param buff The buffer of complete put lines to spool
+	 * @return true if all the bytes were spooled, false if any were discarded
+	 */
+	public synchronized boolean append(final ChannelBuffer buff) {
+		boolean complete = true;
+		while(buff.readable()) {
+			if(closed) {
+				discardedBytes.add(buff.readableBytes());
+				buff.skipBytes(buff.readableBytes());
+				return false;
+			}
+			Segment segment = segments.peekLast();
+			int available = segment==null ? 0 : segment.available();
+			int length = buff.readableBytes();
+			if(length > available) {
+				// find the last complete line that fits
+				length = available < 1 ? -1 : lastLineEnd(buff, available);
+				if(length < 1) {
+					if(segment!=null && segment.writeOffset()==HEADER_SIZE) {
+						// a single line longer than a segment
+						final int lineEnd = buff.indexOf(buff.readerIndex(), buff.writerIndex(), (byte)'\n');
+						final int skip = lineEnd==-1 ? buff.readableBytes() : lineEnd - buff.readerIndex() + 1;
+						LOG.warn("Discarding [{}] byte line which exceeds the spool segment size", skip);
+						discardedBytes.add(skip);
+						buff.skipBytes(skip);
+						complete = false;
+						continue;
+					}
+					if(!roll()) {
+						complete = false;
+					}
+					continue;
+				}
+			}
+			segment.append(buff, length);
+			if(sync) segment.map.force();
+			spooledBytes.add(length);
+		}
+		scheduleDrain();
+		return complete;
+	}
+	
+	/**
+	 * Finds the length of the longest run of complete lines from the reader index that fits in the passed size
+	 * @param buff The buffer to search
+	 * @param max The maximum length
+	 * @return the length, or -1 if not even one line fits
+	 */
+	private static int lastLineEnd(final ChannelBuffer buff, final int max) {
+		final int start = buff.readerIndex();
+		for(int i = start + Math.min(max, buff.readableBytes()) - 1; i >= start; i--) {
+			if(buff.getByte(i)=='\n') return i - start + 1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Starts a new segment, discarding the oldest if the spool is full. Caller must hold this spool's monitor.
+	 * @return true if no data was discarded
+	 */
+	protected boolean roll() {
+		boolean complete = true;
+		if(segments.size() >= maxSegments) {
+			final Segment oldest = segments.removeFirst();
+			final int lost = oldest.pending();
+			discardedBytes.add(lost);
+			LOG.warn("Spool full. Discarded oldest segment [{}] with [{}] bytes", oldest.file.getName(), lost);
+			oldest.delete();
+			complete = false;
+		}
+		try {
+			final long seq = nextSequence++;
+			segments.addLast(new Segment(new File(directory, String.format("%016d%s", seq, EXTENSION)), seq, segmentSize));
+		} catch (IOException ex) {
+			throw new RuntimeException("Failed to create spool segment in [" + directory + "]", ex);
+		}
+		return complete;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.NettyTransport.Spiller#spill(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public boolean spill(final ChannelBuffer buffer) {
+		return append(buffer);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.NettyTransport.Spiller#isReplaying()
+	 */
+	@Override
+	public boolean isReplaying() {
+		return replaying;
+	}
+	
+	/**
+	 * Returns the next record to replay without consuming it, deleting consumed segments on the way.
+	 * The record's segment sequence and offset are recorded so {@link #consume()} can tell if the record is still the head.
+	 * @return the next record or null if the spool is empty
+	 */
+	protected synchronized ChannelBuffer peek() {
+		peekedSequence = -1L;
+		while(!closed && !segments.isEmpty()) {
+			final Segment segment = segments.peekFirst();
+			final ChannelBuffer record = segment.peek();
+			if(record!=null) {
+				peekedSequence = segment.sequence;
+				peekedOffset = segment.readOffset();
+				return record;
+			}
+			if(segments.size()==1) return null;   // keep the active segment
+			segments.removeFirst().delete();
+		}
+		return null;
+	}
+	
+	/**
+	 * Commits the consumption of the record returned by the prior {@link #peek()}.
+	 * A no-op if the spool was closed, or the record's segment was discarded by a full spool while the record was being sent.
+	 */
+	protected synchronized void consume() {
+		final Segment segment = segments.peekFirst();
+		final long sequence = peekedSequence;
+		peekedSequence = -1L;
+		if(closed || segment==null || segment.sequence!=sequence || segment.readOffset()!=peekedOffset) {
+			LOG.debug("Spool record [{}:{}] no longer at the head of [{}]. Not consumed.", sequence, peekedOffset, directory);
+			return;
+		}
+		final int length = segment.map.getInt(segment.readOffset());
+		segment.consume();
+		if(sync) segment.map.force();
+		replayedBytes.add(length);
+		if(segment.pending()==0 && segments.size() > 1) {
+			segments.removeFirst().delete();
+		}
+	}
+	
+	/**
+	 * Schedules a replay on the shared flush timer if one is not already pending
+	 */
+	public void scheduleDrain() {
+		if(closed || !draining.compareAndSet(false, true)) return;
+		FlushPolicy.getTimer().newTimeout(drainTask, drainInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	/** The timer task that hands a replay to the shared flush executor */
+	protected final TimerTask drainTask = new TimerTask() {
+		@Override
+		public void run(final Timeout timeout) throws Exception {
+			FlushPolicy.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean more = false;
+					try {
+						more = drain();
+					} catch (Exception ex) {
+						LOG.error("Spool replay failed", ex);
+						more = true;
+					} finally {
+						draining.set(false);
+						if(more) scheduleDrain();
+					}
+				}
+			});
+		}
+	};
+	
+	/**
+	 * Replays spooled records to the connection's transport at the configured rate until the spool is empty
+	 * or the transport fails, reconnecting the transport first if necessary. The reconnect goes through the connection's
+	 * connect guard and is left for the next drain if another thread is already connecting.
+	 * @return true if spooled data remains
+	 */
+	protected boolean drain() {
+		try {
+			if(!conn.connectTransport(false)) return true;
+		} catch (Exception ex) {
+			LOG.debug("Spool replay waiting on [{}:{}]: {}", conn.host, conn.port, ex.toString());
+			return true;
+		}
+		ChannelBuffer record = null;
+		replaying = true;
+		try {
+			while(!closed && (record = peek())!=null) {
+				rateLimiter.acquire(Math.max(1, record.readableBytes()));
+				try {
+					// serialize with regular flushes so records are not interleaved with other writes
+					synchronized(conn.flushLock) {
+						conn.transport.write(record);
+					}
+				} catch (IOException iex) {
+					LOG.warn("Spool replay to [{}:{}] interrupted: {}", conn.host, conn.port, iex.toString());
+					return true;
+				}
+				consume();
+			}
+		} finally {
+			replaying = false;
+		}
+		return record!=null;
+	}
+	
+	/**
+	 * Returns the number of spooled bytes not yet replayed
+	 * @return the number of pending bytes
+	 */
+	public synchronized long getPendingBytes() {
+		long pending = 0;
+		for(Segment segment: segments) {
+			pending += segment.pending();
+		}
+		return pending;
+	}
+	
+	/**
+	 * Returns the number of segment files
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Returns the number of bytes spooled
+	 * @return the number of bytes spooled
+	 */
+	public long getSpooledBytes() {
+		return spooledBytes.get();
+	}
+	
+	/**
+	 * Returns the number of bytes replayed
+	 * @return the number of bytes replayed
+	 */
+	public long getReplayedBytes() {
+		return replayedBytes.get();
+	}
+	
+	/**
+	 * Returns the number of bytes discarded because the spool was full
+	 * @return the number of discarded bytes
+	 */
+	public long getDiscardedBytes() {
+		return discardedBytes.get();
+	}
+	
+	/**
+	 * Returns the spool directory
+	 * @return the spool directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * Closes the spool, forcing and unmapping the segments. Unreplayed data stays on disk for the next process.
+	 */
+	public synchronized void close() {
+		if(closed) return;
+		closed = true;
+		for(Segment segment: segments) {
+			segment.close();
+		}
+		segments.clear();
+	}
+	
+	/**
+	 * Releases a mapped buffer's memory and file handle without waiting for garbage collection,
+	 * through <b><code>sun.misc.Unsafe.invokeCleaner</code></b> on Java 9+ or the buffer's cleaner before that.
+	 * If neither is accessible, the buffer is released on garbage collection and a warning is logged once.
+	 * @param map The mapped buffer to release
+	 */
+	static void unmap(final MappedByteBuffer map) {
+		try {
+			if(INVOKE_CLEANER!=null) {
+				INVOKE_CLEANER.invoke(UNSAFE, map);
+				return;
+			}
+			final Method cleanerMethod = map.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			final Object cleaner = cleanerMethod.invoke(map);
+			if(cleaner!=null) {
+				final Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Throwable t) {
+			if(UNMAP_WARNED.compareAndSet(false, true)) {
+				LOG.warn("Unable to unmap spool segments. They will be released on garbage collection: {}", t.toString());
+			}
+		}
+	}
+
+}
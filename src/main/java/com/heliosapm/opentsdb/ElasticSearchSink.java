@@ -0,0 +1,467 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.heliosapm.opentsdb.AnnotationBuilder.TSDBAnnotation;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Title: ElasticSearchSink</p>
+ * <p>Description: Sends data points and annotations to ElasticSearch through the <b><code>_bulk</code></b> endpoint.</p>
+ * <p>The connection mirrors every point it traces, whether from a submitter's trace methods or a flushed
+ * {@link TSDBSubmitterImpl.ExpressionResult}, to its sink. Each document is queued as its rendered NDJSON action and source lines. {@link #point(long, CharSequence, double, Collection, Map)}
+ * and {@link #annotation(TSDBAnnotation)} never block: when the queue is full the document is dropped and counted.
+ * Batching, request permits and retries are handled by {@link BatchingHttpSender}. A failed request is retried whole, but when 
+ * ElasticSearch accepts the request and reports per item failures, only the items that failed with a retriable status (429 or 5xx) 
+ * are sent again. A bulk response that cannot be parsed counts the whole batch as failed, since which items were indexed is unknown.</p>
+ * <p>Documents go to daily indices named <b><code>&lt;prefix&gt;-yyyy.MM.dd</code></b> (points) and
+ * <b><code>&lt;prefix&gt;-annotations-yyyy.MM.dd</code></b> (annotations), by the UTC day of the document's timestamp.
+ * A mapping type is only written when one is configured, which clusters older than 7.0 require.</p>
+ * <p>A sink sends to the ES URL of its connection at the time it was created. The connection replaces it when the ES host or port change.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.ElasticSearchSink</code></p>
+ */
+
+public class ElasticSearchSink extends BatchingHttpSender<String> {
+	/** The connection supplying the http client */
+	protected final TSDBSubmitterConnection conn;
+	/** The base URL of the ElasticSearch http API */
+	protected final String esURL;
+	/** The index name prefix */
+	protected final String indexPrefix;
+	/** The mapping type, or null to omit it */
+	protected final String docType;
+	/** true to send data points */
+	protected final boolean points;
+	/** true to send annotations */
+	protected final boolean annotations;
+	/** The point index namer */
+	protected final DailyIndex pointIndex;
+	/** The annotation index namer */
+	protected final DailyIndex annotationIndex;
+	/** The number of retried items */
+	protected final Counter retriedItems = new Counter();
+
+	/** The config property name for the index name prefix */
+	public static final String CONFIG_INDEX = "helios.opentsdb.es.index";
+	/** The default index name prefix */
+	public static final String DEFAULT_INDEX = "opentsdb";
+	/** The config property name for the mapping type, empty to omit it */
+	public static final String CONFIG_TYPE = "helios.opentsdb.es.type";
+	/** The default mapping type */
+	public static final String DEFAULT_TYPE = "";
+	/** The config property name for enabling sending data points */
+	public static final String CONFIG_POINTS = "helios.opentsdb.es.points";
+	/** The default data point sending enablement */
+	public static final boolean DEFAULT_POINTS = false;
+	/** The config property name for enabling sending annotations */
+	public static final String CONFIG_ANNOTATIONS = "helios.opentsdb.es.annotations";
+	/** The default annotation sending enablement */
+	public static final boolean DEFAULT_ANNOTATIONS = true;
+	/** The config property name for the maximum number of queued documents */
+	public static final String CONFIG_MAX_QUEUED = "helios.opentsdb.es.maxqueued";
+	/** The default maximum number of queued documents */
+	public static final int DEFAULT_MAX_QUEUED = 100000;
+	/** The config property name for the maximum number of documents per request */
+	public static final String CONFIG_BATCH_SIZE = "helios.opentsdb.es.batchsize";
+	/** The default maximum number of documents per request */
+	public static final int DEFAULT_BATCH_SIZE = 5000;
+	/** The config property name for the maximum request size in bytes */
+	public static final String CONFIG_BATCH_BYTES = "helios.opentsdb.es.batchbytes";
+	/** The default maximum request size in bytes */
+	public static final long DEFAULT_BATCH_BYTES = 5 * 1024 * 1024;
+	/** The config property name for the time in ms. a queued document waits to be batched */
+	public static final String CONFIG_FLUSH_DELAY = "helios.opentsdb.es.flushdelay";
+	/** The default time in ms. a queued document waits to be batched */
+	public static final long DEFAULT_FLUSH_DELAY = 1000L;
+	/** The config property name for the maximum number of in-flight requests */
+	public static final String CONFIG_MAX_CONCURRENT = "helios.opentsdb.es.maxconcurrent";
+	/** The default maximum number of in-flight requests */
+	public static final int DEFAULT_MAX_CONCURRENT = 2;
+	/** The config property name for the maximum number of retries */
+	public static final String CONFIG_MAX_RETRIES = "helios.opentsdb.es.retries";
+	/** The default maximum number of retries */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	/** The config property name for the initial retry backoff in ms. */
+	public static final String CONFIG_RETRY_BACKOFF = "helios.opentsdb.es.backoff";
+	/** The default initial retry backoff in ms. */
+	public static final long DEFAULT_RETRY_BACKOFF = 250L;
+	/** The config property name for the maximum retry backoff in ms. */
+	public static final String CONFIG_MAX_BACKOFF = "helios.opentsdb.es.maxbackoff";
+	/** The default maximum retry backoff in ms. */
+	public static final long DEFAULT_MAX_BACKOFF = 10000L;
+
+	/** Timestamps below this are taken to be in seconds */
+	static final long MAX_SECONDS = 100000000000L;
+	/** The number of ms. in a day */
+	static final long DAY = 86400000L;
+
+	/**
+	 * <p>Title: DailyIndex</p>
+	 * <p>Description: Names the daily index of a timestamp, formatting each UTC day once</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.ElasticSearchSink.DailyIndex</code></p>
+	 */
+	static final class DailyIndex {
+		/** The index name prefix including the trailing dash */
+		final String prefix;
+		/** The most recently named day and its index name */
+		volatile Object[] last = {Long.MIN_VALUE, null};
+
+		/**
+		 * Creates a new DailyIndex
+		 * @param prefix The index name prefix
+		 */
+		DailyIndex(final String prefix) {
+			this.prefix = prefix + "-";
+		}
+
+		/**
+		 * Returns the index name for the passed timestamp
+		 * @param ms The timestamp in ms.
+		 * @return the index name
+		 */
+		String name(final long ms) {
+			final long day = ms / DAY;
+			final Object[] l = last;
+			if(((Long)l[0]).longValue()==day) return (String)l[1];
+			final SimpleDateFormat format = new SimpleDateFormat("yyyy.MM.dd");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			final String name = prefix + format.format(new Date(day * DAY));
+			last = new Object[]{day, name};
+			return name;
+		}
+	}
+
+	/**
+	 * Creates a new ElasticSearchSink configured from system properties or the environment
+	 * @param conn The connection supplying the http client and ES URL
+	 */
+	public ElasticSearchSink(final TSDBSubmitterConnection conn) {
+		this(conn, ConfigurationHelper.getSystemThenEnvProperty(CONFIG_INDEX, DEFAULT_INDEX),
+			ConfigurationHelper.getSystemThenEnvProperty(CONFIG_TYPE, DEFAULT_TYPE),
+			ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_POINTS, DEFAULT_POINTS),
+			ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_ANNOTATIONS, DEFAULT_ANNOTATIONS),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_QUEUED, DEFAULT_MAX_QUEUED),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_BATCH_BYTES, DEFAULT_BATCH_BYTES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_FLUSH_DELAY, DEFAULT_FLUSH_DELAY),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_RETRIES, DEFAULT_MAX_RETRIES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_MAX_BACKOFF, DEFAULT_MAX_BACKOFF));
+	}
+
+	/**
+	 * Creates a new ElasticSearchSink
+	 * @param conn The connection supplying the http client and ES URL
+	 * @param indexPrefix The index name prefix
+	 * @param docType The mapping type, or null or empty to omit it
+	 * @param points true to send data points
+	 * @param annotations true to send annotations
+	 * @param maxQueued The maximum number of queued documents
+	 * @param batchSize The maximum number of documents per request
+	 * @param batchBytes The maximum number of bytes per request
+	 * @param flushDelay The time in ms. a queued document waits to be batched
+	 * @param maxConcurrent The maximum number of in-flight requests
+	 * @param maxRetries The maximum number of retries of a failed request or item
+	 * @param retryBackoff The initial retry backoff in ms.
+	 * @param maxBackoff The maximum retry backoff in ms.
+	 */
+	public ElasticSearchSink(final TSDBSubmitterConnection conn, final String indexPrefix, final String docType, final boolean points,
+			final boolean annotations, final int maxQueued, final int batchSize, final long batchBytes, final long flushDelay,
+			final int maxConcurrent, final int maxRetries, final long retryBackoff, final long maxBackoff) {
+		super("documents", maxQueued, batchSize, batchBytes, flushDelay, maxConcurrent, maxRetries, retryBackoff, maxBackoff);
+		if(indexPrefix==null || indexPrefix.trim().isEmpty()) throw new IllegalArgumentException("The passed index prefix was null or empty");
+		this.conn = conn;
+		esURL = conn==null ? null : conn.esURL;
+		this.indexPrefix = indexPrefix.trim().toLowerCase();
+		this.docType = docType==null || docType.trim().isEmpty() ? null : docType.trim();
+		this.points = points;
+		this.annotations = annotations;
+		pointIndex = new DailyIndex(this.indexPrefix);
+		annotationIndex = new DailyIndex(this.indexPrefix + "-annotations");
+	}
+
+	/**
+	 * Returns the http client used to send requests
+	 * @return the http client
+	 */
+	@Override
+	protected AsyncHttpClient client() {
+		return conn.httpClient;
+	}
+
+	/**
+	 * Returns the base URL of the ElasticSearch http API
+	 * @return the base URL
+	 */
+	@Override
+	protected String baseURL() {
+		return esURL;
+	}
+
+	/**
+	 * Indicates if data points are sent
+	 * @return true if data points are sent
+	 */
+	public boolean isPoints() {
+		return points;
+	}
+
+	/**
+	 * Indicates if annotations are sent
+	 * @return true if annotations are sent
+	 */
+	public boolean isAnnotations() {
+		return annotations;
+	}
+
+	/**
+	 * Converts a timestamp in seconds or ms. to ms.
+	 * @param timestamp The timestamp
+	 * @return the timestamp in ms.
+	 */
+	static long toMs(final long timestamp) {
+		return timestamp < MAX_SECONDS ? timestamp * 1000L : timestamp;
+	}
+
+	/**
+	 * Appends the bulk index action line
+	 * @param b The builder to append to
+	 * @param index The index name
+	 * @return the builder
+	 */
+	protected StringBuilder action(final StringBuilder b, final String index) {
+		b.append("{\"index\":{\"_index\":\"").append(index);
+		if(docType!=null) b.append("\",\"_type\":\"").append(docType);
+		return b.append("\"}}\n");
+	}
+
+	/**
+	 * Queues a data point
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rootTags The pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags The metric tags
+	 * @return true if the point was queued, false if it was dropped
+	 */
+	public boolean point(final long timestamp, final CharSequence metric, final double value, final Collection<String> rootTags, final Map<String, String> tags) {
+		final long ms = toMs(timestamp);
+		final StringBuilder b = action(new StringBuilder(256), pointIndex.name(ms));
+		b.append("{\"@timestamp\":").append(ms).append(",\"metric\":").append(JSONObject.quote(metric.toString()))
+			.append(",\"value\":").append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value)).append(",\"tags\":{");
+		boolean first = true;
+		if(rootTags!=null) {
+			for(String tag: rootTags) {
+				final int eq = tag.indexOf('=');
+				if(eq < 1) continue;
+				if(!first) b.append(',');
+				b.append(JSONObject.quote(tag.substring(0, eq))).append(':').append(JSONObject.quote(tag.substring(eq + 1)));
+				first = false;
+			}
+		}
+		if(tags!=null) {
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				if(!first) b.append(',');
+				b.append(JSONObject.quote(tag.getKey())).append(':').append(JSONObject.quote(tag.getValue()));
+				first = false;
+			}
+		}
+		b.append("}}\n");
+		return offer(b.toString());
+	}
+
+	/**
+	 * Queues an annotation
+	 * @param annotation The annotation
+	 * @return true if the annotation was queued, false if it was dropped
+	 */
+	public boolean annotation(final TSDBAnnotation annotation) {
+		if(annotation==null) throw new IllegalArgumentException("The passed annotation was null");
+		final long ms = annotation.startTime * 1000L;
+		final JSONObject json = new JSONObject(annotation.toJSON());
+		json.put("@timestamp", ms);
+		final StringBuilder b = action(new StringBuilder(256), annotationIndex.name(ms));
+		return offer(b.append(json.toString()).append('\n').toString());
+	}
+
+	/**
+	 * Queues a rendered document. Never blocks.
+	 * @param item The NDJSON action and source lines
+	 * @return true if the document was queued, false if it was dropped because the queue is full or closed
+	 */
+	protected boolean offer(final String item) {
+		return offer(item, item.length());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.BatchingHttpSender#sizeOf(java.lang.Object)
+	 */
+	@Override
+	protected long sizeOf(final String item) {
+		return item.length();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.BatchingHttpSender#send(java.util.List, java.util.concurrent.atomic.AtomicInteger)
+	 */
+	@Override
+	protected void send(final List<String> batch, final AtomicInteger outstanding) {
+		post(new BulkRequest(batch, outstanding, 0));
+	}
+
+	/**
+	 * Renders a batch of documents as a bulk request body
+	 * @param batch The NDJSON items
+	 * @return the bulk request body
+	 */
+	static String toBody(final List<String> batch) {
+		final StringBuilder body = new StringBuilder(batch.size() * 256);
+		for(String item: batch) {
+			body.append(item);
+		}
+		return body.toString();
+	}
+
+	/**
+	 * <p>Title: BulkRequest</p>
+	 * <p>Description: A post of a batch of documents to the bulk endpoint, which re-posts only the items that failed with a retriable status</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.ElasticSearchSink.BulkRequest</code></p>
+	 */
+	class BulkRequest extends Request {
+		/** The posted items, in request order */
+		final List<String> batch;
+
+		/**
+		 * Creates a new BulkRequest
+		 * @param batch The NDJSON items
+		 * @param outstanding The number of unfinished requests sharing the request permit
+		 * @param attempt The attempt number
+		 */
+		BulkRequest(final List<String> batch, final AtomicInteger outstanding, final int attempt) {
+			super("_bulk", "application/x-ndjson", toBody(batch), batch.size(), outstanding, attempt);
+			this.batch = batch;
+		}
+
+		/**
+		 * Processes an accepted bulk response, retrying the items that failed with a retriable status
+		 * {@inheritDoc}
+		 * @see com.heliosapm.opentsdb.BatchingHttpSender.Request#onSuccess(com.ning.http.client.Response)
+		 */
+		@Override
+		protected void onSuccess(final Response response) throws Exception {
+			final JSONObject json;
+			final JSONArray items;
+			try {
+				json = new JSONObject(response.getResponseBody("UTF-8"));
+				items = json.optBoolean("errors", false) ? json.getJSONArray("items") : null;
+			} catch (Exception ex) {
+				log.error("Unparseable bulk response, counting [{}] documents as failed: {}", batch.size(), ex.toString());
+				failed.add(batch.size());
+				complete(outstanding);
+				return;
+			}
+			if(items==null) {
+				sent.add(batch.size());
+				complete(outstanding);
+				return;
+			}
+			final List<String> retriable = new ArrayList<String>();
+			int rejected = 0;
+			String reason = null;
+			for(int i = 0; i < batch.size(); i++) {
+				final JSONObject wrapper = i < items.length() ? items.optJSONObject(i) : null;
+				final JSONObject result = wrapper==null || wrapper.length()==0 ? null : wrapper.optJSONObject((String)wrapper.keys().next());
+				final int status = result==null ? -1 : result.optInt("status", 500);
+				if(status >= 200 && status < 300) {
+					sent.increment();
+				} else if(status==429 || status >= 500) {
+					retriable.add(batch.get(i));
+				} else {
+					rejected++;
+					if(reason==null) reason = result==null ? "missing item result" : String.valueOf(result.opt("error"));
+				}
+			}
+			if(rejected > 0) {
+				log.error("ElasticSearch rejected [{}] of [{}] documents. First error: {}", rejected, batch.size(), reason);
+				failed.add(rejected);
+			}
+			if(!retriable.isEmpty()) {
+				retriedItems.add(retriable.size());
+				retry(new BulkRequest(retriable, outstanding, attempt));
+			}
+			complete(outstanding);
+		}
+	}
+
+	/**
+	 * Returns the number of documents indexed
+	 * @return the number of documents indexed
+	 */
+	public long getIndexed() {
+		return sent.get();
+	}
+
+	/**
+	 * Returns the number of items retried after a partially failed bulk request
+	 * @return the number of retried items
+	 */
+	public long getRetriedItems() {
+		return retriedItems.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ElasticSearchSink [queued:" + getQueued() + ", indexed:" + getIndexed() + ", dropped:" + getDropped() + ", failed:" + getFailed()
+			+ ", requests:" + getRequests() + ", retries:" + getRetries() + ", retriedItems:" + getRetriedItems() + "]";
+	}
+}
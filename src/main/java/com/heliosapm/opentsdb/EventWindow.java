@@ -24,41 +24,216 @@
  */
 package com.heliosapm.opentsdb;
 
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.Counter;
+
 /**
  * <p>Title: EventWindow</p>
- * <p>Description: </p> 
+ * <p>Description: Tracks the rate of high frequency events as exponentially weighted moving averages 
+ * over 1, 5 and 15 minutes, in events per second.</p>
+ * <p>Events are counted in a striped {@link Counter}, so marking an event from many threads neither allocates nor contends. 
+ * Every {@link #TICK} ms. the events counted since the prior tick are folded into each average with the decay 
+ * <b><code>alpha = 1 - exp(-tick / window)</code></b>. Ticks are taken lazily by whichever thread first notices one is due, 
+ * and ticks missed while idle are applied as ticks with no events, so the averages decay correctly after a quiet period.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.opentsdb.EventWindow</code></p>
  */
 
 public class EventWindow {
+	/** The striped event count */
+	protected final Counter count = new Counter();
+	/** The event count at the last tick */
+	protected long tickedCount = 0L;
+	/** The time of the last tick in ms. */
+	protected volatile long lastTick;
+	/** The time this window was created in ms. */
+	protected final long startTime;
+	/** Indicates if the averages have been seeded by the first tick */
+	protected boolean seeded = false;
+	/** The 1 minute average rate */
+	protected volatile double m1Rate = 0D;
+	/** The 5 minute average rate */
+	protected volatile double m5Rate = 0D;
+	/** The 15 minute average rate */
+	protected volatile double m15Rate = 0D;
+	
+	/** The tick interval in ms. */
+	public static final long TICK = 5000L;
+	/** The 1 minute average */
+	public static final int M1 = 1;
+	/** The 5 minute average */
+	public static final int M5 = 5;
+	/** The 15 minute average */
+	public static final int M15 = 15;
+	
+	/** The decay factor of the 1 minute average per tick */
+	private static final double M1_ALPHA = alpha(1);
+	/** The decay factor of the 5 minute average per tick */
+	private static final double M5_ALPHA = alpha(5);
+	/** The decay factor of the 15 minute average per tick */
+	private static final double M15_ALPHA = alpha(15);
 
 	/**
 	 * Creates a new EventWindow
 	 */
 	public EventWindow() {
-		// TODO Auto-generated constructor stub
+		this(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Creates a new EventWindow starting at the passed time, for callers that supply their own clock
+	 * @param now The current time in ms.
+	 */
+	public EventWindow(final long now) {
+		startTime = now;
+		lastTick = now;
+	}
+	
+	/**
+	 * Computes the per tick decay factor of an average
+	 * @param minutes The window of the average in minutes
+	 * @return the decay factor
+	 */
+	private static double alpha(final int minutes) {
+		return 1D - Math.exp(-(double)TICK / TimeUnit.MINUTES.toMillis(minutes));
+	}
+	
+	/**
+	 * Records one event
+	 */
+	public void mark() {
+		mark(1L, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Records a number of events
+	 * @param events The number of events
+	 */
+	public void mark(final long events) {
+		mark(events, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Records a number of events at the passed time. The time must not go backwards.
+	 * @param events The number of events
+	 * @param now The current time in ms.
+	 */
+	public void mark(final long events, final long now) {
+		tickIfNecessary(now);
+		count.add(events);
+	}
+	
+	/**
+	 * Applies any ticks that are due
+	 * @param now The current time in ms.
+	 */
+	protected void tickIfNecessary(final long now) {
+		if(now - lastTick < TICK) return;
+		synchronized(this) {
+			final long ticks = (now - lastTick) / TICK;
+			if(ticks < 1) return;
+			final long total = count.get();
+			final double instantRate = (total - tickedCount) * 1000D / TICK;
+			tickedCount = total;
+			tick(instantRate);
+			for(long i = 1; i < ticks; i++) {
+				tick(0D);
+			}
+			lastTick += ticks * TICK;
+		}
+	}
+	
+	/**
+	 * Folds one tick's rate into the averages. Must be called holding the lock on this window.
+	 * @param instantRate The rate over the tick in events per second
+	 */
+	private void tick(final double instantRate) {
+		if(!seeded) {
+			m1Rate = instantRate;
+			m5Rate = instantRate;
+			m15Rate = instantRate;
+			seeded = true;
+		} else {
+			m1Rate += M1_ALPHA * (instantRate - m1Rate);
+			m5Rate += M5_ALPHA * (instantRate - m5Rate);
+			m15Rate += M15_ALPHA * (instantRate - m15Rate);
+		}
+	}
+	
+	/**
+	 * Returns an average rate
+	 * @param window The average, {@link #M1}, {@link #M5} or {@link #M15}
+	 * @return the average rate in events per second
+	 */
+	public double getRate(final int window) {
+		return getRate(window, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns an average rate as of the passed time
+	 * @param window The average, {@link #M1}, {@link #M5} or {@link #M15}
+	 * @param now The current time in ms.
+	 * @return the average rate in events per second
+	 */
+	public double getRate(final int window, final long now) {
+		tickIfNecessary(now);
+		switch(window) {
+			case M1: return m1Rate;
+			case M5: return m5Rate;
+			case M15: return m15Rate;
+			default: throw new IllegalArgumentException("Invalid window [" + window + "]");
+		}
+	}
+	
+	/**
+	 * Returns the 1 minute average rate
+	 * @return the 1 minute average rate in events per second
+	 */
+	public double getOneMinuteRate() {
+		return getRate(M1);
+	}
+	
+	/**
+	 * Returns the 5 minute average rate
+	 * @return the 5 minute average rate in events per second
+	 */
+	public double getFiveMinuteRate() {
+		return getRate(M5);
+	}
+	
+	/**
+	 * Returns the 15 minute average rate
+	 * @return the 15 minute average rate in events per second
+	 */
+	public double getFifteenMinuteRate() {
+		return getRate(M15);
+	}
+	
+	/**
+	 * Returns the mean rate since this window was created
+	 * @return the mean rate in events per second
+	 */
+	public double getMeanRate() {
+		final long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed < 1 ? 0D : count.get() * 1000D / elapsed;
+	}
+	
+	/**
+	 * Returns the total number of events
+	 * @return the total number of events
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("EventWindow [count:%s, m1:%.3f, m5:%.3f, m15:%.3f]", getCount(), getRate(M1), getRate(M5), getRate(M15));
 	}
-
-}
-
-/*
-double last = 0;
-long lastTime = 0;
-double halfLife = 60 * 1000; // 60 seconds for example.
-
-public static double ewma(double sample, long time) {
-    double alpha = Math.exp((lastTime - time) / halfLife);
-    lastTime = time;
-    return last = sample * alpha + last * (1 - alpha); 
-}
-or you can approximate this to avoid calling Math.exp with
-
-public static double ewma(double sample, long time) {
-    long delay = time - lastTime
-    double alpha = delay >= halfLife ? 1.0 : delta / halfLife;
-    lastTime = time;
-    return last = sample * alpha + last * (1 - alpha); 
 }
- */ 
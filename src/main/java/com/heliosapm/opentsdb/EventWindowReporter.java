@@ -0,0 +1,217 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: EventWindowReporter</p>
+ * <p>Description: Keeps an {@link EventWindow} per series of traced events and periodically emits their smoothed 
+ * 1, 5 and 15 minute rates, so high frequency events are submitted as a few rates per period rather than one put per event.</p>
+ * <p>Rates are emitted under the event metric name suffixed with <b><code>.m1</code></b>, <b><code>.m5</code></b> and 
+ * <b><code>.m15</code></b>. Series with no events for {@link #IDLE_TIME} are dropped. By then the 1 minute rate has decayed to zero, 
+ * the 5 minute rate to about 5% and the 15 minute rate to about 37% (1/e) of their last values, so the emitted rates stop rather than reach zero.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.EventWindowReporter</code></p>
+ */
+
+public class EventWindowReporter {
+	/** The event windows keyed by series hash */
+	protected final NonBlockingHashMapLong<Series> series = new NonBlockingHashMapLong<Series>(256);
+	/** The emission period in ms. */
+	protected final long period;
+	/** The sink rates are emitted to */
+	protected final PreAggregator.RollupSink sink;
+	/** Indicates if this reporter has been closed */
+	protected volatile boolean closed = false;
+	
+	private static final Logger LOG = LoggerFactory.getLogger(EventWindowReporter.class);
+	
+	/** The config property name for the event rate emission period in ms. */
+	public static final String CONFIG_PERIOD = "helios.opentsdb.events.period";
+	/** The default event rate emission period in ms. */
+	public static final long DEFAULT_PERIOD = 15000L;
+	/** The time in ms. after the last event at which a series is dropped. Not long enough for the 15 minute rate to decay to zero. */
+	public static final long IDLE_TIME = TimeUnit.MINUTES.toMillis(15);
+	
+	/**
+	 * <p>Title: Series</p>
+	 * <p>Description: The event window of one series</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.EventWindowReporter.Series</code></p>
+	 */
+	static class Series {
+		/** The event window */
+		final EventWindow window = new EventWindow();
+		/** The 1 minute rate metric name */
+		final String m1;
+		/** The 5 minute rate metric name */
+		final String m5;
+		/** The 15 minute rate metric name */
+		final String m15;
+		/** A copy of the series tags */
+		final Map<String, String> tags;
+		/** The time of the last event in ms. */
+		volatile long lastEvent = System.currentTimeMillis();
+		
+		/**
+		 * Creates a new Series
+		 * @param metric The event metric name
+		 * @param tags The series tags
+		 */
+		Series(final String metric, final Map<String, String> tags) {
+			m1 = metric + ".m1";
+			m5 = metric + ".m5";
+			m15 = metric + ".m15";
+			this.tags = tags==null ? new LinkedHashMap<String, String>(0) : new LinkedHashMap<String, String>(tags);
+		}
+	}
+	
+	/**
+	 * Creates a new EventWindowReporter with the emission period from system properties or the environment
+	 * @param sink The sink rates are emitted to
+	 */
+	public EventWindowReporter(final PreAggregator.RollupSink sink) {
+		this(ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PERIOD, DEFAULT_PERIOD), sink);
+	}
+	
+	/**
+	 * Creates a new EventWindowReporter
+	 * @param period The emission period in ms.
+	 * @param sink The sink rates are emitted to
+	 */
+	public EventWindowReporter(final long period, final PreAggregator.RollupSink sink) {
+		if(period < 1) throw new IllegalArgumentException("Invalid period [" + period + "]");
+		if(sink==null) throw new IllegalArgumentException("The passed sink was null");
+		this.period = period;
+		this.sink = sink;
+		scheduleReport();
+	}
+	
+	/**
+	 * Records events for a series.
+	 * The last event time is written before the series is checked for removal, and {@link #report()} removes before re-reading it,
+	 * so at least one of the two sees the other and a series dropped as idle while being marked is restored.
+	 * @param seriesHash The series hash of the metric and tags
+	 * @param metric The event metric name
+	 * @param tags The event tags
+	 * @param events The number of events
+	 */
+	public void mark(final long seriesHash, final String metric, final Map<String, String> tags, final long events) {
+		Series s = series.get(seriesHash);
+		if(s==null) {
+			final Series created = new Series(metric, tags);
+			s = series.putIfAbsent(seriesHash, created);
+			if(s==null) s = created;
+		}
+		s.window.mark(events);
+		s.lastEvent = System.currentTimeMillis();
+		if(series.get(seriesHash)!=s) {
+			// dropped as idle while being marked
+			final Series replaced = series.putIfAbsent(seriesHash, s);
+			if(replaced!=null && replaced!=s) replaced.window.mark(events);
+		}
+	}
+	
+	/**
+	 * Schedules the next report on the shared flush timer
+	 */
+	protected void scheduleReport() {
+		if(closed) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							report();
+						} catch (Exception ex) {
+							LOG.error("Event rate report failed", ex);
+						} finally {
+							scheduleReport();
+						}
+					}
+				});
+			}
+		}, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Emits the rates of every series and drops series that have been idle for {@link #IDLE_TIME}
+	 */
+	protected void report() {
+		final long now = System.currentTimeMillis();
+		for(Map.Entry<Long, Series> entry: series.entrySet()) {
+			final Series s = entry.getValue();
+			if(now - s.lastEvent >= IDLE_TIME) {
+				if(series.remove(entry.getKey(), s) && System.currentTimeMillis() - s.lastEvent < IDLE_TIME) {
+					// marked while being removed
+					series.putIfAbsent(entry.getKey(), s);
+				}
+				continue;
+			}
+			sink.rollup(now, s.m1, s.window.getRate(EventWindow.M1), s.tags);
+			sink.rollup(now, s.m5, s.window.getRate(EventWindow.M5), s.tags);
+			sink.rollup(now, s.m15, s.window.getRate(EventWindow.M15), s.tags);
+		}
+	}
+	
+	/**
+	 * Stops emitting rates
+	 */
+	public void close() {
+		closed = true;
+	}
+	
+	/**
+	 * Returns the number of tracked series
+	 * @return the number of tracked series
+	 */
+	public int getSeriesCount() {
+		return series.size();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "EventWindowReporter [period:" + period + ", series:" + getSeriesCount() + "]";
+	}
+}
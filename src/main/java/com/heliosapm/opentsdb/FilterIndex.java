@@ -0,0 +1,145 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Title: FilterIndex</p>
+ * <p>Description: An immutable, compiled form of a submitter's filter-in definitions.</p>
+ * <p>The filters are indexed by metric name, so matching a trace costs one hash lookup for the metric's filter 
+ * plus the wildcard (<b><code>*</code></b>) metric filter, rather than a walk of every defined filter. 
+ * Each filter is compiled into parallel key and value arrays, where a null value means the key only has to be present.
+ * A new index is compiled whenever the filters change.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.FilterIndex</code></p>
+ */
+
+public class FilterIndex {
+	/** The compiled filters keyed by metric name */
+	protected final Map<String, Filter> byMetric;
+	/** The compiled filter applied to all metrics, or null if there is none */
+	protected final Filter any;
+	/** Indicates if no filters are defined */
+	protected final boolean empty;
+	
+	/** The wildcard metric name and tag value */
+	public static final String WILDCARD = "*";
+	/** The index with no filters, which matches everything */
+	public static final FilterIndex EMPTY = new FilterIndex(new HashMap<String, Map<String, String>>(0));
+	
+	/**
+	 * <p>Title: Filter</p>
+	 * <p>Description: The compiled tag conditions of one filter</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.FilterIndex.Filter</code></p>
+	 */
+	static class Filter {
+		/** The tag keys that must be present */
+		final String[] keys;
+		/** The required tag values, or null where any value matches */
+		final String[] values;
+		
+		/**
+		 * Creates a new Filter
+		 * @param conditions The filter's tag key to value map
+		 */
+		Filter(final Map<String, String> conditions) {
+			keys = new String[conditions.size()];
+			values = new String[keys.length];
+			int i = 0;
+			for(Map.Entry<String, String> c: conditions.entrySet()) {
+				keys[i] = c.getKey();
+				values[i] = WILDCARD.equals(c.getValue()) ? null : c.getValue();
+				i++;
+			}
+		}
+		
+		/**
+		 * Tests the passed tags against this filter
+		 * @param tags The tags to test
+		 * @return true if every condition matches, false otherwise
+		 */
+		boolean matches(final Map<String, String> tags) {
+			for(int i = 0; i < keys.length; i++) {
+				final String v = tags.get(keys[i]);
+				if(v==null) return false;
+				if(values[i]!=null && !values[i].equals(v)) return false;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Compiles a new FilterIndex
+	 * @param filters The filter definitions keyed by metric name, where <b><code>*</code></b> applies to all metrics
+	 */
+	public FilterIndex(final Map<String, Map<String, String>> filters) {
+		if(filters==null) throw new IllegalArgumentException("The passed filter map was null");
+		byMetric = new HashMap<String, Filter>(filters.size() * 2);
+		Filter _any = null;
+		for(Map.Entry<String, Map<String, String>> f: filters.entrySet()) {
+			final Filter filter = new Filter(new LinkedHashMap<String, String>(f.getValue()));
+			if(WILDCARD.equals(f.getKey())) _any = filter;
+			else byMetric.put(f.getKey(), filter);
+		}
+		any = _any;
+		empty = filters.isEmpty();
+	}
+	
+	/**
+	 * Tests the passed metric and tags against the filters
+	 * @param metric The trimmed metric name
+	 * @param tags The tags
+	 * @return true if the metric and tags pass every applicable filter, false otherwise
+	 */
+	public boolean matches(final String metric, final Map<String, String> tags) {
+		if(empty) return true;
+		if(any!=null && !any.matches(tags)) return false;
+		final Filter filter = byMetric.get(metric);
+		return filter==null || filter.matches(tags);
+	}
+	
+	/**
+	 * Returns the number of compiled filters
+	 * @return the number of compiled filters
+	 */
+	public int size() {
+		return byMetric.size() + (any==null ? 0 : 1);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "FilterIndex [filters:" + size() + ", wildcard:" + (any!=null) + "]";
+	}
+}
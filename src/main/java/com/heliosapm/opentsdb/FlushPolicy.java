@@ -0,0 +1,489 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: FlushPolicy</p>
+ * <p>Description: Automatic flushing for a {@link TSDBSubmitterConnection}. A flush is triggered by whichever comes first:
+ * the buffered byte count reaching {@link #getMaxBytes()}, the buffered trace count reaching {@link #getMaxTraces()},
+ * or the oldest buffered data reaching {@link #getMaxAge()} ms. A threshold of zero or less disables that trigger.</p>
+ * <p>All policies share one {@link HashedWheelTimer} which periodically sweeps the registered policies for aged buffers, 
+ * and one small flush executor, so the number of connections does not drive the number of threads.
+ * Flush sizes and latencies are recorded for every flush, including manual ones, so the thresholds can be tuned.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.FlushPolicy</code></p>
+ */
+
+public class FlushPolicy {
+	
+	/**
+	 * <p>Title: Trigger</p>
+	 * <p>Description: Enumerates the reasons a flush was triggered</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.FlushPolicy.Trigger</code></p>
+	 */
+	public static enum Trigger {
+		/** Flushed by a caller */
+		MANUAL,
+		/** The buffered byte threshold was reached */
+		BYTES,
+		/** The buffered trace count threshold was reached */
+		TRACES,
+		/** The buffered age threshold was reached */
+		AGE,
+		/** The transport reconnected and the data held while it was down is being sent */
+		RECONNECT,
+		/** The connection is closing and the remaining buffered data is being sent */
+		CLOSE;
+	}
+	
+	/** The connection this policy flushes */
+	protected final TSDBSubmitterConnection conn;
+	/** The buffered byte count that triggers a flush */
+	protected volatile int maxBytes;
+	/** The buffered trace count that triggers a flush */
+	protected volatile int maxTraces;
+	/** The buffered age in ms. that triggers a flush */
+	protected volatile long maxAge;
+	
+	/** The time in ms. the currently buffered data was first appended, or 0 if nothing was appended since the last drain */
+	protected final AtomicLong firstAppend = new AtomicLong(0L);
+	/** Set while an automatic flush is queued or running to avoid piling up flush requests */
+	protected final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	
+	/** The number of flushes by trigger */
+	protected final Counter[] flushCounts = new Counter[Trigger.values().length];
+	/** The cumulative number of bytes flushed */
+	protected final Counter flushedBytes = new Counter();
+	/** The cumulative number of traces flushed */
+	protected final Counter flushedTraces = new Counter();
+	/** The cumulative flush elapsed time in ns. */
+	protected final Counter flushTimeNs = new Counter();
+	/** The size of the last flush in bytes */
+	protected volatile int lastFlushBytes = 0;
+	/** The number of traces in the last flush */
+	protected volatile int lastFlushTraces = 0;
+	/** The elapsed time of the last flush in ns. */
+	protected volatile long lastFlushTimeNs = 0L;
+	/** The largest flush in bytes */
+	protected final AtomicLong maxFlushBytes = new AtomicLong(0L);
+	/** The longest flush elapsed time in ns. */
+	protected final AtomicLong maxFlushTimeNs = new AtomicLong(0L);
+	
+	private static final Logger LOG = LoggerFactory.getLogger(FlushPolicy.class);
+	
+	/** The config property name for the buffered byte count that triggers a flush */
+	public static final String CONFIG_MAX_BYTES = "helios.opentsdb.flush.bytes";
+	/** The default buffered byte count that triggers a flush */
+	public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+	/** The config property name for the buffered trace count that triggers a flush */
+	public static final String CONFIG_MAX_TRACES = "helios.opentsdb.flush.traces";
+	/** The default buffered trace count that triggers a flush */
+	public static final int DEFAULT_MAX_TRACES = 1000;
+	/** The config property name for the buffered age in ms. that triggers a flush */
+	public static final String CONFIG_MAX_AGE = "helios.opentsdb.flush.age";
+	/** The default buffered age in ms. that triggers a flush */
+	public static final long DEFAULT_MAX_AGE = 5000L;
+	/** The config property name for the shared timer tick in ms. */
+	public static final String CONFIG_TICK = "helios.opentsdb.flush.tick";
+	/** The default shared timer tick in ms. */
+	public static final long DEFAULT_TICK = 100L;
+	
+	/** The registered policies */
+	private static final NonBlockingHashSet<FlushPolicy> policies = new NonBlockingHashSet<FlushPolicy>();
+	/** The shared timer tick in ms. */
+	private static final long tick = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_TICK, DEFAULT_TICK);
+	/** The shared timer */
+	private static volatile HashedWheelTimer timer = null;
+	/** The shared flush executor */
+	private static volatile ExecutorService flushExecutor = null;
+	/** The shared timer ctor lock */
+	private static final Object lock = new Object();
+	
+	/** The shared timer sweep task. Checks each registered policy for aged data, then reschedules itself. */
+	private static final TimerTask sweep = new TimerTask() {
+		@Override
+		public void run(final Timeout timeout) throws Exception {
+			try {
+				final long now = System.currentTimeMillis();
+				for(FlushPolicy policy: policies) {
+					policy.checkAge(now);
+				}
+			} catch (Exception ex) {
+				LOG.error("Flush sweep failed", ex);
+			} finally {
+				timeout.getTimer().newTimeout(this, tick, TimeUnit.MILLISECONDS);
+			}
+		}
+	};
+	
+	/**
+	 * Starts the shared timer and the sweep task if they are not running
+	 */
+	private static void startTimer() {
+		if(timer!=null) return;
+		synchronized(lock) {
+			if(timer==null) {
+				timer = new HashedWheelTimer(NettyTransport.daemonThreadFactory("TSDBFlushTimer"), tick, TimeUnit.MILLISECONDS);
+				timer.start();
+				flushExecutor = Executors.newCachedThreadPool(NettyTransport.daemonThreadFactory("TSDBFlush"));
+				timer.newTimeout(sweep, tick, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the shared timer, starting it if necessary. Other connection components use it for delayed tasks
+	 * so they do not need timer threads of their own.
+	 * @return the shared timer
+	 */
+	static HashedWheelTimer getTimer() {
+		startTimer();
+		return timer;
+	}
+	
+	/**
+	 * Returns the shared flush executor, starting the shared timer if necessary
+	 * @return the shared flush executor
+	 */
+	static ExecutorService getExecutor() {
+		startTimer();
+		return flushExecutor;
+	}
+	
+	/**
+	 * Creates a new FlushPolicy configured from system properties or the environment
+	 * @param conn The connection this policy flushes
+	 */
+	FlushPolicy(final TSDBSubmitterConnection conn) {
+		if(conn==null) throw new IllegalArgumentException("The passed connection was null");
+		this.conn = conn;
+		maxBytes = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_BYTES, DEFAULT_MAX_BYTES);
+		maxTraces = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_TRACES, DEFAULT_MAX_TRACES);
+		maxAge = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_MAX_AGE, DEFAULT_MAX_AGE);
+		for(int i = 0; i < flushCounts.length; i++) {
+			flushCounts[i] = new Counter();
+		}
+	}
+	
+	/**
+	 * Registers this policy with the shared timer
+	 */
+	void start() {
+		if(policies.add(this)) {
+			startTimer();
+		}
+	}
+	
+	/**
+	 * Unregisters this policy from the shared timer
+	 */
+	void stop() {
+		policies.remove(this);
+	}
+	
+	/**
+	 * Callback from the connection after data has been appended to its buffer.
+	 * The buffered byte and trace counts are striped estimates, so a threshold may be overshot by a few appends.
+	 */
+	void onAppend() {
+		if(firstAppend.get()==0L) firstAppend.compareAndSet(0L, System.currentTimeMillis());
+		final int mb = maxBytes;
+		if(mb > 0 && conn.dataBuffer.getBufferedBytes() >= mb) {
+			schedule(Trigger.BYTES);
+			return;
+		}
+		final int mt = maxTraces;
+		if(mt > 0 && conn.dataBuffer.getBufferedTraces() >= mt) {
+			schedule(Trigger.TRACES);
+		}
+	}
+	
+	/**
+	 * Called by the sweep to trigger a flush if the buffered data is older than the max age
+	 * @param now The current time in ms.
+	 */
+	protected void checkAge(final long now) {
+		final long ma = maxAge;
+		final long fa = firstAppend.get();
+		if(ma > 0 && fa!=0L && now - fa >= ma) {
+			schedule(Trigger.AGE);
+		}
+	}
+	
+	/**
+	 * Queues an automatic flush on the shared flush executor unless one is already queued
+	 * @param trigger The reason for the flush
+	 */
+	protected void schedule(final Trigger trigger) {
+		final ExecutorService ex = flushExecutor;
+		if(ex==null || !flushScheduled.compareAndSet(false, true)) return;
+		try {
+			ex.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						conn.flush(false, trigger);
+					} catch (Exception x) {
+						LOG.error("Automatic [{}] flush of [{}:{}] failed", trigger, conn.host, conn.port, x);
+					} finally {
+						flushScheduled.set(false);
+					}
+				}
+			});
+		} catch (Exception x) {
+			flushScheduled.set(false);
+			LOG.error("Failed to schedule automatic flush", x);
+		}
+	}
+	
+	/**
+	 * Callback from the connection when a flush completes.
+	 * Must be called while holding the connection's flush lock.
+	 * @param trigger The reason for the flush
+	 * @param bytes The number of bytes flushed
+	 * @param traces The number of traces flushed
+	 * @param elapsedNs The flush elapsed time in ns.
+	 */
+	void onFlush(final Trigger trigger, final int bytes, final int traces, final long elapsedNs) {
+		flushCounts[trigger.ordinal()].increment();
+		flushedBytes.add(bytes);
+		flushedTraces.add(traces);
+		flushTimeNs.add(elapsedNs);
+		lastFlushBytes = bytes;
+		lastFlushTraces = traces;
+		lastFlushTimeNs = elapsedNs;
+		updateMax(maxFlushBytes, bytes);
+		updateMax(maxFlushTimeNs, elapsedNs);
+	}
+	
+	/**
+	 * Callback from the connection immediately before a flush drains its buffer.
+	 * The age is cleared before the drain rather than after, so an append that races with the drain
+	 * starts a new age instead of having it wiped once the flush completes.
+	 * Must be called while holding the connection's flush lock.
+	 */
+	void onDrain() {
+		firstAppend.set(0L);
+	}
+	
+	/**
+	 * Sets the passed AtomicLong to the passed value if the value is larger
+	 * @param max The max to update
+	 * @param value The candidate value
+	 */
+	private static void updateMax(final AtomicLong max, final long value) {
+		long current = max.get();
+		while(value > current) {
+			if(max.compareAndSet(current, value)) return;
+			current = max.get();
+		}
+	}
+	
+	/**
+	 * Returns the buffered byte count that triggers a flush
+	 * @return the buffered byte count that triggers a flush
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Sets the buffered byte count that triggers a flush. Zero or less disables the trigger.
+	 * @param maxBytes the buffered byte count that triggers a flush
+	 * @return this policy
+	 */
+	public FlushPolicy setMaxBytes(final int maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Returns the buffered trace count that triggers a flush
+	 * @return the buffered trace count that triggers a flush
+	 */
+	public int getMaxTraces() {
+		return maxTraces;
+	}
+
+	/**
+	 * Sets the buffered trace count that triggers a flush. Zero or less disables the trigger.
+	 * @param maxTraces the buffered trace count that triggers a flush
+	 * @return this policy
+	 */
+	public FlushPolicy setMaxTraces(final int maxTraces) {
+		this.maxTraces = maxTraces;
+		return this;
+	}
+
+	/**
+	 * Returns the buffered age in ms. that triggers a flush
+	 * @return the buffered age in ms. that triggers a flush
+	 */
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * Sets the buffered age in ms. that triggers a flush. Zero or less disables the trigger.
+	 * The age is checked on each tick of the shared timer, so the effective resolution is the timer tick.
+	 * @param maxAge the buffered age in ms. that triggers a flush
+	 * @return this policy
+	 */
+	public FlushPolicy setMaxAge(final long maxAge) {
+		this.maxAge = maxAge;
+		return this;
+	}
+	
+	/**
+	 * Returns the number of flushes for the passed trigger
+	 * @param trigger The trigger
+	 * @return the number of flushes
+	 */
+	public long getFlushCount(final Trigger trigger) {
+		return flushCounts[trigger.ordinal()].get();
+	}
+	
+	/**
+	 * Returns the total number of flushes
+	 * @return the total number of flushes
+	 */
+	public long getFlushCount() {
+		long total = 0;
+		for(Counter c: flushCounts) {
+			total += c.get();
+		}
+		return total;
+	}
+	
+	/**
+	 * Returns the cumulative number of bytes flushed
+	 * @return the cumulative number of bytes flushed
+	 */
+	public long getFlushedBytes() {
+		return flushedBytes.get();
+	}
+	
+	/**
+	 * Returns the cumulative number of traces flushed
+	 * @return the cumulative number of traces flushed
+	 */
+	public long getFlushedTraces() {
+		return flushedTraces.get();
+	}
+	
+	/**
+	 * Returns the size of the last flush in bytes
+	 * @return the size of the last flush in bytes
+	 */
+	public int getLastFlushBytes() {
+		return lastFlushBytes;
+	}
+	
+	/**
+	 * Returns the number of traces in the last flush
+	 * @return the number of traces in the last flush
+	 */
+	public int getLastFlushTraces() {
+		return lastFlushTraces;
+	}
+	
+	/**
+	 * Returns the elapsed time of the last flush in microseconds.
+	 * @return the elapsed time of the last flush in microseconds.
+	 */
+	public long getLastFlushTime() {
+		return TimeUnit.MICROSECONDS.convert(lastFlushTimeNs, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the average flush elapsed time in microseconds.
+	 * @return the average flush elapsed time in microseconds.
+	 */
+	public long getAverageFlushTime() {
+		final long count = getFlushCount();
+		if(count==0) return 0L;
+		return TimeUnit.MICROSECONDS.convert(flushTimeNs.get() / count, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Returns the average flush size in bytes
+	 * @return the average flush size in bytes
+	 */
+	public long getAverageFlushBytes() {
+		final long count = getFlushCount();
+		if(count==0) return 0L;
+		return flushedBytes.get() / count;
+	}
+	
+	/**
+	 * Returns the largest flush in bytes
+	 * @return the largest flush in bytes
+	 */
+	public long getMaxFlushBytes() {
+		return maxFlushBytes.get();
+	}
+	
+	/**
+	 * Returns the longest flush elapsed time in microseconds.
+	 * @return the longest flush elapsed time in microseconds.
+	 */
+	public long getMaxFlushTime() {
+		return TimeUnit.MICROSECONDS.convert(maxFlushTimeNs.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new StringBuilder("FlushPolicy [maxBytes=").append(maxBytes)
+			.append(", maxTraces=").append(maxTraces)
+			.append(", maxAge=").append(maxAge)
+			.append(", flushes=").append(getFlushCount())
+			.append(", avgBytes=").append(getAverageFlushBytes())
+			.append(", avgTimeUs=").append(getAverageFlushTime())
+			.append("]").toString();
+	}
+}
@@ -0,0 +1,708 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Title: HttpPutTransport</p>
+ * <p>Description: A {@link TSDBTransport} that converts buffered telnet put lines into JSON batches 
+ * and posts them to the OpenTSDB <b><code>/api/put?details</code></b> endpoint, optionally gzip compressed.</p>
+ * <p>The number of concurrent requests is capped. A flush waits a bounded time for a request permit and drops, and counts, 
+ * the batches it could not send. Requests that fail outright (I/O errors and 5xx responses) are re-posted,
+ * up to a maximum number of retries, after a backoff during which they do not hold a request permit. 
+ * A 400 lists the failed data points. Those failing for storage reasons (storage exceptions, timeouts and throttling) 
+ * are re-posted the same way. The others are rejected for their content, so they are recorded in the connection's
+ * {@link RejectionLog} and dropped rather than re-posted.</p>
+ * <p>JSON has no NaN or infinite numbers, so puts with such values are dropped, and counted, when converted.
+ * {@link #close()} waits a bounded time for the in-flight requests. Retries that come due after it are dropped.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.HttpPutTransport</code></p>
+ */
+
+public class HttpPutTransport implements TSDBTransport {
+	/** The connection that owns this transport and supplies the http client */
+	protected final TSDBSubmitterConnection conn;
+	/** The put URL */
+	protected final String putURL;
+	/** The maximum number of data points per request */
+	protected final int batchSize;
+	/** Indicates if request bodies are gzipped */
+	protected final boolean gzip;
+	/** The maximum number of retries for failed data points */
+	protected final int maxRetries;
+	/** The retry backoff in ms. per attempt */
+	protected final long retryBackoff;
+	/** Caps the number of in-flight requests */
+	protected final Semaphore permits;
+	/** The maximum number of in-flight requests */
+	protected final int maxConcurrent;
+	/** The maximum time in ms. a flush or close waits for request permits */
+	protected final long permitWait;
+	/** Indicates if the last contact with the server succeeded */
+	protected volatile boolean connected = false;
+	/** Indicates if this transport has been closed */
+	protected volatile boolean closed = false;
+	
+	/** The number of data points posted */
+	protected final Counter postedPoints = new Counter();
+	/** The number of data points OpenTSDB rejected */
+	protected final Counter failedPoints = new Counter();
+	/** The number of data points re-posted after a failed request */
+	protected final Counter retriedPoints = new Counter();
+	/** The number of data points given up on, including rejected ones */
+	protected final Counter droppedPoints = new Counter();
+	/** The number of data points dropped for a NaN or infinite value */
+	protected final Counter nonFinitePoints = new Counter();
+	/** The number of uncompressed JSON bytes */
+	protected final Counter rawBytes = new Counter();
+	/** The number of bytes sent on the wire */
+	protected final Counter sentBytes = new Counter();
+	/** The number of requests */
+	protected final Counter requests = new Counter();
+	
+	private static final Logger LOG = LoggerFactory.getLogger(HttpPutTransport.class);
+	
+	/** The config property name for the maximum number of data points per request */
+	public static final String CONFIG_BATCH_SIZE = "helios.opentsdb.http.batchsize";
+	/** The default maximum number of data points per request */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+	/** The config property name for enabling gzipped request bodies */
+	public static final String CONFIG_GZIP = "helios.opentsdb.http.gzip";
+	/** The default gzip enablement */
+	public static final boolean DEFAULT_GZIP = true;
+	/** The config property name for the maximum number of in-flight requests */
+	public static final String CONFIG_MAX_CONCURRENT = "helios.opentsdb.http.maxconcurrent";
+	/** The default maximum number of in-flight requests */
+	public static final int DEFAULT_MAX_CONCURRENT = 4;
+	/** The config property name for the maximum number of retries for failed data points */
+	public static final String CONFIG_MAX_RETRIES = "helios.opentsdb.http.retries";
+	/** The default maximum number of retries for failed data points */
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	/** The config property name for the retry backoff in ms. per attempt */
+	public static final String CONFIG_RETRY_BACKOFF = "helios.opentsdb.http.backoff";
+	/** The default retry backoff in ms. per attempt */
+	public static final long DEFAULT_RETRY_BACKOFF = 500L;
+	/** The config property name for the maximum time in ms. a flush or close waits for request permits */
+	public static final String CONFIG_PERMIT_WAIT = "helios.opentsdb.http.permitwait";
+	/** The default maximum time in ms. a flush or close waits for request permits */
+	public static final long DEFAULT_PERMIT_WAIT = 5000L;
+	/** The lower case fragments of the put errors caused by storage rather than by the data point, which are worth re-posting */
+	public static final String[] RETRIABLE_ERRORS = {"storage", "timeout", "timed out", "throttle"};
+	
+	/** The put line prefix */
+	private static final byte[] PUT = {'p', 'u', 't', ' '};
+	
+	/**
+	 * Creates a new HttpPutTransport configured from system properties or the environment
+	 * @param conn The connection that owns this transport
+	 */
+	HttpPutTransport(final TSDBSubmitterConnection conn) {
+		if(conn==null) throw new IllegalArgumentException("The passed connection was null");
+		this.conn = conn;
+		putURL = conn.baseURL + "api/put?details";
+		batchSize = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		gzip = ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_GZIP, DEFAULT_GZIP);
+		maxConcurrent = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT);
+		maxRetries = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_RETRIES, DEFAULT_MAX_RETRIES);
+		retryBackoff = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RETRY_BACKOFF, DEFAULT_RETRY_BACKOFF);
+		permitWait = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PERMIT_WAIT, DEFAULT_PERMIT_WAIT);
+		if(permitWait < 0) throw new IllegalArgumentException("Invalid permit wait [" + permitWait + "]");
+		if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size [" + batchSize + "]");
+		if(maxConcurrent < 1) throw new IllegalArgumentException("Invalid max concurrent requests [" + maxConcurrent + "]");
+		permits = new Semaphore(maxConcurrent);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#connect()
+	 */
+	@Override
+	public void connect() {
+		if(connected) return;
+		try {
+			final Response response = conn.httpClient.prepareGet(conn.baseURL + "api/version").execute().get(conn.timeout, TimeUnit.MILLISECONDS);
+			if(response.getStatusCode()!=200) throw new Exception("HTTP Status " + response.getStatusCode() + ": " + response.getStatusText());
+			connected = true;
+			LOG.info("Connected to [{}]", conn.baseURL);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to connect to [" + conn.baseURL + "]", ex);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>The buffer is converted into JSON request bodies of up to {@link #batchSize} data points before any 
+	 * request is sent, so the buffer is fully consumed even if the caller then waits for a request permit. 
+	 * The batches still unsent when no permit frees up within {@link #permitWait} are dropped and counted.</p>
+	 * @see com.heliosapm.opentsdb.TSDBTransport#write(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public void write(final ChannelBuffer buffer) throws IOException {
+		if(!connected) throw new IOException("Not connected to [" + conn.baseURL + "]");
+		if(!buffer.readable()) return;
+		final ChannelBuffer json = ChannelBuffers.dynamicBuffer(buffer.readableBytes() * 2, HeapChannelBufferFactory.getInstance());
+		final List<byte[]> bodies = new ArrayList<byte[]>();
+		final TIntArrayList counts = new TIntArrayList();
+		while(buffer.readable()) {
+			json.clear();
+			final int points = toJSON(buffer, json, batchSize);
+			if(points==0) continue;
+			bodies.add(body(json));
+			counts.add(points);
+		}
+		for(int i = 0; i < bodies.size(); i++) {
+			final boolean acquired;
+			try {
+				acquired = permits.tryAcquire(permitWait, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException iex) {
+				Thread.currentThread().interrupt();
+				for(int x = i; x < bodies.size(); x++) droppedPoints.add(counts.get(x));
+				throw new IOException("Interrupted waiting for a request permit. Dropped remaining batches.", iex);
+			}
+			if(!acquired) {
+				int dropped = 0;
+				for(int x = i; x < bodies.size(); x++) dropped += counts.get(x);
+				droppedPoints.add(dropped);
+				LOG.warn("No request permit for [{}] within [{}] ms. Dropped [{}] points.", conn.baseURL, permitWait, dropped);
+				return;
+			}
+			post(bodies.get(i), counts.get(i), 0);
+		}
+	}
+	
+	/**
+	 * Converts telnet put lines from the passed buffer into a JSON array in the passed output buffer.
+	 * Lines with a NaN or infinite value are skipped and counted as dropped.
+	 * @param in The buffer containing put lines
+	 * @param out The buffer to write the JSON into
+	 * @param max The maximum number of data points to convert
+	 * @return the number of data points converted
+	 */
+	protected int toJSON(final ChannelBuffer in, final ChannelBuffer out, final int max) {
+		int points = 0;
+		out.writeByte('[');
+		while(points < max && in.readable()) {
+			final int start = in.readerIndex();
+			int end = in.indexOf(start, in.writerIndex(), (byte)'\n');
+			if(end==-1) end = in.writerIndex();
+			in.readerIndex(end==in.writerIndex() ? end : end+1);
+			if(end - start <= PUT.length || !startsWith(in, start, PUT)) continue;
+			// put <metric> <timestamp> <value> <k=v>...
+			int pos = start + PUT.length;
+			if(isNonFinite(in, pos, end)) {
+				nonFinitePoints.increment();
+				droppedPoints.increment();
+				continue;
+			}
+			if(points > 0) out.writeByte(',');
+			out.writeBytes(METRIC_KEY);
+			pos = copyToken(in, pos, end, out, true);
+			out.writeBytes(TIMESTAMP_KEY);
+			pos = copyToken(in, pos, end, out, false);
+			out.writeBytes(VALUE_KEY);
+			final int valueEnd = tokenEnd(in, pos, end);
+			final boolean numeric = valueEnd > pos && isNumeric(in.getByte(pos));
+			pos = copyToken(in, pos, end, out, !numeric);
+			out.writeBytes(TAGS_KEY);
+			boolean firstTag = true;
+			while(pos < end) {
+				final int tagEnd = tokenEnd(in, pos, end);
+				final int eq = in.indexOf(pos, tagEnd, (byte)'=');
+				if(eq > pos) {
+					if(!firstTag) out.writeByte(',');
+					firstTag = false;
+					writeString(in, pos, eq, out);
+					out.writeByte(':');
+					writeString(in, eq+1, tagEnd, out);
+				}
+				pos = tagEnd + 1;
+			}
+			out.writeByte('}');
+			out.writeByte('}');
+			points++;
+		}
+		out.writeByte(']');
+		return points;
+	}
+	
+	/** JSON fragment preceding the metric */
+	private static final byte[] METRIC_KEY = "{\"metric\":".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** JSON fragment preceding the timestamp */
+	private static final byte[] TIMESTAMP_KEY = ",\"timestamp\":".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** JSON fragment preceding the value */
+	private static final byte[] VALUE_KEY = ",\"value\":".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** JSON fragment preceding the tags */
+	private static final byte[] TAGS_KEY = ",\"tags\":{".getBytes(TSDBSubmitterConnection.CHARSET);
+	
+	/**
+	 * Determines if the value of the put line whose metric starts at the passed position is NaN or infinite.
+	 * Numbers never start with a letter, so after the optional sign an <b><code>N</code></b> or <b><code>I</code></b> is enough.
+	 * @param in The buffer
+	 * @param pos The start of the metric token
+	 * @param end The line end
+	 * @return true if the value is NaN or infinite
+	 */
+	private static boolean isNonFinite(final ChannelBuffer in, final int pos, final int end) {
+		int sp = in.indexOf(pos, end, (byte)' ');
+		if(sp==-1) return false;
+		sp = in.indexOf(sp + 1, end, (byte)' ');
+		if(sp==-1 || sp + 1 >= end) return false;
+		int v = sp + 1;
+		byte b = in.getByte(v);
+		if((b=='-' || b=='+') && v + 1 < end) b = in.getByte(++v);
+		return b=='N' || b=='n' || b=='I' || b=='i';
+	}
+	
+	/**
+	 * Determines if the passed byte starts a JSON number
+	 * @param b The byte to test
+	 * @return true if the byte starts a number
+	 */
+	private static boolean isNumeric(final byte b) {
+		return (b >= '0' && b <= '9') || b=='-';
+	}
+	
+	/**
+	 * Determines if the passed buffer has the passed prefix at the passed index
+	 * @param in The buffer to test
+	 * @param index The index to test at
+	 * @param prefix The prefix
+	 * @return true if the prefix matches
+	 */
+	private static boolean startsWith(final ChannelBuffer in, final int index, final byte[] prefix) {
+		for(int i = 0; i < prefix.length; i++) {
+			if(in.getByte(index + i)!=prefix[i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Finds the end of the space delimited token starting at the passed position
+	 * @param in The buffer
+	 * @param pos The token start
+	 * @param end The line end
+	 * @return the index of the delimiting space or the line end
+	 */
+	private static int tokenEnd(final ChannelBuffer in, final int pos, final int end) {
+		final int sp = in.indexOf(pos, end, (byte)' ');
+		return sp==-1 ? end : sp;
+	}
+	
+	/**
+	 * Copies the space delimited token starting at the passed position
+	 * @param in The buffer
+	 * @param pos The token start
+	 * @param end The line end
+	 * @param out The buffer to copy to
+	 * @param quote true to write the token as a JSON string
+	 * @return the start of the next token
+	 */
+	private static int copyToken(final ChannelBuffer in, final int pos, final int end, final ChannelBuffer out, final boolean quote) {
+		final int tEnd = tokenEnd(in, pos, end);
+		if(quote) {
+			writeString(in, pos, tEnd, out);
+		} else {
+			out.writeBytes(in, pos, tEnd - pos);
+		}
+		return tEnd + 1;
+	}
+	
+	/**
+	 * Writes the passed byte range as a JSON string. The bytes are UTF-8, so only quotes and back slashes need escaping.
+	 * @param in The buffer
+	 * @param from The start index
+	 * @param to The end index (exclusive)
+	 * @param out The buffer to write to
+	 */
+	private static void writeString(final ChannelBuffer in, final int from, final int to, final ChannelBuffer out) {
+		out.writeByte('"');
+		for(int i = from; i < to; i++) {
+			final byte b = in.getByte(i);
+			if(b=='"' || b=='\\') out.writeByte('\\');
+			out.writeByte(b);
+		}
+		out.writeByte('"');
+	}
+	
+	/**
+	 * Renders a request body from the passed JSON, gzipping it if enabled
+	 * @param json The JSON buffer
+	 * @return the request body
+	 * @throws IOException thrown on any error compressing the body
+	 */
+	protected byte[] body(final ChannelBuffer json) throws IOException {
+		final int size = json.readableBytes();
+		rawBytes.add(size);
+		if(!gzip) {
+			final byte[] body = new byte[size];
+			json.readBytes(body);
+			return body;
+		}
+		return gzip(json);
+	}
+	
+	/**
+	 * Gzips the readable bytes of the passed buffer
+	 * @param buffer The buffer to compress
+	 * @return the compressed bytes
+	 * @throws IOException thrown on any error compressing the buffer
+	 */
+	static byte[] gzip(final ChannelBuffer buffer) throws IOException {
+		final int size = buffer.readableBytes();
+		final ChannelBuffer compressed = ChannelBuffers.dynamicBuffer(Math.max(64, size / 8), HeapChannelBufferFactory.getInstance());
+		final GZIPOutputStream gos = new GZIPOutputStream(new ChannelBufferOutputStream(compressed), 8192);
+		try {
+			buffer.readBytes(gos, size);
+			gos.finish();
+		} finally {
+			try { gos.close(); } catch (Exception x) {/* No Op */}
+		}
+		final byte[] body = new byte[compressed.readableBytes()];
+		compressed.readBytes(body);
+		return body;
+	}
+	
+	/**
+	 * Posts a request body. The caller must hold a request permit, which is released when the request completes
+	 * or fails. A retry acquires a new permit once its backoff has elapsed.
+	 * @param body The request body
+	 * @param points The number of data points in the body
+	 * @param attempt The attempt number, zero for the first attempt
+	 */
+	protected void post(final byte[] body, final int points, final int attempt) {
+		requests.increment();
+		sentBytes.add(body.length);
+		if(attempt==0) postedPoints.add(points);
+		try {
+			final AsyncHttpClient.BoundRequestBuilder request = conn.httpClient.preparePost(putURL)
+				.setHeader("Content-Type", "application/json")
+				.setBody(body);
+			if(gzip) request.setHeader("Content-Encoding", "gzip");
+			request.execute(new AsyncCompletionHandler<Object>() {
+					@Override
+					public Object onCompleted(final Response response) throws Exception {
+						final int status = response.getStatusCode();
+						connected = true;
+						if(status >= 200 && status < 300) {
+							permits.release();
+						} else if(status >= 500) {
+							LOG.warn("HTTP put of [{}] points failed: {} {}", points, status, response.getStatusText());
+							retry(body, points, attempt);
+						} else {
+							onDetails(response.getResponseBody("UTF-8"), points, attempt);
+						}
+						return null;
+					}
+					@Override
+					public void onThrowable(final Throwable t) {
+						LOG.error("HTTP put of [{}] points failed", points, t);
+						connected = false;
+						retry(body, points, attempt);
+					}
+				});
+		} catch (Exception ex) {
+			LOG.error("Failed to post [{}] points", points, ex);
+			droppedPoints.add(points);
+			permits.release();
+		}
+	}
+	
+	/**
+	 * Processes a details response describing failed data points. Those failing for storage reasons are re-posted. 
+	 * The others were rejected for their content and would fail the same way again, so they are recorded in the rejection log and dropped.
+	 * Releases the request permit.
+	 * @param details The response body
+	 * @param points The number of points in the request
+	 * @param attempt The attempt number of the request
+	 */
+	protected void onDetails(final String details, final int points, final int attempt) {
+		JSONArray retriable = null;
+		try {
+			final JSONObject resp = new JSONObject(details);
+			final JSONArray errors = resp.optJSONArray("errors");
+			final int failed = resp.optInt("failed", errors==null ? points : errors.length());
+			if(errors==null || errors.length()==0) {
+				failedPoints.add(failed);
+				droppedPoints.add(failed);
+				LOG.warn("HTTP put rejected [{}] points without details: {}", failed, details);
+				return;
+			}
+			int rejected = 0;
+			for(int i = 0; i < errors.length(); i++) {
+				final JSONObject err = errors.getJSONObject(i);
+				final JSONObject dp = err.optJSONObject("datapoint");
+				final String error = err.optString("error", "unknown");
+				if(dp!=null && isRetriable(error)) {
+					if(retriable==null) retriable = new JSONArray();
+					retriable.put(dp);
+					continue;
+				}
+				rejected++;
+				final int colon = error.indexOf(':');
+				conn.rejections.reject(colon > 0 ? error.substring(0, colon).trim() : error, dp==null ? null : dp.optString("metric", null), error);
+			}
+			// failures beyond the listed errors cannot be re-posted
+			rejected += Math.max(0, failed - errors.length());
+			failedPoints.add(rejected);
+			droppedPoints.add(rejected);
+			LOG.debug("HTTP put failed [{}] of [{}] points, [{}] rejected. First error: {}", failed, points, rejected, errors.getJSONObject(0).optString("error", "unknown"));
+		} catch (Exception ex) {
+			LOG.error("Failed to process put details [{}]", details, ex);
+			droppedPoints.add(points);
+			retriable = null;
+		} finally {
+			if(retriable==null) {
+				permits.release();
+			} else {
+				requeue(retriable, attempt);
+			}
+		}
+	}
+	
+	/**
+	 * Determines if a put error was caused by storage rather than by the data point
+	 * @param error The error message
+	 * @return true if the data point is worth re-posting
+	 */
+	static boolean isRetriable(final String error) {
+		final String lower = error.toLowerCase();
+		for(String fragment: RETRIABLE_ERRORS) {
+			if(lower.contains(fragment)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Re-posts the data points a request failed to store, with the failed request's retry accounting. Releases the request permit.
+	 * @param dps The data points to re-post
+	 * @param attempt The attempt number of the failed request
+	 */
+	protected void requeue(final JSONArray dps, final int attempt) {
+		final byte[] body;
+		try {
+			body = body(ChannelBuffers.wrappedBuffer(dps.toString().getBytes(TSDBSubmitterConnection.CHARSET)));
+		} catch (Exception ex) {
+			LOG.error("Failed to re-encode [{}] points", dps.length(), ex);
+			droppedPoints.add(dps.length());
+			permits.release();
+			return;
+		}
+		retry(body, dps.length(), attempt);
+	}
+	
+	/**
+	 * Releases the failed request's permit and schedules a re-post of the passed body after a backoff,
+	 * or drops it if the retries are exhausted
+	 * @param body The request body
+	 * @param points The number of data points in the body
+	 * @param attempt The attempt number of the failed request
+	 */
+	protected void retry(final byte[] body, final int points, final int attempt) {
+		permits.release();
+		if(points < 1) return;
+		if(attempt >= maxRetries) {
+			LOG.error("Dropping [{}] points after [{}] retries", points, attempt);
+			droppedPoints.add(points);
+			return;
+		}
+		retriedPoints.add(points);
+		scheduleRetry(body, points, attempt + 1, retryBackoff * (attempt + 1));
+	}
+	
+	/**
+	 * Schedules a re-post on the shared timer. The timer thread must not block, so if no request permit
+	 * is free when the delay elapses, the re-post is deferred by another backoff without counting as an attempt.
+	 * @param body The request body
+	 * @param points The number of data points in the body
+	 * @param attempt The attempt number of the re-post
+	 * @param delay The delay in ms.
+	 */
+	protected void scheduleRetry(final byte[] body, final int points, final int attempt, final long delay) {
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				if(closed) {
+					LOG.warn("Dropping [{}] points due for retry after close", points);
+					droppedPoints.add(points);
+					return;
+				}
+				if(permits.tryAcquire()) {
+					post(body, points, attempt);
+				} else {
+					scheduleRetry(body, points, attempt, retryBackoff);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getVersion()
+	 */
+	@Override
+	public String getVersion() {
+		try {
+			return conn.httpClient.prepareGet(conn.baseURL + "api/version").execute().get(conn.timeout, TimeUnit.MILLISECONDS).getResponseBody("UTF-8");
+		} catch (Exception x) {
+			return "Failed to get version from [" + conn.baseURL + "]" + x;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#close()
+	 */
+	@Override
+	public void close() {
+		connected = false;
+		closed = true;
+		try {
+			if(permits.tryAcquire(maxConcurrent, permitWait, TimeUnit.MILLISECONDS)) {
+				permits.release(maxConcurrent);
+			} else {
+				LOG.warn("Closing [{}] with [{}] requests still in flight", conn.baseURL, getInFlightRequests());
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Returns the number of in-flight requests
+	 * @return the number of in-flight requests
+	 */
+	public int getInFlightRequests() {
+		return maxConcurrent - permits.availablePermits();
+	}
+	
+	/**
+	 * Returns the number of data points posted
+	 * @return the number of data points posted
+	 */
+	public long getPostedPoints() {
+		return postedPoints.get();
+	}
+
+	/**
+	 * Returns the number of data points OpenTSDB rejected
+	 * @return the number of rejected data points
+	 */
+	public long getFailedPoints() {
+		return failedPoints.get();
+	}
+
+	/**
+	 * Returns the number of data points re-posted after a failed request
+	 * @return the number of re-posted data points
+	 */
+	public long getRetriedPoints() {
+		return retriedPoints.get();
+	}
+
+	/**
+	 * Returns the number of data points given up on
+	 * @return the number of dropped data points
+	 */
+	public long getDroppedPoints() {
+		return droppedPoints.get();
+	}
+	
+	/**
+	 * Returns the number of data points dropped for a NaN or infinite value
+	 * @return the number of non-finite data points
+	 */
+	public long getNonFinitePoints() {
+		return nonFinitePoints.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getDroppedTraces()
+	 */
+	@Override
+	public long getDroppedTraces() {
+		return droppedPoints.get();
+	}
+
+	/**
+	 * Returns the number of uncompressed JSON bytes
+	 * @return the number of uncompressed JSON bytes
+	 */
+	public long getRawBytes() {
+		return rawBytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes sent on the wire
+	 * @return the number of bytes sent
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+	
+	/**
+	 * Returns the number of requests sent, including retries
+	 * @return the number of requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+}
@@ -0,0 +1,461 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * <p>Title: LastValueStore</p>
+ * <p>Description: Keeps the most recent value of each traced series for the {@link PrometheusEndpoint} to serve.</p>
+ * <p>Series are grouped into families by their rendered Prometheus metric name, so metric names that only differ in characters
+ * Prometheus does not allow, such as <b><code>sys.cpu</code></b> and <b><code>sys_cpu</code></b>, share one family and one type line.
+ * Within a family series are keyed by the {@link SeriesHash} of their tags. The Prometheus rendering of each family name and series
+ * label set is built once, when the series is first seen.
+ * An update is lock-free and allocation-free: the writer claims the series' sequence with a CAS, writes the value and
+ * releases the sequence, and a reader retries until it sees the same even sequence before and after its read, so a scrape
+ * never renders a torn value. A writer that loses the CAS to a concurrent update of the same series retries, so the last write wins.</p>
+ * <p>Each scrape starts a new epoch, and a series records the epoch in which its value last changed, so a conditional scrape can
+ * render only the series changed since a previous scrape's epoch. Series not updated within the TTL are removed as scrapes pass them,
+ * and once the maximum number of series is stored new series are dropped until others expire.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.LastValueStore</code></p>
+ */
+
+public class LastValueStore {
+	/** The series families keyed by the hash of the rendered metric name */
+	protected final NonBlockingHashMapLong<Family> families = new NonBlockingHashMapLong<Family>(256);
+	/** The number of stored series */
+	protected final AtomicInteger size = new AtomicInteger(0);
+	/** The current epoch, advanced by each scrape */
+	protected final AtomicLong epoch = new AtomicLong(1L);
+	/** The last epoch in which any value changed */
+	protected final AtomicLong lastChanged = new AtomicLong(0L);
+	/** The maximum number of stored series */
+	protected final int maxSeries;
+	/** The time in ms. after which a series that has not been updated is removed, or 0 to keep series forever */
+	protected final long ttl;
+
+	/** The number of updates */
+	protected final Counter updates = new Counter();
+	/** The number of new series dropped because the store was full */
+	protected final Counter dropped = new Counter();
+	/** The number of expired series */
+	protected final Counter expired = new Counter();
+
+	/** Timestamps below this are taken to be in seconds */
+	static final long MAX_SECONDS = 100000000000L;
+	/** The bytes of the type comment prefix */
+	private static final byte[] TYPE = "# TYPE ".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** The bytes of the type comment suffix */
+	private static final byte[] UNTYPED = " untyped\n".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** An empty label set */
+	private static final byte[] NO_LABELS = {};
+
+	/**
+	 * Creates a new LastValueStore
+	 * @param maxSeries The maximum number of stored series
+	 * @param ttl The time in ms. after which a series that has not been updated is removed, or 0 to keep series forever
+	 */
+	public LastValueStore(final int maxSeries, final long ttl) {
+		if(maxSeries < 1) throw new IllegalArgumentException("Invalid max series [" + maxSeries + "]");
+		if(ttl < 0) throw new IllegalArgumentException("Invalid ttl [" + ttl + "]");
+		this.maxSeries = maxSeries;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Stores a long value
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags Optional tags
+	 */
+	public void put(final long timestamp, final CharSequence metric, final long value, final Collection<String> rawTags, final Map<String, String> tags) {
+		put(timestamp, metric, false, value, 0D, SeriesHash.seriesHash("", rawTags, tags), rawTags, null, tags);
+	}
+
+	/**
+	 * Stores a double value
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags Optional tags
+	 */
+	public void put(final long timestamp, final CharSequence metric, final double value, final Collection<String> rawTags, final Map<String, String> tags) {
+		put(timestamp, metric, true, 0L, value, SeriesHash.seriesHash("", rawTags, tags), rawTags, null, tags);
+	}
+
+	/**
+	 * Stores a long value
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	public void put(final long timestamp, final CharSequence metric, final long value, final Map<String, String> rootTags, final Map<String, String> tags) {
+		put(timestamp, metric, false, value, 0D, SeriesHash.seriesHash("", rootTags, tags), null, rootTags, tags);
+	}
+
+	/**
+	 * Stores a double value
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	public void put(final long timestamp, final CharSequence metric, final double value, final Map<String, String> rootTags, final Map<String, String> tags) {
+		put(timestamp, metric, true, 0L, value, SeriesHash.seriesHash("", rootTags, tags), null, rootTags, tags);
+	}
+
+	/**
+	 * Stores a value, creating the family and series when first seen
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param metric The metric name
+	 * @param isDouble true if the value is the double value
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param key The hash of the series tags
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	protected void put(final long timestamp, final CharSequence metric, final boolean isDouble, final long longValue, final double doubleValue,
+			final long key, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+		final long fkey = WireCodec.PrometheusCodec.nameHash(metric, 0, metric.length(), true);
+		Family family = families.get(fkey);
+		if(family==null) {
+			final Family f = new Family(metric);
+			family = families.putIfAbsent(fkey, f);
+			if(family==null) family = f;
+		}
+		Series series = family.series.get(key);
+		if(series==null) {
+			if(size.incrementAndGet() > maxSeries) {
+				size.decrementAndGet();
+				dropped.increment();
+				return;
+			}
+			final Series s = new Series(key, rawTags, rootTags, tags);
+			series = family.series.putIfAbsent(key, s);
+			if(series==null) series = s;
+			else size.decrementAndGet();
+		}
+		final long e = series.update(epoch, toMillis(timestamp), isDouble, longValue, doubleValue);
+		long l;
+		while(e > (l = lastChanged.get()) && !lastChanged.compareAndSet(l, e)) {/* retry */}
+		updates.increment();
+	}
+
+	/**
+	 * Starts a scrape, advancing the epoch. Values changed after the epoch advances are stamped with the new epoch,
+	 * and those stamped with an earlier epoch are visible to the scrape, so a conditional scrape since the new epoch
+	 * renders exactly the values this scrape may not have.
+	 * @param since The epoch of a previous scrape to render only the series changed since, or 0 for all series
+	 * @param timestamps true to render each value's timestamp
+	 * @return the new scrape
+	 */
+	public Scrape scrape(final long since, final boolean timestamps) {
+		return new Scrape(epoch.incrementAndGet(), since, timestamps);
+	}
+
+	/**
+	 * Indicates if any value changed, or any series expired, since the passed epoch
+	 * @param since The epoch returned by a previous scrape
+	 * @return true if a scrape now may differ from the scrape of the passed epoch
+	 */
+	public boolean changedSince(final long since) {
+		return lastChanged.get() >= since;
+	}
+
+	/**
+	 * Returns the number of stored series
+	 * @return the number of stored series
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of stored metric names
+	 * @return the number of stored metric names
+	 */
+	public int getFamilies() {
+		return families.size();
+	}
+
+	/**
+	 * Returns the number of updates
+	 * @return the number of updates
+	 */
+	public long getUpdates() {
+		return updates.get();
+	}
+
+	/**
+	 * Returns the number of new series dropped because the store was full
+	 * @return the dropped series count
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of expired series
+	 * @return the expired series count
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * Returns the current epoch
+	 * @return the current epoch
+	 */
+	public long getEpoch() {
+		return epoch.get();
+	}
+
+	/**
+	 * Removes all series
+	 */
+	public void clear() {
+		families.clear();
+		size.set(0);
+	}
+
+	/**
+	 * Returns the passed timestamp in ms.
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @return the timestamp in ms.
+	 */
+	static long toMillis(final long timestamp) {
+		return timestamp < MAX_SECONDS ? timestamp * 1000L : timestamp;
+	}
+
+	/**
+	 * <p>Title: Family</p>
+	 * <p>Description: The series of one rendered metric name</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.LastValueStore.Family</code></p>
+	 */
+	static class Family {
+		/** The rendered metric name */
+		final byte[] name;
+		/** The series keyed by the hash of their tags */
+		final NonBlockingHashMapLong<Series> series = new NonBlockingHashMapLong<Series>(16);
+
+		Family(final CharSequence metric) {
+			final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(metric.length() + 8);
+			WireCodec.PrometheusCodec.writeName(buff, metric, 0, metric.length(), true);
+			name = new byte[buff.readableBytes()];
+			buff.readBytes(name);
+		}
+	}
+
+	/**
+	 * <p>Title: Series</p>
+	 * <p>Description: The latest value of one series, guarded by a sequence so readers never see a partial update</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.LastValueStore.Series</code></p>
+	 */
+	static class Series {
+		/** The hash of the series tags */
+		final long key;
+		/** The rendered label set, including the braces */
+		final byte[] labels;
+		/** The update sequence, odd while an update is in progress */
+		volatile int seq = 0;
+		/** true if the value is the double value */
+		boolean isDouble;
+		/** The long value */
+		long longValue;
+		/** The double value */
+		double doubleValue;
+		/** The timestamp in ms. */
+		long timestamp;
+		/** The epoch in which the value last changed */
+		long changed;
+
+		/** The sequence updater */
+		private static final AtomicIntegerFieldUpdater<Series> SEQ = AtomicIntegerFieldUpdater.newUpdater(Series.class, "seq");
+
+		Series(final long key, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			this.key = key;
+			final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(128);
+			if(WireCodec.PROMETHEUS.writeTags(buff, rawTags, rootTags, tags) > 0) {
+				buff.writeByte('}');
+				labels = new byte[buff.readableBytes()];
+				buff.readBytes(labels);
+			} else {
+				labels = NO_LABELS;
+			}
+		}
+
+		/**
+		 * Writes a new value, waiting out any other update in progress. The epoch is read last, while the sequence is claimed,
+		 * so a scrape started before the read waits for and renders the new value.
+		 * @param epoch The store's epoch
+		 * @param timestamp The timestamp in ms.
+		 * @param isDouble true if the value is the double value
+		 * @param longValue The long value
+		 * @param doubleValue The double value
+		 * @return the epoch the change was stamped with, or 0 if the value was unchanged
+		 */
+		long update(final AtomicLong epoch, final long timestamp, final boolean isDouble, final long longValue, final double doubleValue) {
+			int s;
+			while(((s = seq) & 1)!=0 || !SEQ.compareAndSet(this, s, s + 1)) Thread.yield();
+			final boolean change = changed==0L || this.isDouble!=isDouble
+					|| (isDouble ? Double.doubleToLongBits(this.doubleValue)!=Double.doubleToLongBits(doubleValue) : this.longValue!=longValue);
+			this.isDouble = isDouble;
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+			this.timestamp = timestamp;
+			final long e = change ? epoch.get() : 0L;
+			if(change) changed = e;
+			seq = s + 2;
+			return e;
+		}
+	}
+
+	/**
+	 * <p>Title: Scrape</p>
+	 * <p>Description: Renders the stored series in the Prometheus text exposition format a buffer at a time,
+	 * grouped by metric name and removing expired series as it passes them</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.LastValueStore.Scrape</code></p>
+	 */
+	public class Scrape {
+		/** The epoch this scrape started, which a later conditional scrape passes as its since */
+		public final long epoch;
+		/** The epoch from which changed series are rendered */
+		protected final long since;
+		/** true to render timestamps */
+		protected final boolean timestamps;
+		/** The oldest timestamp kept, or 0 if series never expire */
+		protected final long expiry;
+		/** The family iterator */
+		protected final Iterator<Family> familyIter = families.values().iterator();
+		/** The current family */
+		protected Family family = null;
+		/** The current family's series iterator */
+		protected Iterator<Series> seriesIter = null;
+		/** true once the current family's type comment is written */
+		protected boolean typed = false;
+		/** The number of series rendered */
+		protected int rendered = 0;
+
+		Scrape(final long epoch, final long since, final boolean timestamps) {
+			this.epoch = epoch;
+			this.since = since;
+			this.timestamps = timestamps;
+			expiry = ttl==0L ? 0L : System.currentTimeMillis() - ttl;
+		}
+
+		/**
+		 * Renders series into the passed buffer until its written bytes reach the limit or no series remain
+		 * @param buffer The buffer to write into
+		 * @param limit The number of bytes after which to stop
+		 * @return true if series may remain, false if the scrape is complete
+		 */
+		public boolean render(final ChannelBuffer buffer, final int limit) {
+			while(buffer.writerIndex() < limit) {
+				if(seriesIter==null || !seriesIter.hasNext()) {
+					if(!familyIter.hasNext()) return false;
+					family = familyIter.next();
+					seriesIter = family.series.values().iterator();
+					typed = false;
+					continue;
+				}
+				final Series series = seriesIter.next();
+				boolean isDouble;
+				long longValue, timestamp, changed;
+				double doubleValue;
+				int s;
+				do {
+					while(((s = series.seq) & 1)!=0) Thread.yield();
+					isDouble = series.isDouble;
+					longValue = series.longValue;
+					doubleValue = series.doubleValue;
+					timestamp = series.timestamp;
+					changed = series.changed;
+				} while(series.seq!=s);
+				if(timestamp < expiry) {
+					if(family.series.remove(series.key, series)) {
+						size.decrementAndGet();
+						expired.increment();
+						// the series set changed, so earlier scrapes are stale
+						long l;
+						while(epoch > (l = lastChanged.get()) && !lastChanged.compareAndSet(l, epoch)) {/* retry */}
+					}
+					continue;
+				}
+				if(changed < since) continue;
+				if(!typed) {
+					buffer.writeBytes(TYPE);
+					buffer.writeBytes(family.name);
+					buffer.writeBytes(UNTYPED);
+					typed = true;
+				}
+				buffer.writeBytes(family.name);
+				buffer.writeBytes(series.labels);
+				buffer.writeByte(' ');
+				WireCodec.PrometheusCodec.writeValue(buffer, isDouble, longValue, doubleValue);
+				if(timestamps) {
+					buffer.writeByte(' ');
+					PutEncoder.writeLong(buffer, timestamp);
+				}
+				buffer.writeByte('\n');
+				rendered++;
+			}
+			return true;
+		}
+
+		/**
+		 * Returns the number of series rendered so far
+		 * @return the number of series rendered
+		 */
+		public int getRendered() {
+			return rendered;
+		}
+	}
+}
@@ -0,0 +1,610 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: NettyTransport</p>
+ * <p>Description: A non-blocking {@link TSDBTransport} built on the Netty NIO client. Writes are handed to the
+ * I/O worker and complete asynchronously. The number of bytes handed to Netty but not yet written to the socket
+ * is capped by a high watermark, and once it is reached, a {@link FullBufferPolicy} decides what happens to new writes
+ * until the in-flight bytes drain below the low watermark.</p> 
+ * <p>All transports share one NIO channel factory, so a JVM with many connections still uses a small, fixed set of selectors.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.NettyTransport</code></p>
+ */
+
+public class NettyTransport extends SimpleChannelUpstreamHandler implements TSDBTransport, ChannelPipelineFactory {
+	
+	/**
+	 * <p>Title: FullBufferPolicy</p>
+	 * <p>Description: Enumerates what a {@link NettyTransport} does with writes when the in-flight bytes are above the high watermark</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.NettyTransport.FullBufferPolicy</code></p>
+	 */
+	public static enum FullBufferPolicy {
+		/** The writing thread blocks until the in-flight bytes drop below the low watermark */
+		BLOCK,
+		/** The write is queued and the oldest queued writes are discarded to keep the queue within the pending limit. A write larger than the limit is discarded itself. */
+		DROP_OLDEST,
+		/** The write is handed to the configured {@link Spiller}, and discarded if there is none or it refuses it */
+		SPILL;
+		
+		/**
+		 * Decodes the passed name to a FullBufferPolicy, ignoring case
+		 * @param name The name to decode
+		 * @return the decoded FullBufferPolicy
+		 */
+		public static FullBufferPolicy forName(final String name) {
+			if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+			try {
+				return valueOf(name.trim().toUpperCase());
+			} catch (Exception ex) {
+				throw new IllegalArgumentException("Invalid FullBufferPolicy name [" + name + "]");
+			}
+		}
+	}
+	
+	/**
+	 * <p>Title: Spiller</p>
+	 * <p>Description: Defines a sink that accepts writes the transport cannot currently send</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.NettyTransport.Spiller</code></p>
+	 */
+	public static interface Spiller {
+		/**
+		 * Accepts a buffer of complete put lines the transport could not send
+		 * @param buffer The buffer to spill
+		 * @return true if the buffer was accepted, false if it should be discarded
+		 */
+		public boolean spill(ChannelBuffer buffer);
+		
+		/**
+		 * Indicates if the spiller is currently replaying into the transport. While it is, writes over the
+		 * high watermark block instead of spilling, so replayed records are not spilled straight back.
+		 * @return true if a replay is running
+		 */
+		public boolean isReplaying();
+	}
+	
+	/** The connection that owns this transport and supplies the socket options */
+	protected final TSDBSubmitterConnection conn;
+	/** The netty client bootstrap */
+	protected final ClientBootstrap bootstrap;
+	/** The current channel */
+	protected volatile Channel channel = null;
+	/** The in-flight byte count above which the full buffer policy kicks in. A larger write goes out alone when nothing else is in flight. */
+	protected final int highWatermark;
+	/** The in-flight byte count below which normal writes resume */
+	protected final int lowWatermark;
+	/** The maximum number of bytes queued under {@link FullBufferPolicy#DROP_OLDEST} */
+	protected final int maxPendingBytes;
+	/** The full buffer policy */
+	protected final FullBufferPolicy fullBufferPolicy;
+	/** The optional spiller */
+	protected volatile Spiller spiller = null;
+	
+	/** The number of bytes handed to netty and not yet written */
+	protected final AtomicLong inFlightBytes = new AtomicLong(0L);
+	/** The writes queued while above the high watermark */
+	protected final ArrayDeque<ChannelBuffer> pending = new ArrayDeque<ChannelBuffer>();
+	/** The number of bytes in the pending queue */
+	protected long pendingBytes = 0L;
+	/** Guards the pending queue and is the monitor blocked writers wait on */
+	protected final Object writeLock = new Object();
+	/** The number of bytes discarded */
+	protected final Counter droppedBytes = new Counter();
+	/** The number of buffers discarded */
+	protected final Counter droppedBuffers = new Counter();
+	/** The number of traces discarded */
+	protected final Counter droppedTraces = new Counter();
+	/** The number of bytes spilled */
+	protected final Counter spilledBytes = new Counter();
+	/** The cumulative time writers spent blocked, in ns. */
+	protected final Counter stallTimeNs = new Counter();
+	
+	/** Serializes version requests */
+	protected final Object versionLock = new Object();
+	
+	private static final Logger LOG = LoggerFactory.getLogger(NettyTransport.class);
+	
+	/** The config property name for the in-flight high watermark in bytes */
+	public static final String CONFIG_HIGH_WATERMARK = "helios.opentsdb.netty.highwatermark";
+	/** The default in-flight high watermark in bytes */
+	public static final int DEFAULT_HIGH_WATERMARK = 1024 * 1024 * 4;
+	/** The config property name for the in-flight low watermark in bytes */
+	public static final String CONFIG_LOW_WATERMARK = "helios.opentsdb.netty.lowwatermark";
+	/** The default in-flight low watermark in bytes */
+	public static final int DEFAULT_LOW_WATERMARK = 1024 * 1024 * 2;
+	/** The config property name for the maximum pending bytes under {@link FullBufferPolicy#DROP_OLDEST} */
+	public static final String CONFIG_MAX_PENDING = "helios.opentsdb.netty.maxpending";
+	/** The default maximum pending bytes */
+	public static final int DEFAULT_MAX_PENDING = DEFAULT_HIGH_WATERMARK;
+	/** The config property name for the full buffer policy */
+	public static final String CONFIG_FULL_POLICY = "helios.opentsdb.netty.fullpolicy";
+	/** The default full buffer policy */
+	public static final String DEFAULT_FULL_POLICY = FullBufferPolicy.BLOCK.name();
+	/** The config property name for the number of shared NIO workers */
+	public static final String CONFIG_WORKERS = "helios.opentsdb.netty.workers";
+	/** The default number of shared NIO workers */
+	public static final int DEFAULT_WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors()/2);
+	/** The time in ms. without a new line that ends the version reply, which OpenTSDB does not terminate */
+	public static final long VERSION_QUIET = 50L;
+	
+	/** The shared NIO channel factory */
+	private static volatile NioClientSocketChannelFactory channelFactory = null;
+	/** The shared NIO channel factory ctor lock */
+	private static final Object lock = new Object();
+	
+	/**
+	 * Returns the shared NIO channel factory, creating it if necessary
+	 * @return the shared NIO channel factory
+	 */
+	static NioClientSocketChannelFactory getChannelFactory() {
+		if(channelFactory==null) {
+			synchronized(lock) {
+				if(channelFactory==null) {
+					channelFactory = new NioClientSocketChannelFactory(
+						Executors.newCachedThreadPool(daemonThreadFactory("TSDBNettyBoss")),
+						Executors.newCachedThreadPool(daemonThreadFactory("TSDBNettyWorker")),
+						ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_WORKERS, DEFAULT_WORKERS)
+					);
+				}
+			}
+		}
+		return channelFactory;
+	}
+	
+	/**
+	 * Creates a daemon thread factory
+	 * @param name The thread name prefix
+	 * @return the thread factory
+	 */
+	static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			final AtomicInteger serial = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, name + "Thread#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/**
+	 * Creates a new NettyTransport configured from system properties or the environment
+	 * @param conn The connection that owns this transport
+	 */
+	NettyTransport(final TSDBSubmitterConnection conn) {
+		this(conn, 
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_HIGH_WATERMARK, DEFAULT_HIGH_WATERMARK),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_LOW_WATERMARK, DEFAULT_LOW_WATERMARK),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_PENDING, DEFAULT_MAX_PENDING),
+			FullBufferPolicy.forName(ConfigurationHelper.getSystemThenEnvProperty(CONFIG_FULL_POLICY, DEFAULT_FULL_POLICY))
+		);
+	}
+	
+	/**
+	 * Creates a new NettyTransport
+	 * @param conn The connection that owns this transport
+	 * @param highWatermark The in-flight byte count above which the full buffer policy kicks in
+	 * @param lowWatermark The in-flight byte count below which normal writes resume
+	 * @param maxPendingBytes The maximum number of bytes queued under {@link FullBufferPolicy#DROP_OLDEST}
+	 * @param fullBufferPolicy The full buffer policy
+	 */
+	NettyTransport(final TSDBSubmitterConnection conn, final int highWatermark, final int lowWatermark, final int maxPendingBytes, final FullBufferPolicy fullBufferPolicy) {
+		if(conn==null) throw new IllegalArgumentException("The passed connection was null");
+		if(fullBufferPolicy==null) throw new IllegalArgumentException("The passed FullBufferPolicy was null");
+		if(highWatermark < 1) throw new IllegalArgumentException("Invalid high watermark [" + highWatermark + "]");
+		if(lowWatermark < 0 || lowWatermark > highWatermark) throw new IllegalArgumentException("Invalid low watermark [" + lowWatermark + "] for high watermark [" + highWatermark + "]");
+		this.conn = conn;
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.maxPendingBytes = maxPendingBytes;
+		this.fullBufferPolicy = fullBufferPolicy;
+		bootstrap = new ClientBootstrap(getChannelFactory());
+		bootstrap.setPipelineFactory(this);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.ChannelPipelineFactory#getPipeline()
+	 */
+	@Override
+	public ChannelPipeline getPipeline() throws Exception {
+		return Channels.pipeline(this);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#connect()
+	 */
+	@Override
+	public void connect() {
+		if(isConnected()) return;
+		LOG.info("Connecting to [{}:{}]....", conn.host, conn.port);
+		bootstrap.setOption("tcpNoDelay", conn.tcpNoDelay);
+		bootstrap.setOption("keepAlive", conn.keepAlive);
+		bootstrap.setOption("reuseAddress", conn.reuseAddress);
+		bootstrap.setOption("receiveBufferSize", conn.receiveBufferSize);
+		bootstrap.setOption("sendBufferSize", conn.sendBufferSize);
+		if(conn.linger) {
+			bootstrap.setOption("soLinger", conn.lingerTime);
+		}
+		bootstrap.setOption("connectTimeoutMillis", conn.timeout);
+		final ChannelFuture cf = bootstrap.connect(new InetSocketAddress(conn.host, conn.port));
+		if(!cf.awaitUninterruptibly(conn.timeout) || !cf.isSuccess()) {
+			cf.getChannel().close();
+			throw new RuntimeException("Failed to connect to [" + conn.host + ":" + conn.port + "]", cf.getCause());
+		}
+		channel = cf.getChannel();
+		LOG.info("Connected to [{}:{}]", conn.host, conn.port);
+		synchronized(writeLock) {
+			drainPending();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		final Channel ch = channel;
+		return ch!=null && ch.isConnected();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#write(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public void write(final ChannelBuffer buffer) throws IOException {
+		final Channel ch = channel;
+		if(ch==null || !ch.isConnected()) throw new IOException("Not connected to [" + conn.host + ":" + conn.port + "]");
+		final int size = buffer.readableBytes();
+		if(size<1) return;
+		synchronized(writeLock) {
+			if(pending.isEmpty() && (inFlightBytes.get()==0L || inFlightBytes.get() + size <= highWatermark)) {
+				send(ch, buffer.readBytes(size));
+				return;
+			}
+			final Spiller sp = spiller;
+			switch(fullBufferPolicy) {
+			case BLOCK:
+				awaitLowWatermark(ch);
+				send(ch, buffer.readBytes(size));
+				break;
+			case DROP_OLDEST:
+				if(size > maxPendingBytes) {
+					// the queue could never hold it, and evicting everything else for it would lose more
+					drop(buffer.slice(buffer.readerIndex(), size));
+					buffer.skipBytes(size);
+					break;
+				}
+				pending.addLast(buffer.readBytes(size));
+				pendingBytes += size;
+				while(pendingBytes > maxPendingBytes) {
+					final ChannelBuffer dropped = pending.removeFirst();
+					pendingBytes -= dropped.readableBytes();
+					drop(dropped);
+				}
+				break;
+			case SPILL:
+				if(sp!=null && sp.isReplaying()) {
+					awaitLowWatermark(ch);
+					send(ch, buffer.readBytes(size));
+					break;
+				}
+				final ChannelBuffer spill = buffer.readBytes(size);
+				if(sp!=null && sp.spill(spill)) {
+					spilledBytes.add(size);
+				} else {
+					drop(spill);
+				}
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Blocks the calling thread until the pending queue is empty and the in-flight bytes are below the low watermark.
+	 * Caller must hold the write lock.
+	 * @param ch The channel being written to
+	 * @throws IOException thrown if the channel closes or the thread is interrupted while waiting
+	 */
+	protected void awaitLowWatermark(final Channel ch) throws IOException {
+		final long start = System.nanoTime();
+		try {
+			while(!pending.isEmpty() || inFlightBytes.get() > lowWatermark) {
+				if(!ch.isConnected()) throw new IOException("Connection to [" + conn.host + ":" + conn.port + "] closed while blocked on write");
+				writeLock.wait(conn.timeout);
+			}
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while blocked on write", iex);
+		} finally {
+			stallTimeNs.add(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Records a discarded buffer
+	 * @param buff The discarded buffer. Its traces are counted from index zero, so a partially written buffer counts in full.
+	 */
+	protected void drop(final ChannelBuffer buff) {
+		final int size = buff.writerIndex();
+		droppedBytes.add(size);
+		droppedBuffers.increment();
+		int traces = 0;
+		for(int i = buff.indexOf(0, size, (byte)'\n'); i!=-1; i = buff.indexOf(i + 1, size, (byte)'\n')) {
+			traces++;
+		}
+		droppedTraces.add(traces);
+		if(droppedBuffers.get()==1) {
+			LOG.warn("Discarding writes to [{}:{}] under policy [{}]", conn.host, conn.port, fullBufferPolicy);
+		}
+	}
+	
+	/**
+	 * Hands a buffer to netty and tracks its in-flight bytes until the write completes
+	 * @param ch The channel to write to
+	 * @param buff The buffer to write
+	 */
+	protected void send(final Channel ch, final ChannelBuffer buff) {
+		final int size = buff.readableBytes();
+		inFlightBytes.addAndGet(size);
+		ch.write(buff).addListener(new ChannelFutureListener() {
+			@Override
+			public void operationComplete(final ChannelFuture f) throws Exception {
+				if(!f.isSuccess()) {
+					// a partially written buffer is spilled in full, since netty does not report how much of it went out
+					final Spiller sp = spiller;
+					final ChannelBuffer unsent = buff.duplicate();
+					unsent.readerIndex(0);
+					if(sp!=null && sp.spill(unsent)) {
+						spilledBytes.add(unsent.writerIndex());
+						LOG.warn("Write of [{}] bytes to [{}:{}] failed, spilled: {}", size, conn.host, conn.port, String.valueOf(f.getCause()));
+					} else {
+						LOG.error("Write of [{}] bytes to [{}:{}] failed", size, conn.host, conn.port, f.getCause());
+						drop(buff);
+					}
+				}
+				if(inFlightBytes.addAndGet(-size) <= lowWatermark) {
+					synchronized(writeLock) {
+						drainPending();
+						writeLock.notifyAll();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Sends queued writes while there is room under the high watermark. Caller must hold the write lock.
+	 */
+	protected void drainPending() {
+		final Channel ch = channel;
+		if(ch==null || !ch.isConnected()) return;
+		while(!pending.isEmpty() && (inFlightBytes.get()==0L || inFlightBytes.get() + pending.peekFirst().readableBytes() <= highWatermark)) {
+			final ChannelBuffer buff = pending.removeFirst();
+			pendingBytes -= buff.readableBytes();
+			send(ch, buff);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getVersion()
+	 */
+	@Override
+	public String getVersion() {
+		final Channel ch = channel;
+		if(ch==null || !ch.isConnected()) {
+			return "Not Connected";
+		}
+		try {
+			synchronized(versionLock) {
+				conn.rejections.expectReply();
+				ch.write(ChannelBuffers.wrappedBuffer("version\n".getBytes(TSDBSubmitterConnection.CHARSET)));
+				final String reply = conn.rejections.awaitReply(conn.timeout, VERSION_QUIET);
+				if(reply==null) return "Timed out getting version from [" + conn.host + ":" + conn.port + "]";
+				return reply;
+			}
+		} catch (Exception x) {
+			return "Failed to get version from [" + conn.host + ":" + conn.port + "]" + x;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#messageReceived(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.MessageEvent)
+	 */
+	@Override
+	public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+		// version reply lines are collected by the same line parser that counts the rejections
+		conn.rejections.onResponse(((ChannelBuffer)e.getMessage()).toString(TSDBSubmitterConnection.CHARSET));
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#channelClosed(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ChannelStateEvent)
+	 */
+	@Override
+	public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+		LOG.warn("Connection to [{}:{}] closed", conn.host, conn.port);
+		synchronized(writeLock) {
+			writeLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see org.jboss.netty.channel.SimpleChannelUpstreamHandler#exceptionCaught(org.jboss.netty.channel.ChannelHandlerContext, org.jboss.netty.channel.ExceptionEvent)
+	 */
+	@Override
+	public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+		LOG.error("Exception on connection to [{}:{}]", conn.host, conn.port, e.getCause());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#close()
+	 */
+	@Override
+	public void close() {
+		final Channel ch = channel;
+		if(ch!=null) {
+			ch.close().awaitUninterruptibly(conn.timeout);
+		}
+	}
+	
+	/**
+	 * Sets the spiller used under {@link FullBufferPolicy#SPILL}
+	 * @param spiller The spiller, or null to discard
+	 * @return this transport
+	 */
+	public NettyTransport setSpiller(final Spiller spiller) {
+		this.spiller = spiller;
+		return this;
+	}
+	
+	/**
+	 * Returns the full buffer policy
+	 * @return the full buffer policy
+	 */
+	public FullBufferPolicy getFullBufferPolicy() {
+		return fullBufferPolicy;
+	}
+	
+	/**
+	 * Returns the in-flight high watermark in bytes
+	 * @return the high watermark
+	 */
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * Returns the in-flight low watermark in bytes
+	 * @return the low watermark
+	 */
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+	
+	/**
+	 * Returns the number of bytes handed to netty and not yet written
+	 * @return the in-flight byte count
+	 */
+	public long getInFlightBytes() {
+		return inFlightBytes.get();
+	}
+	
+	/**
+	 * Returns the number of bytes queued while above the high watermark
+	 * @return the pending byte count
+	 */
+	public long getPendingBytes() {
+		synchronized(writeLock) {
+			return pendingBytes;
+		}
+	}
+	
+	/**
+	 * Returns the number of discarded bytes
+	 * @return the number of discarded bytes
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+	
+	/**
+	 * Returns the number of discarded buffers
+	 * @return the number of discarded buffers
+	 */
+	public long getDroppedBuffers() {
+		return droppedBuffers.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getDroppedTraces()
+	 */
+	@Override
+	public long getDroppedTraces() {
+		return droppedTraces.get();
+	}
+	
+	/**
+	 * Returns the number of spilled bytes
+	 * @return the number of spilled bytes
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes.get();
+	}
+	
+	/**
+	 * Returns the cumulative time writers have spent blocked, in ms.
+	 * @return the cumulative blocked time in ms.
+	 */
+	public long getStallTime() {
+		return TimeUnit.MILLISECONDS.convert(stallTimeNs.get(), TimeUnit.NANOSECONDS);
+	}
+
+}
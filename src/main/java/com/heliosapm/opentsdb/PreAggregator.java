@@ -0,0 +1,438 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: PreAggregator</p>
+ * <p>Description: An optional stage between a submitter's traces and the connection buffer that rolls raw samples up
+ * into one set of aggregates per series per window, cutting TSD write load by the ratio of window to sample period.</p>
+ * <p>Each series keeps primitive min, max, sum, count and last accumulators, keyed by its {@link SeriesHash}. 
+ * Samples are bucketed by the window their timestamp falls in. A series' window is emitted, timestamped with the start 
+ * of the window, as soon as it receives a sample for a later window, or by the rollup at the end of each window otherwise. 
+ * Samples for a window the series has already moved past are counted as late and discarded, since the emitted aggregates 
+ * cannot be amended. When a single aggregate 
+ * is selected it is emitted under the original metric name, otherwise each aggregate is emitted under the metric name 
+ * suffixed with <b><code>.min</code></b>, <b><code>.max</code></b> and so on. Series that receive no samples for 
+ * {@link #IDLE_WINDOWS} windows are dropped.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.PreAggregator</code></p>
+ */
+
+public class PreAggregator {
+	/** The accumulators keyed by series hash */
+	protected final NonBlockingHashMapLong<Series> series = new NonBlockingHashMapLong<Series>(1024);
+	/** The window in ms. */
+	protected final long window;
+	/** The aggregates to emit */
+	protected final Aggregate[] aggregates;
+	/** The metric name suffix of each emitted aggregate */
+	protected final String[] suffixes;
+	/** The sink rollups are emitted to */
+	protected final RollupSink sink;
+	/** Serializes rollups, so close() waits for a running rollup before emitting the final windows */
+	protected final Object rollupLock = new Object();
+	/** Indicates if this aggregator has been closed */
+	protected volatile boolean closed = false;
+	/** The number of samples accumulated */
+	protected final Counter samples = new Counter();
+	/** The number of rollup values emitted */
+	protected final Counter rollups = new Counter();
+	/** The number of samples discarded because their window had already been emitted */
+	protected final Counter lateSamples = new Counter();
+	
+	private static final Logger LOG = LoggerFactory.getLogger(PreAggregator.class);
+	
+	/** The config property name for the aggregation window in ms. Zero disables aggregation. */
+	public static final String CONFIG_WINDOW = "helios.opentsdb.aggregation.window";
+	/** The default aggregation window in ms. */
+	public static final long DEFAULT_WINDOW = 0L;
+	/** The config property name for the comma separated aggregates to emit */
+	public static final String CONFIG_AGGREGATES = "helios.opentsdb.aggregation.aggregates";
+	/** The default aggregates to emit */
+	public static final String DEFAULT_AGGREGATES = "AVG,MAX";
+	/** The number of empty windows after which a series is dropped */
+	public static final int IDLE_WINDOWS = 10;
+	
+	/**
+	 * <p>Title: Aggregate</p>
+	 * <p>Description: Enumerates the aggregates that can be emitted per window</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.PreAggregator.Aggregate</code></p>
+	 */
+	public static enum Aggregate {
+		/** The minimum value */
+		MIN,
+		/** The maximum value */
+		MAX,
+		/** The sum of the values */
+		SUM,
+		/** The number of values */
+		COUNT,
+		/** The mean value */
+		AVG,
+		/** The last value */
+		LAST;
+		
+		/**
+		 * Decodes a comma separated list of aggregate names
+		 * @param names The aggregate names, case insensitive
+		 * @return the decoded aggregates
+		 */
+		public static Aggregate[] decode(final String names) {
+			if(names==null || names.trim().isEmpty()) throw new IllegalArgumentException("The passed aggregate names were null or empty");
+			final String[] parts = names.split(",");
+			final Aggregate[] aggs = new Aggregate[parts.length];
+			for(int i = 0; i < parts.length; i++) {
+				try {
+					aggs[i] = valueOf(parts[i].trim().toUpperCase());
+				} catch (Exception ex) {
+					throw new IllegalArgumentException("Invalid aggregate name [" + parts[i] + "]");
+				}
+			}
+			return aggs;
+		}
+	}
+	
+	/**
+	 * <p>Title: RollupSink</p>
+	 * <p>Description: Receives the rolled up values at the end of each window</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.PreAggregator.RollupSink</code></p>
+	 */
+	public static interface RollupSink {
+		/**
+		 * Emits a rolled up value
+		 * @param timestamp The start of the window in ms.
+		 * @param metric The metric name
+		 * @param value The aggregate value
+		 * @param tags The series tags
+		 */
+		public void rollup(long timestamp, String metric, double value, Map<String, String> tags);
+	}
+	
+	/**
+	 * <p>Title: Series</p>
+	 * <p>Description: The accumulators of one series. All access must be synchronized on the series.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.PreAggregator.Series</code></p>
+	 */
+	static class Series {
+		/** The metric name */
+		final String metric;
+		/** A copy of the series tags */
+		final Map<String, String> tags;
+		/** The start in ms. of the window the accumulators hold */
+		long windowStart;
+		/** The start in ms. of the last emitted window */
+		long emitted = Long.MIN_VALUE;
+		/** The minimum value in the window */
+		double min;
+		/** The maximum value in the window */
+		double max;
+		/** The sum of the values in the window */
+		double sum;
+		/** The number of values in the window */
+		long count;
+		/** The last value in the window */
+		double last;
+		/** The number of consecutive windows with no values */
+		int idle;
+		/** Set when the series has been dropped, so a racing add re-creates it */
+		boolean dropped;
+		
+		/**
+		 * Creates a new Series
+		 * @param metric The metric name
+		 * @param tags The series tags
+		 */
+		Series(final String metric, final Map<String, String> tags) {
+			this.metric = metric;
+			this.tags = tags==null ? new LinkedHashMap<String, String>(0) : new LinkedHashMap<String, String>(tags);
+		}
+		
+		/**
+		 * Accumulates a value
+		 * @param value The value
+		 */
+		void add(final double value) {
+			if(count==0) {
+				min = value;
+				max = value;
+			} else {
+				if(value < min) min = value;
+				if(value > max) max = value;
+			}
+			sum += value;
+			count++;
+			last = value;
+		}
+		
+		/**
+		 * Returns the current value of an aggregate
+		 * @param agg The aggregate
+		 * @return the aggregate value
+		 */
+		double get(final Aggregate agg) {
+			switch(agg) {
+				case MIN: return min;
+				case MAX: return max;
+				case SUM: return sum;
+				case COUNT: return count;
+				case AVG: return sum / count;
+				default: return last;
+			}
+		}
+		
+		/**
+		 * Reads the selected aggregates into the passed array and resets the accumulators for the next window
+		 * @param aggregates The aggregates to read
+		 * @param values The array to read the aggregate values into
+		 * @return the start of the emitted window in ms.
+		 */
+		long emit(final Aggregate[] aggregates, final double[] values) {
+			for(int i = 0; i < aggregates.length; i++) {
+				values[i] = get(aggregates[i]);
+			}
+			sum = 0D;
+			count = 0L;
+			emitted = windowStart;
+			return windowStart;
+		}
+	}
+	
+	/**
+	 * Creates a new PreAggregator
+	 * @param window The window in ms.
+	 * @param sink The sink rollups are emitted to
+	 * @param aggregates The aggregates to emit
+	 */
+	public PreAggregator(final long window, final RollupSink sink, final Aggregate...aggregates) {
+		if(window < 1) throw new IllegalArgumentException("Invalid window [" + window + "]");
+		if(sink==null) throw new IllegalArgumentException("The passed sink was null");
+		if(aggregates==null || aggregates.length==0) throw new IllegalArgumentException("No aggregates specified");
+		this.window = window;
+		this.sink = sink;
+		this.aggregates = aggregates.clone();
+		suffixes = new String[aggregates.length];
+		for(int i = 0; i < aggregates.length; i++) {
+			if(aggregates[i]==null) throw new IllegalArgumentException("Aggregate #" + i + " was null");
+			suffixes[i] = aggregates.length==1 ? "" : "." + aggregates[i].name().toLowerCase();
+		}
+		scheduleRollup();
+	}
+	
+	/**
+	 * Creates a new PreAggregator configured from system properties or the environment
+	 * @param sink The sink rollups are emitted to
+	 * @return the new aggregator, or null if aggregation is disabled
+	 */
+	static PreAggregator configured(final RollupSink sink) {
+		final long window = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_WINDOW, DEFAULT_WINDOW);
+		if(window < 1) return null;
+		return new PreAggregator(window, sink, Aggregate.decode(ConfigurationHelper.getSystemThenEnvProperty(CONFIG_AGGREGATES, DEFAULT_AGGREGATES)));
+	}
+	
+	/**
+	 * Accumulates a sample into the window its timestamp falls in, first emitting the series' accumulated window if the sample starts a later one
+	 * @param seriesHash The series hash of the metric and tags
+	 * @param metric The metric name
+	 * @param tags The metric tags
+	 * @param timestamp The sample timestamp in ms.
+	 * @param value The sample value
+	 */
+	public void add(final long seriesHash, final String metric, final Map<String, String> tags, final long timestamp, final double value) {
+		final long ws = timestamp - (timestamp % window);
+		double[] values = null;
+		long emitStart = 0L;
+		Series s;
+		while(true) {
+			s = series.get(seriesHash);
+			if(s==null) {
+				final Series created = new Series(metric, tags);
+				s = series.putIfAbsent(seriesHash, created);
+				if(s==null) s = created;
+			}
+			synchronized(s) {
+				if(s.dropped) continue;
+				if(ws <= s.emitted || (s.count > 0 && ws < s.windowStart)) {
+					lateSamples.increment();
+					return;
+				}
+				if(s.count > 0 && ws > s.windowStart) {
+					values = new double[aggregates.length];
+					emitStart = s.emit(aggregates, values);
+				}
+				if(s.count==0) s.windowStart = ws;
+				s.add(value);
+			}
+			break;
+		}
+		samples.increment();
+		if(values!=null) emit(s, emitStart, values);
+	}
+	
+	/**
+	 * Emits the selected aggregates of a series window to the sink
+	 * @param s The series
+	 * @param windowStart The start of the window in ms.
+	 * @param values The aggregate values
+	 */
+	protected void emit(final Series s, final long windowStart, final double[] values) {
+		for(int i = 0; i < aggregates.length; i++) {
+			sink.rollup(windowStart, suffixes[i].isEmpty() ? s.metric : s.metric + suffixes[i], values[i], s.tags);
+			rollups.increment();
+		}
+	}
+	
+	/**
+	 * Schedules the next rollup at the end of the current window on the shared flush timer
+	 */
+	protected void scheduleRollup() {
+		if(closed) return;
+		final long now = System.currentTimeMillis();
+		final long windowStart = now - (now % window);
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							rollup(System.currentTimeMillis());
+						} catch (Exception ex) {
+							LOG.error("Aggregation rollup failed", ex);
+						} finally {
+							scheduleRollup();
+						}
+					}
+				});
+			}
+		}, windowStart + window - now, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Emits the selected aggregates of every series whose window has ended, and resets the accumulators
+	 * @param now The current time in ms. Windows ending at or before this time are emitted.
+	 */
+	protected void rollup(final long now) {
+		synchronized(rollupLock) {
+			final double[] values = new double[aggregates.length];
+			for(Iterator<Map.Entry<Long, Series>> iter = series.entrySet().iterator(); iter.hasNext();) {
+				final Series s = iter.next().getValue();
+				final long windowStart;
+				synchronized(s) {
+					if(s.count==0) {
+						if(++s.idle >= IDLE_WINDOWS) {
+							s.dropped = true;
+							iter.remove();
+						}
+						continue;
+					}
+					s.idle = 0;
+					// a window in progress is emitted by a later rollup
+					if(s.windowStart > now - window) continue;
+					windowStart = s.emit(aggregates, values);
+				}
+				emit(s, windowStart, values);
+			}
+		}
+	}
+	
+	/**
+	 * Stops the rollup schedule and emits every accumulated window, waiting for a running rollup to complete first
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		rollup(Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Returns the number of tracked series
+	 * @return the number of tracked series
+	 */
+	public int getSeriesCount() {
+		return series.size();
+	}
+	
+	/**
+	 * Returns the number of samples accumulated
+	 * @return the number of samples accumulated
+	 */
+	public long getSamples() {
+		return samples.get();
+	}
+	
+	/**
+	 * Returns the number of rollup values emitted
+	 * @return the number of rollup values emitted
+	 */
+	public long getRollups() {
+		return rollups.get();
+	}
+	
+	/**
+	 * Returns the number of samples discarded because their window had already been emitted
+	 * @return the number of late samples
+	 */
+	public long getLateSamples() {
+		return lateSamples.get();
+	}
+	
+	/**
+	 * Returns the aggregation window in ms.
+	 * @return the aggregation window
+	 */
+	public long getWindow() {
+		return window;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PreAggregator [window:" + window + ", series:" + getSeriesCount() + ", samples:" + getSamples() + ", rollups:" + getRollups() + "]";
+	}
+}
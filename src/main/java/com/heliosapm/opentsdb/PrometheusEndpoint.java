@@ -0,0 +1,479 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpContentCompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: PrometheusEndpoint</p>
+ * <p>Description: An embedded Netty 3 HTTP server exposing the latest traced value of each series at <b><code>/metrics</code></b>
+ * in the Prometheus text exposition format, so a Prometheus server can scrape at its own pace instead of every sample being pushed.</p>
+ * <p>Values come from a {@link LastValueStore} which every connection updates as it traces when the endpoint is enabled
+ * with {@link #CONFIG_PORT}. With {@link #CONFIG_PULL_ONLY} set the connections stop pushing and only the store is updated.
+ * Connections {@link #acquire()} the configured endpoint when created and {@link #release(PrometheusEndpoint)} it when closed,
+ * and the last release stops the server and discards its values.</p>
+ * <p>A scrape is written as a chunked response, rendered a chunk at a time as the channel becomes writable, and is gzipped when the
+ * request accepts it. Each response carries an <b><code>ETag</code></b> of the scrape's epoch. A request sending it back in
+ * <b><code>If-None-Match</code></b> receives a <b><code>304</code></b> if no value changed and no series expired since that scrape,
+ * and otherwise a full scrape, as HTTP caches expect. Only a request passing the epoch as the <b><code>since</code></b> parameter
+ * receives a partial scrape of the series whose value changed since, or a <b><code>304</code></b> if none did. A value changed while
+ * a scrape is rendering is either in that scrape or in the next partial one.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.PrometheusEndpoint</code></p>
+ */
+
+public class PrometheusEndpoint {
+	/** The values served */
+	protected final LastValueStore store;
+	/** The bind address */
+	protected final String bindAddress;
+	/** The requested listening port, 0 for an ephemeral port */
+	protected final int requestedPort;
+	/** true to render each value's timestamp */
+	protected final boolean timestamps;
+	/** The server bootstrap */
+	protected ServerBootstrap bootstrap = null;
+	/** The server channel */
+	protected Channel serverChannel = null;
+	/** All open channels, closed on stop */
+	protected final ChannelGroup channels = new DefaultChannelGroup("PrometheusEndpoint");
+
+	/** The number of full scrapes */
+	protected final Counter scrapes = new Counter();
+	/** The number of conditional scrapes */
+	protected final Counter conditionalScrapes = new Counter();
+	/** The number of conditional scrapes answered not modified */
+	protected final Counter notModified = new Counter();
+
+	/** The endpoint configured from system properties or the environment, while acquired */
+	private static PrometheusEndpoint instance = null;
+	/** The number of unreleased acquisitions of the configured endpoint */
+	private static int references = 0;
+
+	private static final Logger LOG = LoggerFactory.getLogger(PrometheusEndpoint.class);
+
+	/** The config property name for the listening port, 0 to disable the endpoint */
+	public static final String CONFIG_PORT = "helios.opentsdb.prometheus.port";
+	/** The default listening port */
+	public static final int DEFAULT_PORT = 0;
+	/** The config property name for the bind address */
+	public static final String CONFIG_BIND = "helios.opentsdb.prometheus.bind";
+	/** The default bind address */
+	public static final String DEFAULT_BIND = "0.0.0.0";
+	/** The config property name for the maximum number of stored series */
+	public static final String CONFIG_MAX_SERIES = "helios.opentsdb.prometheus.maxseries";
+	/** The default maximum number of stored series */
+	public static final int DEFAULT_MAX_SERIES = 100000;
+	/** The config property name for the time in ms. after which a series that is not updated is dropped, 0 to never drop */
+	public static final String CONFIG_TTL = "helios.opentsdb.prometheus.ttl";
+	/** The default time in ms. after which a series that is not updated is dropped */
+	public static final long DEFAULT_TTL = 600000L;
+	/** The config property name for rendering each value's timestamp */
+	public static final String CONFIG_TIMESTAMPS = "helios.opentsdb.prometheus.timestamps";
+	/** The default timestamp rendering */
+	public static final boolean DEFAULT_TIMESTAMPS = true;
+	/** The config property name for only updating the endpoint's values instead of also pushing */
+	public static final String CONFIG_PULL_ONLY = "helios.opentsdb.prometheus.pullonly";
+	/** The default pull only setting */
+	public static final boolean DEFAULT_PULL_ONLY = false;
+
+	/** The scrape path */
+	public static final String PATH = "/metrics";
+	/** The text exposition content type */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	/** The number of bytes rendered per chunk */
+	public static final int CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * Acquires the endpoint configured from system properties or the environment, starting it if it is not running.
+	 * Each acquisition must be released with {@link #release(PrometheusEndpoint)}.
+	 * @return the endpoint, or null if it is not enabled
+	 */
+	public static synchronized PrometheusEndpoint acquire() {
+		if(instance==null) {
+			final int port = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_PORT, DEFAULT_PORT);
+			if(port < 1) return null;
+			instance = new PrometheusEndpoint(
+				ConfigurationHelper.getSystemThenEnvProperty(CONFIG_BIND, DEFAULT_BIND),
+				port,
+				new LastValueStore(
+					ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_MAX_SERIES, DEFAULT_MAX_SERIES),
+					ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_TTL, DEFAULT_TTL)
+				),
+				ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_TIMESTAMPS, DEFAULT_TIMESTAMPS)
+			).start();
+		}
+		references++;
+		return instance;
+	}
+
+	/**
+	 * Releases an acquisition of the configured endpoint, stopping it when the last is released
+	 * @param endpoint The endpoint returned by {@link #acquire()}
+	 */
+	public static synchronized void release(final PrometheusEndpoint endpoint) {
+		if(endpoint==null || endpoint!=instance) return;
+		if(--references > 0) return;
+		instance = null;
+		endpoint.stop();
+		endpoint.store.clear();
+	}
+
+	/**
+	 * Returns the configured endpoint if it is acquired, without starting it
+	 * @return the running configured endpoint, or null
+	 */
+	public static synchronized PrometheusEndpoint configured() {
+		return instance;
+	}
+
+	/**
+	 * Indicates if connections should only update the configured endpoint's values and not push
+	 * @return true if pull only is configured
+	 */
+	public static boolean isPullOnly() {
+		return ConfigurationHelper.getBooleanSystemThenEnvProperty(CONFIG_PULL_ONLY, DEFAULT_PULL_ONLY);
+	}
+
+	/**
+	 * Creates a new PrometheusEndpoint
+	 * @param bindAddress The bind address
+	 * @param port The listening port, 0 for an ephemeral port
+	 * @param store The values to serve
+	 * @param timestamps true to render each value's timestamp
+	 */
+	public PrometheusEndpoint(final String bindAddress, final int port, final LastValueStore store, final boolean timestamps) {
+		if(port < 0 || port > 65535) throw new IllegalArgumentException("Invalid port [" + port + "]");
+		if(store==null) throw new IllegalArgumentException("The passed store was null");
+		this.bindAddress = bindAddress==null || bindAddress.trim().isEmpty() ? DEFAULT_BIND : bindAddress.trim();
+		this.requestedPort = port;
+		this.store = store;
+		this.timestamps = timestamps;
+	}
+
+	/**
+	 * Starts the server
+	 * @return this endpoint
+	 */
+	public synchronized PrometheusEndpoint start() {
+		if(serverChannel!=null) return this;
+		bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(NettyTransport.daemonThreadFactory("PrometheusBoss")),
+				Executors.newCachedThreadPool(NettyTransport.daemonThreadFactory("PrometheusWorker"))));
+		bootstrap.setOption("child.tcpNoDelay", true);
+		bootstrap.setOption("reuseAddress", true);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				final ChannelPipeline p = Channels.pipeline();
+				p.addLast("decoder", new HttpRequestDecoder());
+				p.addLast("aggregator", new HttpChunkAggregator(8192));
+				p.addLast("encoder", new HttpResponseEncoder());
+				p.addLast("deflater", new HttpContentCompressor());
+				p.addLast("chunker", new ChunkedWriteHandler());
+				p.addLast("handler", new ScrapeHandler());
+				return p;
+			}
+		});
+		serverChannel = bootstrap.bind(new InetSocketAddress(bindAddress, requestedPort));
+		channels.add(serverChannel);
+		LOG.info("Prometheus endpoint listening on [{}{}]", serverChannel.getLocalAddress(), PATH);
+		return this;
+	}
+
+	/**
+	 * Stops the server and closes all connections
+	 */
+	public synchronized void stop() {
+		if(serverChannel==null) return;
+		channels.close().awaitUninterruptibly(5000);
+		bootstrap.releaseExternalResources();
+		serverChannel = null;
+	}
+
+	/**
+	 * Returns the bound listening port
+	 * @return the listening port, or -1 if not started
+	 */
+	public int getPort() {
+		final Channel ch = serverChannel;
+		return ch==null ? -1 : ((InetSocketAddress)ch.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Returns the values served
+	 * @return the store
+	 */
+	public LastValueStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the number of full scrapes
+	 * @return the full scrape count
+	 */
+	public long getScrapes() {
+		return scrapes.get();
+	}
+
+	/**
+	 * Returns the number of conditional scrapes
+	 * @return the conditional scrape count
+	 */
+	public long getConditionalScrapes() {
+		return conditionalScrapes.get();
+	}
+
+	/**
+	 * Returns the number of conditional scrapes answered not modified
+	 * @return the not modified count
+	 */
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	/**
+	 * Parses the epoch of a partial scrape from the <b><code>since</code></b> parameter
+	 * @param qs The decoded query string
+	 * @return the epoch, or 0 for a full scrape
+	 */
+	static long since(final QueryStringDecoder qs) {
+		final List<String> param = qs.getParameters().get("since");
+		return param==null || param.isEmpty() ? 0L : epoch(param.get(0));
+	}
+
+	/**
+	 * Parses the epoch from the <b><code>If-None-Match</code></b> header
+	 * @param request The request
+	 * @return the epoch, or 0 if the header is absent or not an epoch
+	 */
+	static long ifNoneMatch(final HttpRequest request) {
+		return epoch(request.headers().get(HttpHeaders.Names.IF_NONE_MATCH));
+	}
+
+	/**
+	 * Parses an epoch from an entity tag, quoted or weak or not
+	 * @param tag The entity tag
+	 * @return the epoch, or 0 if the tag is null or not an epoch
+	 */
+	static long epoch(String tag) {
+		if(tag==null) return 0L;
+		tag = tag.trim();
+		if(tag.startsWith("W/")) tag = tag.substring(2);
+		if(tag.length() > 1 && tag.charAt(0)=='"' && tag.charAt(tag.length()-1)=='"') tag = tag.substring(1, tag.length()-1);
+		try {
+			return Math.max(0L, Long.parseLong(tag));
+		} catch (NumberFormatException nex) {
+			return 0L;
+		}
+	}
+
+	/**
+	 * <p>Title: ScrapeHandler</p>
+	 * <p>Description: Answers scrape requests with a chunked rendering of the store</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.PrometheusEndpoint.ScrapeHandler</code></p>
+	 */
+	class ScrapeHandler extends SimpleChannelUpstreamHandler {
+		@Override
+		public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+			channels.add(e.getChannel());
+			super.channelOpen(ctx, e);
+		}
+
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+			final HttpRequest request = (HttpRequest)e.getMessage();
+			final Channel channel = e.getChannel();
+			final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+			final QueryStringDecoder qs = new QueryStringDecoder(request.getUri());
+			if(!PATH.equals(qs.getPath())) {
+				respond(channel, request, HttpResponseStatus.NOT_FOUND, "Not found: " + qs.getPath() + "\n", keepAlive);
+				return;
+			}
+			if(!HttpMethod.GET.equals(request.getMethod())) {
+				respond(channel, request, HttpResponseStatus.METHOD_NOT_ALLOWED, "Only GET is supported\n", keepAlive);
+				return;
+			}
+			// a partial scrape only when asked for by parameter: a cache revalidating with If-None-Match replaces its copy with a 200
+			final long since = since(qs);
+			final long match = since > 0L ? since : ifNoneMatch(request);
+			if(match > 0L) {
+				conditionalScrapes.increment();
+				if(!store.changedSince(match)) {
+					notModified.increment();
+					final HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NOT_MODIFIED);
+					response.headers().set(HttpHeaders.Names.ETAG, "\"" + match + "\"");
+					write(channel, response, keepAlive);
+					return;
+				}
+			}
+			if(since==0L) scrapes.increment();
+			final LastValueStore.Scrape scrape = store.scrape(since, timestamps);
+			final HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
+			response.headers().set(HttpHeaders.Names.CONTENT_TYPE, CONTENT_TYPE);
+			response.headers().set(HttpHeaders.Names.ETAG, "\"" + scrape.epoch + "\"");
+			if(request.getProtocolVersion()==HttpVersion.HTTP_1_0) {
+				// no chunked encoding before HTTP/1.1, so the rendering is sent in one piece
+				final ChannelBuffer content = ChannelBuffers.dynamicBuffer(CHUNK_SIZE);
+				while(scrape.render(content, Integer.MAX_VALUE)) {/* No Op */}
+				response.setContent(content);
+				write(channel, response, keepAlive);
+				return;
+			}
+			response.setChunked(true);
+			response.headers().set(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
+			if(keepAlive) response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+			channel.write(response);
+			final ChannelFuture cf = channel.write(new ScrapeInput(scrape));
+			if(!keepAlive) cf.addListener(ChannelFutureListener.CLOSE);
+		}
+
+		/**
+		 * Writes a plain text response
+		 * @param channel The channel to write to
+		 * @param request The request
+		 * @param status The response status
+		 * @param text The response text
+		 * @param keepAlive true to keep the connection open
+		 */
+		private void respond(final Channel channel, final HttpRequest request, final HttpResponseStatus status, final String text, final boolean keepAlive) {
+			final HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), status);
+			response.setContent(ChannelBuffers.copiedBuffer(text, TSDBSubmitterConnection.CHARSET));
+			response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=utf-8");
+			write(channel, response, keepAlive);
+		}
+
+		/**
+		 * Writes a complete response, closing the channel afterwards unless kept alive
+		 * @param channel The channel to write to
+		 * @param response The response
+		 * @param keepAlive true to keep the connection open
+		 */
+		private void write(final Channel channel, final HttpResponse response, final boolean keepAlive) {
+			HttpHeaders.setContentLength(response, response.getContent().readableBytes());
+			if(keepAlive) response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+			final ChannelFuture cf = channel.write(response);
+			if(!keepAlive) cf.addListener(ChannelFutureListener.CLOSE);
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+			LOG.debug("Scrape connection error", e.getCause());
+			e.getChannel().close();
+		}
+	}
+
+	/**
+	 * <p>Title: ScrapeInput</p>
+	 * <p>Description: Feeds a scrape to the {@link ChunkedWriteHandler} one HTTP chunk at a time, so only the chunks the channel can
+	 * take are rendered</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.PrometheusEndpoint.ScrapeInput</code></p>
+	 */
+	static class ScrapeInput implements ChunkedInput {
+		/** The scrape being rendered */
+		final LastValueStore.Scrape scrape;
+		/** true while the scrape may render more series */
+		boolean more = true;
+		/** true once the last chunk has been returned */
+		boolean done = false;
+
+		ScrapeInput(final LastValueStore.Scrape scrape) {
+			this.scrape = scrape;
+		}
+
+		@Override
+		public boolean hasNextChunk() throws Exception {
+			return !done;
+		}
+
+		@Override
+		public Object nextChunk() throws Exception {
+			if(done) return null;
+			if(more) {
+				final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(CHUNK_SIZE + 1024);
+				more = scrape.render(buffer, CHUNK_SIZE);
+				if(buffer.readable()) return new DefaultHttpChunk(buffer);
+			}
+			done = true;
+			return HttpChunk.LAST_CHUNK;
+		}
+
+		@Override
+		public boolean isEndOfInput() throws Exception {
+			return done;
+		}
+
+		@Override
+		public void close() throws Exception {
+			/* No Op */
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: PutEncoder</p>
+ * <p>Description: Allocation free encoder that writes OpenTSDB telnet <b><code>put</code></b> lines
+ * directly into a {@link ChannelBuffer}. Longs and doubles are formatted without going through {@link String}
+ * and metric names, tag keys and tag values are cleaned character by character as they are written.</p>
+ * <p>The line format is <b><code>put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;k=v&gt;...\n</code></b></p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.PutEncoder</code></p>
+ */
+
+public class PutEncoder {
+	/** The put command prefix */
+	private static final byte[] PUT = {'p', 'u', 't', ' '};
+	/** The bytes for {@link Long#MIN_VALUE} which cannot be negated */
+	private static final byte[] MIN_LONG = "-9223372036854775808".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** The bytes for NaN */
+	private static final byte[] NAN = "NaN".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** The bytes for positive infinity */
+	private static final byte[] POS_INF = "Infinity".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** The bytes for negative infinity */
+	private static final byte[] NEG_INF = "-Infinity".getBytes(TSDBSubmitterConnection.CHARSET);
+	/** Powers of ten that fit in a long */
+	private static final long[] POW10 = new long[19];
+	/** The number of significant decimal digits rendered for doubles */
+	public static final int DOUBLE_PRECISION = 15;
+	/** The lower magnitude bound for rendering doubles in fixed point notation */
+	private static final double FIXED_MIN = 1e-3;
+	/** The upper magnitude bound for rendering doubles in fixed point notation */
+	private static final double FIXED_MAX = 1e15;
+	/** The replacement byte for illegal characters */
+	public static final byte REPLACEMENT = '_';
+
+	static {
+		long p = 1;
+		for(int i = 0; i < POW10.length; i++) {
+			POW10[i] = p;
+			p *= 10;
+		}
+	}
+
+	// =========================================================================================================================
+	//    Full Put Lines
+	// =========================================================================================================================
+
+	/**
+	 * Encodes a long value put line into the passed buffer
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name, which will be cleaned
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 * @param rawTags Optional pre-cleaned and pre-formatted <b><code>k=v</code></b> tags written as is
+	 * @param tags Optional tags which will be cleaned
+	 */
+	public static void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final long value, final Collection<String> rawTags, final Map<String, String> tags) {
+		writeHeader(buffer, metric, timestamp);
+		writeLong(buffer, value);
+		writeRawTags(buffer, rawTags);
+		writeTags(buffer, tags);
+		writeEOL(buffer);
+	}
+
+	/**
+	 * Encodes a double value put line into the passed buffer
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name, which will be cleaned
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 * @param rawTags Optional pre-cleaned and pre-formatted <b><code>k=v</code></b> tags written as is
+	 * @param tags Optional tags which will be cleaned
+	 */
+	public static void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final double value, final Collection<String> rawTags, final Map<String, String> tags) {
+		writeHeader(buffer, metric, timestamp);
+		writeDouble(buffer, value);
+		writeRawTags(buffer, rawTags);
+		writeTags(buffer, tags);
+		writeEOL(buffer);
+	}
+
+	/**
+	 * Encodes a long value put line for a cached series prefix into the passed buffer
+	 * @param buffer The buffer to write into
+	 * @param prefix The encoded metric name and tags
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 */
+	public static void encode(final ChannelBuffer buffer, final SeriesPrefixCache.Prefix prefix, final long timestamp, final long value) {
+		writeHeader(buffer, prefix.metricBytes, timestamp);
+		writeLong(buffer, value);
+		buffer.writeBytes(prefix.tagBytes);
+		writeEOL(buffer);
+	}
+
+	/**
+	 * Encodes a double value put line for a cached series prefix into the passed buffer
+	 * @param buffer The buffer to write into
+	 * @param prefix The encoded metric name and tags
+	 * @param timestamp The timestamp
+	 * @param value The value
+	 */
+	public static void encode(final ChannelBuffer buffer, final SeriesPrefixCache.Prefix prefix, final long timestamp, final double value) {
+		writeHeader(buffer, prefix.metricBytes, timestamp);
+		writeDouble(buffer, value);
+		buffer.writeBytes(prefix.tagBytes);
+		writeEOL(buffer);
+	}
+
+	// =========================================================================================================================
+	//    Put Line Fragments
+	// =========================================================================================================================
+
+	/**
+	 * Writes the <b><code>put &lt;metric&gt; &lt;timestamp&gt; </code></b> header of a put line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name, which will be cleaned
+	 * @param timestamp The timestamp
+	 */
+	public static void writeHeader(final ChannelBuffer buffer, final CharSequence metric, final long timestamp) {
+		buffer.writeBytes(PUT);
+		writeCleaned(buffer, metric);
+		buffer.writeByte(' ');
+		writeLong(buffer, timestamp);
+		buffer.writeByte(' ');
+	}
+
+	/**
+	 * Writes the <b><code>put &lt;metric&gt; &lt;timestamp&gt; </code></b> header of a put line using a pre-encoded metric name
+	 * @param buffer The buffer to write into
+	 * @param metric The cleaned and encoded metric name
+	 * @param timestamp The timestamp
+	 */
+	public static void writeHeader(final ChannelBuffer buffer, final byte[] metric, final long timestamp) {
+		buffer.writeBytes(PUT);
+		buffer.writeBytes(metric);
+		buffer.writeByte(' ');
+		writeLong(buffer, timestamp);
+		buffer.writeByte(' ');
+	}
+
+	/**
+	 * Writes each of the passed pre-formatted tags preceded by a space, without cleaning
+	 * @param buffer The buffer to write into
+	 * @param rawTags The pre-formatted <b><code>k=v</code></b> tags
+	 */
+	public static void writeRawTags(final ChannelBuffer buffer, final Collection<String> rawTags) {
+		if(rawTags==null || rawTags.isEmpty()) return;
+		for(final String tag: rawTags) {
+			buffer.writeByte(' ');
+			writeRaw(buffer, tag);
+		}
+	}
+
+	/**
+	 * Writes each of the passed tags as <b><code> k=v</code></b>, cleaning the keys and values
+	 * @param buffer The buffer to write into
+	 * @param tags The tags to write
+	 */
+	public static void writeTags(final ChannelBuffer buffer, final Map<String, String> tags) {
+		if(tags==null || tags.isEmpty()) return;
+		for(final Map.Entry<String, String> tag: tags.entrySet()) {
+			writeTag(buffer, tag.getKey(), tag.getValue());
+		}
+	}
+
+	/**
+	 * Writes a single <b><code> k=v</code></b> tag, cleaning the key and value
+	 * @param buffer The buffer to write into
+	 * @param key The tag key
+	 * @param value The tag value
+	 */
+	public static void writeTag(final ChannelBuffer buffer, final CharSequence key, final CharSequence value) {
+		buffer.writeByte(' ');
+		writeCleaned(buffer, key);
+		buffer.writeByte('=');
+		writeCleaned(buffer, value);
+	}
+
+	/**
+	 * Terminates a put line
+	 * @param buffer The buffer to write into
+	 */
+	public static void writeEOL(final ChannelBuffer buffer) {
+		buffer.writeByte('\n');
+	}
+
+	// =========================================================================================================================
+	//    Character Encoding
+	// =========================================================================================================================
+
+	/**
+	 * Writes the passed stringy into the buffer applying the same rules as {@link TSDBSubmitterImpl#clean(CharSequence)}:
+	 * leading and trailing whitespace is trimmed, anything up to and including the first <b><code>/</code></b> is dropped
+	 * and spaces are replaced with underscores. Characters that OpenTSDB would reject are also replaced with underscores.
+	 * @param buffer The buffer to write into
+	 * @param cs The stringy to write
+	 */
+	public static void writeCleaned(final ChannelBuffer buffer, final CharSequence cs) {
+		if(cs==null) return;
+		writeCleaned(buffer, cs, 0, cs.length());
+	}
+
+	/**
+	 * Writes a range of the passed stringy into the buffer, cleaned as in {@link #writeCleaned(ChannelBuffer, CharSequence)}
+	 * @param buffer The buffer to write into
+	 * @param cs The stringy to write
+	 * @param start The start index
+	 * @param end The end index, exclusive
+	 */
+	public static void writeCleaned(final ChannelBuffer buffer, final CharSequence cs, int start, int end) {
+		while(start < end && cs.charAt(start) <= ' ') start++;
+		while(end > start && cs.charAt(end-1) <= ' ') end--;
+		for(int i = start; i < end; i++) {
+			if(cs.charAt(i)=='/') {
+				start = i+1;
+				break;
+			}
+		}
+		for(int i = start; i < end; i++) {
+			writeChar(buffer, cs.charAt(i), true);
+		}
+	}
+
+	/**
+	 * Writes the passed stringy into the buffer as UTF-8 without any cleaning
+	 * @param buffer The buffer to write into
+	 * @param cs The stringy to write
+	 */
+	public static void writeRaw(final ChannelBuffer buffer, final CharSequence cs) {
+		if(cs==null) return;
+		final int len = cs.length();
+		for(int i = 0; i < len; i++) {
+			writeChar(buffer, cs.charAt(i), false);
+		}
+	}
+
+	/**
+	 * Determines if the passed character is accepted by OpenTSDB in metric names and tags
+	 * @param c The character to test
+	 * @return true if the character is legal, false otherwise
+	 */
+	public static boolean isLegal(final char c) {
+		if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) return true;
+		if(c=='-' || c=='_' || c=='.' || c=='/') return true;
+		return c > 0x7F && !Character.isSurrogate(c) && Character.isLetter(c);
+	}
+
+	/**
+	 * Writes a single character as UTF-8
+	 * @param buffer The buffer to write into
+	 * @param c The character to write
+	 * @param clean true to replace spaces and illegal characters with {@link #REPLACEMENT}
+	 */
+	static void writeChar(final ChannelBuffer buffer, final char c, final boolean clean) {
+		if(clean && !isLegal(c)) {
+			buffer.writeByte(REPLACEMENT);
+		} else if(c < 0x80) {
+			buffer.writeByte(c);
+		} else if(c < 0x800) {
+			buffer.writeByte(0xC0 | (c >> 6));
+			buffer.writeByte(0x80 | (c & 0x3F));
+		} else if(Character.isSurrogate(c)) {
+			// raw surrogates are not paired up here
+			buffer.writeByte(REPLACEMENT);
+		} else {
+			buffer.writeByte(0xE0 | (c >> 12));
+			buffer.writeByte(0x80 | ((c >> 6) & 0x3F));
+			buffer.writeByte(0x80 | (c & 0x3F));
+		}
+	}
+
+	// =========================================================================================================================
+	//    Number Encoding
+	// =========================================================================================================================
+
+	/**
+	 * Returns the number of decimal digits in the passed non-negative long
+	 * @param v The value
+	 * @return the number of digits
+	 */
+	static int digits(final long v) {
+		for(int i = 1; i < POW10.length; i++) {
+			if(v < POW10[i]) return i;
+		}
+		return POW10.length;
+	}
+
+	/**
+	 * Writes the decimal representation of the passed long
+	 * @param buffer The buffer to write into
+	 * @param value The value to write
+	 */
+	public static void writeLong(final ChannelBuffer buffer, final long value) {
+		if(value==Long.MIN_VALUE) {
+			buffer.writeBytes(MIN_LONG);
+			return;
+		}
+		long v = value;
+		if(v < 0) {
+			buffer.writeByte('-');
+			v = -v;
+		}
+		writeDigits(buffer, v, digits(v));
+	}
+
+	/**
+	 * Writes the passed non-negative long left padded with zeros to the passed number of digits
+	 * @param buffer The buffer to write into
+	 * @param value The non-negative value
+	 * @param width The number of digits to write
+	 */
+	private static void writeDigits(final ChannelBuffer buffer, final long value, final int width) {
+		buffer.ensureWritableBytes(width);
+		final int start = buffer.writerIndex();
+		int pos = start + width;
+		long v = value;
+		while(pos > start) {
+			buffer.setByte(--pos, '0' + (int)(v % 10));
+			v /= 10;
+		}
+		buffer.writerIndex(start + width);
+	}
+
+	/**
+	 * Writes the decimal representation of the passed double with up to {@link #DOUBLE_PRECISION} significant digits.
+	 * Integral values are rendered with a trailing <b><code>.0</code></b>, values of moderate magnitude in fixed point
+	 * and very large or small values in scientific notation, all of which OpenTSDB parses.
+	 * @param buffer The buffer to write into
+	 * @param value The value to write
+	 */
+	public static void writeDouble(final ChannelBuffer buffer, final double value) {
+		if(Double.isNaN(value)) {
+			buffer.writeBytes(NAN);
+			return;
+		}
+		if(Double.isInfinite(value)) {
+			buffer.writeBytes(value > 0 ? POS_INF : NEG_INF);
+			return;
+		}
+		double v = value;
+		if(v < 0) {
+			buffer.writeByte('-');
+			v = -v;
+		}
+		if(v==0d) {
+			buffer.writeByte('0');
+			buffer.writeByte('.');
+			buffer.writeByte('0');
+		} else if(v >= FIXED_MIN && v < FIXED_MAX) {
+			writeFixed(buffer, v);
+		} else {
+			int exp = (int)Math.floor(Math.log10(v));
+			double m = v / Math.pow(10, exp);
+			if(m >= 10d) { m /= 10d; exp++; }
+			else if(m < 1d) { m *= 10d; exp--; }
+			writeFixed(buffer, m);
+			buffer.writeByte('E');
+			writeLong(buffer, exp);
+		}
+	}
+
+	/**
+	 * Writes the passed positive double in fixed point notation, stripping trailing fractional zeros
+	 * @param buffer The buffer to write into
+	 * @param v The positive value which must be less than {@link #FIXED_MAX}
+	 */
+	private static void writeFixed(final ChannelBuffer buffer, final double v) {
+		long intPart = (long)v;
+		final int precision;
+		if(intPart==0) {
+			// leading fractional zeros are not significant, v >= FIXED_MIN so there are at most two
+			int lead = 0;
+			while(lead < 2 && v * POW10[lead+1] < 1d) lead++;
+			precision = DOUBLE_PRECISION + lead;
+		} else {
+			precision = Math.max(1, DOUBLE_PRECISION - digits(intPart));
+		}
+		long frac = Math.round((v - intPart) * POW10[precision]);
+		if(frac >= POW10[precision]) {
+			intPart++;
+			frac -= POW10[precision];
+		}
+		writeDigits(buffer, intPart, digits(intPart));
+		buffer.writeByte('.');
+		if(frac==0) {
+			buffer.writeByte('0');
+			return;
+		}
+		int width = precision;
+		while(frac % 10 == 0) {
+			frac /= 10;
+			width--;
+		}
+		writeDigits(buffer, frac, width);
+	}
+
+	private PutEncoder() {}
+}
@@ -0,0 +1,180 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: QuantileSketch</p>
+ * <p>Description: A fixed size, log-linear bucketed histogram of non-negative long values, such as latencies, 
+ * from which quantiles can be read with a bounded relative error.</p>
+ * <p>Values below {@link #SUB_BUCKETS} get a bucket each. Above that, each power of two is split into 
+ * {@link #SUB_BUCKETS}/2 linear buckets, so a reported quantile is within 1/64 of the true value. 
+ * Values above {@link #MAX_TRACKABLE} are counted in the top bucket, but the exact maximum is always kept. 
+ * The counts are a single atomic int array allocated up front, so an update allocates nothing, takes no lock and the sketch's memory does not 
+ * grow with the number of values. A {@link #snapshot(Snapshot)} drains and resets the sketch, so each snapshot covers one interval. 
+ * Every value is counted in exactly one snapshot, but a value recorded while a snapshot is being read may count towards the next one.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.QuantileSketch</code></p>
+ */
+
+public class QuantileSketch {
+	/** The bucket counts */
+	protected final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+	/** The maximum value in the interval */
+	protected final AtomicLong max = new AtomicLong(0L);
+	/** The highest bucket index used in the interval */
+	protected final AtomicInteger highest = new AtomicInteger(-1);
+	
+	/** The number of bits of precision within each power of two */
+	public static final int SUB_BUCKET_BITS = 7;
+	/** The number of values with a bucket each */
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** The largest value that is bucketed exactly. Larger values fall in the top bucket. */
+	public static final long MAX_TRACKABLE = (1L << 40) - 1;
+	/** The total number of buckets */
+	public static final int BUCKETS = index(MAX_TRACKABLE) + 1;
+	/** The quantiles reported in a snapshot */
+	public static final double[] QUANTILES = {0.5D, 0.95D, 0.99D, 0.999D};
+	
+	/**
+	 * <p>Title: Snapshot</p>
+	 * <p>Description: A reusable holder of the quantiles and maximum of one interval</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.QuantileSketch.Snapshot</code></p>
+	 */
+	public static class Snapshot {
+		/** The value at each of the {@link QuantileSketch#QUANTILES} */
+		public final long[] quantiles = new long[QUANTILES.length];
+		/** The maximum value */
+		public long max;
+		/** The number of values */
+		public long count;
+		/** A copy of the bucket counts */
+		final int[] counts = new int[BUCKETS];
+	}
+	
+	/**
+	 * Returns the bucket index of the passed value
+	 * @param value The value, which must be zero or positive and no greater than {@link #MAX_TRACKABLE}
+	 * @return the bucket index
+	 */
+	static int index(final long value) {
+		if(value < SUB_BUCKETS) return (int)value;
+		final int exp = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exp - (SUB_BUCKET_BITS - 1);
+		// the top SUB_BUCKET_BITS-1 bits after the leading one pick the linear sub bucket
+		return SUB_BUCKETS + (shift - 1) * (SUB_BUCKETS >> 1) + (int)((value >>> shift) - (SUB_BUCKETS >> 1));
+	}
+	
+	/**
+	 * Returns the highest value that falls in the passed bucket
+	 * @param index The bucket index
+	 * @return the highest value of the bucket
+	 */
+	static long highestValue(final int index) {
+		if(index < SUB_BUCKETS) return index;
+		final int half = SUB_BUCKETS >> 1;
+		final int shift = (index - SUB_BUCKETS) / half + 1;
+		final long mantissa = half + (index - SUB_BUCKETS) % half;
+		return ((mantissa + 1) << shift) - 1;
+	}
+	
+	/**
+	 * Records a value. Negative values are ignored.
+	 * The bucket is counted before the highest index is raised, and {@link #snapshot(Snapshot)} resets the highest index 
+	 * before draining, so a count the drain misses is always below the highest index the next snapshot sees.
+	 * @param value The value
+	 */
+	public void update(final long value) {
+		if(value < 0L) return;
+		final int index = value > MAX_TRACKABLE ? BUCKETS - 1 : index(value);
+		counts.incrementAndGet(index);
+		int h;
+		while(index > (h = highest.get())) {
+			if(highest.compareAndSet(h, index)) break;
+		}
+		long m;
+		while(value > (m = max.get())) {
+			if(max.compareAndSet(m, value)) break;
+		}
+	}
+	
+	/**
+	 * Indicates if any values have been recorded since the last snapshot
+	 * @return true if the sketch has values, false otherwise
+	 */
+	public boolean hasValues() {
+		return highest.get() >= 0;
+	}
+	
+	/**
+	 * Drains the values recorded since the last snapshot into the passed snapshot and computes their quantiles.
+	 * Snapshots of the same sketch should not be read concurrently.
+	 * @param snapshot The snapshot to read into
+	 * @return true if any values were recorded, false otherwise
+	 */
+	public boolean snapshot(final Snapshot snapshot) {
+		final int highestIndex = highest.getAndSet(-1);
+		if(highestIndex < 0) return false;
+		long count = 0L;
+		int top = -1;
+		for(int i = 0; i <= highestIndex; i++) {
+			final int c = counts.getAndSet(i, 0);
+			snapshot.counts[i] = c;
+			if(c!=0) {
+				count += c;
+				top = i;
+			}
+		}
+		if(count==0L) return false;
+		snapshot.count = count;
+		// the max of a drained value may not be published yet, so it is at least the bottom of the top drained bucket
+		snapshot.max = Math.max(max.getAndSet(0L), top==0 ? 0L : highestValue(top - 1) + 1);
+		long cumulative = 0L;
+		int q = 0;
+		for(int i = 0; i <= top && q < QUANTILES.length; i++) {
+			cumulative += snapshot.counts[i];
+			while(q < QUANTILES.length && cumulative >= (long)Math.ceil(QUANTILES[q] * snapshot.count)) {
+				snapshot.quantiles[q++] = Math.min(highestValue(i), snapshot.max);
+			}
+		}
+		while(q < QUANTILES.length) snapshot.quantiles[q++] = snapshot.max;
+		return true;
+	}
+	
+	/**
+	 * Returns the approximate heap size of a sketch in bytes
+	 * @return the approximate size of a sketch
+	 */
+	public static int getApproximateSize() {
+		// the sketch and its three atomics, plus the counts array header and ints
+		return 24 + 16 + 24 + 16 + 16 + BUCKETS * 4;
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: QuantileSummaries</p>
+ * <p>Description: Keeps a {@link QuantileSketch} per series of traced latency values and, on each emit, 
+ * which runs every period on the shared {@link FlushPolicy} timer and on demand, reports the p50, p95, p99, p999 and maximum of the values recorded since the prior emit as separate series, 
+ * named by suffixing the metric name with <b><code>.p50</code></b>, <b><code>.p95</code></b>, <b><code>.p99</code></b>, 
+ * <b><code>.p999</code></b> and <b><code>.max</code></b>. Series with no values for {@link #IDLE_EMITS} emits are dropped.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.QuantileSummaries</code></p>
+ */
+
+public class QuantileSummaries {
+	/** The sketches keyed by series hash */
+	protected final NonBlockingHashMapLong<Series> series = new NonBlockingHashMapLong<Series>(256);
+	/** The reusable snapshot, guarded by this instance */
+	protected final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+	/** The emission period in ms. */
+	protected final long period;
+	/** The sink quantiles are emitted to */
+	protected final PreAggregator.RollupSink sink;
+	/** Indicates if these summaries have been closed */
+	protected volatile boolean closed = false;
+	
+	private static final Logger LOG = LoggerFactory.getLogger(QuantileSummaries.class);
+	
+	/** The config property name for the latency quantile emission period in ms. */
+	public static final String CONFIG_PERIOD = "helios.opentsdb.latency.period";
+	/** The default latency quantile emission period in ms. */
+	public static final long DEFAULT_PERIOD = 15000L;
+	/** The number of emits with no values after which a series is dropped */
+	public static final int IDLE_EMITS = 10;
+	/** The metric name suffixes of the reported quantiles */
+	static final String[] SUFFIXES = {".p50", ".p95", ".p99", ".p999"};
+	
+	/**
+	 * <p>Title: Series</p>
+	 * <p>Description: The sketch of one series</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.QuantileSummaries.Series</code></p>
+	 */
+	static class Series {
+		/** The sketch */
+		final QuantileSketch sketch = new QuantileSketch();
+		/** The metric name of each reported quantile */
+		final String[] quantileMetrics = new String[SUFFIXES.length];
+		/** The metric name of the reported maximum */
+		final String maxMetric;
+		/** A copy of the series tags */
+		final Map<String, String> tags;
+		/** The number of consecutive emits with no values */
+		int idle = 0;
+		
+		/**
+		 * Creates a new Series
+		 * @param metric The latency metric name
+		 * @param tags The series tags
+		 */
+		Series(final String metric, final Map<String, String> tags) {
+			for(int i = 0; i < SUFFIXES.length; i++) {
+				quantileMetrics[i] = metric + SUFFIXES[i];
+			}
+			maxMetric = metric + ".max";
+			this.tags = tags==null ? new LinkedHashMap<String, String>(0) : new LinkedHashMap<String, String>(tags);
+		}
+	}
+	
+	/**
+	 * Creates a new QuantileSummaries with the emission period from system properties or the environment
+	 * @param sink The sink quantiles are emitted to
+	 */
+	public QuantileSummaries(final PreAggregator.RollupSink sink) {
+		this(ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_PERIOD, DEFAULT_PERIOD), sink);
+	}
+	
+	/**
+	 * Creates a new QuantileSummaries
+	 * @param period The emission period in ms.
+	 * @param sink The sink quantiles are emitted to
+	 */
+	public QuantileSummaries(final long period, final PreAggregator.RollupSink sink) {
+		if(period < 1) throw new IllegalArgumentException("Invalid period [" + period + "]");
+		if(sink==null) throw new IllegalArgumentException("The passed sink was null");
+		this.period = period;
+		this.sink = sink;
+		scheduleEmit();
+	}
+	
+	/**
+	 * Records a value for a series.
+	 * The value is recorded before the series is checked for removal, and {@link #emit(long)} removes before re-checking 
+	 * the sketch, so at least one of the two sees the other and a series dropped as idle while being updated is restored.
+	 * @param seriesHash The series hash of the metric and tags
+	 * @param metric The latency metric name
+	 * @param tags The latency tags
+	 * @param value The value
+	 */
+	public void update(final long seriesHash, final String metric, final Map<String, String> tags, final long value) {
+		Series s = series.get(seriesHash);
+		if(s==null) {
+			final Series created = new Series(metric, tags);
+			s = series.putIfAbsent(seriesHash, created);
+			if(s==null) s = created;
+		}
+		s.sketch.update(value);
+		if(series.get(seriesHash)!=s) {
+			// dropped as idle while being updated
+			final Series replaced = series.putIfAbsent(seriesHash, s);
+			if(replaced!=null && replaced!=s) replaced.sketch.update(value);
+		}
+	}
+	
+	/**
+	 * Schedules the next emit on the shared flush timer
+	 */
+	protected void scheduleEmit() {
+		if(closed) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				if(closed) return;
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if(!closed) emit(System.currentTimeMillis());
+						} catch (Exception ex) {
+							LOG.error("Latency quantile emit failed", ex);
+						} finally {
+							scheduleEmit();
+						}
+					}
+				});
+			}
+		}, period, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Emits the quantiles of each series with values since the prior emit and resets their sketches
+	 * @param timestamp The timestamp of the emitted values in ms.
+	 */
+	public synchronized void emit(final long timestamp) {
+		for(Map.Entry<Long, Series> entry: series.entrySet()) {
+			final Series s = entry.getValue();
+			if(!s.sketch.snapshot(snapshot)) {
+				if(++s.idle >= IDLE_EMITS && series.remove(entry.getKey(), s) && s.sketch.hasValues()) {
+					// updated while being removed
+					s.idle = 0;
+					series.putIfAbsent(entry.getKey(), s);
+				}
+				continue;
+			}
+			s.idle = 0;
+			for(int i = 0; i < s.quantileMetrics.length; i++) {
+				sink.rollup(timestamp, s.quantileMetrics[i], snapshot.quantiles[i], s.tags);
+			}
+			sink.rollup(timestamp, s.maxMetric, snapshot.max, s.tags);
+		}
+	}
+	
+	/**
+	 * Stops the periodic emits and emits the values recorded since the prior emit
+	 */
+	public void close() {
+		if(closed) return;
+		closed = true;
+		emit(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Returns the number of tracked series
+	 * @return the number of tracked series
+	 */
+	public int getSeriesCount() {
+		return series.size();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "QuantileSummaries [series:" + getSeriesCount() + ", bytes:" + (long)getSeriesCount() * QuantileSketch.getApproximateSize() + "]";
+	}
+}
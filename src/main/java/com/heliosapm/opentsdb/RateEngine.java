@@ -0,0 +1,121 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+/**
+ * <p>Title: RateEngine</p>
+ * <p>Description: Derives per-second rates from monotonic counter samples, using the actual time between samples 
+ * rather than the nominal collection period.</p>
+ * <p>State is kept in a {@link DeltaManager}, keyed by a series hash, so a sample neither allocates nor boxes. 
+ * A counter that goes backwards is treated as having wrapped if the prior value was in the top quarter of the 
+ * counter's range and the new value is in the bottom quarter. Otherwise it is treated as a reset, such as a JVM restart, 
+ * and no rate is produced for that sample. Unsigned 64 bit counters are compared as unsigned. A sample that is not later 
+ * than the prior sample produces no rate and is discarded, so a late sample does not skew the next rate.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.RateEngine</code></p>
+ */
+
+public class RateEngine {
+	/** The sample state */
+	protected final DeltaManager store;
+	
+	/** Indicates the counter is 32 bits wide and wraps at 2^32 */
+	public static final int COUNTER_32 = 32;
+	/** Indicates the counter is 64 bits wide and wraps at 2^64 */
+	public static final int COUNTER_64 = 64;
+	
+	/**
+	 * Creates a new RateEngine
+	 * @param store The delta store to keep sample state in
+	 */
+	public RateEngine(final DeltaManager store) {
+		if(store==null) throw new IllegalArgumentException("The passed DeltaManager was null");
+		this.store = store;
+	}
+	
+	/**
+	 * Registers a counter sample and returns the per-second rate since the prior sample
+	 * @param key The series key, typically a {@link SeriesHash} series hash
+	 * @param value The counter value
+	 * @param timestamp The sample time in ms.
+	 * @param counterBits The counter width, {@link #COUNTER_32} or {@link #COUNTER_64}
+	 * @return the per-second rate, or {@link Double#NaN} if this was the first sample, the counter was reset, 
+	 * or the sample is not later than the prior sample, in which case it is discarded
+	 */
+	public double rate(final long key, final long value, final long timestamp, final int counterBits) {
+		final DeltaManager.Stripe stripe = store.stripe(key);
+		final long prior, priorTime;
+		synchronized(stripe) {
+			if(!stripe.put(key, value, timestamp)) return Double.NaN;
+			prior = stripe.prior;
+			priorTime = stripe.priorTime;
+			if(timestamp <= priorTime) {
+				// a late or repeated sample must not replace the later one
+				stripe.put(key, prior, priorTime);
+				return Double.NaN;
+			}
+		}
+		final long elapsed = timestamp - priorTime;
+		final long delta = delta(prior, value, counterBits);
+		if(delta < 0L) return Double.NaN;
+		return delta * 1000D / elapsed;
+	}
+	
+	/**
+	 * Computes the increase of a counter between two samples
+	 * @param prior The prior value
+	 * @param value The current value
+	 * @param counterBits The counter width, {@link #COUNTER_32} or {@link #COUNTER_64}
+	 * @return the increase, or -1 if the counter was reset
+	 */
+	static long delta(final long prior, final long value, final int counterBits) {
+		if(counterBits==COUNTER_32) {
+			final long p = prior & 0xFFFFFFFFL, v = value & 0xFFFFFFFFL;
+			if(v >= p) return v - p;
+			// wrapped if it went from the top quarter to the bottom quarter
+			if(p >= 0xC0000000L && v < 0x40000000L) return (0x100000000L - p) + v;
+			return -1L;
+		} else if(counterBits==COUNTER_64) {
+			// compare as unsigned
+			final long p = prior ^ Long.MIN_VALUE, v = value ^ Long.MIN_VALUE;
+			if(v >= p) {
+				final long d = value - prior;
+				// an increase of 2^63 or more cannot be represented as a rate of a signed delta
+				return d < 0L ? -1L : d;
+			}
+			if((prior >>> 62)==3L && (value >>> 62)==0L) return value - prior;
+			return -1L;
+		}
+		throw new IllegalArgumentException("Invalid counter width [" + counterBits + "]");
+	}
+	
+	/**
+	 * Removes all rate state
+	 */
+	public void clear() {
+		store.clear();
+	}
+}
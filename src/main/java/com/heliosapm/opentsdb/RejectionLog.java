@@ -0,0 +1,316 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: RejectionLog</p>
+ * <p>Description: Parses the error lines OpenTSDB writes back on the put channel, counts the rejections by reason
+ * and keeps a bounded sample of the offending lines.</p>
+ * <p>A telnet put rejection reads like <b><code>put: unknown metric: No such name for 'metrics': 'sys.cpu.foo'</code></b>.
+ * Only lines starting with {@link #ERROR_PREFIX} are rejections. The reason is the text between the prefix and the next colon, 
+ * and the offending series is the last quoted token if there is one.
+ * The number of distinct reasons is capped so a server embedding values in its messages cannot grow the counters without bound.
+ * Each reason is logged when first seen and then at most once per log interval, with the count in between.</p>
+ * <p>Responses arrive in arbitrary chunks, so {@link #onResponse(CharSequence)} must be called by one reader thread at a time.
+ * The reply to another command, such as <b><code>version</code></b>, shares the channel with the rejections. A caller expecting one
+ * calls {@link #expectReply()} before sending the command and then {@link #awaitReply(long, long)}, which collects the non-error 
+ * lines until they stop arriving for a quiet period. OpenTSDB does not terminate these replies.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.RejectionLog</code></p>
+ */
+
+public class RejectionLog {
+	/** The endpoint name used in log messages */
+	protected final String endpoint;
+	/** The rejection counts by reason */
+	protected final NonBlockingHashMap<String, Reason> reasons = new NonBlockingHashMap<String, Reason>();
+	/** The total number of rejections */
+	protected final Counter rejections = new Counter();
+	/** The ring of sampled rejection lines */
+	protected final String[] samples;
+	/** The total number of sampled lines, the ring's next write position modulo its size */
+	protected long sampled = 0L;
+	/** The partial line carried between response chunks */
+	protected final StringBuilder partial = new StringBuilder();
+	/** The number of non-error response lines */
+	protected final Counter otherLines = new Counter();
+	/** Guards the pending reply and is the monitor reply waiters wait on */
+	protected final Object replyLock = new Object();
+	/** The lines of the pending reply, or null if no reply is expected */
+	protected StringBuilder reply = null;
+	/** The time the last reply line arrived in ms., or 0 if none has */
+	protected long replyTime = 0L;
+
+	private static final Logger LOG = LoggerFactory.getLogger(RejectionLog.class);
+
+	/** The config property name for the number of sampled rejection lines kept */
+	public static final String CONFIG_SAMPLES = "helios.opentsdb.rejections.samples";
+	/** The default number of sampled rejection lines kept */
+	public static final int DEFAULT_SAMPLES = 100;
+	/** The config property name for the minimum time in ms. between log messages for one reason */
+	public static final String CONFIG_LOG_INTERVAL = "helios.opentsdb.rejections.loginterval";
+	/** The default minimum time in ms. between log messages for one reason */
+	public static final long DEFAULT_LOG_INTERVAL = 60000L;
+	/** The maximum number of distinct reasons counted. Further reasons are counted as {@link #OTHER}. */
+	public static final int MAX_REASONS = 64;
+	/** The reason further reasons are counted under once {@link #MAX_REASONS} is reached */
+	public static final String OTHER = "other";
+	/** The maximum length of a sampled line */
+	public static final int MAX_LINE = 512;
+	/** The prefix of the error lines OpenTSDB writes for rejected puts */
+	public static final String ERROR_PREFIX = "put:";
+
+	/** The minimum time in ms. between log messages for one reason */
+	protected final long logInterval;
+
+	/**
+	 * <p>Title: Reason</p>
+	 * <p>Description: The rejection count and log throttle of one reason</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.RejectionLog.Reason</code></p>
+	 */
+	static class Reason {
+		/** The number of rejections */
+		final Counter count = new Counter();
+		/** The count when the reason was last logged */
+		volatile long loggedCount = 0L;
+		/** The time the reason was last logged in ms., or 0 if never */
+		volatile long loggedTime = 0L;
+	}
+
+	/**
+	 * Creates a new RejectionLog configured from system properties or the environment
+	 * @param endpoint The endpoint name used in log messages
+	 */
+	public RejectionLog(final String endpoint) {
+		this(endpoint, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SAMPLES, DEFAULT_SAMPLES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_LOG_INTERVAL, DEFAULT_LOG_INTERVAL));
+	}
+
+	/**
+	 * Creates a new RejectionLog
+	 * @param endpoint The endpoint name used in log messages
+	 * @param sampleSize The number of sampled rejection lines kept
+	 * @param logInterval The minimum time in ms. between log messages for one reason
+	 */
+	public RejectionLog(final String endpoint, final int sampleSize, final long logInterval) {
+		if(sampleSize < 1) throw new IllegalArgumentException("Invalid sample size [" + sampleSize + "]");
+		if(logInterval < 0) throw new IllegalArgumentException("Invalid log interval [" + logInterval + "]");
+		this.endpoint = endpoint;
+		this.logInterval = logInterval;
+		samples = new String[sampleSize];
+	}
+
+	/**
+	 * Processes a chunk of response text read from the put channel. A trailing partial line is kept for the next chunk.
+	 * @param text The response text
+	 */
+	public void onResponse(final CharSequence text) {
+		final int len = text.length();
+		for(int i = 0; i < len; i++) {
+			final char c = text.charAt(i);
+			if(c=='\n') {
+				onLine(partial);
+				partial.setLength(0);
+			} else if(c!='\r') {
+				if(partial.length() < MAX_LINE * 4) partial.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Processes one complete response line. Lines that are not put errors belong to the pending reply if one is expected.
+	 * @param line The response line
+	 */
+	protected void onLine(final CharSequence line) {
+		if(line.length()==0) return;
+		final String text = line.toString().trim();
+		if(!text.startsWith(ERROR_PREFIX)) {
+			synchronized(replyLock) {
+				if(reply!=null) {
+					reply.append(text).append('\n');
+					replyTime = System.currentTimeMillis();
+					replyLock.notifyAll();
+					return;
+				}
+			}
+			otherLines.increment();
+			return;
+		}
+		final int start = ERROR_PREFIX.length();
+		final int next = text.indexOf(':', start);
+		final String reason = next==-1 ? "" : text.substring(start, next).trim();
+		reject(reason.isEmpty() ? OTHER : reason, series(text), text);
+	}
+	
+	/**
+	 * Starts collecting the non-error lines as the reply to a command about to be sent, discarding any previous reply
+	 */
+	public void expectReply() {
+		synchronized(replyLock) {
+			reply = new StringBuilder();
+			replyTime = 0L;
+		}
+	}
+	
+	/**
+	 * Waits for the reply to the command sent after {@link #expectReply()}. The reply is complete once no line
+	 * has arrived for the quiet period. Collection stops when this method returns.
+	 * @param timeout The maximum time to wait in ms.
+	 * @param quiet The time in ms. without a new line that ends the reply
+	 * @return the reply lines, or null if no line arrived within the timeout
+	 * @throws InterruptedException thrown if the calling thread is interrupted while waiting
+	 */
+	public String awaitReply(final long timeout, final long quiet) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized(replyLock) {
+			try {
+				if(reply==null) throw new IllegalStateException("No reply expected");
+				while(true) {
+					final long now = System.currentTimeMillis();
+					if(replyTime!=0L && now - replyTime >= quiet) break;
+					if(now >= deadline) break;
+					final long wait = replyTime==0L ? deadline - now : Math.min(deadline - now, replyTime + quiet - now);
+					replyLock.wait(Math.max(1L, wait));
+				}
+				return reply.length()==0 ? null : reply.toString();
+			} finally {
+				reply = null;
+				replyTime = 0L;
+			}
+		}
+	}
+
+	/**
+	 * Extracts the last single quoted token of a response line, which OpenTSDB uses to name the offending metric or tag
+	 * @param line The response line
+	 * @return the offending series name or null if the line does not name one
+	 */
+	static String series(final String line) {
+		final int end = line.lastIndexOf('\'');
+		if(end < 1) return null;
+		final int start = line.lastIndexOf('\'', end - 1);
+		if(start==-1 || end - start < 2) return null;
+		return line.substring(start + 1, end);
+	}
+
+	/**
+	 * Records a rejection
+	 * @param reason The rejection reason
+	 * @param series The offending series, or null if not known
+	 * @param line The rejection text
+	 */
+	public void reject(final String reason, final String series, final String line) {
+		rejections.increment();
+		Reason r = reasons.get(reason);
+		if(r==null) {
+			final String key = reasons.size() < MAX_REASONS ? reason : OTHER;
+			final Reason created = new Reason();
+			r = reasons.putIfAbsent(key, created);
+			if(r==null) r = created;
+		}
+		r.count.increment();
+		final long now = System.currentTimeMillis();
+		final String sample = new Date(now) + " [" + reason + "] " + (series==null ? "" : series + " ")
+			+ (line.length() > MAX_LINE ? line.substring(0, MAX_LINE) : line);
+		synchronized(samples) {
+			samples[(int)(sampled++ % samples.length)] = sample;
+		}
+		final long lt = r.loggedTime;
+		if(lt==0L || now - lt >= logInterval) {
+			r.loggedTime = now;
+			final long count = r.count.get();
+			LOG.warn("[{}] rejected [{}] puts for [{}] since last report. Sample: {}", endpoint, count - r.loggedCount, reason, sample);
+			r.loggedCount = count;
+		}
+	}
+
+	/**
+	 * Returns the total number of rejections
+	 * @return the total number of rejections
+	 */
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	/**
+	 * Returns the number of response lines that were not rejections
+	 * @return the number of other response lines
+	 */
+	public long getOtherLines() {
+		return otherLines.get();
+	}
+
+	/**
+	 * Returns the rejection counts by reason
+	 * @return a map of rejection counts keyed by reason
+	 */
+	public Map<String, Long> getRejectionsByReason() {
+		final Map<String, Long> map = new TreeMap<String, Long>();
+		for(Map.Entry<String, Reason> entry: reasons.entrySet()) {
+			map.put(entry.getKey(), entry.getValue().count.get());
+		}
+		return map;
+	}
+
+	/**
+	 * Returns the sampled rejection lines, oldest first
+	 * @return the sampled rejection lines
+	 */
+	public List<String> getSamples() {
+		synchronized(samples) {
+			final int size = (int)Math.min(sampled, samples.length);
+			final List<String> list = new ArrayList<String>(size);
+			for(long i = sampled - size; i < sampled; i++) {
+				list.add(samples[(int)(i % samples.length)]);
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RejectionLog [" + endpoint + ", rejections:" + getRejections() + ", reasons:" + getRejectionsByReason() + "]";
+	}
+}
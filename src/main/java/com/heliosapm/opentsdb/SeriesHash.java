@@ -0,0 +1,187 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>Title: SeriesHash</p>
+ * <p>Description: Allocation free 64 bit hashing of metric series identities (a metric name plus its tags).
+ * The tag hash is order independent, so the same tags supplied in a different map order produce the same series hash,
+ * and root tags supplied as pre-rendered <b><code>k=v</code></b> strings hash the same as the equivalent map entries.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.SeriesHash</code></p>
+ */
+
+public class SeriesHash {
+	/** The 64 bit FNV-1a offset basis */
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	/** The 64 bit FNV-1a prime */
+	static final long FNV_PRIME = 0x100000001b3L;
+	/** The offset basis of the second, independent hash lane used to widen series hashes to 128 bits */
+	static final long LANE2_OFFSET = 0x84222325cbf29ce4L;
+	
+	/**
+	 * Computes a 64 bit hash of the passed characters. 
+	 * Each char is folded in with FNV-1a and the result is finalized with the murmur3 64 bit mixer. 
+	 * @param cs The characters to hash
+	 * @return the hash
+	 */
+	public static long hash(final CharSequence cs) {
+		return fmix64(hash(FNV_OFFSET, cs));
+	}
+	
+	/**
+	 * Folds the passed characters into the passed running FNV-1a hash without finalizing it
+	 * @param h The running hash
+	 * @param cs The characters to fold in
+	 * @return the updated running hash
+	 */
+	static long hash(long h, final CharSequence cs) {
+		final int len = cs.length();
+		for(int i = 0; i < len; i++) {
+			final char c = cs.charAt(i);
+			h ^= (c & 0xff);
+			h *= FNV_PRIME;
+			h ^= (c >>> 8);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+	
+	/**
+	 * Computes the hash of a single tag
+	 * @param key The tag key
+	 * @param value The tag value
+	 * @return the tag hash
+	 */
+	public static long tagHash(final CharSequence key, final CharSequence value) {
+		return tagHash(FNV_OFFSET, key, value);
+	}
+	
+	/**
+	 * Computes the hash of a single tag starting from the passed offset basis
+	 * @param offset The offset basis
+	 * @param key The tag key
+	 * @param value The tag value
+	 * @return the tag hash
+	 */
+	static long tagHash(final long offset, final CharSequence key, final CharSequence value) {
+		long h = hash(offset, key);
+		// fold in '=' exactly as hash(long, CharSequence) would
+		h ^= '=';
+		h *= FNV_PRIME;
+		h *= FNV_PRIME;
+		return fmix64(hash(h, value));
+	}
+	
+	/**
+	 * Computes the series hash of a metric name and its tags
+	 * @param metric The metric name
+	 * @param rootTags Optional pre-rendered <b><code>k=v</code></b> tags
+	 * @param tags Optional tags
+	 * @return the series hash
+	 */
+	public static long seriesHash(final CharSequence metric, final Collection<String> rootTags, final Map<String, String> tags) {
+		long tagSum = 0L;
+		if(rootTags!=null) {
+			for(String tag: rootTags) {
+				// a rendered k=v hashes identically to tagHash(k, v)
+				tagSum += fmix64(hash(FNV_OFFSET, tag));
+			}
+		}
+		if(tags!=null) {
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				tagSum += tagHash(tag.getKey(), tag.getValue());
+			}
+		}
+		return fmix64(hash(FNV_OFFSET, metric) ^ (tagSum * FNV_PRIME));
+	}
+	
+	/**
+	 * Computes the series hash of a metric name and two tag maps
+	 * @param metric The metric name
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 * @return the series hash
+	 */
+	public static long seriesHash(final CharSequence metric, final Map<String, String> rootTags, final Map<String, String> tags) {
+		return seriesHash(FNV_OFFSET, metric, rootTags, tags);
+	}
+	
+	/**
+	 * Computes the second lane of the 128 bit series hash of a metric name and two tag maps. 
+	 * The lane is seeded independently of {@link #seriesHash(CharSequence, Map, Map)}, so the two together 
+	 * form a 128 bit series identity.
+	 * @param metric The metric name
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 * @return the second lane series hash
+	 */
+	public static long seriesHashLane2(final CharSequence metric, final Map<String, String> rootTags, final Map<String, String> tags) {
+		return seriesHash(LANE2_OFFSET, metric, rootTags, tags);
+	}
+	
+	/**
+	 * Computes the series hash of a metric name and two tag maps starting from the passed offset basis
+	 * @param offset The offset basis
+	 * @param metric The metric name
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 * @return the series hash
+	 */
+	static long seriesHash(final long offset, final CharSequence metric, final Map<String, String> rootTags, final Map<String, String> tags) {
+		long tagSum = 0L;
+		if(rootTags!=null) {
+			for(Map.Entry<String, String> tag: rootTags.entrySet()) {
+				tagSum += tagHash(offset, tag.getKey(), tag.getValue());
+			}
+		}
+		if(tags!=null) {
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				tagSum += tagHash(offset, tag.getKey(), tag.getValue());
+			}
+		}
+		return fmix64(hash(offset, metric) ^ (tagSum * FNV_PRIME));
+	}
+	
+	/**
+	 * The murmur3 64 bit finalization mixer
+	 * @param k The value to mix
+	 * @return the mixed value
+	 */
+	public static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+	
+	private SeriesHash() {}
+}
@@ -0,0 +1,312 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: SeriesPrefixCache</p>
+ * <p>Description: A bounded cache of pre-cleaned, UTF-8 encoded series prefixes keyed by metric name and tag set, 
+ * so that repeated emissions of the same series only need to format the timestamp and value.</p>
+ * <p>The cache is an 8-way set associative table indexed by the {@link SeriesHash} of the series. Lookups allocate nothing. 
+ * When a set is full, a new entry replaces a way chosen from the high bits of its hash, so the cache never holds more than its configured size. 
+ * Unlike LRU, this random replacement degrades gracefully when a set overflows under the cyclic emission pattern of periodic collectors, 
+ * since only the overflowing series contend for a way rather than every series in the set missing in turn. 
+ * An entry matches when both the 64 bit series hash and the metric name match.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.SeriesPrefixCache</code></p>
+ */
+
+public class SeriesPrefixCache {
+	/** The cache slots, grouped into sets of {@link #WAYS} */
+	protected final AtomicReferenceArray<Prefix> slots;
+	/** The series hash of each slot, so a set is scanned within one cache line. Always verified against the slot's prefix. */
+	protected final long[] slotHashes;
+	/** The mask applied to a series hash to select a set */
+	protected final int setMask;
+	/** The number of cache hits */
+	protected final Counter hits = new Counter();
+	/** The number of cache misses */
+	protected final Counter misses = new Counter();
+	/** The number of evictions */
+	protected final Counter evictions = new Counter();
+	
+	/** The number of entries per set */
+	public static final int WAYS = 8;
+	/** The config property name for the maximum number of cached series prefixes. Zero disables the cache. */
+	public static final String CONFIG_SIZE = "helios.opentsdb.prefixcache.size";
+	/** The default maximum number of cached series prefixes */
+	public static final int DEFAULT_SIZE = 65536;
+	/** Mixed into hashes of series whose root tags are supplied as a map, since those are cleaned rather than written as is */
+	private static final long MAP_ROOT_SALT = 0x9e3779b97f4a7c15L;
+	
+	/**
+	 * <p>Title: Prefix</p>
+	 * <p>Description: The encoded metric name and tags of one series</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.SeriesPrefixCache.Prefix</code></p>
+	 */
+	public static class Prefix {
+		/** The series hash */
+		final long hash;
+		/** The raw metric name */
+		final String metric;
+		/** The cleaned, encoded metric name */
+		final byte[] metricBytes;
+		/** The cleaned, encoded tags, each preceded by a space */
+		final byte[] tagBytes;
+		
+		/**
+		 * Creates a new Prefix
+		 * @param hash The series hash
+		 * @param metric The raw metric name
+		 * @param metricBytes The cleaned, encoded metric name
+		 * @param tagBytes The cleaned, encoded tags
+		 */
+		Prefix(final long hash, final String metric, final byte[] metricBytes, final byte[] tagBytes) {
+			this.hash = hash;
+			this.metric = metric;
+			this.metricBytes = metricBytes;
+			this.tagBytes = tagBytes;
+		}
+		
+		/**
+		 * Returns the number of bytes held by this prefix
+		 * @return the encoded size
+		 */
+		public int size() {
+			return metricBytes.length + tagBytes.length;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return new String(metricBytes, TSDBSubmitterConnection.CHARSET) + new String(tagBytes, TSDBSubmitterConnection.CHARSET);
+		}
+	}
+	
+	/**
+	 * Creates a new SeriesPrefixCache
+	 * @param size The maximum number of cached prefixes, rounded up to a power of 2
+	 */
+	public SeriesPrefixCache(final int size) {
+		if(size < WAYS) throw new IllegalArgumentException("Invalid cache size [" + size + "]. Must be at least " + WAYS);
+		final int sets = Integer.highestOneBit((size + WAYS - 1) / WAYS - 1) << 1;
+		setMask = Math.max(1, sets) - 1;
+		slots = new AtomicReferenceArray<Prefix>((setMask + 1) * WAYS);
+		slotHashes = new long[slots.length()];
+	}
+	
+	/**
+	 * Creates a new SeriesPrefixCache sized from system properties or the environment
+	 * @return the new cache, or null if the cache is disabled
+	 */
+	static SeriesPrefixCache configured() {
+		final int size = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_SIZE, DEFAULT_SIZE);
+		return size < 1 ? null : new SeriesPrefixCache(size);
+	}
+	
+	/**
+	 * Returns the prefix for the passed series, encoding and caching it on a miss
+	 * @param metric The metric name, which will be cleaned
+	 * @param rootTags Optional pre-cleaned and pre-formatted <b><code>k=v</code></b> tags written as is
+	 * @param tags Optional tags which will be cleaned
+	 * @return the series prefix
+	 */
+	public Prefix get(final CharSequence metric, final Collection<String> rootTags, final Map<String, String> tags) {
+		final long hash = SeriesHash.seriesHash(metric, rootTags, tags);
+		Prefix p = lookup(hash, metric);
+		if(p==null) {
+			final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(128);
+			PutEncoder.writeRawTags(buff, rootTags);
+			PutEncoder.writeTags(buff, tags);
+			p = insert(hash, metric, buff);
+		}
+		return p;
+	}
+	
+	/**
+	 * Returns the prefix for the passed series, encoding and caching it on a miss
+	 * @param metric The metric name, which will be cleaned
+	 * @param rootTags Optional root tags which will be cleaned
+	 * @param tags Optional tags which will be cleaned
+	 * @return the series prefix
+	 */
+	public Prefix get(final CharSequence metric, final Map<String, String> rootTags, final Map<String, String> tags) {
+		final long hash = SeriesHash.seriesHash(metric, rootTags, tags) ^ MAP_ROOT_SALT;
+		Prefix p = lookup(hash, metric);
+		if(p==null) {
+			final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(128);
+			PutEncoder.writeTags(buff, rootTags);
+			PutEncoder.writeTags(buff, tags);
+			p = insert(hash, metric, buff);
+		}
+		return p;
+	}
+	
+	/**
+	 * Looks up a cached prefix
+	 * @param hash The series hash
+	 * @param metric The metric name
+	 * @return the cached prefix or null on a miss
+	 */
+	protected Prefix lookup(final long hash, final CharSequence metric) {
+		final int base = set(hash);
+		for(int i = 0; i < WAYS; i++) {
+			if(slotHashes[base + i]!=hash) continue;
+			final Prefix p = slots.get(base + i);
+			if(p!=null && p.hash==hash && (p.metric==metric || p.metric.contentEquals(metric))) {
+				hits.increment();
+				return p;
+			}
+		}
+		misses.increment();
+		return null;
+	}
+	
+	/**
+	 * Encodes the metric name and caches a new prefix, evicting from the series' set if it is full
+	 * @param hash The series hash
+	 * @param metric The metric name
+	 * @param tagBuffer The buffer containing the encoded tags
+	 * @return the new prefix
+	 */
+	protected Prefix insert(final long hash, final CharSequence metric, final ChannelBuffer tagBuffer) {
+		final byte[] tagBytes = new byte[tagBuffer.readableBytes()];
+		tagBuffer.readBytes(tagBytes);
+		tagBuffer.clear();
+		PutEncoder.writeCleaned(tagBuffer, metric);
+		final byte[] metricBytes = new byte[tagBuffer.readableBytes()];
+		tagBuffer.readBytes(metricBytes);
+		final Prefix p = new Prefix(hash, metric.toString(), metricBytes, tagBytes);
+		final int base = set(hash);
+		// take an empty way if there is one
+		for(int i = 0; i < WAYS; i++) {
+			if(slots.get(base + i)==null && slots.compareAndSet(base + i, null, p)) {
+				slotHashes[base + i] = hash;
+				return p;
+			}
+		}
+		final int slot = base + (int)(hash >>> 32 & (WAYS-1));
+		final Prefix victim = slots.getAndSet(slot, p);
+		slotHashes[slot] = hash;
+		if(victim!=null) evictions.increment();
+		return p;
+	}
+	
+	/**
+	 * Returns the index of the first slot in the set for the passed hash
+	 * @param hash The series hash
+	 * @return the first slot index
+	 */
+	private int set(final long hash) {
+		return ((int)hash & setMask) * WAYS;
+	}
+	
+	/**
+	 * Removes all cached prefixes
+	 */
+	public void clear() {
+		for(int i = 0; i < slots.length(); i++) {
+			slots.set(i, null);
+			slotHashes[i] = 0L;
+		}
+	}
+	
+	/**
+	 * Returns the maximum number of cached prefixes
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+	
+	/**
+	 * Returns the number of cached prefixes
+	 * @return the number of cached prefixes
+	 */
+	public int getSize() {
+		int size = 0;
+		for(int i = 0; i < slots.length(); i++) {
+			if(slots.get(i)!=null) size++;
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the number of cache hits
+	 * @return the number of cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of cache misses
+	 * @return the number of cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the number of evictions
+	 * @return the number of evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+	
+	/**
+	 * Returns the hit rate as a percentage of lookups
+	 * @return the hit rate percentage
+	 */
+	public double getHitRate() {
+		final long h = hits.get(), total = h + misses.get();
+		return total==0 ? 0D : h * 100D / total;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("SeriesPrefixCache [capacity:%s, hits:%s, misses:%s, evictions:%s, hitRate:%.2f%%]", getCapacity(), getHits(), getMisses(), getEvictions(), getHitRate());
+	}
+}
@@ -0,0 +1,243 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: SocketTransport</p>
+ * <p>Description: The classic blocking {@link Socket} transport. Writes are completed on the calling thread.</p> 
+ * <p>OpenTSDB answers rejected puts with error lines on the same socket. Unread, they fill the receive buffer and 
+ * eventually stall the server's writes, so the shared flush timer polls the socket and drains whatever bytes are already 
+ * available into the connection's {@link RejectionLog}. The poll never blocks: it only reads what {@link InputStream#available()} reports.
+ * It is also the only reader of the socket, so the <b><code>version</code></b> reply is collected from the same line parser.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.SocketTransport</code></p>
+ */
+
+public class SocketTransport implements TSDBTransport {
+	/** The connection that owns this transport and supplies the socket options */
+	protected final TSDBSubmitterConnection conn;
+	/** The socket connected to the host/port */
+	protected Socket socket = new Socket();
+	/** The socket output stream */
+	protected OutputStream os = null;
+	/** The socket input stream */
+	protected InputStream is = null;
+	
+	/** Serializes version requests */
+	protected final Object versionLock = new Object();
+	/** The response read buffer */
+	protected final byte[] readBuffer = new byte[4096];
+	/** Indicates if the response poller is scheduled */
+	protected final AtomicBoolean polling = new AtomicBoolean(false);
+	/** The response poll period in ms. */
+	protected final long pollPeriod = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_POLL, DEFAULT_POLL);
+	
+	private static final Logger LOG = LoggerFactory.getLogger(SocketTransport.class);
+	
+	/** The config property name for the response poll period in ms. */
+	public static final String CONFIG_POLL = "helios.opentsdb.socket.poll";
+	/** The default response poll period in ms. */
+	public static final long DEFAULT_POLL = 100L;
+	/** The maximum number of response bytes read per poll */
+	public static final int MAX_READ_PER_POLL = 64 * 1024;
+	/** The number of bytes handed to the socket per write call, after which the buffer's reader index advances */
+	public static final int WRITE_CHUNK = 64 * 1024;
+	
+	/**
+	 * Creates a new SocketTransport
+	 * @param conn The connection that owns this transport
+	 */
+	SocketTransport(final TSDBSubmitterConnection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#connect()
+	 */
+	@Override
+	public void connect() {
+		try {
+			if(isConnected()) return;
+			LOG.info("Connecting to [{}:{}]....", conn.host, conn.port);
+			socket = new Socket();
+			socket.setKeepAlive(conn.keepAlive);
+			socket.setReceiveBufferSize(conn.receiveBufferSize);
+			socket.setSendBufferSize(conn.sendBufferSize);
+			socket.setReuseAddress(conn.reuseAddress);
+			socket.setSoLinger(conn.linger, conn.lingerTime);
+			socket.setSoTimeout(conn.timeout);
+			socket.setTcpNoDelay(conn.tcpNoDelay);
+			socket.connect(new InetSocketAddress(conn.host, conn.port));
+			LOG.info("Connected to [{}:{}]", conn.host, conn.port);
+			os = socket.getOutputStream();
+			is = socket.getInputStream();
+			schedulePoll();
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to connect to [" + conn.host + ":" + conn.port + "]", ex);
+		}
+	}
+
+	/**
+	 * Schedules the response poller on the shared flush timer unless it is already scheduled
+	 */
+	protected void schedulePoll() {
+		if(!polling.compareAndSet(false, true)) return;
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				try {
+					drainResponses();
+				} catch (Exception ex) {
+					LOG.debug("Response poll of [{}:{}] failed", conn.host, conn.port, ex);
+				}
+				if(isConnected()) {
+					timeout.getTimer().newTimeout(this, pollPeriod, TimeUnit.MILLISECONDS);
+				} else {
+					polling.set(false);
+				}
+			}
+		}, pollPeriod, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Reads the response bytes already available on the socket, up to {@link #MAX_READ_PER_POLL}, into the rejection log
+	 * @throws IOException thrown on a socket read error
+	 */
+	protected void drainResponses() throws IOException {
+		final InputStream in = is;
+		if(in==null || !isConnected()) return;
+		int total = 0;
+		int available;
+		while(total < MAX_READ_PER_POLL && (available = in.available()) > 0) {
+			final int read = in.read(readBuffer, 0, Math.min(available, readBuffer.length));
+			if(read < 0) {
+				close();
+				return;
+			}
+			conn.rejections.onResponse(new String(readBuffer, 0, read, TSDBSubmitterConnection.CHARSET));
+			total += read;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#isConnected()
+	 */
+	@Override
+	public boolean isConnected() {
+		return socket.isConnected() && !socket.isClosed();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>The buffer is written in chunks of {@link #WRITE_CHUNK} bytes and its reader index advances past each chunk 
+	 * the socket accepted, so after a failed write it marks the first byte that was not sent.</p>
+	 * @see com.heliosapm.opentsdb.TSDBTransport#write(org.jboss.netty.buffer.ChannelBuffer)
+	 */
+	@Override
+	public void write(final ChannelBuffer buffer) throws IOException {
+		if(os==null || !isConnected()) throw new IOException("Not connected to [" + conn.host + ":" + conn.port + "]");
+		try {
+			while(buffer.readable()) {
+				final int chunk = Math.min(buffer.readableBytes(), WRITE_CHUNK);
+				buffer.getBytes(buffer.readerIndex(), os, chunk);
+				buffer.skipBytes(chunk);
+			}
+			os.flush();
+		} catch (IOException iex) {
+			// close so isConnected() reports the failure and the next connect() opens a new socket
+			close();
+			throw iex;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getVersion()
+	 */
+	@Override
+	public String getVersion() {
+		if(!isConnected()) {
+			return "Not Connected";
+		}
+		try {
+			synchronized(versionLock) {
+				conn.rejections.expectReply();
+				os.write("version\n".getBytes(TSDBSubmitterConnection.CHARSET));
+				os.flush();
+				// the reply arrives through the response poller, so the quiet period must span a poll
+				final String reply = conn.rejections.awaitReply(conn.timeout, pollPeriod * 2);
+				if(reply==null) return "Timed out getting version from [" + conn.host + ":" + conn.port + "]";
+				return reply;
+			}
+		} catch (Exception x) {
+			return "Failed to get version from [" + conn.host + ":" + conn.port + "]" + x;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>Failed socket writes are kept by the connection for retry or spooling, so this transport never drops traces.</p>
+	 * @see com.heliosapm.opentsdb.TSDBTransport#getDroppedTraces()
+	 */
+	@Override
+	public long getDroppedTraces() {
+		return 0L;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBTransport#close()
+	 */
+	@Override
+	public void close() {
+		try {
+			if(isConnected()) {
+				socket.close();
+			}
+		} catch (Exception x) {
+			/* No Op */
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * <p>Title: StripedBuffer</p>
+ * <p>Description: A set of append buffers striped by thread so that concurrent writers rarely contend on the same lock.
+ * Each stripe holds an active buffer that writers append to while holding the stripe's monitor, and a spare.
+ * A {@link #drain(ChannelBuffer[])} swaps every non-empty active buffer for its spare, which only holds each stripe's
+ * monitor for the swap, and hands the filled buffers to the caller to be written as one gathering write.
+ * The drained buffers are handed back with {@link #recycle(ChannelBuffer[])} to become the next spares, so the
+ * data is never copied into a merge buffer and steady state appends allocate nothing.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.StripedBuffer</code></p>
+ */
+
+public class StripedBuffer {
+	/** The stripes */
+	protected final Stripe[] stripes;
+	/** The stripe index mask */
+	protected final int mask;
+	/** The buffer factory for stripe buffers */
+	protected final ChannelBufferFactory bufferFactory;
+	/** The approximate number of buffered bytes across all stripes */
+	protected final Counter bufferedBytes = new Counter();
+	/** The approximate number of buffered traces across all stripes */
+	protected final Counter bufferedTraces = new Counter();
+	
+	/** The default number of stripes */
+	public static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 2;
+	
+	/**
+	 * <p>Title: Stripe</p>
+	 * <p>Description: A single append buffer stripe. Writers must hold the stripe's monitor while appending 
+	 * to {@link #buffer} and must call {@link #appended(int, int)} before releasing it.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.StripedBuffer.Stripe</code></p>
+	 */
+	public class Stripe {
+		/** The active append buffer */
+		ChannelBuffer buffer;
+		/** The buffer that becomes active on the next drain */
+		ChannelBuffer spare = null;
+		/** The number of traces in the active buffer */
+		int traces = 0;
+		
+		/**
+		 * Creates a new Stripe
+		 */
+		Stripe() {
+			buffer = ChannelBuffers.dynamicBuffer(bufferFactory);
+		}
+		
+		/**
+		 * Returns the active append buffer. The caller must hold this stripe's monitor.
+		 * @return the active append buffer
+		 */
+		public ChannelBuffer buffer() {
+			return buffer;
+		}
+		
+		/**
+		 * Records an append to this stripe. The caller must hold this stripe's monitor.
+		 * @param bytes The number of bytes appended
+		 * @param traceCount The number of traces appended
+		 */
+		public void appended(final int bytes, final int traceCount) {
+			traces += traceCount;
+			bufferedBytes.add(bytes);
+			bufferedTraces.add(traceCount);
+		}
+	}
+	
+	/**
+	 * Creates a new StripedBuffer
+	 * @param bufferFactory The buffer factory for stripe buffers
+	 * @param stripeCount The requested number of stripes, rounded up to the next power of 2
+	 */
+	public StripedBuffer(final ChannelBufferFactory bufferFactory, final int stripeCount) {
+		if(bufferFactory==null) throw new IllegalArgumentException("The passed buffer factory was null");
+		if(stripeCount < 1) throw new IllegalArgumentException("Invalid stripe count [" + stripeCount + "]");
+		this.bufferFactory = bufferFactory;
+		final int size = Integer.highestOneBit(stripeCount)==stripeCount ? stripeCount : Integer.highestOneBit(stripeCount) << 1;
+		mask = size - 1;
+		stripes = new Stripe[size];
+		for(int i = 0; i < size; i++) {
+			stripes[i] = new Stripe();
+		}
+	}
+	
+	/**
+	 * Returns the stripe for the current thread
+	 * @return the current thread's stripe
+	 */
+	public Stripe stripe() {
+		final long id = Thread.currentThread().getId();
+		return stripes[(int)(id ^ (id >>> 16)) & mask];
+	}
+	
+	/**
+	 * Appends the readable bytes of the passed buffer to the current thread's stripe
+	 * @param buff The buffer to append
+	 * @param traceCount The number of traces in the buffer
+	 */
+	public void append(final ChannelBuffer buff, final int traceCount) {
+		final int size = buff.readableBytes();
+		if(size < 1) return;
+		final Stripe stripe = stripe();
+		synchronized(stripe) {
+			stripe.buffer.writeBytes(buff);
+			stripe.appended(size, traceCount);
+		}
+	}
+	
+	/**
+	 * Swaps out the non-empty active buffers of every stripe. 
+	 * @param into An array with a slot per stripe that the drained buffers are written into. Slots of empty stripes are set to null.
+	 * @return the number of drained traces
+	 */
+	public int drain(final ChannelBuffer[] into) {
+		if(into.length != stripes.length) throw new IllegalArgumentException("Drain array length [" + into.length + "] does not match stripe count [" + stripes.length + "]");
+		int traces = 0;
+		long bytes = 0;
+		for(int i = 0; i < stripes.length; i++) {
+			final Stripe stripe = stripes[i];
+			synchronized(stripe) {
+				if(stripe.buffer.readable()) {
+					into[i] = stripe.buffer;
+					stripe.buffer = stripe.spare!=null ? stripe.spare : ChannelBuffers.dynamicBuffer(bufferFactory);
+					stripe.spare = null;
+					traces += stripe.traces;
+					stripe.traces = 0;
+				} else {
+					into[i] = null;
+				}
+			}
+			if(into[i]!=null) bytes += into[i].readableBytes();
+		}
+		bufferedBytes.add(-bytes);
+		bufferedTraces.add(-traces);
+		return traces;
+	}
+	
+	/**
+	 * Wraps the passed head buffer and the non-null drained buffers in a composite buffer without copying them
+	 * @param head An optional buffer to place ahead of the drained buffers
+	 * @param drained The array populated by the prior {@link #drain(ChannelBuffer[])}
+	 * @return the composite buffer, which is empty if there was nothing to gather
+	 */
+	public static ChannelBuffer gather(final ChannelBuffer head, final ChannelBuffer[] drained) {
+		int count = head!=null && head.readable() ? 1 : 0;
+		for(ChannelBuffer buff: drained) {
+			if(buff!=null) count++;
+		}
+		if(count==0) return ChannelBuffers.EMPTY_BUFFER;
+		final ChannelBuffer[] parts = new ChannelBuffer[count];
+		int index = 0;
+		if(head!=null && head.readable()) parts[index++] = head;
+		for(ChannelBuffer buff: drained) {
+			if(buff!=null) parts[index++] = buff;
+		}
+		return count==1 ? parts[0] : ChannelBuffers.wrappedBuffer(parts);
+	}
+	
+	/**
+	 * Clears the passed drained buffers and returns them to their stripes as spares
+	 * @param drained The array populated by the prior {@link #drain(ChannelBuffer[])}
+	 */
+	public void recycle(final ChannelBuffer[] drained) {
+		for(int i = 0; i < stripes.length; i++) {
+			final ChannelBuffer buff = drained[i];
+			if(buff==null) continue;
+			drained[i] = null;
+			buff.clear();
+			final Stripe stripe = stripes[i];
+			synchronized(stripe) {
+				if(stripe.spare==null) stripe.spare = buff;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of stripes
+	 * @return the number of stripes
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+	
+	/**
+	 * Returns the approximate number of buffered bytes
+	 * @return the approximate number of buffered bytes
+	 */
+	public long getBufferedBytes() {
+		return bufferedBytes.estimate_get();
+	}
+	
+	/**
+	 * Returns the approximate number of buffered traces
+	 * @return the approximate number of buffered traces
+	 */
+	public long getBufferedTraces() {
+		return bufferedTraces.estimate_get();
+	}
+	
+	/**
+	 * Returns the total capacity of the active stripe buffers in bytes
+	 * @return the total capacity
+	 */
+	public long getCapacity() {
+		long cap = 0;
+		for(Stripe stripe: stripes) {
+			synchronized(stripe) {
+				cap += stripe.buffer.capacity();
+			}
+		}
+		return cap;
+	}
+
+}
@@ -7,6 +7,7 @@ import javax.management.ObjectName;
 
 import org.json.JSONArray;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.heliosapm.opentsdb.AnnotationBuilder.TSDBAnnotation;
 import com.heliosapm.opentsdb.TSDBSubmitterImpl.ExpressionResult;
 
@@ -139,6 +140,16 @@ public interface TSDBSubmitter {
 	 * @return A JSON array of the parsed results
 	 */
 	public String tsuid(String metric, String... tags);
+	
+	/**
+	 * Asynchronously resolves the TSUID for the passed metric and tags (root tags included).
+	 * Concurrent lookups for the same series share one request and pending lookups are
+	 * batched into as few TSD queries as possible.
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return a future for the TSUID
+	 */
+	public ListenableFuture<String> tsuidAsync(String metric, String... tags);
 
 	/**
 	 * Retrieves the attribute names of the MBean registered in the passed MBeanServer
@@ -150,7 +161,8 @@ public interface TSDBSubmitter {
 			ObjectName target);
 
 	/**
-	 * Traces a tsdb annotation
+	 * Queues a tsdb annotation to be sent asynchronously in a batch. Never blocks on network I/O. 
+	 * If the annotation queue is full the annotation is dropped and counted.
 	 * @param annotation the annotation to trace
 	 */
 	public void trace(TSDBAnnotation annotation);
@@ -263,6 +275,47 @@ public interface TSDBSubmitter {
 	 * Flushes all the delta states
 	 */
 	public void flushDeltas();
+	
+	/**
+	 * Traces the per-second rate of a 64 bit counter for the current time.
+	 * Nothing is traced for the first sample of a series or a sample following a counter reset.
+	 * @param metric The metric name
+	 * @param value The counter value
+	 * @param tags The metric tags
+	 */
+	public void traceRate(String metric, long value, Map<String, String> tags);
+	
+	/**
+	 * Traces the per-second rate of a counter, computed from the time elapsed since the prior sample of the same series.
+	 * Nothing is traced for the first sample of a series or a sample following a counter reset.
+	 * @param timestamp The sample timestamp
+	 * @param metric The metric name
+	 * @param value The counter value
+	 * @param counterBits The counter width, {@link RateEngine#COUNTER_32} or {@link RateEngine#COUNTER_64}
+	 * @param tags The metric tags
+	 */
+	public void traceRate(long timestamp, String metric, long value, int counterBits, Map<String, String> tags);
+	
+	/**
+	 * Records events for a series. Events are not traced individually. Instead, the smoothed 1, 5 and 15 minute 
+	 * event rates of the series are traced periodically as <b><code>&lt;metric&gt;.m1</code></b>, 
+	 * <b><code>&lt;metric&gt;.m5</code></b> and <b><code>&lt;metric&gt;.m15</code></b>.
+	 * @param metric The event metric name
+	 * @param events The number of events
+	 * @param tags The event tags
+	 */
+	public void traceEvents(String metric, long events, Map<String, String> tags);
+	
+	/**
+	 * Records a latency value for a series. Values are not traced individually. Instead, every 
+	 * {@link QuantileSummaries#CONFIG_PERIOD} ms. on the shared flush timer, on each {@link #flush()} and on {@link #close()}, 
+	 * the p50, p95, p99, p999 and maximum of the values recorded since the prior emit are traced as 
+	 * <b><code>&lt;metric&gt;.p50</code></b> and so on.
+	 * @param metric The latency metric name
+	 * @param value The latency value
+	 * @param tags The latency tags
+	 */
+	public void traceLatency(String metric, long value, Map<String, String> tags);
 
 	/**
 	 * Creates and returns a new tag map
@@ -333,6 +386,21 @@ public interface TSDBSubmitter {
 	 * @return this submitter
 	 */
 	public TSDBSubmitter setDupChecking(final boolean enabled);
+	
+	/**
+	 * Enables or disables in-process aggregation. When enabled, traced samples are rolled up per series 
+	 * and only the selected aggregates are submitted, once per window.
+	 * @param window The aggregation window in ms. Zero or less disables aggregation.
+	 * @param aggregates The aggregates to submit per window
+	 * @return this submitter
+	 */
+	public TSDBSubmitter setAggregation(long window, PreAggregator.Aggregate...aggregates);
+	
+	/**
+	 * Returns the in-process aggregator
+	 * @return the aggregator, or null if aggregation is disabled
+	 */
+	public PreAggregator getAggregator();
 
 
 }
\ No newline at end of file
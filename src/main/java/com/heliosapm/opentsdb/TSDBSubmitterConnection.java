@@ -24,19 +24,19 @@
  */
 package com.heliosapm.opentsdb;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.charset.Charset;
+import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.ObjectName;
 
@@ -44,12 +44,14 @@ import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.buffer.DirectChannelBufferFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.json.JSONArray;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.heliosapm.jmx.util.helpers.StringHelper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
 import com.ning.http.client.AsyncHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
@@ -86,14 +88,16 @@ public class TSDBSubmitterConnection  {
 	/** The ElasticSearch port */
 	protected int esPort = -1;
 	
-	/** The socket connected to the host/port */
-	protected Socket socket = null;
+	/** The transport that writes buffered puts to the host/port */
+	protected final TSDBTransport transport;
 	/** The http client to submit http ops to the tsdb server and ES */
 	protected AsyncHttpClient httpClient = null;
 	/** The HTTP base URL for HTTP submitted requests */
 	protected String baseURL = null;
 	/** The HTTP base URL for ES requests */
 	protected String esURL = null;
+	/** The ES bulk sink, created once the ES host and port are both set */
+	protected volatile ElasticSearchSink esSink = null;
 	
 	/** The socket keep-alive flag */
 	protected boolean keepAlive = true;
@@ -109,12 +113,10 @@ public class TSDBSubmitterConnection  {
 	
 	/** The ObjectName transform cache */
 	protected final TransformCache transformCache = new TransformCache();
-	/** Deltas for long values */
-	protected final NonBlockingHashMap<String, Long> longDeltas = new NonBlockingHashMap<String, Long>(); 
-	/** Deltas for double values */
-	protected final NonBlockingHashMap<String, Double> doubleDeltas = new NonBlockingHashMap<String, Double>(); 
-	/** Deltas for int values */
-	protected final NonBlockingHashMap<String, Integer> intDeltas = new NonBlockingHashMap<String, Integer>();
+	/** The primitive delta state for long, double and int deltas */
+	protected final DeltaManager deltas = new DeltaManager();
+	/** The counter rate state, kept apart from the deltas */
+	protected final RateEngine rates = new RateEngine(new DeltaManager());
 	
 	
 
@@ -128,14 +130,56 @@ public class TSDBSubmitterConnection  {
 	/** The socket timeout in milliseconds */
 	protected int timeout = 1000;
 	
-	/** The socket output stream */
-	protected OutputStream os = null;
-	/** The socket input stream */
-	protected InputStream is = null;
 	/** The buffer for incoming data */
-	protected final ChannelBuffer dataBuffer = ChannelBuffers.dynamicBuffer(bufferFactory);
-	/** A counter of traces between each flush */
-	protected final AtomicInteger traceCount = new AtomicInteger(0);
+	protected final StripedBuffer dataBuffer = new StripedBuffer(bufferFactory, ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_STRIPES, StripedBuffer.DEFAULT_STRIPES));
+	/** The drained stripe buffers being flushed */
+	protected final ChannelBuffer[] drained = new ChannelBuffer[dataBuffer.getStripeCount()];
+	/** Data that failed to flush, written ahead of the stripes on the next flush */
+	protected final ChannelBuffer retryBuffer = ChannelBuffers.dynamicBuffer(bufferFactory);
+	/** The number of traces in the retry buffer */
+	protected int retryTraces = 0;
+	/** The retry buffer size in bytes beyond which the oldest held traces are discarded */
+	protected final int maxRetryBytes = ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_RETRY_MAX_BYTES, DEFAULT_RETRY_MAX_BYTES);
+	/** Set while flushes are failing, so an outage is logged once rather than on every flush. Guarded by the flush lock. */
+	protected boolean flushFailing = false;
+	/** The first reconnect backoff in ms. */
+	protected final long reconnectMin = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RECONNECT_MIN, DEFAULT_RECONNECT_MIN);
+	/** The maximum reconnect backoff in ms. */
+	protected final long reconnectMax = ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RECONNECT_MAX, DEFAULT_RECONNECT_MAX);
+	/** The current reconnect backoff in ms., doubled on each failed attempt */
+	protected volatile long reconnectDelay = reconnectMin;
+	/** Set while a reconnect is scheduled or running */
+	protected final AtomicBoolean reconnecting = new AtomicBoolean(false);
+	/** Serializes transport connects between {@link #connect()}, the reconnect task and the spool replay */
+	protected final ReentrantLock connectLock = new ReentrantLock();
+	/** Set on the first successful transport connect, after which connects are counted as reconnects */
+	protected final AtomicBoolean connectedOnce = new AtomicBoolean(false);
+	/** Indicates if this connection has been closed */
+	protected volatile boolean closed = false;
+	/** Serializes flushes */
+	protected final Object flushLock = new Object();
+	/** The automatic flush policy */
+	protected final FlushPolicy flushPolicy = new FlushPolicy(this);
+	/** The optional store-and-forward spool for data that cannot be sent */
+	protected final DiskSpool spool;
+	/** The wire codec data points are encoded with */
+	protected final WireCodec codec;
+	/** The optional cache of encoded series prefixes, only used with the OpenTSDB codec */
+	protected final SeriesPrefixCache prefixCache;
+	/** The self-telemetry MXBean */
+	protected final ConnectionStats stats;
+	/** Counts and samples the put rejections OpenTSDB reports back */
+	protected final RejectionLog rejections;
+	/** The optional per metric series cardinality limiter */
+	protected final CardinalityLimiter limiter;
+	/** The acquired Prometheus endpoint, or null if it is not enabled */
+	protected final PrometheusEndpoint prometheus;
+	/** Set once the Prometheus endpoint is released */
+	protected final AtomicBoolean prometheusReleased = new AtomicBoolean(false);
+	/** The optional last value store served by the Prometheus endpoint */
+	protected final LastValueStore lastValues;
+	/** true if traces only update the last value store and are not pushed */
+	protected final boolean pullOnly;
 	
 	protected static final Map<String, TSDBSubmitterConnection> instances = new NonBlockingHashMap<String, TSDBSubmitterConnection>(12);
 	
@@ -162,6 +206,29 @@ public class TSDBSubmitterConnection  {
 		return connection;
 	}
 	
+	/**
+	 * Acquires a TSDBSubmitterConnection for the passed host and port without connecting a newly created one,
+	 * for callers such as the {@link ConsistentHashRouter} that need a connection to an endpoint which may be down
+	 * @param host The OpenTSDB host or ip address
+	 * @param port The OpenTSDB listening port 
+	 * @return a TSDBSubmitterConnection for the passed host and port
+	 */
+	static TSDBSubmitterConnection getUnconnectedTSDBSubmitterConnection(final String host, final int port) {
+		if(host==null || host.trim().isEmpty()) throw new IllegalArgumentException("The passed host name was null or empty");
+		final String key = host + ":" + port;
+		TSDBSubmitterConnection connection = instances.get(key);
+		if(connection==null) {
+			synchronized(instances) {
+				connection = instances.get(key);
+				if(connection==null) {
+					connection = new TSDBSubmitterConnection(host, port);
+					instances.put(key, connection);
+				}
+			}
+		}
+		return connection;
+	}
+	
 	/**
 	 * Acquires a TSDBSubmitterConnection for the passed host and default port (4242)
 	 * @param host The OpenTSDB host or ip address
@@ -176,6 +243,25 @@ public class TSDBSubmitterConnection  {
 	/** The default socket receive buffer size in bytes */
 	public static final int DEFAULT_RECEIVE_BUFFER_SIZE;
 	
+	/** The config property name for the transport type (<b><code>socket</code></b>, <b><code>netty</code></b> or <b><code>http</code></b>) */
+	public static final String CONFIG_TRANSPORT = "helios.opentsdb.transport";
+	/** The default transport type */
+	public static final String DEFAULT_TRANSPORT = "socket";
+	/** The config property name for the number of append buffer stripes */
+	public static final String CONFIG_STRIPES = "helios.opentsdb.buffer.stripes";
+	/** The config property name for the retry buffer size in bytes beyond which the oldest held traces are discarded */
+	public static final String CONFIG_RETRY_MAX_BYTES = "helios.opentsdb.retry.maxbytes";
+	/** The default retry buffer size limit in bytes */
+	public static final int DEFAULT_RETRY_MAX_BYTES = 8 * 1024 * 1024;
+	/** The config property name for the first reconnect backoff in ms. */
+	public static final String CONFIG_RECONNECT_MIN = "helios.opentsdb.reconnect.min";
+	/** The default first reconnect backoff in ms. */
+	public static final long DEFAULT_RECONNECT_MIN = 1000L;
+	/** The config property name for the maximum reconnect backoff in ms. */
+	public static final String CONFIG_RECONNECT_MAX = "helios.opentsdb.reconnect.max";
+	/** The default maximum reconnect backoff in ms. */
+	public static final long DEFAULT_RECONNECT_MAX = 60000L;
+	
 	/** The default character set */
 	public static final Charset CHARSET = Charset.forName("UTF-8");
 	
@@ -203,21 +289,50 @@ public class TSDBSubmitterConnection  {
 	private TSDBSubmitterConnection(final String host, final int port) {
 		this.host = host;
 		this.port = port;
-		socket = new Socket();
+		baseURL = "http://" + host + ":" + port + "/";
+		stats = new ConnectionStats(this);
+		rejections = new RejectionLog(host + ":" + port);
+		limiter = CardinalityLimiter.configured(this);
+		prometheus = PrometheusEndpoint.acquire();
+		lastValues = prometheus==null ? null : prometheus.getStore();
+		pullOnly = prometheus!=null && PrometheusEndpoint.isPullOnly();
+		codec = WireCodec.configured();
+		prefixCache = codec.isOpenTSDB() ? SeriesPrefixCache.configured() : null;
+		final String transportType = ConfigurationHelper.getSystemThenEnvProperty(CONFIG_TRANSPORT, DEFAULT_TRANSPORT).trim().toLowerCase();
+		if("netty".equals(transportType)) {
+			transport = new NettyTransport(this);
+		} else if("http".equals(transportType)) {
+			if(!codec.isOpenTSDB()) throw new IllegalArgumentException("The http transport only supports the opentsdb codec, not [" + codec.getName() + "]");
+			transport = new HttpPutTransport(this);
+		} else if("socket".equals(transportType)) {
+			transport = new SocketTransport(this);
+		} else {
+			throw new IllegalArgumentException("Invalid transport type [" + transportType + "]");
+		}
+		DiskSpool _spool = null;
+		if(ConfigurationHelper.getBooleanSystemThenEnvProperty(DiskSpool.CONFIG_ENABLED, DiskSpool.DEFAULT_ENABLED)) {
+			try {
+				_spool = new DiskSpool(this);
+				if(transport instanceof NettyTransport) {
+					((NettyTransport)transport).setSpiller(_spool);
+				}
+			} catch (Exception ex) {
+				LOG.error("Failed to open spool for [{}:{}]. Continuing without a spool.", host, port, ex);
+			}
+		}
+		spool = _spool;
+		if(tsuidSnapshot!=null) tsuidResolver.load(tsuidSnapshot);
 		Map<String, String> tags = new LinkedHashMap<String, String>();
 //		tags.put("app", "groovy");
 //		tags.put("host", "tpsolaris");
 //		transformCache.register(JMXHelper.objectName("*:*"), new com.heliosapm.opentsdb.Transformers.DefaultTransformer(tags, null));
-		baseURL = "http://" + host + ":" + port + "/";
 		final Thread shutdownHook = new Thread() {
 			public void run() {
-				if(socket!=null) {
-					if(socket.isConnected()) {
-						try { 
-							socket.close(); 
-							LOG.warn("Closed Socket [{}:{}] in shutdown hook", host, port);
-						} catch (Exception x) {/* No Op */} 
-					}
+				if(transport.isConnected()) {
+					try { 
+						transport.close(); 
+						LOG.warn("Closed Transport [{}:{}] in shutdown hook", host, port);
+					} catch (Exception x) {/* No Op */} 
 				}
 			}
 		};
@@ -225,42 +340,6 @@ public class TSDBSubmitterConnection  {
 		Runtime.getRuntime().addShutdownHook(shutdownHook);
 	}
 	
-	interface SubmitterFlush {
-		void flush();
-		void deepFlush();
-	}
-	
-	
-	/**
-	 * Creates and returns a new SubmitterFlush that flushes to this connection's buffer
-	 * @return a new SubmitterFlush that flushes to this connection's buffer	 * 
-	 */
-	SubmitterFlush newSubmitterFlush(final ChannelBuffer _buffer, final boolean logTraces) {
-		final TSDBSubmitterConnection conn = this;
-		final SubmitterFlush _flushTarget = new SubmitterFlush() {
-			@Override
-			public void deepFlush() {
-				this.flush();
-				conn.flush(logTraces);				
-			}
-			@Override
-			public void flush() {
-				synchronized(_buffer) {
-					synchronized(dataBuffer) {
-						dataBuffer.writeBytes(_buffer);
-						_buffer.clear();
-					}					
-				}
-			}
-		};
-		return _flushTarget;
-	}
-	
-	ChannelBuffer newChannelBuffer() {
-		return ChannelBuffers.dynamicBuffer(bufferFactory);
-	}
-	
-	
 	/**
 	 * Creates a new TSDBSubmitter using the default OpenTSDB port
 	 * @param host The OpenTSDB host or ip address
@@ -425,7 +504,7 @@ public class TSDBSubmitterConnection  {
 	 * @return true if connected, false otherwise
 	 */
 	public boolean isConnected() {
-		return socket.isConnected();
+		return transport.isConnected();
 	}
 	
 	/**
@@ -453,28 +532,45 @@ public class TSDBSubmitterConnection  {
 	 */
 	public TSDBSubmitterConnection connect() {
 		try {
-			if(socket.isConnected()) return this;
-			LOG.info("Connecting to [{}:{}]....", host, port);
-			socket = new Socket();
-			socket.setKeepAlive(keepAlive);
-			socket.setReceiveBufferSize(receiveBufferSize);
-			socket.setSendBufferSize(sendBufferSize);
-			socket.setReuseAddress(reuseAddress);
-			socket.setSoLinger(linger, lingerTime);
-			socket.setSoTimeout(timeout);
-			socket.setTcpNoDelay(tcpNoDelay);
-			socket.connect(new InetSocketAddress(host, port));
-			LOG.info("Connected to [{}:{}]", host, port);
-			os = socket.getOutputStream();
-			is = socket.getInputStream();
-			httpClient = new AsyncHttpClient(new AsyncHttpClientConfig.Builder().setAllowPoolingConnection(true).setConnectionTimeoutInMs(2000).build());
+			if(transport.isConnected()) return this;
+			if(httpClient==null) httpClient = new AsyncHttpClient(new AsyncHttpClientConfig.Builder().setAllowPoolingConnection(true).setConnectionTimeoutInMs(2000).build());
+			connectTransport(true);
+			flushPolicy.start();
+			stats.start();
 			LOG.info("Version: {}", getVersion());
+			if(spool!=null && spool.getPendingBytes() > 0) {
+				spool.scheduleDrain();
+			}
 			return this;
 		} catch (Exception ex) {
 			throw new RuntimeException("Failed to connect to [" + host + ":" + port + "]", ex);
 		}
 	}
 	
+	/**
+	 * Connects the transport unless it is already connected, counting every connect after the first as a reconnect.
+	 * Connects are serialized, so a transport is never connected twice by racing callers.
+	 * @param wait true to wait for a connect in progress on another thread, false to return instead
+	 * @return true if the transport is connected, false if another thread is connecting it and wait is false
+	 * @throws RuntimeException thrown if the connect fails
+	 */
+	boolean connectTransport(final boolean wait) {
+		if(transport.isConnected()) return true;
+		if(wait) {
+			connectLock.lock();
+		} else if(!connectLock.tryLock()) {
+			return false;
+		}
+		try {
+			if(transport.isConnected()) return true;
+			transport.connect();
+			if(!connectedOnce.compareAndSet(false, true)) stats.onReconnect();
+			return true;
+		} finally {
+			connectLock.unlock();
+		}
+	}
+	
 	private final Set<StringBuilder> SBs = new CopyOnWriteArraySet<StringBuilder>();
 	
 	private final ThreadLocal<StringBuilder> SB = new ThreadLocal<StringBuilder>() {
@@ -495,8 +591,12 @@ public class TSDBSubmitterConnection  {
 	
 	
 	
-	/** A cache of TSUIDs keyed by the URL which will be called if the tsuid is not in cache */
-	protected final NonBlockingHashMap<String, String> tsuidCache = new NonBlockingHashMap<String, String>(128);
+	/** The asynchronous, batching TSUID resolver */
+	protected final TsuidResolver tsuidResolver = new TsuidResolver(this);
+	/** The optional snapshot file the TSUID cache is loaded from and saved to */
+	protected final File tsuidSnapshot = TsuidResolver.configuredSnapshot();
+	/** The asynchronous, batching annotation sender */
+	protected final AnnotationQueue annotations = new AnnotationQueue(this);
 	
 	
 	
@@ -512,19 +612,54 @@ public class TSDBSubmitterConnection  {
 	}
 	
 	
-	public String tsuid(final String key) {
-		String tsuid = tsuidCache.get(key);
-		if(tsuid==null) {
-			JSONArray jarr = query(key);
-			if(jarr.length()==0) throw new RuntimeException("No matches");
-			JSONObject m = (JSONObject) jarr.get(0);
-			JSONArray tsuidArr = m.getJSONArray("tsuids");
-			if(tsuidArr.length()==0) throw new RuntimeException("No matches");
-			if(tsuidArr.length()>1) throw new RuntimeException("More than one match (" + tsuidArr.length() + ")");
-			tsuid = tsuidArr.getString(0);
-			tsuidCache.put(key, tsuid);
-		}
-		return tsuid;
+	/**
+	 * Resolves the TSUID of a series asynchronously
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return a future of the TSUID
+	 */
+	public ListenableFuture<String> tsuid(final String metric, final Map<String, String> tags) {
+		return tsuidResolver.resolve(metric, tags);
+	}
+	
+	/**
+	 * Returns the TSUID resolver
+	 * @return the TSUID resolver
+	 */
+	public TsuidResolver getTsuidResolver() {
+		return tsuidResolver;
+	}
+	
+	/**
+	 * Returns the annotation queue
+	 * @return the annotation queue
+	 */
+	public AnnotationQueue getAnnotationQueue() {
+		return annotations;
+	}
+	
+	/**
+	 * Returns the self-telemetry MXBean
+	 * @return the connection stats
+	 */
+	public ConnectionStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * Returns the log of put rejections reported by OpenTSDB
+	 * @return the rejection log
+	 */
+	public RejectionLog getRejections() {
+		return rejections;
+	}
+	
+	/**
+	 * Returns the per metric series cardinality limiter
+	 * @return the cardinality limiter, or null if limiting is disabled
+	 */
+	public CardinalityLimiter getCardinalityLimiter() {
+		return limiter;
 	}
 
 	
@@ -557,76 +692,373 @@ public class TSDBSubmitterConnection  {
 	
 
 
-	void acceptFlush(final ChannelBuffer dbuff) {
-		if(dbuff!=null) {
-			synchronized(dataBuffer) {
-				dataBuffer.writeBytes(dbuff);
+	/**
+	 * Encodes a long value put directly into the calling thread's append buffer stripe
+	 * @param timestamp The timestamp
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rootTags The pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags The metric tags
+	 */
+	void trace(final long timestamp, final CharSequence metric, final long value, final Collection<String> rootTags, final Map<String, String> tags) {
+		final ElasticSearchSink es = esSink;
+		if(es!=null && es.points) es.point(timestamp, metric, value, rootTags, tags);
+		if(lastValues!=null) {
+			lastValues.put(timestamp, metric, value, rootTags, tags);
+			if(pullOnly) return;
+		}
+		final SeriesPrefixCache.Prefix prefix = prefixCache==null ? null : prefixCache.get(metric, rootTags, tags);
+		final StripedBuffer.Stripe stripe = dataBuffer.stripe();
+		synchronized(stripe) {
+			final ChannelBuffer buff = stripe.buffer();
+			final int w = buff.writerIndex();
+			if(prefix!=null) {
+				PutEncoder.encode(buff, prefix, timestamp, value);
+			} else {
+				codec.encode(buff, metric, timestamp, value, rootTags, tags);
+			}
+			final int bytes = buff.writerIndex() - w;
+			if(bytes > 0) stripe.appended(bytes, 1);
+		}
+		flushPolicy.onAppend();
+	}
+	
+	/**
+	 * Encodes a double value put directly into the calling thread's append buffer stripe
+	 * @param timestamp The timestamp
+	 * @param metric The metric name
+	 * @param value The value
+	 * @param rootTags The pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags The metric tags
+	 */
+	void trace(final long timestamp, final CharSequence metric, final double value, final Collection<String> rootTags, final Map<String, String> tags) {
+		final ElasticSearchSink es = esSink;
+		if(es!=null && es.points) es.point(timestamp, metric, value, rootTags, tags);
+		if(lastValues!=null) {
+			lastValues.put(timestamp, metric, value, rootTags, tags);
+			if(pullOnly) return;
+		}
+		final SeriesPrefixCache.Prefix prefix = prefixCache==null ? null : prefixCache.get(metric, rootTags, tags);
+		final StripedBuffer.Stripe stripe = dataBuffer.stripe();
+		synchronized(stripe) {
+			final ChannelBuffer buff = stripe.buffer();
+			final int w = buff.writerIndex();
+			if(prefix!=null) {
+				PutEncoder.encode(buff, prefix, timestamp, value);
+			} else {
+				codec.encode(buff, metric, timestamp, value, rootTags, tags);
 			}
+			final int bytes = buff.writerIndex() - w;
+			if(bytes > 0) stripe.appended(bytes, 1);
 		}
+		flushPolicy.onAppend();
 	}
 	
 
+	/**
+	 * Writes all buffered data to the transport
+	 * @param logTraces true to log the flushed traces
+	 * @return an int array containing the number of bytes and traces flushed
+	 */
 	public int[] flush(final boolean logTraces) {
-		final long startTime = System.currentTimeMillis();
+		return flush(logTraces, FlushPolicy.Trigger.MANUAL);
+	}
+	
+	/**
+	 * Writes all buffered data to the transport
+	 * @param logTraces true to log the flushed traces
+	 * @param trigger The reason for the flush
+	 * @return an int array containing the number of bytes and traces flushed
+	 */
+	int[] flush(final boolean logTraces, final FlushPolicy.Trigger trigger) {
+		final long startTime = System.nanoTime();
 		final int[] bytesWritten = new int[]{0, 0};
 //		GZIPOutputStream gzip = null;
-		synchronized(dataBuffer) {
-			if(dataBuffer.readableBytes()<1) return bytesWritten;
+		synchronized(flushLock) {
+			flushPolicy.onDrain();
+			final int drainedTraces = dataBuffer.drain(drained);
+			if(spool==null && !transport.isConnected()) {
+				// hold the data until the reconnect succeeds
+				for(ChannelBuffer d: drained) {
+					if(d!=null) retryBuffer.writeBytes(d);
+				}
+				dataBuffer.recycle(drained);
+				retryTraces += drainedTraces;
+				capRetryBuffer();
+				scheduleReconnect();
+				return bytesWritten;
+			}
+			final int traces = drainedTraces + retryTraces;
+			final ChannelBuffer flushBuffer = StripedBuffer.gather(retryBuffer, drained);
+			if(flushBuffer.readableBytes()<1) {
+				return bytesWritten;
+			}
+			if(spool!=null && (!transport.isConnected() || spool.getPendingBytes() > 0)) {
+				// store the data for replay when the transport comes back, 
+				// or behind the spooled data still being replayed so the endpoint receives it in order
+				final int r = flushBuffer.readableBytes();
+				spool.append(flushBuffer);
+				retryBuffer.clear();
+				retryTraces = 0;
+				dataBuffer.recycle(drained);
+				LOG.debug("{} spooled {} traces in {} bytes while {}", trigger, traces, r, transport.isConnected() ? "replaying" : "disconnected");
+				return bytesWritten;
+			}
 			int pos = -1;
+			long writeStart = -1L;
 			try {				
-				final int r = dataBuffer.readableBytes();
+				final int r = flushBuffer.readableBytes();
 //				gzip = new GZIPOutputStream(os, r * 2);
-				pos = dataBuffer.readerIndex();
+				pos = flushBuffer.readerIndex();
 				if(logTraces) {
-					LOG.info("\n{}", dataBuffer.toString(CHARSET));
+					LOG.info("\n{}", flushBuffer.toString(CHARSET));
 				}
 				
-				if(os!=null) {
-					dataBuffer.readBytes(os, dataBuffer.readableBytes());
-					os.flush();
-				}
+				writeStart = System.nanoTime();
+				transport.write(flushBuffer);
+				final long writeEnd = System.nanoTime();
 //				gzip.finish();
 //				gzip.flush();		
-				dataBuffer.clear();
+				retryBuffer.clear();
+				retryTraces = 0;
 				bytesWritten[0] = r;
-				bytesWritten[1] = traceCount.getAndSet(0);
-				long elapsed = System.currentTimeMillis() - startTime;
-				LOG.debug("Flushed {} traces in {} bytes. Elapsed: {} ms.", bytesWritten[1], r, elapsed);
+				bytesWritten[1] = traces;
+				final long elapsed = writeEnd - startTime;
+				if(flushFailing) {
+					flushFailing = false;
+					LOG.info("Flushes to [{}:{}] resumed", host, port);
+				}
+				flushPolicy.onFlush(trigger, r, bytesWritten[1], elapsed);
+				stats.onFlush(elapsed, writeEnd - writeStart);
+				LOG.debug("{} flushed {} traces in {} bytes. Elapsed: {} us.", trigger, bytesWritten[1], r, TimeUnit.MICROSECONDS.convert(elapsed, TimeUnit.NANOSECONDS));
 			} catch (Exception ex) {
-				LOG.error("Failed to flush", ex);
-				if(pos!=-1) dataBuffer.readerIndex(pos);
+				if(!flushFailing) {
+					flushFailing = true;
+					LOG.warn("Flush to [{}:{}] failed. Holding data {} until the transport recovers: {}", host, port, spool==null ? "in memory" : "in the spool", ex.toString());
+				} else {
+					LOG.debug("Flush to [{}:{}] failed", host, port, ex);
+				}
+				if(writeStart!=-1L) stats.onWriteFailed(System.nanoTime() - writeStart);
+				int unsentTraces = traces;
+				if(pos!=-1) {
+					// the transport may have sent part of the buffer. Resend from the start of the first line it did not fully send.
+					final int sent = lineStart(flushBuffer, pos, flushBuffer.readerIndex());
+					unsentTraces = Math.max(0, traces - countLines(flushBuffer, pos, sent));
+					flushBuffer.readerIndex(sent);
+				}
+				if(pos!=-1 && spool!=null) {
+					spool.append(flushBuffer);
+					retryBuffer.clear();
+					retryTraces = 0;
+				} else if(pos!=-1 && flushBuffer!=retryBuffer) {
+					// keep the unsent data for the next flush
+					final ChannelBuffer unsent = flushBuffer.readBytes(flushBuffer.readableBytes());
+					retryBuffer.clear();
+					retryBuffer.writeBytes(unsent);
+					retryTraces = unsentTraces;
+				} else if(pos!=-1) {
+					retryBuffer.discardReadBytes();
+					retryTraces = unsentTraces;
+				}
+				if(spool==null) {
+					capRetryBuffer();
+					if(!transport.isConnected()) scheduleReconnect();
+				}
 			} finally {
 //				if(gzip!=null) try { gzip.close(); } catch (Exception x) {/* No Op */}
+				dataBuffer.recycle(drained);
 			}
 		}
 		return bytesWritten;
 	}
 
-	public String getVersion() {
-		if(!socket.isConnected()) {
-			return "Not Connected";
+	/**
+	 * Finds the start of the line containing the passed index
+	 * @param buff The buffer of put lines
+	 * @param floor The lowest index to return
+	 * @param index The index
+	 * @return the index following the last line feed before the passed index, or the floor if there is none
+	 */
+	static int lineStart(final ChannelBuffer buff, final int floor, final int index) {
+		for(int i = index - 1; i >= floor; i--) {
+			if(buff.getByte(i)=='\n') return i + 1;
+		}
+		return floor;
+	}
+	
+	/**
+	 * Counts the line feeds in a range of a buffer
+	 * @param buff The buffer
+	 * @param from The start index
+	 * @param to The end index (exclusive)
+	 * @return the number of line feeds
+	 */
+	static int countLines(final ChannelBuffer buff, final int from, final int to) {
+		int lines = 0;
+		for(int i = buff.indexOf(from, to, (byte)'\n'); i!=-1; i = buff.indexOf(i + 1, to, (byte)'\n')) {
+			lines++;
+		}
+		return lines;
+	}
+	
+	/**
+	 * Discards the oldest whole lines from the retry buffer until it is within {@link #maxRetryBytes}, counting them as dropped.
+	 * Caller must hold the flush lock.
+	 */
+	protected void capRetryBuffer() {
+		final int excess = retryBuffer.readableBytes() - maxRetryBytes;
+		if(excess < 1) return;
+		final int start = retryBuffer.readerIndex();
+		final int nl = retryBuffer.indexOf(start + excess - 1, retryBuffer.writerIndex(), (byte)'\n');
+		final int end = nl==-1 ? retryBuffer.writerIndex() : nl + 1;
+		int dropped = 0;
+		for(int i = retryBuffer.indexOf(start, end, (byte)'\n'); i!=-1; i = retryBuffer.indexOf(i + 1, end, (byte)'\n')) {
+			dropped++;
+		}
+		retryBuffer.readerIndex(end);
+		retryBuffer.discardReadBytes();
+		retryTraces = Math.max(0, retryTraces - dropped);
+		stats.onRetryDropped(dropped);
+		LOG.warn("Retry buffer for [{}:{}] is full. Discarded the oldest [{}] traces.", host, port, dropped);
+	}
+	
+	/**
+	 * Schedules a reconnect of the transport after the current backoff, unless one is already scheduled,
+	 * the connection is closed, or the spool is enabled, in which case the spool's replay reconnects
+	 */
+	protected void scheduleReconnect() {
+		if(closed || spool!=null || !reconnecting.compareAndSet(false, true)) return;
+		FlushPolicy.getTimer().newTimeout(reconnectTask, reconnectDelay, TimeUnit.MILLISECONDS);
+	}
+	
+	/** The timer task that hands a reconnect to the shared flush executor */
+	protected final TimerTask reconnectTask = new TimerTask() {
+		@Override
+		public void run(final Timeout timeout) throws Exception {
+			FlushPolicy.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					reconnect();
+				}
+			});
 		}
+	};
+	
+	/**
+	 * Attempts to reconnect the transport. On success the data held while it was down is flushed,
+	 * and on failure the backoff is doubled, up to {@link #reconnectMax}, and another attempt is scheduled.
+	 */
+	protected void reconnect() {
+		boolean connected = false;
 		try {
-			os.write("version\n".getBytes());
-			os.flush();
-			byte[] b = new byte[1024];
-			int bytesRead = is.read(b);
-			return new String(b, 0, bytesRead);				
-		} catch (Exception x) {
-			return "Failed to get version from [" + host + ":" + port + "]" + x;
+			if(!closed && !transport.isConnected()) {
+				if(!connectTransport(false)) throw new IllegalStateException("Connect in progress on another thread");
+				LOG.info("Reconnected to [{}:{}]", host, port);
+			}
+			connected = true;
+			reconnectDelay = reconnectMin;
+		} catch (Exception ex) {
+			reconnectDelay = Math.min(reconnectDelay * 2, reconnectMax);
+			LOG.debug("Reconnect to [{}:{}] failed. Next attempt in [{}] ms: {}", host, port, reconnectDelay, ex.toString());
+		} finally {
+			reconnecting.set(false);
+		}
+		if(closed) return;
+		if(connected) {
+			flushPolicy.schedule(FlushPolicy.Trigger.RECONNECT);
+		} else {
+			scheduleReconnect();
 		}
 	}
 	
+	/**
+	 * Requests the version from the connected OpenTSDB instance
+	 * @return the OpenTSDB version text or a message describing why it could not be retrieved
+	 */
+	public String getVersion() {
+		if(!codec.isOpenTSDB()) return "Version not available with the " + codec.getName() + " codec";
+		return transport.getVersion();
+	}
+	
+	/**
+	 * Returns the transport this connection writes through
+	 * @return the transport
+	 */
+	public TSDBTransport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * Returns the automatic flush policy, which can be used to tune the flush thresholds
+	 * and read the flush size and latency statistics
+	 * @return the flush policy
+	 */
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+	
+	/**
+	 * Returns the store-and-forward spool
+	 * @return the spool, or null if spooling is not enabled
+	 */
+	public DiskSpool getSpool() {
+		return spool;
+	}
+	
+	/**
+	 * Returns the last value store served by the Prometheus endpoint
+	 * @return the last value store, or null if the endpoint is not enabled
+	 */
+	public LastValueStore getLastValues() {
+		return lastValues;
+	}
+	
+	/**
+	 * Indicates if traces only update the last value store and are not pushed
+	 * @return true if traces are not pushed
+	 */
+	public boolean isPullOnly() {
+		return pullOnly;
+	}
+	
+	/**
+	 * Returns the wire codec data points are encoded with
+	 * @return the wire codec
+	 */
+	public WireCodec getCodec() {
+		return codec;
+	}
+	
+	/**
+	 * Returns the series prefix cache
+	 * @return the series prefix cache, or null if it is disabled
+	 */
+	public SeriesPrefixCache getPrefixCache() {
+		return prefixCache;
+	}
+	
 	/**
 	 * Closes the submitter's connection
 	 */
 	public void close() {
+		closed = true;
 		try {
 			instances.remove(this.host + ":" + this.port);
-			socket.close();
+			flushPolicy.stop();
+			stats.stop();
+			if(limiter!=null) limiter.close();
+			annotations.close(timeout);
+			final ElasticSearchSink es = esSink;
+			if(es!=null) es.close(timeout);
+			// send what is still buffered, including the final windows emitted by closing aggregators
+			flush(false, FlushPolicy.Trigger.CLOSE);
+			transport.close();
+			if(spool!=null) spool.close();
+			if(tsuidSnapshot!=null) tsuidResolver.save(tsuidSnapshot);
 		} catch (Exception x) {
 			/* No Op */
 		} finally {
+			if(prometheus!=null && prometheusReleased.compareAndSet(false, true)) PrometheusEndpoint.release(prometheus);
 			for(StringBuilder b: SBs) {
 				b.setLength(0);
 				b.trimToSize();
@@ -635,64 +1067,32 @@ public class TSDBSubmitterConnection  {
 	}
 	
 	public Double doubleDelta(final double value, final String...id) {
-		Double state = null;
 		if(id==null || id.length==0) return null;
-		if(id.length==1) {
-			state = doubleDeltas.put(id[0], value);
-		} else {
-			state = doubleDeltas.put(StringHelper.fastConcat(id), value);			
-		}
-		if(state!=null) {
-			double delta = value - state;
-			if(delta<0) {
-				return null;
-			}
-			return delta;
-		}
-		return null;		
+		return deltas.deltaDouble(DeltaManager.key(id), value);
 	}
 	
 	public Long longDelta(final long value, final String...id) {
-		Long state = null;
 		if(id==null || id.length==0) return null;
-		if(id.length==1) {
-			state = longDeltas.put(id[0], value);
-		} else {
-			state = longDeltas.put(StringHelper.fastConcat(id), value);			
-		}
-		if(state!=null) {
-			long delta = value - state;
-			if(delta<0) {
-				return null;
-			}
-			return delta;
-		}
-		return null;		
+		return deltas.deltaLong(DeltaManager.key(id), value);
 	}
 	
 	public Integer longInteger(final int value, final String...id) {
-		Integer state = null;
 		if(id==null || id.length==0) return null;
-		if(id.length==1) {
-			state = intDeltas.put(id[0], value);
-		} else {
-			state = intDeltas.put(StringHelper.fastConcat(id), value);			
-		}
-		if(state!=null) {
-			int delta = value - state;
-			if(delta<0) {
-				return null;
-			}
-			return delta;
-		}
-		return null;		
+		return deltas.deltaInt(DeltaManager.key(id), value);
 	}
 	
 	
 	public void flushDeltas() {
-		longDeltas.clear();
-		intDeltas.clear();
-		doubleDeltas.clear();
+		deltas.clear();
+		rates.clear();
+	}
+	
+	/**
+	 * Returns the counter rate engine
+	 * @return the counter rate engine
+	 */
+	public RateEngine getRateEngine() {
+		return rates;
 	}
 	
 	
@@ -871,6 +1271,7 @@ public class TSDBSubmitterConnection  {
 	 */
 	public TSDBSubmitterConnection setEsHost(final String esHost) {
 		this.esHost = esHost;
+		initEs();
 		return this;
 	}
 
@@ -889,8 +1290,37 @@ public class TSDBSubmitterConnection  {
 	 */
 	public TSDBSubmitterConnection setEsPort(final int esPort) {
 		this.esPort = esPort;
+		initEs();
 		return this;
 	}
+	
+	/**
+	 * Creates the ES bulk sink once both the ES host and port are set, and replaces it when either changes.
+	 * A replaced sink is closed in the background, sending what it already queued to the old URL.
+	 */
+	protected synchronized void initEs() {
+		final String url = esHost==null || esHost.trim().isEmpty() || esPort < 1 ? null : "http://" + esHost.trim() + ":" + esPort + "/";
+		final ElasticSearchSink old = esSink;
+		if(old!=null && old.esURL.equals(url)) return;
+		esURL = url;
+		esSink = url==null ? null : new ElasticSearchSink(this);
+		if(old!=null) {
+			FlushPolicy.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					old.close(timeout);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Returns the ES bulk sink
+	 * @return the ES bulk sink, or null if the ES host and port are not set
+	 */
+	public ElasticSearchSink getElasticSearchSink() {
+		return esSink;
+	}
 
 
 	/**
@@ -907,6 +1337,8 @@ public class TSDBSubmitterConnection  {
 		}
 		builder.append("\n\tport=");
 		builder.append(port);
+		builder.append("\n\ttransport=");
+		builder.append(transport.getClass().getSimpleName());
 		if(esHost!=null) {
 			builder.append("\n\tESHost=");
 			builder.append(esHost);
@@ -930,8 +1362,10 @@ public class TSDBSubmitterConnection  {
 		builder.append("\n\ttimeout=");
 		builder.append(timeout);
 		if (dataBuffer != null) {
+			builder.append("\n\tdataBufferStripes=");
+			builder.append(dataBuffer.getStripeCount());
 			builder.append("\n\tdataBufferCapacity=");
-			builder.append(dataBuffer.capacity());
+			builder.append(dataBuffer.getCapacity());
 		}
 		builder.append("]");
 		return builder.toString();
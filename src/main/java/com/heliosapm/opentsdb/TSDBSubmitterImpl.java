@@ -36,6 +36,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanServerConnection;
@@ -43,20 +44,15 @@ import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.CompositeType;
 
+import org.cliffc.high_scale_lib.Counter;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
-import org.cliffc.high_scale_lib.NonBlockingHashSet;
-import org.jboss.netty.buffer.ChannelBuffer;
 import org.json.JSONArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.heliosapm.jmx.util.helpers.JMXHelper;
 import com.heliosapm.opentsdb.AnnotationBuilder.TSDBAnnotation;
-import com.heliosapm.opentsdb.TSDBSubmitterConnection.SubmitterFlush;
-import com.ning.http.client.AsyncHandler;
-import com.ning.http.client.HttpResponseBodyPart;
-import com.ning.http.client.HttpResponseHeaders;
-import com.ning.http.client.HttpResponseStatus;
 
 /**
  * <p>Title: TSDBSubmitterImpl</p>
@@ -70,8 +66,8 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	
 	/** The underlying TSDBSubmitterConnection */
 	final TSDBSubmitterConnection tsdbConnection;
-	/** This submitter's tracing buffer */
-	final ChannelBuffer dataBuffer;
+	/** The optional router that shards traces across endpoints */
+	final ConsistentHashRouter router;
 	/** Indicates if times are traced in seconds (true) or milliseconds (false) */
 	protected boolean traceInSeconds = true;
 	/** Indicates if traces should be logged */
@@ -87,6 +83,25 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	protected final Map<String, String> rootTagsMap = new LinkedHashMap<String, String>();
 	/** Filter in map defs */
 	protected final NonBlockingHashMap<String, Map<String, String>> filterIns = new NonBlockingHashMap<String, Map<String, String>>(); 
+	/** The optional in-process aggregator */
+	protected volatile PreAggregator aggregator = null;
+	/** Emits the aggregator's rollups to the connection */
+	protected final PreAggregator.RollupSink rollupSink = new PreAggregator.RollupSink() {
+		@Override
+		public void rollup(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
+			target(metric, tags).trace(time(timestamp), metric, value, rootTags, tags);
+		}
+	};
+	/** The event rate reporter, created on the first traced event */
+	protected volatile EventWindowReporter eventReporter = null;
+	/** The latency quantile summaries, created on the first traced latency */
+	protected volatile QuantileSummaries latencies = null;
+	/** The compiled filter-ins, recompiled whenever a filter is added */
+	protected volatile FilterIndex filterIndex = FilterIndex.EMPTY;
+	/** The number of data points traced by this submitter */
+	protected final Counter traceCount = new Counter();
+	/** The id of this submitter, unique in this JVM */
+	protected final long id = SUBMITTER_IDS.incrementAndGet();
 	
 
 	/** Instance logger */
@@ -98,6 +113,8 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	public static final String QUERY_TEMPLATE = "http://%s:%s/api/query?start=1s-ago&show_tsuids=true&m=avg:%s%s";
 	/** End of line separator */
 	public static final String EOL = System.getProperty("line.separator", "\n");
+	/** The source of submitter ids */
+	private static final AtomicLong SUBMITTER_IDS = new AtomicLong(0L);
 
 	/** Fast string builder */
 	private static final ThreadLocal<StringBuilder> SB = new ThreadLocal<StringBuilder>() {
@@ -157,19 +174,58 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 * @param tsdbConnection The underlying TSDBSubmitterConnection
 	 */
 	TSDBSubmitterImpl(final TSDBSubmitterConnection tsdbConnection) {
+		this(tsdbConnection, null);
+	}
+	
+	/**
+	 * Creates a new TSDBSubmitterImpl that routes traces through the passed router
+	 * @param tsdbConnection The underlying TSDBSubmitterConnection, used for HTTP operations
+	 * @param router The router that shards traces across endpoints. If null, all traces go to the connection.
+	 */
+	TSDBSubmitterImpl(final TSDBSubmitterConnection tsdbConnection, final ConsistentHashRouter router) {
 		if(tsdbConnection==null) throw new IllegalArgumentException("The passed TSDBSubmitterConnection was null");
 		this.tsdbConnection = tsdbConnection;
-		this.dataBuffer = this.tsdbConnection.newChannelBuffer();
+		this.router = router;
+		aggregator = PreAggregator.configured(rollupSink);
+		tsdbConnection.stats.register(this);
+	}
+	
+	/**
+	 * Returns the connection the passed series should be traced to
+	 * @param metric The metric name
+	 * @param tags The metric tags
+	 * @return the target connection
+	 */
+	protected TSDBSubmitterConnection target(final String metric, final Map<String, String> tags) {
+		return router==null ? tsdbConnection : router.route(metric, rootTags, tags);
+	}
+
+	/**
+	 * Applies the connection's cardinality limiter, if one is configured, to a point
+	 * @param metric The metric name
+	 * @param tags The metric tags
+	 * @return the tags to trace the point with, or null if the point is dropped
+	 */
+	protected Map<String, String> admit(final String metric, final Map<String, String> tags) {
+		final CardinalityLimiter limiter = tsdbConnection.limiter;
+		return limiter==null ? tags : limiter.admit(SeriesHash.seriesHash(metric, rootTags, tags), metric, tags);
 	}
 
+	/**
+	 * Returns the number of data points traced by this submitter
+	 * @return the trace count
+	 */
+	public long getTraceCount() {
+		return traceCount.get();
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.opentsdb.TSDBSubmitter#newExpressionResult()
 	 */
 	@Override
 	public ExpressionResult newExpressionResult() {
-		final ChannelBuffer _buffer = tsdbConnection.newChannelBuffer();
-		return new ExpressionResult(true, rootTagsMap, _buffer, tsdbConnection.newSubmitterFlush(_buffer, isLogTraces()));
+		return new ExpressionResult(true, rootTagsMap);
 	}
 	
 	/**
@@ -178,8 +234,7 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 */
 	@Override
 	public ExpressionResult newExpressionResult(final Map<String, String> rootTagsMapOverride) {
-		final ChannelBuffer _buffer = tsdbConnection.newChannelBuffer();
-		return new ExpressionResult(true, rootTagsMapOverride, _buffer, tsdbConnection.newSubmitterFlush(_buffer, isLogTraces()));
+		return new ExpressionResult(true, rootTagsMapOverride);
 	}
 
 	/**
@@ -188,7 +243,7 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 */
 	@Override
 	public boolean isConnected() {
-		return tsdbConnection.isConnected();
+		return router==null ? tsdbConnection.isConnected() : router.isConnected();
 	}
 
 	/**
@@ -211,7 +266,10 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 */
 	@Override
 	public void addFilterIn(final Map<String, String> in) {
-		if(in!=null) filterIns.put("*", in);
+		if(in!=null) {
+			filterIns.put("*", in);
+			compileFilters();
+		}
 	}
 	
 	/**
@@ -222,26 +280,32 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	public void addFilterIn(final String metric, final Map<String, String> in) {
 		final String _metric = metric==null ? "*" :
 			metric.trim().isEmpty() ? "*" : metric.trim();
-		if(in!=null) filterIns.put(_metric, in);
+		if(in!=null) {
+			filterIns.put(_metric, in);
+			compileFilters();
+		}
+	}
+	
+	/**
+	 * Recompiles the filter index from the current filter-in definitions
+	 */
+	protected synchronized void compileFilters() {
+		filterIndex = new FilterIndex(filterIns);
 	}
 	
 	// =========================================================================================================================
 	//    Filter Ins Matching
 	// =========================================================================================================================
 
+	/**
+	 * Tests the passed metric and tags against the compiled filter-ins
+	 * @param metric The metric name
+	 * @param tags The metric tags
+	 * @return true if the metric should be traced, false otherwise
+	 */
 	public boolean matches(final String metric, final Map<String, String> tags) {
 		if(metric==null || metric.trim().isEmpty() || tags==null || tags.isEmpty()) return false;
-		final String _metric = metric.trim();
-		if(filterIns.isEmpty()) return true;
-		for(final Map.Entry<String, Map<String, String>> entry: filterIns.entrySet()) {
-			final String fmet = entry.getKey();
-			if("*".equals(fmet) || _metric.equals(fmet)) {
-				for(Map.Entry<String, String> f: entry.getValue().entrySet()) {
-					if(!matches(f.getKey(), f.getValue(), tags)) return false;				
-				}				
-			}
-		}
-		return true;
+		return filterIndex.matches(metric.trim(), tags);
 	}
 	
 	/**
@@ -396,17 +460,15 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	@Override
 	public void trace(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
 		if(!matches(metric, tags)) return;
-		StringBuilder b = getSB();
-		b.append("put ").append(clean(metric)).append(" ").append(time()).append(" ").append(value).append(" ");
-		appendRootTags(b);
-		for(Map.Entry<String, String> entry: tags.entrySet()) {
-			b.append(clean(entry.getKey())).append("=").append(clean(entry.getValue())).append(" ");
+		final Map<String, String> admitted = admit(metric, tags);
+		if(admitted==null) return;
+		traceCount.increment();
+		final PreAggregator agg = aggregator;
+		if(agg!=null) {
+			agg.add(SeriesHash.seriesHash(metric, rootTags, admitted), metric, admitted, traceInSeconds ? TimeUnit.MILLISECONDS.convert(timestamp, TimeUnit.SECONDS) : timestamp, value);
+			return;
 		}
-		final byte[] trace = b.deleteCharAt(b.length()-1).append("\n").toString().getBytes(CHARSET);
-		synchronized(dataBuffer) {
-			dataBuffer.writeBytes(trace);			
-		}
-		tsdbConnection.traceCount.incrementAndGet();
+		target(metric, admitted).trace(timestamp, metric, value, rootTags, admitted);
 	}	
 	
 	/**
@@ -425,17 +487,15 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	@Override
 	public void trace(final long timestamp, final String metric, final long value, final Map<String, String> tags) {
 		if(!matches(metric, tags)) return;
-		StringBuilder b = getSB();
-		b.append("put ").append(clean(metric)).append(" ").append(timestamp).append(" ").append(value).append(" ");
-		appendRootTags(b);
-		for(Map.Entry<String, String> entry: tags.entrySet()) {
-			b.append(clean(entry.getKey())).append("=").append(clean(entry.getValue())).append(" ");
-		}
-		final byte[] trace = b.deleteCharAt(b.length()-1).append("\n").toString().getBytes(CHARSET);
-		synchronized(dataBuffer) {
-			dataBuffer.writeBytes(trace);			
+		final Map<String, String> admitted = admit(metric, tags);
+		if(admitted==null) return;
+		traceCount.increment();
+		final PreAggregator agg = aggregator;
+		if(agg!=null) {
+			agg.add(SeriesHash.seriesHash(metric, rootTags, admitted), metric, admitted, traceInSeconds ? TimeUnit.MILLISECONDS.convert(timestamp, TimeUnit.SECONDS) : timestamp, value);
+			return;
 		}
-		tsdbConnection.traceCount.incrementAndGet();
+		target(metric, admitted).trace(timestamp, metric, value, rootTags, admitted);
 	}
 	
 
@@ -573,41 +633,11 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	@Override
 	public void trace(final TSDBAnnotation annotation) {
 		if(annotation==null) throw new IllegalArgumentException("The passed annotation was null");
-		try {
-			final long start = System.currentTimeMillis();
-			tsdbConnection.httpPost("api/annotation", annotation.toJSON(), new AsyncHandler<Object>(){
-				protected HttpResponseStatus responseStatus = null;
-				@Override
-				public void onThrowable(final Throwable t) {
-					log.error("Async failure on annotation send for [{}]", annotation, t);
-				}
-
-				@Override
-				public STATE onBodyPartReceived(final HttpResponseBodyPart bodyPart) throws Exception {
-					return null;
-				}
-
-				@Override
-				public STATE onStatusReceived(final HttpResponseStatus responseStatus) throws Exception {
-					this.responseStatus = responseStatus;
-					return null;
-				}
-
-				@Override
-				public STATE onHeadersReceived(final HttpResponseHeaders headers) throws Exception {
-					return null;
-				}
-
-				@Override
-				public Object onCompleted() throws Exception {
-					long elapsed = System.currentTimeMillis() - start;
-					log.info("Annotation Send Complete in [{}] ms. Response: [{}], URI: [{}]", elapsed, responseStatus.getStatusText(), responseStatus.getUrl());
-					return null;
-				}				
-			});
-		} catch (Exception ex) {
-			log.error("Failed to send annotation [{}]", annotation, ex);
+		if(!tsdbConnection.annotations.offer(annotation)) {
+			log.debug("Annotation queue full. Dropped [{}]", annotation);
 		}
+		final ElasticSearchSink es = tsdbConnection.esSink;
+		if(es!=null && es.annotations) es.annotation(annotation);
 	}
 
 
@@ -696,7 +726,27 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 */
 	@Override
 	public String tsuid(final String metric, final String... tags) {
-		return tsdbConnection.tsuid(formatTags(metric, tags));
+		try {
+			return tsuidAsync(metric, tags).get(tsdbConnection.getTimeout(), TimeUnit.MILLISECONDS);
+		} catch (Exception ex) {
+			throw new RuntimeException("Failed to resolve TSUID for [" + metric + "] " + Arrays.toString(tags), ex);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#tsuidAsync(java.lang.String, java.lang.String[])
+	 */
+	@Override
+	public ListenableFuture<String> tsuidAsync(final String metric, final String... tags) {
+		if(metric==null || metric.trim().isEmpty()) throw new IllegalArgumentException("The passed metric was null or empty");
+		if(tags==null || tags.length < 2) throw new IllegalArgumentException("Insufficient number of tags. Must have at least 1 tag, which would be 2 values");
+		if(tags.length%2!=0) throw new IllegalArgumentException("Odd number of tag values [" + tags.length + "]. Tag values come in pairs");		
+		final Map<String, String> tagMap = new LinkedHashMap<String, String>(rootTagsMap);
+		for(int i = 0; i < tags.length; i++) {
+			tagMap.put(tags[i].trim(), tags[++i].trim());
+		}
+		return tsdbConnection.tsuid(metric.trim(), tagMap);
 	}
 	
 	// =========================================================================================================================
@@ -765,6 +815,76 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		tsdbConnection.flushDeltas();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#traceRate(java.lang.String, long, java.util.Map)
+	 */
+	@Override
+	public void traceRate(final String metric, final long value, final Map<String, String> tags) {
+		traceRate(time(), metric, value, RateEngine.COUNTER_64, tags);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#traceRate(long, java.lang.String, long, int, java.util.Map)
+	 */
+	@Override
+	public void traceRate(final long timestamp, final String metric, final long value, final int counterBits, final Map<String, String> tags) {
+		if(!matches(metric, tags)) return;
+		final Map<String, String> admitted = admit(metric, tags);
+		if(admitted==null) return;
+		final long ms = traceInSeconds ? TimeUnit.MILLISECONDS.convert(timestamp, TimeUnit.SECONDS) : timestamp;
+		final double rate = tsdbConnection.getRateEngine().rate(SeriesHash.seriesHash(metric, rootTags, admitted), value, ms, counterBits);
+		if(!Double.isNaN(rate)) {
+			traceCount.increment();
+			target(metric, admitted).trace(timestamp, metric, rate, rootTags, admitted);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#traceEvents(java.lang.String, long, java.util.Map)
+	 */
+	@Override
+	public void traceEvents(final String metric, final long events, final Map<String, String> tags) {
+		if(!matches(metric, tags)) return;
+		final Map<String, String> admitted = admit(metric, tags);
+		if(admitted==null) return;
+		EventWindowReporter reporter = eventReporter;
+		if(reporter==null) {
+			synchronized(this) {
+				reporter = eventReporter;
+				if(reporter==null) {
+					reporter = new EventWindowReporter(rollupSink);
+					eventReporter = reporter;
+				}
+			}
+		}
+		reporter.mark(SeriesHash.seriesHash(metric, rootTags, admitted), metric, admitted, events);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#traceLatency(java.lang.String, long, java.util.Map)
+	 */
+	@Override
+	public void traceLatency(final String metric, final long value, final Map<String, String> tags) {
+		if(!matches(metric, tags)) return;
+		final Map<String, String> admitted = admit(metric, tags);
+		if(admitted==null) return;
+		QuantileSummaries summaries = latencies;
+		if(summaries==null) {
+			synchronized(this) {
+				summaries = latencies;
+				if(summaries==null) {
+					summaries = new QuantileSummaries(rollupSink);
+					latencies = summaries;
+				}
+			}
+		}
+		summaries.update(SeriesHash.seriesHash(metric, rootTags, admitted), metric, admitted, value);
+	}
+	
 	// =========================================================================================================================
 	//    Flush Ops
 	// =========================================================================================================================
@@ -772,13 +892,14 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	
 	/**
 	 * {@inheritDoc}
+	 * <p>Traces are encoded directly into the connection's striped append buffers, so the only thing handed off here 
+	 * are the latency quantiles recorded since the prior emit.</p>
 	 * @see com.heliosapm.opentsdb.TSDBSubmitter#flush()
 	 */
 	@Override
 	public void flush() {
-		synchronized(dataBuffer) {
-			tsdbConnection.acceptFlush(dataBuffer);
-		}
+		final QuantileSummaries summaries = latencies;
+		if(summaries!=null) summaries.emit(System.currentTimeMillis());
 	}
 
 	/**
@@ -788,7 +909,11 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	@Override
 	public void deepFlush() {
 		flush();
-		tsdbConnection.flush(logTraces);
+		if(router==null) {
+			tsdbConnection.flush(logTraces);
+		} else {
+			router.flush(logTraces);
+		}
 	}
 
 	// =========================================================================================================================
@@ -897,6 +1022,27 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		this.dupChecking = enabled;
 		return this;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#setAggregation(long, com.heliosapm.opentsdb.PreAggregator.Aggregate[])
+	 */
+	@Override
+	public synchronized TSDBSubmitter setAggregation(final long window, final PreAggregator.Aggregate... aggregates) {
+		final PreAggregator prior = aggregator;
+		aggregator = window < 1 ? null : new PreAggregator(window, rollupSink, aggregates);
+		if(prior!=null) prior.close();
+		return this;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.opentsdb.TSDBSubmitter#getAggregator()
+	 */
+	@Override
+	public PreAggregator getAggregator() {
+		return aggregator;
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -923,9 +1069,25 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 	 */
 	@Override
 	public void close() {
+		tsdbConnection.stats.unregister(this);
+		final QuantileSummaries summaries = latencies;
+		if(summaries!=null) summaries.close();
+		final PreAggregator agg = aggregator;
+		if(agg!=null) agg.close();
+		final EventWindowReporter reporter = eventReporter;
+		if(reporter!=null) reporter.close();
+		if(router!=null) router.close();
 		tsdbConnection.close();
 	}
 	
+	/**
+	 * <p>Title: ExpressionResult</p>
+	 * <p>Description: A reusable holder for one computed data point at a time. Flushed points are traced through the connection like the
+	 * submitter's own, so they are subject to the cardinality limiter and are mirrored to the ES sink and the last value store.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.TSDBSubmitterImpl.ExpressionResult</code></p>
+	 */
 	public class ExpressionResult {
 		/** The OpenTSDB metric name */
 		protected String metricName = null;
@@ -933,12 +1095,14 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		protected Map<String, String> tags = new LinkedHashMap<String, String>(8);
 		/** The OpenTSDB root tags that do not get reset */
 		protected Map<String, String> rootTags = new LinkedHashMap<String, String>(2);
+		/** The root tags pre-rendered as <b><code>k=v</code></b> for the connection's encoders */
+		protected final Set<String> renderedRootTags = new LinkedHashSet<String>(2);
 		
 		/** Indicates if the ER is loaded (true) or reset (false) */
 		protected final AtomicBoolean loaded = new AtomicBoolean(false);
 		
 		/** The dup check filter */
-		protected final NonBlockingHashSet<String> dupCheck;
+		protected final DedupTable dupCheck;
 		
 		
 		
@@ -956,10 +1120,8 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		
 
 
-		/** The submitted metric buffer */
-		protected final ChannelBuffer buffer;
-		/** The flush target where this buffer will flush to */
-		protected final SubmitterFlush flushTarget;
+		/** The number of puts traced since the last deep flush */
+		protected int unflushedTraces = 0;
 		
 		
 
@@ -968,17 +1130,15 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		 * Creates a new ExpressionResult
 		 * @param filterDups Indicates if the ER should track and filter dups
 		 * @param rootTags An optional map of root tags
-		 * @param buffer The submitted metric buffer
-		 * @param flushTarget The target the buffer will be flushed to
 		 */
-		ExpressionResult(final boolean filterDups, final Map<String, String> rootTags, final ChannelBuffer buffer, final SubmitterFlush flushTarget) {
-			this.buffer = buffer;
+		ExpressionResult(final boolean filterDups, final Map<String, String> rootTags) {
 			this.filterDups = filterDups;
-			this.flushTarget = flushTarget;
-			dupCheck = this.filterDups ? new NonBlockingHashSet<String>() : null;
+			dupCheck = this.filterDups ? new DedupTable() : null;
 			if(rootTags!=null && !rootTags.isEmpty()) {
 				for(final Map.Entry<String, String> tag: rootTags.entrySet()) {
-					this.rootTags.put(clean(tag.getKey()), clean(tag.getValue()));
+					final String key = clean(tag.getKey()), value = clean(tag.getValue());
+					this.rootTags.put(key, value);
+					renderedRootTags.add(key + "=" + value);
 				}
 			}
 		}
@@ -1034,8 +1194,9 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 			if(filterDups) {
 				dupCheck.clear();
 			}
-			if(buffer.readableBytes()>0) {
-				flushTarget.deepFlush();
+			if(unflushedTraces > 0) {
+				unflushedTraces = 0;
+				tsdbConnection.flush(isLogTraces());
 			}		
 		}
 		
@@ -1179,12 +1340,11 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		public ExpressionResult appendPut(final long timestamp) {
 			if(loaded.compareAndSet(true, false)) {
 				if(filterDups) {
-					final String key = rootTags.toString() + tags.toString() + metricName.toString() + timestamp;
-					if(dupCheck.add(key)) {
-						buffer.writeBytes(renderPut(timestamp).getBytes());
+					if(dupCheck.add(SeriesHash.seriesHash(metricName, rootTags, tags), SeriesHash.seriesHashLane2(metricName, rootTags, tags), timestamp)) {
+						encodePut(timestamp);
 					}
 				} else {
-					buffer.writeBytes(renderPut(timestamp).getBytes());
+					encodePut(timestamp);
 				}
 				reset();
 			}
@@ -1201,6 +1361,24 @@ public class TSDBSubmitterImpl implements TSDBSubmitter {
 		}
 		
 
+		/**
+		 * Traces a data point for this result through the connection, which encodes it directly into the calling thread's append buffer stripe.
+		 * The point is first offered to the connection's cardinality limiter, if one is configured.
+		 * @param timestamp The timestamp of the metric
+		 */
+		protected void encodePut(final long timestamp) {
+			final CardinalityLimiter limiter = tsdbConnection.limiter;
+			final Map<String, String> admitted = limiter==null ? tags : limiter.admit(SeriesHash.seriesHash(metricName, renderedRootTags, tags), metricName, tags);
+			if(admitted==null) return;
+			if(doubleValue) {
+				tsdbConnection.trace(timestamp, metricName, dValue, renderedRootTags, admitted);
+			} else {
+				tsdbConnection.trace(timestamp, metricName, lValue, renderedRootTags, admitted);
+			}
+			traceCount.increment();
+			unflushedTraces++;
+		}
+
 		/**
 		 * Renders an OpenTSDB telnet put text line to submit this result for the current timestamp 
 		 * @return the rendered metric put command
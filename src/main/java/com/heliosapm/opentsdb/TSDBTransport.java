@@ -0,0 +1,81 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * <p>Title: TSDBTransport</p>
+ * <p>Description: Defines the wire transport a {@link TSDBSubmitterConnection} uses to push buffered telnet puts to OpenTSDB</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.TSDBTransport</code></p>
+ */
+
+public interface TSDBTransport {
+	
+	/**
+	 * Connects the transport. Does nothing if already connected.
+	 * @throws RuntimeException if the connection fails
+	 */
+	public void connect();
+	
+	/**
+	 * Indicates if the transport is connected
+	 * @return true if connected, false otherwise
+	 */
+	public boolean isConnected();
+	
+	/**
+	 * Writes all the readable bytes in the passed buffer, advancing its reader index.
+	 * Implementations may complete the write asynchronously, but must have consumed the buffer
+	 * contents by the time this method returns so the caller can safely clear it.
+	 * When a write fails, the reader index must not be past the first byte that was not sent, 
+	 * so the caller can resend from there without duplicating what the server already received.
+	 * @param buffer The buffer to write
+	 * @throws IOException thrown if the transport is not connected or the write fails
+	 */
+	public void write(ChannelBuffer buffer) throws IOException;
+	
+	/**
+	 * Requests the version from the connected OpenTSDB instance
+	 * @return the OpenTSDB version text or a message describing why it could not be retrieved
+	 */
+	public String getVersion();
+	
+	/**
+	 * Returns the number of traces this transport has given up on, for example after exhausting retries or under a full buffer policy
+	 * @return the number of dropped traces
+	 */
+	public long getDroppedTraces();
+	
+	/**
+	 * Closes the transport
+	 */
+	public void close();
+
+}
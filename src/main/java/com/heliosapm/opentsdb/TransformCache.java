@@ -24,13 +24,29 @@
  */
 package com.heliosapm.opentsdb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.management.ObjectName;
 
+import org.cliffc.high_scale_lib.Counter;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
 /**
  * <p>Title: TransformCache</p>
- * <p>Description: A cache to store and look up linkages between JMX {@link ObjectName}s and JMX result transformers</p> 
+ * <p>Description: A cache to store and look up linkages between JMX {@link ObjectName}s and JMX result transformers</p>
+ * <p>Pattern transformers are compiled into an index by domain and by the first literal key property of the pattern, 
+ * so a miss only tests the few patterns that could apply rather than all of them. Patterns with a wildcard domain or 
+ * no literal key property are kept in fallback lists. Recent verdicts, including ObjectNames that match no transformer, 
+ * are held in a bounded LRU. The index is recompiled and the LRU cleared whenever a transformer is registered or removed.
+ * Where several patterns match, the earliest registered wins.</p> 
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.opentsdb.TransformCache</code></p>
@@ -42,7 +58,53 @@ public class TransformCache {
 	protected final NonBlockingHashMap<ObjectName, TSDBJMXResultTransformer> patternMatch = new  NonBlockingHashMap<ObjectName, TSDBJMXResultTransformer>(256);
 	/** Transforms keyed by concrete (non-pattern) object names */
 	protected final NonBlockingHashMap<ObjectName, TSDBJMXResultTransformer> exactMatch = new  NonBlockingHashMap<ObjectName, TSDBJMXResultTransformer>(256);
+	/** The registration sequence of each pattern, used to pick the earliest registered of several matches */
+	protected final NonBlockingHashMap<ObjectName, Long> patternSequence = new NonBlockingHashMap<ObjectName, Long>(256);
+	/** The pattern registration sequence */
+	protected final AtomicLong sequence = new AtomicLong(0L);
+	/** The compiled pattern index */
+	protected volatile PatternIndex index = new PatternIndex(Collections.<ObjectName, Long>emptyMap());
+	/** The LRU of recent pattern verdicts */
+	protected final Map<ObjectName, TSDBJMXResultTransformer> verdicts;
+	/** The number of verdict cache hits */
+	protected final Counter hits = new Counter();
+	/** The number of verdict cache misses */
+	protected final Counter misses = new Counter();
+	
+	/** The config property name for the maximum number of cached verdicts */
+	public static final String CONFIG_VERDICT_SIZE = "helios.opentsdb.transformcache.size";
+	/** The default maximum number of cached verdicts */
+	public static final int DEFAULT_VERDICT_SIZE = 8192;
+	
+	/** Cached in place of a transformer for ObjectNames that match no pattern */
+	private static final TSDBJMXResultTransformer NO_MATCH = new TSDBJMXResultTransformer() {
+		@Override
+		public Map<ObjectName, Number> transform(final ObjectName objectName, final Map<String, Object> attributes) {
+			return null;
+		}
+	};
+	
+	/**
+	 * Creates a new TransformCache with the verdict cache sized from system properties or the environment
+	 */
+	public TransformCache() {
+		this(ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_VERDICT_SIZE, DEFAULT_VERDICT_SIZE));
+	}
 	
+	/**
+	 * Creates a new TransformCache
+	 * @param verdictSize The maximum number of cached verdicts
+	 */
+	public TransformCache(final int verdictSize) {
+		if(verdictSize < 1) throw new IllegalArgumentException("Invalid verdict cache size [" + verdictSize + "]");
+		verdicts = Collections.synchronizedMap(new LinkedHashMap<ObjectName, TSDBJMXResultTransformer>(Math.min(verdictSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ObjectName, TSDBJMXResultTransformer> eldest) {
+				return size() > verdictSize;
+			}
+		});
+	}
 
 	/**
 	 * Registers a transformer
@@ -54,8 +116,12 @@ public class TransformCache {
 		if(objectName==null) throw new IllegalArgumentException("The passed ObjectName was null");
 		if(transformer==null) throw new IllegalArgumentException("The passed transformer was null");
 		if(objectName.isPattern()) {
-			if(!overwrite && patternMatch.containsKey(objectName)) throw new RuntimeException("A transformer is already registered for [" + objectName + "]");
-			patternMatch.put(objectName, transformer);
+			synchronized(patternSequence) {
+				if(!overwrite && patternMatch.containsKey(objectName)) throw new RuntimeException("A transformer is already registered for [" + objectName + "]");
+				patternMatch.put(objectName, transformer);
+				if(!patternSequence.containsKey(objectName)) patternSequence.put(objectName, sequence.incrementAndGet());
+				recompile();
+			}
 		} else {
 			if(!overwrite && exactMatch.containsKey(objectName)) throw new RuntimeException("A transformer is already registered for [" + objectName + "]");
 			exactMatch.put(objectName, transformer);
@@ -71,6 +137,36 @@ public class TransformCache {
 		register(objectName, transformer, false);
 	}
 	
+	/**
+	 * Removes the transformer registered for the passed ObjectName or pattern
+	 * @param objectName The ObjectName or pattern the transformer was registered for
+	 * @return the removed transformer or null if none was registered
+	 */
+	public TSDBJMXResultTransformer remove(final ObjectName objectName) {
+		if(objectName==null) throw new IllegalArgumentException("The passed ObjectName was null");
+		if(!objectName.isPattern()) return exactMatch.remove(objectName);
+		synchronized(patternSequence) {
+			final TSDBJMXResultTransformer removed = patternMatch.remove(objectName);
+			if(removed!=null) {
+				patternSequence.remove(objectName);
+				recompile();
+			}
+			return removed;
+		}
+	}
+	
+	/**
+	 * Recompiles the pattern index and clears the verdict cache. Must be called holding the lock on {@link #patternSequence}.
+	 * The new index is published and the cache cleared holding the verdict cache's lock, so a verdict from the old index cannot be cached after the clear.
+	 */
+	protected void recompile() {
+		final PatternIndex newIndex = new PatternIndex(new HashMap<ObjectName, Long>(patternSequence));
+		synchronized(verdicts) {
+			index = newIndex;
+			verdicts.clear();
+		}
+	}
+	
 	/**
 	 * Tries to find a transformer for the passed ObjectName
 	 * @param objectName The ObjectName to get a transformer for
@@ -81,21 +177,200 @@ public class TransformCache {
 		if(objectName.isPattern()) {
 			return patternMatch.get(objectName);
 		}
-		ObjectName pmatch = null;
 		TSDBJMXResultTransformer transformer = exactMatch.get(objectName);
-		if(transformer==null) {
-			for(final ObjectName pattern: patternMatch.keySet()) {
-				if(pattern.apply(objectName)) {
-					pmatch = pattern;
-					break;
-				}
-			}
-			if(pmatch!=null) {
-				transformer = patternMatch.get(pmatch);
-				exactMatch.put(objectName, transformer);
+		if(transformer!=null) return transformer;
+		final PatternIndex _index = index;
+		transformer = verdicts.get(objectName);
+		if(transformer!=null) {
+			hits.increment();
+			return transformer==NO_MATCH ? null : transformer;
+		}
+		misses.increment();
+		final ObjectName pmatch = _index.match(objectName);
+		transformer = pmatch==null ? null : patternMatch.get(pmatch);
+		// only cache if the index has not been recompiled in the meantime. 
+		// checked under the lock recompile() clears with, or a recompile between the check and the put would leave a stale verdict.
+		synchronized(verdicts) {
+			if(_index==index) {
+				verdicts.put(objectName, transformer==null ? NO_MATCH : transformer);
 			}
 		}
 		return transformer;
 	}
 	
+	/**
+	 * Returns the number of verdict cache hits
+	 * @return the number of verdict cache hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Returns the number of verdict cache misses
+	 * @return the number of verdict cache misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Returns the number of cached verdicts
+	 * @return the number of cached verdicts
+	 */
+	public int getVerdictCount() {
+		return verdicts.size();
+	}
+	
+	/**
+	 * <p>Title: PatternIndex</p>
+	 * <p>Description: An immutable index of ObjectName patterns by domain and first literal key property</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.TransformCache.PatternIndex</code></p>
+	 */
+	static class PatternIndex {
+		/** Patterns with a literal domain, keyed by domain */
+		final Map<String, DomainIndex> byDomain = new HashMap<String, DomainIndex>();
+		/** Patterns with a wildcard domain */
+		final DomainIndex anyDomain = new DomainIndex();
+		
+		/**
+		 * Creates a new PatternIndex
+		 * @param patterns The patterns to index and their registration sequence
+		 */
+		PatternIndex(final Map<ObjectName, Long> patterns) {
+			final List<Map.Entry<ObjectName, Long>> ordered = new ArrayList<Map.Entry<ObjectName, Long>>(patterns.entrySet());
+			Collections.sort(ordered, new java.util.Comparator<Map.Entry<ObjectName, Long>>() {
+				@Override
+				public int compare(final Map.Entry<ObjectName, Long> a, final Map.Entry<ObjectName, Long> b) {
+					return a.getValue().compareTo(b.getValue());
+				}
+			});
+			for(Map.Entry<ObjectName, Long> entry: ordered) {
+				final ObjectName pattern = entry.getKey();
+				DomainIndex di;
+				if(pattern.isDomainPattern()) {
+					di = anyDomain;
+				} else {
+					di = byDomain.get(pattern.getDomain());
+					if(di==null) {
+						di = new DomainIndex();
+						byDomain.put(pattern.getDomain(), di);
+					}
+				}
+				di.add(pattern, entry.getValue());
+			}
+		}
+		
+		/**
+		 * Finds the earliest registered pattern matching the passed ObjectName
+		 * @param objectName The ObjectName to match
+		 * @return the matching pattern or null if none match
+		 */
+		ObjectName match(final ObjectName objectName) {
+			final DomainIndex di = byDomain.get(objectName.getDomain());
+			final Candidate a = di==null ? null : di.match(objectName);
+			final Candidate b = anyDomain.match(objectName);
+			if(a==null) return b==null ? null : b.pattern;
+			if(b==null) return a.pattern;
+			return a.seq <= b.seq ? a.pattern : b.pattern;
+		}
+	}
+	
+	/**
+	 * <p>Title: Candidate</p>
+	 * <p>Description: An indexed pattern and its registration sequence</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.TransformCache.Candidate</code></p>
+	 */
+	static class Candidate {
+		/** The pattern */
+		final ObjectName pattern;
+		/** The registration sequence */
+		final long seq;
+		
+		/**
+		 * Creates a new Candidate
+		 * @param pattern The pattern
+		 * @param seq The registration sequence
+		 */
+		Candidate(final ObjectName pattern, final long seq) {
+			this.pattern = pattern;
+			this.seq = seq;
+		}
+	}
+	
+	/**
+	 * <p>Title: DomainIndex</p>
+	 * <p>Description: The patterns of one domain, indexed by the key and value of their first literal key property. 
+	 * Candidates in each list are in registration order.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.TransformCache.DomainIndex</code></p>
+	 */
+	static class DomainIndex {
+		/** Candidates keyed by property key, then property value */
+		final Map<String, Map<String, List<Candidate>>> byProperty = new HashMap<String, Map<String, List<Candidate>>>();
+		/** Candidates with no literal key property */
+		final List<Candidate> unkeyed = new ArrayList<Candidate>();
+		
+		/**
+		 * Adds a pattern
+		 * @param pattern The pattern
+		 * @param seq The pattern's registration sequence
+		 */
+		void add(final ObjectName pattern, final long seq) {
+			final Candidate c = new Candidate(pattern, seq);
+			for(Map.Entry<String, String> prop: pattern.getKeyPropertyList().entrySet()) {
+				final String value = prop.getValue();
+				if(value.indexOf('*')!=-1 || value.indexOf('?')!=-1) continue;
+				Map<String, List<Candidate>> byValue = byProperty.get(prop.getKey());
+				if(byValue==null) {
+					byValue = new HashMap<String, List<Candidate>>();
+					byProperty.put(prop.getKey(), byValue);
+				}
+				List<Candidate> list = byValue.get(value);
+				if(list==null) {
+					list = new ArrayList<Candidate>(2);
+					byValue.put(value, list);
+				}
+				list.add(c);
+				return;
+			}
+			unkeyed.add(c);
+		}
+		
+		/**
+		 * Finds the earliest registered pattern in this index matching the passed ObjectName
+		 * @param objectName The ObjectName to match
+		 * @return the matching candidate or null if none match
+		 */
+		Candidate match(final ObjectName objectName) {
+			Candidate best = first(unkeyed, objectName, null);
+			for(Map.Entry<String, Map<String, List<Candidate>>> entry: byProperty.entrySet()) {
+				final String value = objectName.getKeyProperty(entry.getKey());
+				if(value==null) continue;
+				final List<Candidate> list = entry.getValue().get(value);
+				if(list!=null) best = first(list, objectName, best);
+			}
+			return best;
+		}
+		
+		/**
+		 * Returns the earliest registered candidate in the passed list that matches and precedes the current best
+		 * @param list The candidates in registration order
+		 * @param objectName The ObjectName to match
+		 * @param best The current best candidate or null
+		 * @return the new best candidate or null
+		 */
+		private static Candidate first(final List<Candidate> list, final ObjectName objectName, final Candidate best) {
+			for(Candidate c: list) {
+				if(best!=null && c.seq >= best.seq) break;
+				if(c.pattern.apply(objectName)) return c;
+			}
+			return best;
+		}
+	}
 }
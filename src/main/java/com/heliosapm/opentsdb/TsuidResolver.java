@@ -0,0 +1,503 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2014, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.Response;
+
+/**
+ * <p>Title: TsuidResolver</p>
+ * <p>Description: Asynchronously resolves the TSUIDs of metric/tag combinations through the OpenTSDB <b><code>/api/query/last</code></b> 
+ * endpoint, batching pending lookups into as few requests as possible.</p>
+ * <p>Lookups wait up to the batch delay to be batched, and up to the batch size are sent as the <b><code>timeseries</code></b> 
+ * of one request. The last data point endpoint reports each matching series separately with its resolved tags, so a lookup 
+ * only resolves to the series with exactly its tags, and the data scanned is bounded by the back scan hours rather than 
+ * aggregated over a query range. Concurrent lookups for the same series share one future. Resolved TSUIDs are kept in a guava cache 
+ * bounded by the configured cache spec, and can be saved to and warm-loaded from a local snapshot file.</p>
+ * <p>Since OpenTSDB answers a whole request with a 400 when one series names an unknown metric or tag, a batch failed with a 400 
+ * is split in half and each half retried, so one bad series only fails itself. A 5xx or I/O failure says nothing about the series, 
+ * so the same batch is retried after an exponential backoff, up to the configured number of retries.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.TsuidResolver</code></p>
+ */
+
+public class TsuidResolver {
+	/** The connection supplying the http client and base URL */
+	protected final TSDBSubmitterConnection conn;
+	/** The resolved TSUIDs keyed by series key */
+	protected final Cache<String, String> cache;
+	/** The in-flight lookups keyed by series key */
+	protected final NonBlockingHashMap<String, SettableFuture<String>> inflight = new NonBlockingHashMap<String, SettableFuture<String>>();
+	/** The series keys waiting to be sent */
+	protected final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+	/** The number of series keys waiting to be sent */
+	protected final AtomicInteger pendingCount = new AtomicInteger(0);
+	/** Set while a batch dispatch is scheduled */
+	protected final AtomicBoolean scheduled = new AtomicBoolean(false);
+	/** The maximum number of sub queries per request */
+	protected final int batchSize;
+	/** The time in ms. a lookup waits to be batched */
+	protected final long batchDelay;
+	/** The number of hours back to look for the last data point of a series */
+	protected final int backScan;
+	/** The number of times a batch is retried after a 5xx or I/O failure */
+	protected final int retries;
+	/** The delay in ms. before the first retry, doubled for each further retry */
+	protected final long retryDelay;
+	/** The number of requests sent */
+	protected final Counter requests = new Counter();
+	/** The number of lookups resolved from the cache */
+	protected final Counter cacheHits = new Counter();
+	
+	private static final Logger LOG = LoggerFactory.getLogger(TsuidResolver.class);
+	
+	/** The config property name for the TSUID cache spec */
+	public static final String CONFIG_CACHE_SPEC = "helios.opentsdb.tsuid.cachespec";
+	/** The default TSUID cache spec */
+	public static final String DEFAULT_CACHE_SPEC = "maximumSize=50000,expireAfterWrite=24h";
+	/** The config property name for the maximum number of sub queries per request */
+	public static final String CONFIG_BATCH_SIZE = "helios.opentsdb.tsuid.batchsize";
+	/** The default maximum number of sub queries per request */
+	public static final int DEFAULT_BATCH_SIZE = 32;
+	/** The config property name for the time in ms. a lookup waits to be batched */
+	public static final String CONFIG_BATCH_DELAY = "helios.opentsdb.tsuid.batchdelay";
+	/** The default time in ms. a lookup waits to be batched */
+	public static final long DEFAULT_BATCH_DELAY = 50L;
+	/** The config property name for the number of hours back to look for the last data point of a series */
+	public static final String CONFIG_BACK_SCAN = "helios.opentsdb.tsuid.backscan";
+	/** The default number of hours back to look for the last data point of a series */
+	public static final int DEFAULT_BACK_SCAN = 1;
+	/** The config property name for the number of times a batch is retried after a 5xx or I/O failure */
+	public static final String CONFIG_RETRIES = "helios.opentsdb.tsuid.retries";
+	/** The default number of times a batch is retried after a 5xx or I/O failure */
+	public static final int DEFAULT_RETRIES = 3;
+	/** The config property name for the delay in ms. before the first retry */
+	public static final String CONFIG_RETRY_DELAY = "helios.opentsdb.tsuid.retrydelay";
+	/** The default delay in ms. before the first retry */
+	public static final long DEFAULT_RETRY_DELAY = 500L;
+	/** The config property name for the snapshot file the cache is loaded from and saved to */
+	public static final String CONFIG_SNAPSHOT = "helios.opentsdb.tsuid.snapshot";
+	
+	/**
+	 * Creates a new TsuidResolver configured from system properties or the environment
+	 * @param conn The connection supplying the http client and base URL
+	 */
+	public TsuidResolver(final TSDBSubmitterConnection conn) {
+		this(conn, ConfigurationHelper.getSystemThenEnvProperty(CONFIG_CACHE_SPEC, DEFAULT_CACHE_SPEC),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_BATCH_DELAY, DEFAULT_BATCH_DELAY),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_BACK_SCAN, DEFAULT_BACK_SCAN),
+			ConfigurationHelper.getIntSystemThenEnvProperty(CONFIG_RETRIES, DEFAULT_RETRIES),
+			ConfigurationHelper.getLongSystemThenEnvProperty(CONFIG_RETRY_DELAY, DEFAULT_RETRY_DELAY));
+	}
+	
+	/**
+	 * Creates a new TsuidResolver
+	 * @param conn The connection supplying the http client and base URL
+	 * @param cacheSpec The guava cache spec of the TSUID cache
+	 * @param batchSize The maximum number of sub queries per request
+	 * @param batchDelay The time in ms. a lookup waits to be batched
+	 * @param backScan The number of hours back to look for the last data point of a series
+	 * @param retries The number of times a batch is retried after a 5xx or I/O failure
+	 * @param retryDelay The delay in ms. before the first retry, doubled for each further retry
+	 */
+	public TsuidResolver(final TSDBSubmitterConnection conn, final String cacheSpec, final int batchSize, final long batchDelay, final int backScan, final int retries, final long retryDelay) {
+		if(batchSize < 1) throw new IllegalArgumentException("Invalid batch size [" + batchSize + "]");
+		if(batchDelay < 0) throw new IllegalArgumentException("Invalid batch delay [" + batchDelay + "]");
+		if(backScan < 1) throw new IllegalArgumentException("Invalid back scan [" + backScan + "]");
+		if(retries < 0) throw new IllegalArgumentException("Invalid retries [" + retries + "]");
+		if(retryDelay < 1) throw new IllegalArgumentException("Invalid retry delay [" + retryDelay + "]");
+		this.conn = conn;
+		this.batchSize = batchSize;
+		this.batchDelay = batchDelay;
+		this.backScan = backScan;
+		this.retries = retries;
+		this.retryDelay = retryDelay;
+		cache = CacheBuilder.from(cacheSpec).build();
+	}
+	
+	/**
+	 * Returns the http client used for lookups
+	 * @return the http client
+	 */
+	protected AsyncHttpClient client() {
+		return conn.httpClient;
+	}
+	
+	/**
+	 * Returns the base URL of the OpenTSDB http API
+	 * @return the base URL
+	 */
+	protected String baseURL() {
+		return conn.baseURL;
+	}
+	
+	/**
+	 * Computes the series key of a metric name and tags. Tags are sorted, so the key does not depend on map order.
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return the series key, which is also the query expression of the series
+	 */
+	public static String key(final String metric, final Map<String, String> tags) {
+		final StringBuilder b = new StringBuilder(metric.trim()).append('{');
+		for(Map.Entry<String, String> tag: new TreeMap<String, String>(tags).entrySet()) {
+			b.append(tag.getKey()).append('=').append(tag.getValue()).append(',');
+		}
+		b.setCharAt(b.length() - 1, '}');
+		return b.toString();
+	}
+	
+	/**
+	 * Resolves the TSUID of a series
+	 * @param metric The metric name
+	 * @param tags The tags, at least one of which is required
+	 * @return a future of the TSUID
+	 */
+	public ListenableFuture<String> resolve(final String metric, final Map<String, String> tags) {
+		if(metric==null || metric.trim().isEmpty()) throw new IllegalArgumentException("The passed metric was null or empty");
+		if(tags==null || tags.isEmpty()) throw new IllegalArgumentException("At least one tag is required");
+		final String key = key(metric, tags);
+		final String tsuid = cache.getIfPresent(key);
+		if(tsuid!=null) {
+			cacheHits.increment();
+			return Futures.immediateFuture(tsuid);
+		}
+		final SettableFuture<String> future = SettableFuture.create();
+		final SettableFuture<String> existing = inflight.putIfAbsent(key, future);
+		if(existing!=null) return existing;
+		final String resolved = cache.getIfPresent(key);
+		if(resolved!=null) {
+			// resolved between the cache check and the in-flight registration
+			inflight.remove(key, future);
+			cacheHits.increment();
+			future.set(resolved);
+			return future;
+		}
+		pending.add(key);
+		if(pendingCount.incrementAndGet() >= batchSize) {
+			FlushPolicy.getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			});
+		} else if(scheduled.compareAndSet(false, true)) {
+			FlushPolicy.getTimer().newTimeout(new TimerTask() {
+				@Override
+				public void run(final Timeout timeout) throws Exception {
+					scheduled.set(false);
+					FlushPolicy.getExecutor().execute(new Runnable() {
+						@Override
+						public void run() {
+							dispatch();
+						}
+					});
+				}
+			}, batchDelay, TimeUnit.MILLISECONDS);
+		}
+		return future;
+	}
+	
+	/**
+	 * Sends all pending lookups in batches of up to the batch size
+	 */
+	protected void dispatch() {
+		while(true) {
+			final List<String> keys = new ArrayList<String>(batchSize);
+			String key;
+			while(keys.size() < batchSize && (key = pending.poll())!=null) {
+				pendingCount.decrementAndGet();
+				keys.add(key);
+			}
+			if(keys.isEmpty()) return;
+			query(keys, 0);
+		}
+	}
+	
+	/**
+	 * Sends one last data point request for the passed series keys
+	 * @param keys The series keys
+	 * @param attempt The number of prior attempts of this batch that failed with a 5xx or I/O failure
+	 */
+	protected void query(final List<String> keys, final int attempt) {
+		try {
+			final StringBuilder url = new StringBuilder(baseURL()).append("api/query/last?resolve=true&back_scan=").append(backScan);
+			for(String key: keys) {
+				url.append("&timeseries=").append(URLEncoder.encode(key, "UTF-8"));
+			}
+			requests.increment();
+			client().prepareGet(url.toString()).execute(new AsyncCompletionHandler<Object>() {
+				@Override
+				public Object onCompleted(final Response response) throws Exception {
+					final int status = response.getStatusCode();
+					if(status >= 200 && status < 300) {
+						try {
+							onResults(keys, response.getResponseBody("UTF-8"));
+						} catch (Exception ex) {
+							fail(keys, ex);
+						}
+					} else {
+						final RuntimeException ex = new RuntimeException("TSUID lookup failed: " + status + " " + response.getStatusText());
+						if(status==400) onBadRequest(keys, ex);
+						else if(status >= 500) retry(keys, attempt, ex);
+						else fail(keys, ex);
+					}
+					return null;
+				}
+				@Override
+				public void onThrowable(final Throwable t) {
+					retry(keys, attempt, t);
+				}
+			});
+		} catch (Exception ex) {
+			fail(keys, ex);
+		}
+	}
+	
+	/**
+	 * Completes the lookups of a successful request. 
+	 * Each TSUID is cached before its lookup leaves the in-flight map, so a concurrent lookup of the same series finds one or the other.
+	 * @param keys The series keys that were requested
+	 * @param json The last data point response
+	 */
+	protected void onResults(final List<String> keys, final String json) {
+		final JSONArray results = new JSONArray(json);
+		final Map<String, String> byKey = new TreeMap<String, String>();
+		for(int i = 0; i < results.length(); i++) {
+			final JSONObject result = results.getJSONObject(i);
+			final JSONObject jtags = result.optJSONObject("tags");
+			if(jtags==null || !result.has("metric") || !result.has("tsuid")) continue;
+			final Map<String, String> tags = new TreeMap<String, String>();
+			for(Iterator<?> iter = jtags.keys(); iter.hasNext();) {
+				final String k = iter.next().toString();
+				tags.put(k, jtags.getString(k));
+			}
+			if(tags.isEmpty()) continue;
+			byKey.put(key(result.getString("metric"), tags), result.getString("tsuid"));
+		}
+		for(String key: keys) {
+			final String tsuid = byKey.get(key);
+			if(tsuid!=null) cache.put(key, tsuid);
+			final SettableFuture<String> future = inflight.remove(key);
+			if(future==null) continue;
+			if(tsuid==null) {
+				future.setException(new RuntimeException("No data points in the last " + backScan + " hours for [" + key + "]"));
+			} else {
+				future.set(tsuid);
+			}
+		}
+	}
+	
+	/**
+	 * Handles a request rejected as bad by splitting the batch in half and retrying each half, 
+	 * or failing the lookup if the batch is a single series
+	 * @param keys The series keys that were requested
+	 * @param t The failure cause
+	 */
+	protected void onBadRequest(final List<String> keys, final Throwable t) {
+		if(keys.size()==1) {
+			fail(keys, t);
+			return;
+		}
+		final int half = keys.size() / 2;
+		query(new ArrayList<String>(keys.subList(0, half)), 0);
+		query(new ArrayList<String>(keys.subList(half, keys.size())), 0);
+	}
+	
+	/**
+	 * Retries a batch after a 5xx or I/O failure once the backoff for the attempt has elapsed, 
+	 * or fails its lookups if the retries are exhausted
+	 * @param keys The series keys that were requested
+	 * @param attempt The number of prior failed attempts
+	 * @param t The failure cause
+	 */
+	protected void retry(final List<String> keys, final int attempt, final Throwable t) {
+		if(attempt >= retries) {
+			fail(keys, t);
+			return;
+		}
+		final long delay = retryDelay << Math.min(attempt, 16);
+		LOG.debug("TSUID lookup of [{}] series failed, retrying in [{}] ms.", keys.size(), delay, t);
+		FlushPolicy.getTimer().newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				FlushPolicy.getExecutor().execute(new Runnable() {
+					@Override
+					public void run() {
+						query(keys, attempt + 1);
+					}
+				});
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Fails the passed lookups
+	 * @param keys The series keys of the lookups
+	 * @param t The failure cause
+	 */
+	protected void fail(final List<String> keys, final Throwable t) {
+		LOG.debug("TSUID lookup of [{}] series failed", keys.size(), t);
+		for(String key: keys) {
+			final SettableFuture<String> future = inflight.remove(key);
+			if(future!=null) future.setException(t);
+		}
+	}
+	
+	/**
+	 * Warm-loads the cache from a snapshot file of tab separated series keys and TSUIDs
+	 * @param file The snapshot file
+	 * @return the number of TSUIDs loaded
+	 */
+	public int load(final File file) {
+		if(file==null || !file.canRead()) return 0;
+		BufferedReader reader = null;
+		int loaded = 0;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), TSDBSubmitterConnection.CHARSET));
+			String line;
+			while((line = reader.readLine())!=null) {
+				final int index = line.indexOf('\t');
+				if(index < 1 || index==line.length() - 1) continue;
+				cache.put(line.substring(0, index), line.substring(index + 1));
+				loaded++;
+			}
+			LOG.info("Loaded [{}] TSUIDs from [{}]", loaded, file);
+		} catch (Exception ex) {
+			LOG.warn("Failed to load TSUID snapshot [{}]", file, ex);
+		} finally {
+			if(reader!=null) try { reader.close(); } catch (Exception x) { /* No Op */ }
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Saves the cache to a snapshot file of tab separated series keys and TSUIDs
+	 * @param file The snapshot file
+	 * @return the number of TSUIDs saved
+	 */
+	public int save(final File file) {
+		if(file==null) return 0;
+		BufferedWriter writer = null;
+		int saved = 0;
+		try {
+			final File tmp = new File(file.getPath() + ".tmp");
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), TSDBSubmitterConnection.CHARSET));
+			for(Map.Entry<String, String> entry: cache.asMap().entrySet()) {
+				writer.write(entry.getKey());
+				writer.write('\t');
+				writer.write(entry.getValue());
+				writer.newLine();
+				saved++;
+			}
+			writer.close();
+			writer = null;
+			if(file.exists() && !file.delete()) throw new RuntimeException("Failed to replace [" + file + "]");
+			if(!tmp.renameTo(file)) throw new RuntimeException("Failed to rename [" + tmp + "] to [" + file + "]");
+		} catch (Exception ex) {
+			LOG.warn("Failed to save TSUID snapshot [{}]", file, ex);
+		} finally {
+			if(writer!=null) try { writer.close(); } catch (Exception x) { /* No Op */ }
+		}
+		return saved;
+	}
+	
+	/**
+	 * Returns the configured snapshot file
+	 * @return the snapshot file, or null if none is configured
+	 */
+	public static File configuredSnapshot() {
+		final String path = ConfigurationHelper.getSystemThenEnvProperty(CONFIG_SNAPSHOT, null);
+		return path==null || path.trim().isEmpty() ? null : new File(path.trim());
+	}
+	
+	/**
+	 * Returns the resolved TSUID cache
+	 * @return the TSUID cache
+	 */
+	public Cache<String, String> getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Returns the number of lookup requests sent
+	 * @return the number of requests
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+	
+	/**
+	 * Returns the number of lookups resolved from the cache
+	 * @return the number of cache hits
+	 */
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "TsuidResolver [cached:" + cache.size() + ", inflight:" + inflight.size() + ", requests:" + getRequests() + ", cacheHits:" + getCacheHits() + "]";
+	}
+}
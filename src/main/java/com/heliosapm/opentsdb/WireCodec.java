@@ -0,0 +1,583 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import com.heliosapm.jmx.util.helpers.ConfigurationHelper;
+
+/**
+ * <p>Title: WireCodec</p>
+ * <p>Description: Encodes data points into a connection's append buffer in the line protocol of a metrics backend,
+ * so the same collectors can write to OpenTSDB, Graphite or InfluxDB without a translating proxy.</p>
+ * <p>All encoders write straight into the {@link ChannelBuffer} with the number and UTF-8 routines of {@link PutEncoder},
+ * applying the backend's own naming and escaping rules character by character, so encoding does not allocate.
+ * Root tags arrive either pre-rendered as <b><code>k=v</code></b> strings or as a map, and are split and escaped the same as other tags.
+ * Timestamps below 10<sup>11</sup> are taken to be in seconds and others in ms., and each codec converts them to its backend's unit.
+ * A codec may skip a point its backend cannot represent, such as a NaN in InfluxDB.</p>
+ * <p>The codec is chosen with {@link #CONFIG_CODEC}, either one of the built in names or the class name of a subclass with a public no arg constructor.
+ * Prometheus has no push line protocol, so its text format is not a selectable codec: {@link PrometheusCodec} only renders
+ * the {@link PrometheusEndpoint} scrape.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.opentsdb.WireCodec</code></p>
+ */
+
+public abstract class WireCodec {
+	/** The config property name for the wire codec: <b><code>opentsdb</code></b>, <b><code>graphite</code></b>,
+	 * <b><code>influx</code></b> or a {@link WireCodec} class name */
+	public static final String CONFIG_CODEC = "helios.opentsdb.codec";
+	/** The default wire codec */
+	public static final String DEFAULT_CODEC = "opentsdb";
+
+	/** The OpenTSDB telnet <b><code>put</code></b> codec */
+	public static final WireCodec OPENTSDB = new OpenTSDBCodec();
+	/** The Graphite plaintext codec, using Graphite 1.1 tagged series names */
+	public static final WireCodec GRAPHITE = new GraphiteCodec();
+	/** The InfluxDB line protocol codec */
+	public static final WireCodec INFLUX = new InfluxCodec();
+	/** The Prometheus text exposition renderer used by the {@link PrometheusEndpoint} scrape */
+	static final WireCodec PROMETHEUS = new PrometheusCodec();
+
+	/** Timestamps below this are taken to be in seconds */
+	static final long MAX_SECONDS = 100000000000L;
+
+	/**
+	 * Returns the codec configured from system properties or the environment
+	 * @return the configured codec
+	 */
+	public static WireCodec configured() {
+		return forName(ConfigurationHelper.getSystemThenEnvProperty(CONFIG_CODEC, DEFAULT_CODEC));
+	}
+
+	/**
+	 * Returns the codec for the passed name
+	 * @param name A built in codec name or the class name of a {@link WireCodec} subclass
+	 * @return the codec
+	 */
+	public static WireCodec forName(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed codec name was null or empty");
+		final String n = name.trim();
+		if("opentsdb".equalsIgnoreCase(n)) return OPENTSDB;
+		if("graphite".equalsIgnoreCase(n)) return GRAPHITE;
+		if("influx".equalsIgnoreCase(n) || "influxdb".equalsIgnoreCase(n)) return INFLUX;
+		try {
+			return Class.forName(n, true, WireCodec.class.getClassLoader()).asSubclass(WireCodec.class).getDeclaredConstructor().newInstance();
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid codec [" + n + "]", ex);
+		}
+	}
+
+	/**
+	 * Returns the codec name
+	 * @return the codec name
+	 */
+	public abstract String getName();
+
+	/**
+	 * Indicates if the codec writes OpenTSDB put lines, so encoded series prefixes can be cached and the
+	 * OpenTSDB HTTP API and telnet commands can be used
+	 * @return true for OpenTSDB put lines
+	 */
+	public boolean isOpenTSDB() {
+		return false;
+	}
+
+	/**
+	 * Encodes one data point line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param isDouble true if the value is the double value, false if it is the long value
+	 * @param longValue The long value
+	 * @param doubleValue The double value
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	protected abstract void encode(ChannelBuffer buffer, CharSequence metric, long timestamp, boolean isDouble, long longValue, double doubleValue,
+			Collection<String> rawTags, Map<String, String> rootTags, Map<String, String> tags);
+
+	/**
+	 * Encodes a long value data point line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param value The value
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags Optional tags
+	 */
+	public final void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final long value, final Collection<String> rawTags, final Map<String, String> tags) {
+		encode(buffer, metric, timestamp, false, value, 0D, rawTags, null, tags);
+	}
+
+	/**
+	 * Encodes a double value data point line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param value The value
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param tags Optional tags
+	 */
+	public final void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final double value, final Collection<String> rawTags, final Map<String, String> tags) {
+		encode(buffer, metric, timestamp, true, 0L, value, rawTags, null, tags);
+	}
+
+	/**
+	 * Encodes a long value data point line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param value The value
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	public final void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final long value, final Map<String, String> rootTags, final Map<String, String> tags) {
+		encode(buffer, metric, timestamp, false, value, 0D, null, rootTags, tags);
+	}
+
+	/**
+	 * Encodes a double value data point line
+	 * @param buffer The buffer to write into
+	 * @param metric The metric name
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @param value The value
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 */
+	public final void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final double value, final Map<String, String> rootTags, final Map<String, String> tags) {
+		encode(buffer, metric, timestamp, true, 0L, value, null, rootTags, tags);
+	}
+
+	/**
+	 * Returns the passed timestamp in ms.
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @return the timestamp in ms.
+	 */
+	static long toMillis(final long timestamp) {
+		return timestamp < MAX_SECONDS ? timestamp * 1000L : timestamp;
+	}
+
+	/**
+	 * Returns the passed timestamp in seconds
+	 * @param timestamp The timestamp in seconds or ms.
+	 * @return the timestamp in seconds
+	 */
+	static long toSeconds(final long timestamp) {
+		return timestamp < MAX_SECONDS ? timestamp : timestamp / 1000L;
+	}
+
+	/**
+	 * Writes one tag with the codec's separator, naming and escaping rules
+	 * @param buffer The buffer to write into
+	 * @param key The stringy holding the tag key
+	 * @param keyStart The start index of the key
+	 * @param keyEnd The end index of the key, exclusive
+	 * @param value The stringy holding the tag value
+	 * @param valueStart The start index of the value
+	 * @param valueEnd The end index of the value, exclusive
+	 * @param first true if this is the first tag written
+	 * @return true if the tag was written, false if it was skipped
+	 */
+	protected abstract boolean writeTag(ChannelBuffer buffer, CharSequence key, int keyStart, int keyEnd,
+			CharSequence value, int valueStart, int valueEnd, boolean first);
+
+	/**
+	 * Writes the raw root tags, root tags and tags through {@link #writeTag(ChannelBuffer, CharSequence, int, int, CharSequence, int, int, boolean)},
+	 * splitting each raw tag at its first <b><code>=</code></b>
+	 * @param buffer The buffer to write into
+	 * @param rawTags Optional pre-rendered <b><code>k=v</code></b> root tags
+	 * @param rootTags Optional root tags
+	 * @param tags Optional tags
+	 * @return the number of tags written
+	 */
+	protected int writeTags(final ChannelBuffer buffer, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+		int written = 0;
+		if(rawTags!=null) {
+			for(String tag: rawTags) {
+				final int eq = tag.indexOf('=');
+				if(eq < 1) continue;
+				if(writeTag(buffer, tag, 0, eq, tag, eq + 1, tag.length(), written==0)) written++;
+			}
+		}
+		if(rootTags!=null) {
+			for(Map.Entry<String, String> tag: rootTags.entrySet()) {
+				final String k = tag.getKey(), v = tag.getValue();
+				if(k==null || v==null) continue;
+				if(writeTag(buffer, k, 0, k.length(), v, 0, v.length(), written==0)) written++;
+			}
+		}
+		if(tags!=null) {
+			for(Map.Entry<String, String> tag: tags.entrySet()) {
+				final String k = tag.getKey(), v = tag.getValue();
+				if(k==null || v==null) continue;
+				if(writeTag(buffer, k, 0, k.length(), v, 0, v.length(), written==0)) written++;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Returns the index of the first non whitespace character in the range
+	 * @param cs The stringy
+	 * @param start The start index
+	 * @param end The end index, exclusive
+	 * @return the trimmed start index
+	 */
+	static int trimStart(final CharSequence cs, int start, final int end) {
+		while(start < end && cs.charAt(start) <= ' ') start++;
+		return start;
+	}
+
+	/**
+	 * Returns the index after the last non whitespace character in the range
+	 * @param cs The stringy
+	 * @param start The start index
+	 * @param end The end index, exclusive
+	 * @return the trimmed end index
+	 */
+	static int trimEnd(final CharSequence cs, final int start, int end) {
+		while(end > start && cs.charAt(end - 1) <= ' ') end--;
+		return end;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "WireCodec [" + getName() + "]";
+	}
+
+	/**
+	 * <p>Title: OpenTSDBCodec</p>
+	 * <p>Description: Writes OpenTSDB telnet <b><code>put</code></b> lines through {@link PutEncoder}. Pre-rendered root tags are written as is
+	 * and other tags are cleaned the same as {@link TSDBSubmitterImpl#clean(CharSequence)}.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.WireCodec.OpenTSDBCodec</code></p>
+	 */
+	public static class OpenTSDBCodec extends WireCodec {
+		@Override
+		public String getName() {
+			return "opentsdb";
+		}
+
+		@Override
+		public boolean isOpenTSDB() {
+			return true;
+		}
+
+		@Override
+		protected void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final boolean isDouble, final long longValue,
+				final double doubleValue, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			PutEncoder.writeHeader(buffer, metric, timestamp);
+			if(isDouble) PutEncoder.writeDouble(buffer, doubleValue);
+			else PutEncoder.writeLong(buffer, longValue);
+			PutEncoder.writeRawTags(buffer, rawTags);
+			writeTags(buffer, null, rootTags, tags);
+			PutEncoder.writeEOL(buffer);
+		}
+
+		@Override
+		protected boolean writeTag(final ChannelBuffer buffer, final CharSequence key, final int keyStart, final int keyEnd,
+				final CharSequence value, final int valueStart, final int valueEnd, final boolean first) {
+			buffer.writeByte(' ');
+			PutEncoder.writeCleaned(buffer, key, keyStart, keyEnd);
+			buffer.writeByte('=');
+			PutEncoder.writeCleaned(buffer, value, valueStart, valueEnd);
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: GraphiteCodec</p>
+	 * <p>Description: Writes Graphite plaintext lines, <b><code>&lt;metric&gt;;k=v;... &lt;value&gt; &lt;seconds&gt;</code></b>,
+	 * with tags in the Graphite 1.1 tagged series syntax. Whitespace and <b><code>;</code></b> are replaced with <b><code>_</code></b> everywhere,
+	 * as are <b><code>!^=~</code></b> in tag keys and a leading <b><code>~</code></b> in tag values. Empty tag values and non finite values are skipped.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.WireCodec.GraphiteCodec</code></p>
+	 */
+	public static class GraphiteCodec extends WireCodec {
+		@Override
+		public String getName() {
+			return "graphite";
+		}
+
+		@Override
+		protected void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final boolean isDouble, final long longValue,
+				final double doubleValue, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			if(isDouble && (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))) return;
+			final int end = trimEnd(metric, 0, metric.length());
+			for(int i = trimStart(metric, 0, end); i < end; i++) {
+				final char c = metric.charAt(i);
+				PutEncoder.writeChar(buffer, c <= ' ' || c==';' ? '_' : c, false);
+			}
+			writeTags(buffer, rawTags, rootTags, tags);
+			buffer.writeByte(' ');
+			if(isDouble) PutEncoder.writeDouble(buffer, doubleValue);
+			else PutEncoder.writeLong(buffer, longValue);
+			buffer.writeByte(' ');
+			PutEncoder.writeLong(buffer, toSeconds(timestamp));
+			buffer.writeByte('\n');
+		}
+
+		@Override
+		protected boolean writeTag(final ChannelBuffer buffer, final CharSequence key, final int keyStart, final int keyEnd,
+				final CharSequence value, final int valueStart, final int valueEnd, final boolean first) {
+			final int ke = trimEnd(key, keyStart, keyEnd), ks = trimStart(key, keyStart, ke);
+			final int ve = trimEnd(value, valueStart, valueEnd), vs = trimStart(value, valueStart, ve);
+			if(ks==ke || vs==ve) return false;
+			buffer.writeByte(';');
+			for(int i = ks; i < ke; i++) {
+				final char c = key.charAt(i);
+				PutEncoder.writeChar(buffer, c <= ' ' || c==';' || c=='!' || c=='^' || c=='=' || c=='~' ? '_' : c, false);
+			}
+			buffer.writeByte('=');
+			for(int i = vs; i < ve; i++) {
+				final char c = value.charAt(i);
+				PutEncoder.writeChar(buffer, c <= ' ' || c==';' || (i==vs && c=='~') ? '_' : c, false);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: InfluxCodec</p>
+	 * <p>Description: Writes InfluxDB line protocol lines, <b><code>&lt;measurement&gt;,k=v,... value=&lt;value&gt; &lt;nanoseconds&gt;</code></b>.
+	 * Commas and spaces are backslash escaped in the measurement, and commas, equals signs and spaces in tag keys and values.
+	 * Line breaks cannot be escaped and are replaced with <b><code>_</code></b>. Long values are written as integer fields.
+	 * Empty tag keys and values, and non finite values, are skipped.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.WireCodec.InfluxCodec</code></p>
+	 */
+	public static class InfluxCodec extends WireCodec {
+		/** The value field prefix */
+		private static final byte[] FIELD = {' ', 'v', 'a', 'l', 'u', 'e', '='};
+		/** The ns. per ms. */
+		private static final long NANOS_PER_MS = 1000000L;
+
+		@Override
+		public String getName() {
+			return "influx";
+		}
+
+		@Override
+		protected void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final boolean isDouble, final long longValue,
+				final double doubleValue, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			if(isDouble && (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))) return;
+			final int end = trimEnd(metric, 0, metric.length());
+			for(int i = trimStart(metric, 0, end); i < end; i++) {
+				writeEscaped(buffer, metric.charAt(i), false);
+			}
+			writeTags(buffer, rawTags, rootTags, tags);
+			buffer.writeBytes(FIELD);
+			if(isDouble) {
+				PutEncoder.writeDouble(buffer, doubleValue);
+			} else {
+				PutEncoder.writeLong(buffer, longValue);
+				buffer.writeByte('i');
+			}
+			buffer.writeByte(' ');
+			PutEncoder.writeLong(buffer, toMillis(timestamp) * NANOS_PER_MS);
+			buffer.writeByte('\n');
+		}
+
+		/**
+		 * Writes one character with line protocol escaping
+		 * @param buffer The buffer to write into
+		 * @param c The character
+		 * @param tag true for a tag key or value, where equals signs are also escaped
+		 */
+		private static void writeEscaped(final ChannelBuffer buffer, final char c, final boolean tag) {
+			if(c==',' || c==' ' || (tag && c=='=')) {
+				buffer.writeByte('\\');
+				buffer.writeByte(c);
+			} else if(c=='\n' || c=='\r') {
+				buffer.writeByte('_');
+			} else {
+				PutEncoder.writeChar(buffer, c, false);
+			}
+		}
+
+		@Override
+		protected boolean writeTag(final ChannelBuffer buffer, final CharSequence key, final int keyStart, final int keyEnd,
+				final CharSequence value, final int valueStart, final int valueEnd, final boolean first) {
+			final int ke = trimEnd(key, keyStart, keyEnd), ks = trimStart(key, keyStart, ke);
+			final int ve = trimEnd(value, valueStart, valueEnd), vs = trimStart(value, valueStart, ve);
+			if(ks==ke || vs==ve) return false;
+			buffer.writeByte(',');
+			for(int i = ks; i < ke; i++) writeEscaped(buffer, key.charAt(i), true);
+			buffer.writeByte('=');
+			for(int i = vs; i < ve; i++) writeEscaped(buffer, value.charAt(i), true);
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: PrometheusCodec</p>
+	 * <p>Description: Writes Prometheus text exposition sample lines, <b><code>&lt;name&gt;{k="v",...} &lt;value&gt; &lt;ms&gt;</code></b>.
+	 * Characters not allowed in metric or label names are replaced with <b><code>_</code></b>, as is a leading digit, and label values are
+	 * written as quoted UTF-8 with backslash, double quote and line feed escaped. Non finite values are written as
+	 * <b><code>NaN</code></b>, <b><code>+Inf</code></b> and <b><code>-Inf</code></b>.</p>
+	 * <p>Not selectable as a wire codec: the {@link LastValueStore} renders the {@link PrometheusEndpoint} scrape with it.</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.opentsdb.WireCodec.PrometheusCodec</code></p>
+	 */
+	static class PrometheusCodec extends WireCodec {
+		/** The bytes for NaN */
+		private static final byte[] NAN = {'N', 'a', 'N'};
+		/** The bytes for positive infinity */
+		private static final byte[] POS_INF = {'+', 'I', 'n', 'f'};
+		/** The bytes for negative infinity */
+		private static final byte[] NEG_INF = {'-', 'I', 'n', 'f'};
+
+		@Override
+		public String getName() {
+			return "prometheus";
+		}
+
+		@Override
+		protected void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final boolean isDouble, final long longValue,
+				final double doubleValue, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			writeName(buffer, metric, 0, metric.length(), true);
+			if(writeTags(buffer, rawTags, rootTags, tags) > 0) buffer.writeByte('}');
+			buffer.writeByte(' ');
+			writeValue(buffer, isDouble, longValue, doubleValue);
+			buffer.writeByte(' ');
+			PutEncoder.writeLong(buffer, toMillis(timestamp));
+			buffer.writeByte('\n');
+		}
+
+		/**
+		 * Writes a sample value
+		 * @param buffer The buffer to write into
+		 * @param isDouble true if the value is the double value
+		 * @param longValue The long value
+		 * @param doubleValue The double value
+		 */
+		static void writeValue(final ChannelBuffer buffer, final boolean isDouble, final long longValue, final double doubleValue) {
+			if(!isDouble) PutEncoder.writeLong(buffer, longValue);
+			else if(Double.isNaN(doubleValue)) buffer.writeBytes(NAN);
+			else if(Double.isInfinite(doubleValue)) buffer.writeBytes(doubleValue > 0 ? POS_INF : NEG_INF);
+			else PutEncoder.writeDouble(buffer, doubleValue);
+		}
+
+		/**
+		 * Writes a metric or label name, replacing disallowed characters with <b><code>_</code></b>
+		 * @param buffer The buffer to write into
+		 * @param cs The stringy holding the name
+		 * @param start The start index
+		 * @param end The end index, exclusive
+		 * @param metric true for a metric name, which may also contain colons
+		 */
+		static void writeName(final ChannelBuffer buffer, final CharSequence cs, final int start, final int end, final boolean metric) {
+			final int e = trimEnd(cs, start, end);
+			final int s = trimStart(cs, start, e);
+			if(s==e) {
+				buffer.writeByte('_');
+				return;
+			}
+			for(int i = s; i < e; i++) {
+				final char c = cs.charAt(i);
+				if(isLegal(c, i==s, metric)) buffer.writeByte(c);
+				else if(i==s && c >= '0' && c <= '9') {
+					buffer.writeByte('_');
+					buffer.writeByte(c);
+				} else buffer.writeByte('_');
+			}
+		}
+
+		/**
+		 * Computes the hash of a metric or label name as {@link #writeName(ChannelBuffer, CharSequence, int, int, boolean)} renders it,
+		 * without rendering it, so names that render the same hash the same
+		 * @param cs The stringy holding the name
+		 * @param start The start index
+		 * @param end The end index, exclusive
+		 * @param metric true for a metric name, which may also contain colons
+		 * @return the hash of the rendered name
+		 */
+		static long nameHash(final CharSequence cs, final int start, final int end, final boolean metric) {
+			final int e = trimEnd(cs, start, end);
+			final int s = trimStart(cs, start, e);
+			long h = SeriesHash.FNV_OFFSET;
+			if(s==e) return SeriesHash.fmix64((h ^ '_') * SeriesHash.FNV_PRIME);
+			for(int i = s; i < e; i++) {
+				final char c = cs.charAt(i);
+				if(isLegal(c, i==s, metric)) {
+					h = (h ^ c) * SeriesHash.FNV_PRIME;
+				} else if(i==s && c >= '0' && c <= '9') {
+					h = (h ^ '_') * SeriesHash.FNV_PRIME;
+					h = (h ^ c) * SeriesHash.FNV_PRIME;
+				} else {
+					h = (h ^ '_') * SeriesHash.FNV_PRIME;
+				}
+			}
+			return SeriesHash.fmix64(h);
+		}
+
+		/**
+		 * Determines if a character is written as is in a metric or label name
+		 * @param c The character
+		 * @param first true for the first character of the name, which may not be a digit
+		 * @param metric true for a metric name, which may also contain colons
+		 * @return true if the character is legal
+		 */
+		private static boolean isLegal(final char c, final boolean first, final boolean metric) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c=='_' || (metric && c==':') || (!first && c >= '0' && c <= '9');
+		}
+
+		@Override
+		protected boolean writeTag(final ChannelBuffer buffer, final CharSequence key, final int keyStart, final int keyEnd,
+				final CharSequence value, final int valueStart, final int valueEnd, final boolean first) {
+			buffer.writeByte(first ? '{' : ',');
+			writeName(buffer, key, keyStart, keyEnd, false);
+			buffer.writeByte('=');
+			buffer.writeByte('"');
+			for(int i = valueStart; i < valueEnd; i++) {
+				final char c = value.charAt(i);
+				if(c=='\\' || c=='"') {
+					buffer.writeByte('\\');
+					buffer.writeByte(c);
+				} else if(c=='\n') {
+					buffer.writeByte('\\');
+					buffer.writeByte('n');
+				} else {
+					PutEncoder.writeChar(buffer, c, false);
+				}
+			}
+			buffer.writeByte('"');
+			return true;
+		}
+	}
+}
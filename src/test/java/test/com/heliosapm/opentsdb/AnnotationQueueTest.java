@@ -0,0 +1,168 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.AnnotationBuilder;
+import com.heliosapm.opentsdb.AnnotationQueue;
+import com.ning.http.client.AsyncHttpClient;
+
+/**
+ * <p>Title: AnnotationQueueTest</p>
+ * <p>Description: Tests {@link AnnotationQueue} batching, the single annotation fallback and retries on close against a {@link FakeTSD}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.AnnotationQueueTest</code></p>
+ */
+
+public class AnnotationQueueTest extends BaseTest {
+	/** The fake TSD */
+	FakeTSD tsd = null;
+	/** The http client */
+	AsyncHttpClient client = null;
+	
+	/**
+	 * Starts the fake TSD and the http client
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void startTSD() throws Exception {
+		tsd = new FakeTSD(0).start();
+		client = new AsyncHttpClient();
+	}
+	
+	/**
+	 * Stops the http client and the fake TSD
+	 */
+	@After
+	public void stopTSD() {
+		if(client!=null) client.close();
+		if(tsd!=null) tsd.stop();
+	}
+	
+	/**
+	 * Creates an annotation queue posting to the fake TSD
+	 * @param retryBackoff The initial retry backoff in ms.
+	 * @param maxBackoff The maximum retry backoff in ms.
+	 * @return the annotation queue
+	 */
+	AnnotationQueue queue(final long retryBackoff, final long maxBackoff) {
+		final String base = "http://127.0.0.1:" + tsd.getPort() + "/";
+		return new AnnotationQueue(null, AnnotationQueue.DEFAULT_MAX_QUEUED, AnnotationQueue.DEFAULT_BATCH_SIZE, AnnotationQueue.DEFAULT_FLUSH_DELAY,
+				AnnotationQueue.DEFAULT_MAX_CONCURRENT, AnnotationQueue.DEFAULT_MAX_RETRIES, retryBackoff, maxBackoff) {
+			@Override
+			protected AsyncHttpClient client() {
+				return client;
+			}
+			@Override
+			protected String baseURL() {
+				return base;
+			}
+		};
+	}
+	
+	/**
+	 * Offers annotations to a queue
+	 * @param queue The queue
+	 * @param count The number of annotations
+	 */
+	static void offer(final AnnotationQueue queue, final int count) {
+		final int startTime = (int)TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+		for(int i = 0; i < count; i++) {
+			Assert.assertTrue("Annotation dropped", queue.offer(new AnnotationBuilder(startTime).setDescription("Deployment #" + i).setCustom("host", "host" + (i % 10)).build()));
+		}
+	}
+	
+	/**
+	 * Sends 10,000 annotations and checks they arrive in batches without blocking the caller
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBatched() throws Exception {
+		final AnnotationQueue queue = queue(10L, 100L);
+		final int count = 10000;
+		final long start = System.nanoTime();
+		offer(queue, count);
+		final long offerNanos = System.nanoTime() - start;
+		Assert.assertTrue("Not drained", queue.flush(30000));
+		log("Offered %s annotations in %s ns. each, drained in %s ms. %s", count, offerNanos / count, 
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), queue);
+		Assert.assertEquals("Received", count, tsd.getAnnotations());
+		Assert.assertEquals("Sent", count, queue.getSent());
+		Assert.assertTrue("Not batched: " + queue.getRequests(), queue.getRequests() <= 2 * count / AnnotationQueue.DEFAULT_BATCH_SIZE);
+		queue.close(1000);
+	}
+	
+	/**
+	 * Checks a 404 from the bulk endpoint switches to single annotation posts, including the batch that failed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSingleFallback() throws Exception {
+		tsd.setBulkAnnotations(false);
+		final AnnotationQueue queue = queue(10L, 100L);
+		offer(queue, 50);
+		Assert.assertTrue("Not drained", queue.flush(10000));
+		offer(queue, 50);
+		Assert.assertTrue("Not drained", queue.flush(10000));
+		log("%s", queue);
+		Assert.assertEquals("Received", 100L, tsd.getAnnotations());
+		Assert.assertEquals("Sent", 100L, queue.getSent());
+		Assert.assertEquals("Failed", 0L, queue.getFailed());
+		// one bulk attempt, then one post per annotation
+		Assert.assertEquals("Requests", 101L, queue.getRequests());
+		queue.close(1000);
+	}
+	
+	/**
+	 * Checks close sends retries still waiting out their backoff instead of dropping them
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseFlushesRetries() throws Exception {
+		tsd.setHttpStatus(503);
+		final AnnotationQueue queue = queue(20000L, 20000L);
+		offer(queue, 10);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(queue.getRetries()==0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertEquals("Not retried", 1L, queue.getRetries());
+		tsd.setHttpStatus(0);
+		final long start = System.currentTimeMillis();
+		queue.close(5000);
+		final long elapsed = System.currentTimeMillis() - start;
+		log("Closed in %s ms. %s", elapsed, queue);
+		Assert.assertTrue("Close waited for the backoff: " + elapsed, elapsed < 5000);
+		Assert.assertEquals("Sent", 10L, queue.getSent());
+		Assert.assertEquals("Received", 10L, tsd.getAnnotations());
+	}
+}
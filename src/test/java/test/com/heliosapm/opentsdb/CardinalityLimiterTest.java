@@ -0,0 +1,134 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.CardinalityLimiter;
+import com.heliosapm.opentsdb.SeriesHash;
+
+/**
+ * <p>Title: CardinalityLimiterTest</p>
+ * <p>Description: Tests {@link CardinalityLimiter} against a session id style cardinality explosion and times the admitted series fast path</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.CardinalityLimiterTest</code></p>
+ */
+
+public class CardinalityLimiterTest extends BaseTest {
+	/** The root tags of the traced series */
+	static final Set<String> ROOT_TAGS = Collections.singleton("host=test");
+	/** The series limit per metric */
+	static final int LIMIT = 1000;
+
+	/**
+	 * Traces 100,000 distinct session series through a limiter
+	 * @param limiter The limiter
+	 * @param tags The tags to trace with, updated with each session id
+	 * @return the number of series admitted unchanged
+	 */
+	static int explode(final CardinalityLimiter limiter, final Map<String, String> tags) {
+		int admitted = 0;
+		for(int i = 0; i < 100000; i++) {
+			tags.put("session", "s" + i);
+			final Map<String, String> t = limiter.admit(SeriesHash.seriesHash("jvm.session.age", ROOT_TAGS, tags), "jvm.session.age", tags);
+			if(t==tags) admitted++;
+			else if(limiter.getMode().equals("collapse")) Assert.assertEquals("Over limit series not collapsed", CardinalityLimiter.OTHER, t.get("session"));
+			else Assert.assertNull("Over limit series not dropped", t);
+		}
+		return admitted;
+	}
+
+	/**
+	 * Checks over limit series are collapsed into the other value of the offending key, and about the limit are admitted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCollapse() throws Exception {
+		final CardinalityLimiter limiter = new CardinalityLimiter("test", null, LIMIT, "collapse", 0L, 100);
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("service", "sessions");
+		final int admitted = explode(limiter, tags);
+		log("Admitted %s of 100000 series for a limit of %s: %s", admitted, LIMIT, limiter);
+		log("Estimate: %s, offending keys: %s", limiter.getLimitedEstimates(), limiter.getOffendingKeys());
+		// the sketch error is about 3% and the filter lets about 0.1% of the over limit series through
+		Assert.assertTrue("Admitted count too far from the limit: " + admitted, admitted >= LIMIT * 0.9 && admitted <= LIMIT * 1.1 + 100);
+		Assert.assertEquals("Offending key", "session", limiter.getOffendingKeys().get("jvm.session.age"));
+		Assert.assertEquals("Limited metrics", 1, limiter.getLimitedMetrics());
+		Assert.assertTrue("Nothing collapsed", limiter.getCollapsedPoints() > 0L);
+	}
+
+	/**
+	 * Checks over limit series are dropped in drop mode
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDrop() throws Exception {
+		final CardinalityLimiter limiter = new CardinalityLimiter("test", null, LIMIT, "drop", 0L, 100);
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("service", "sessions");
+		final int admitted = explode(limiter, tags);
+		log("Admitted %s of 100000 series: %s", admitted, limiter);
+		Assert.assertEquals("Dropped", 100000L - admitted, limiter.getDroppedPoints());
+		Assert.assertEquals("Collapsed", 0L, limiter.getCollapsedPoints());
+	}
+
+	/**
+	 * Times the admitted series fast path and checks admitted series are never dropped
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFastPath() throws Exception {
+		final CardinalityLimiter limiter = new CardinalityLimiter("test", null, LIMIT, "collapse", 0L, 100);
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("service", "sessions");
+		final long[] hashes = new long[500];
+		final String[] metrics = new String[hashes.length];
+		for(int i = 0; i < hashes.length; i++) {
+			tags.put("session", "k" + (i % 50));
+			metrics[i] = "jvm.metric" + (i / 50);
+			hashes[i] = SeriesHash.seriesHash(metrics[i], ROOT_TAGS, tags);
+		}
+		final int loops = 20000;
+		for(int w = 0; w < 2; w++) {
+			final long start = System.nanoTime();
+			for(int l = 0; l < loops; l++) {
+				for(int i = 0; i < hashes.length; i++) {
+					Assert.assertSame("Admitted series changed", tags, limiter.admit(hashes[i], metrics[i], tags));
+				}
+			}
+			log("Fast path pass %s: %s ns/point", w, (System.nanoTime() - start) / ((long)loops * hashes.length));
+		}
+		Assert.assertEquals("Limited metrics", 0, limiter.getLimitedMetrics());
+	}
+}
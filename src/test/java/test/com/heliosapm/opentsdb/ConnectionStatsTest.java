@@ -0,0 +1,127 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: ConnectionStatsTest</p>
+ * <p>Description: Tests the {@link com.heliosapm.opentsdb.ConnectionStats} reconnect count and per submitter trace counts</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.ConnectionStatsTest</code></p>
+ */
+
+public class ConnectionStatsTest extends BaseTest {
+	/** The fake TSD the current test writes to */
+	FakeTSD tsd = null;
+	/** The connection under test */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * Sets short reconnect backoffs and starts the fake TSD
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void startTSD() throws Exception {
+		System.setProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MIN, "100");
+		System.setProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MAX, "400");
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, "netty");
+		tsd = new FakeTSD(0).start();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+	}
+
+	/**
+	 * Closes the connection, stops the fake TSD and clears the test properties
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MIN);
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MAX);
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT);
+	}
+
+	/**
+	 * Checks the first connect is not counted and one outage counts one reconnect
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReconnectCount() throws Exception {
+		Assert.assertTrue("Not connected", conn.isConnected());
+		Assert.assertEquals("Reconnects before any outage", 0L, conn.getStats().getReconnectCount());
+		final int port = tsd.getPort();
+		tsd.stop();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(conn.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertFalse("Disconnect not detected", conn.isConnected());
+		conn.submitter().trace("stats.test", 1, "phase", "down");
+		conn.flush(false);
+		tsd = new FakeTSD(port).start();
+		deadline = System.currentTimeMillis() + 10000;
+		while(!conn.isConnected() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertTrue("Not reconnected", conn.isConnected());
+		Assert.assertEquals("Reconnects", 1L, conn.getStats().getReconnectCount());
+	}
+
+	/**
+	 * Checks submitters with the same root tags are counted separately, and an abandoned submitter is not retained
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSubmitterTraceCounts() throws Exception {
+		final Map<String, String> rootTags = Collections.singletonMap("host", "same");
+		final TSDBSubmitter first = conn.submitter(rootTags);
+		TSDBSubmitter second = conn.submitter(rootTags);
+		for(int i = 0; i < 3; i++) first.trace("stats.test", i, "n", "first");
+		for(int i = 0; i < 5; i++) second.trace("stats.test", i, "n", "second");
+		Map<String, Long> counts = conn.getStats().getSubmitterTraceCounts();
+		log("Counts: %s", counts);
+		Assert.assertEquals("Submitters", 2, counts.size());
+		Assert.assertTrue("Counts " + counts, counts.values().contains(3L) && counts.values().contains(5L));
+		second = null;
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(conn.getStats().getSubmitterTraceCounts().size() > 1 && System.currentTimeMillis() < deadline) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		counts = conn.getStats().getSubmitterTraceCounts();
+		Assert.assertEquals("Abandoned submitter retained: " + counts, 1, counts.size());
+		Assert.assertEquals("Remaining count", Long.valueOf(3L), counts.values().iterator().next());
+		Assert.assertNotNull(first);
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.ConsistentHashRouter;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: ConsistentHashRouterTest</p>
+ * <p>Description: Tests for {@link ConsistentHashRouter} series affinity, distribution and failover across {@link FakeTSD} endpoints</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.ConsistentHashRouterTest</code></p>
+ */
+
+public class ConsistentHashRouterTest extends BaseTest {
+	/** The number of endpoints */
+	static final int ENDPOINTS = 3;
+	/** The number of distinct series routed */
+	static final int SERIES = 3000;
+	/** The fake TSDs */
+	final FakeTSD[] tsds = new FakeTSD[ENDPOINTS];
+	/** The router under test */
+	ConsistentHashRouter router = null;
+
+	/**
+	 * Starts the fake TSDs and a router over them
+	 * @return the router endpoint strings
+	 */
+	String[] startTSDs() {
+		final String[] endpoints = new String[ENDPOINTS];
+		for(int i = 0; i < ENDPOINTS; i++) {
+			tsds[i] = new FakeTSD(0).start();
+			endpoints[i] = "127.0.0.1:" + tsds[i].getPort();
+		}
+		return endpoints;
+	}
+
+	/**
+	 * Closes the router and stops the fake TSDs
+	 */
+	@After
+	public void closeAll() {
+		if(router!=null) router.close();
+		for(FakeTSD tsd: tsds) {
+			if(tsd!=null) tsd.stop();
+		}
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT);
+	}
+
+	/**
+	 * Returns the tags of test series #n
+	 * @param n The series number
+	 * @return the tags
+	 */
+	static Map<String, String> tags(final int n) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("host", "h" + (n % 100));
+		tags.put("series", "s" + n);
+		return tags;
+	}
+
+	/**
+	 * Returns the index of the endpoint each test series routes to
+	 * @return the endpoint index of each series
+	 */
+	int[] owners() {
+		final List<TSDBSubmitterConnection> endpoints = router.getEndpoints();
+		final int[] owners = new int[SERIES];
+		for(int n = 0; n < SERIES; n++) {
+			owners[n] = endpoints.indexOf(router.route("router.test", null, tags(n)));
+		}
+		return owners;
+	}
+
+	/**
+	 * Waits for the router to report the expected number of healthy endpoints
+	 * @param expected The expected number of healthy endpoints
+	 * @throws Exception thrown on any error
+	 */
+	void awaitHealthy(final int expected) throws Exception {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(router.getHealthyEndpoints().size()!=expected && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertEquals("Healthy endpoints", expected, router.getHealthyEndpoints().size());
+	}
+
+	/**
+	 * Tests that a series always routes to the same endpoint regardless of tag order, 
+	 * that series spread over all endpoints, and that each endpoint receives what was routed to it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAffinityAndDistribution() throws Exception {
+		router = new ConsistentHashRouter(128, 60000, startTSDs());
+		final int[] owners = owners();
+		Assert.assertArrayEquals("Routing not stable", owners, owners());
+		final Map<String, String> reversed = new LinkedHashMap<String, String>();
+		reversed.put("series", "s7");
+		reversed.put("host", "h7");
+		Assert.assertSame("Tag order changed the route", router.route("router.test", null, tags(7)), router.route("router.test", null, reversed));
+		final int[] perEndpoint = new int[ENDPOINTS];
+		for(int owner: owners) perEndpoint[owner]++;
+		for(int i = 0; i < ENDPOINTS; i++) {
+			log("Endpoint #%s owns %s series", i, perEndpoint[i]);
+			Assert.assertTrue("Endpoint #" + i + " owns too few series", perEndpoint[i] > SERIES / ENDPOINTS / 2);
+		}
+		final long[] before = router.getRoutedCounts();
+		final TSDBSubmitter submitter = router.submitter(new HashMap<String, String>());
+		for(int n = 0; n < SERIES; n++) {
+			final Map<String, String> tags = tags(n);
+			submitter.trace("router.test", n, "host", tags.get("host"), "series", tags.get("series"));
+		}
+		router.flush(false);
+		final long[] routed = router.getRoutedCounts();
+		final long deadline = System.currentTimeMillis() + 10000;
+		for(int i = 0; i < ENDPOINTS; i++) {
+			final long expected = routed[i] - before[i];
+			while(tsds[i].getPoints() < expected && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			Assert.assertEquals("Points at endpoint #" + i, expected, tsds[i].getPoints());
+		}
+	}
+
+	/**
+	 * Tests that a failed endpoint's series move to the others while the rest keep their endpoint, 
+	 * and that they move back when it recovers
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFailover() throws Exception {
+		// the netty transport sees the closed connection without having to write to it
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, "netty");
+		router = new ConsistentHashRouter(128, 100, startTSDs());
+		final int[] owners = owners();
+		final int port = tsds[1].getPort();
+		tsds[1].stop();
+		awaitHealthy(ENDPOINTS - 1);
+		final int[] failedOver = owners();
+		for(int n = 0; n < SERIES; n++) {
+			if(owners[n]==1) {
+				Assert.assertTrue("Series #" + n + " still routed to the failed endpoint", failedOver[n]!=1);
+			} else {
+				Assert.assertEquals("Series #" + n + " moved off a healthy endpoint", owners[n], failedOver[n]);
+			}
+		}
+		tsds[1] = new FakeTSD(port).start();
+		awaitHealthy(ENDPOINTS);
+		Assert.assertArrayEquals("Routing not restored", owners, owners());
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.DedupTable;
+
+/**
+ * <p>Title: DedupTableTest</p>
+ * <p>Description: Tests {@link DedupTable} duplicate suppression, window expiry, clearing and growth</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.DedupTableTest</code></p>
+ */
+
+public class DedupTableTest extends BaseTest {
+	/** A sample timestamp */
+	static final long TS = 1418000000L;
+
+	/**
+	 * Checks that a series/timestamp added twice within the window is suppressed, and the same series at another timestamp passes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDuplicateSuppressed() throws Exception {
+		final DedupTable table = new DedupTable(16, 60000L);
+		Assert.assertTrue("First put suppressed", table.add(1L, 2L, TS));
+		Assert.assertFalse("Duplicate put passed", table.add(1L, 2L, TS));
+		Assert.assertTrue("Next timestamp suppressed", table.add(1L, 2L, TS + 1));
+		Assert.assertTrue("Other series suppressed", table.add(1L, 3L, TS));
+		Assert.assertEquals(3, table.size());
+	}
+
+	/**
+	 * Checks that the table forgets its keys once the window expires
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testWindowExpiry() throws Exception {
+		final DedupTable table = new DedupTable(16, 50L);
+		Assert.assertTrue(table.add(1L, 2L, TS));
+		Assert.assertFalse(table.add(1L, 2L, TS));
+		Thread.sleep(100);
+		Assert.assertTrue("Duplicate suppressed after the window expired", table.add(1L, 2L, TS));
+		Assert.assertEquals(1, table.size());
+	}
+
+	/**
+	 * Checks that clearing the table lets a previously seen key through
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testClear() throws Exception {
+		final DedupTable table = new DedupTable(16, 60000L);
+		Assert.assertTrue(table.add(1L, 2L, TS));
+		table.clear();
+		Assert.assertEquals(0, table.size());
+		Assert.assertTrue("Duplicate suppressed after a clear", table.add(1L, 2L, TS));
+	}
+
+	/**
+	 * Checks that a table filling within its window grows and keeps every key, and is cleared only at its maximum capacity
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testGrowth() throws Exception {
+		final DedupTable table = new DedupTable(16, 256, 60000L);
+		for(int i = 0; i < 128; i++) Assert.assertTrue(table.add(7L, i, TS));
+		Assert.assertEquals(128, table.size());
+		Assert.assertEquals(256, table.getCapacity());
+		for(int i = 0; i < 128; i++) Assert.assertFalse("Key lost on growth: " + i, table.add(7L, i, TS));
+		// the table is full at its maximum capacity, so the next key clears it
+		Assert.assertTrue(table.add(7L, 128, TS));
+		Assert.assertEquals(1, table.size());
+		Assert.assertEquals(256, table.getCapacity());
+		Assert.assertTrue("Key kept after the clear", table.add(7L, 0, TS));
+	}
+
+	/**
+	 * Checks that invalid sizes are rejected
+	 * @throws Exception thrown on any error
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testMaxBelowCapacity() throws Exception {
+		new DedupTable(64, 32, 1000L);
+	}
+}
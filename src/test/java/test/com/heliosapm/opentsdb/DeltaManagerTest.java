@@ -0,0 +1,159 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.DeltaManager;
+
+/**
+ * <p>Title: DeltaManagerTest</p>
+ * <p>Description: Tests for {@link DeltaManager} deltas, concurrency and eviction</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.DeltaManagerTest</code></p>
+ */
+
+public class DeltaManagerTest extends BaseTest {
+
+	/**
+	 * Creates a DeltaManager with the default sizing and the passed TTL
+	 * @param maxCapacity The maximum number of tracked deltas
+	 * @param ttl The TTL in ms.
+	 * @return the new DeltaManager
+	 */
+	static DeltaManager deltaManager(final int maxCapacity, final long ttl) {
+		return new DeltaManager(DeltaManager.DELTA_CAPACITY_DEFAULT, DeltaManager.DELTA_LOAD_FACTOR_DEFAULT, maxCapacity, ttl);
+	}
+
+	/**
+	 * Tests the deltas of each value type, and the reset when a value goes backwards
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDeltas() throws Exception {
+		final DeltaManager dm = deltaManager(DeltaManager.DELTA_MAX_CAPACITY_DEFAULT, DeltaManager.DELTA_TTL_DEFAULT);
+		final long key = DeltaManager.key("host", "a", "metric", "b");
+		Assert.assertEquals(key, DeltaManager.key("host", "a", "metric", "b"));
+		Assert.assertNull(dm.deltaLong(key, 10L));
+		Assert.assertEquals(Long.valueOf(5L), dm.deltaLong(key, 15L));
+		Assert.assertNull("Counter reset not detected", dm.deltaLong(key, 3L));
+		Assert.assertEquals(Long.valueOf(4L), dm.deltaLong(key, 7L));
+		// each value type keeps its own state for the same key
+		Assert.assertNull(dm.deltaDouble(key, 1.5d));
+		Assert.assertEquals(Double.valueOf(1.0d), dm.deltaDouble(key, 2.5d));
+		Assert.assertNull(dm.deltaInt(key, 100));
+		Assert.assertEquals(Integer.valueOf(20), dm.deltaInt(key, 120));
+		Assert.assertNull(dm.deltaLong("other", 1L));
+		Assert.assertEquals(Long.valueOf(1L), dm.deltaLong("other", 2L));
+		Assert.assertEquals(4, dm.size());
+		dm.clear();
+		Assert.assertEquals(0, dm.size());
+		Assert.assertNull(dm.deltaLong(key, 10L));
+	}
+
+	/**
+	 * Tests that threads updating their own keys concurrently always see their own prior value, and logs the throughput
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentDeltas() throws Exception {
+		final int threads = 8, keysPerThread = 20000, rounds = 20;
+		final DeltaManager dm = deltaManager(DeltaManager.DELTA_MAX_CAPACITY_DEFAULT, DeltaManager.DELTA_TTL_DEFAULT);
+		final AtomicLong errors = new AtomicLong(0L), deltas = new AtomicLong(0L);
+		final CountDownLatch start = new CountDownLatch(1), done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final int threadId = t;
+			new Thread("DeltaManagerTest#" + t) {
+				@Override
+				public void run() {
+					try {
+						final long[] keys = new long[keysPerThread];
+						for(int i = 0; i < keysPerThread; i++) keys[i] = DeltaManager.key("thread", "" + threadId, "key", "" + i);
+						start.await();
+						for(int r = 0; r < rounds; r++) {
+							for(int i = 0; i < keysPerThread; i++) {
+								// each key is owned by one thread and grows by i+1 per round
+								final Long d = dm.deltaLong(keys[i], (long)r * (i + 1));
+								if(r==0 ? d!=null : (d==null || d.longValue()!=i + 1)) errors.incrementAndGet();
+							}
+						}
+						deltas.addAndGet((long)rounds * keysPerThread);
+					} catch (Exception ex) {
+						errors.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		final long startTime = System.nanoTime();
+		start.countDown();
+		done.await();
+		final long elapsed = System.nanoTime() - startTime;
+		log("%s threads, %s deltas, %s errors, %s ns/delta, %s deltas/s, %s", 
+				threads, deltas.get(), errors.get(), elapsed / deltas.get(), deltas.get() * 1000000000L / elapsed, dm);
+		Assert.assertEquals(0L, errors.get());
+		Assert.assertEquals(threads * keysPerThread, dm.size());
+	}
+
+	/**
+	 * Tests that churning through many more ids than the max capacity keeps the store bounded
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testChurnIsBounded() throws Exception {
+		final DeltaManager churn = deltaManager(4096, 1L);
+		for(int i = 0; i < 1000000; i++) {
+			churn.deltaLong(DeltaManager.key("churn", "" + i), i);
+		}
+		log("After churning 1000000 ids with max capacity 4096: %s", churn);
+		Assert.assertTrue(churn.size() <= 4096);
+		Assert.assertTrue(churn.getEvictions() > 0);
+	}
+
+	/**
+	 * Tests that entries not updated within the TTL are evicted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+		final DeltaManager dm = deltaManager(DeltaManager.DELTA_MAX_CAPACITY_DEFAULT, 50L);
+		for(int i = 0; i < 100; i++) dm.deltaLong("expiring" + i, i);
+		Assert.assertEquals(100, dm.size());
+		dm.evictExpired();
+		Assert.assertEquals(100, dm.size());
+		Thread.sleep(100);
+		dm.evictExpired();
+		Assert.assertEquals(0, dm.size());
+		Assert.assertEquals(100L, dm.getEvictions());
+	}
+}
@@ -0,0 +1,269 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.DiskSpool;
+import com.heliosapm.opentsdb.FlushPolicy;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: DiskSpoolTest</p>
+ * <p>Description: Tests that the {@link DiskSpool} holds and replays everything traced while the TSD is down</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.DiskSpoolTest</code></p>
+ */
+
+public class DiskSpoolTest extends BaseTest {
+	/** The config properties set by this test */
+	static final String[] PROPS = {
+		TSDBSubmitterConnection.CONFIG_TRANSPORT, DiskSpool.CONFIG_ENABLED, DiskSpool.CONFIG_DIR, DiskSpool.CONFIG_DRAIN_INTERVAL,
+		DiskSpool.CONFIG_SEGMENT_SIZE, DiskSpool.CONFIG_RATE, FlushPolicy.CONFIG_MAX_TRACES, FlushPolicy.CONFIG_MAX_BYTES, FlushPolicy.CONFIG_MAX_AGE
+	};
+	/** The spool root directory */
+	File spoolDir = null;
+	/** The fake TSD the current test writes to */
+	FakeTSD tsd = null;
+	/** The connection under test */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * Configures a netty transport with a small segment spool, and leaves flushing to the test
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void configure() throws Exception {
+		spoolDir = Files.createTempDirectory("tsdb-spool-test").toFile();
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, "netty");
+		System.setProperty(DiskSpool.CONFIG_ENABLED, "true");
+		System.setProperty(DiskSpool.CONFIG_DIR, spoolDir.getAbsolutePath());
+		System.setProperty(DiskSpool.CONFIG_DRAIN_INTERVAL, "100");
+		System.setProperty(DiskSpool.CONFIG_SEGMENT_SIZE, "65536");
+		System.setProperty(DiskSpool.CONFIG_RATE, String.valueOf(16 * 1024 * 1024));
+		System.setProperty(FlushPolicy.CONFIG_MAX_TRACES, String.valueOf(Integer.MAX_VALUE));
+		System.setProperty(FlushPolicy.CONFIG_MAX_BYTES, String.valueOf(Integer.MAX_VALUE));
+		System.setProperty(FlushPolicy.CONFIG_MAX_AGE, String.valueOf(Long.MAX_VALUE / 2));
+	}
+
+	/**
+	 * Closes the connection, stops the fake TSD, clears the test properties and deletes the spool
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		for(String prop: PROPS) System.clearProperty(prop);
+		delete(spoolDir);
+	}
+
+	/**
+	 * Deletes a file or directory tree
+	 * @param f The file to delete
+	 */
+	static void delete(final File f) {
+		if(f==null) return;
+		final File[] children = f.listFiles();
+		if(children!=null) for(File c: children) delete(c);
+		f.delete();
+	}
+
+	/**
+	 * Waits until the condition reported by the passed check is met
+	 * @param what A description of the condition
+	 * @param timeout The timeout in ms.
+	 * @param check The condition
+	 * @throws Exception thrown on any error
+	 */
+	static void await(final String what, final long timeout, final Check check) throws Exception {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while(!check.done()) {
+			if(System.currentTimeMillis() > deadline) Assert.fail("Timed out waiting for " + what);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * <p>Title: Check</p>
+	 * <p>Description: A condition polled by {@link DiskSpoolTest#await(String, long, Check)}</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.DiskSpoolTest.Check</code></p>
+	 */
+	interface Check {
+		/**
+		 * Indicates if the condition is met
+		 * @return true if the condition is met
+		 */
+		boolean done();
+	}
+
+	/**
+	 * Flushes the connection every 20 ms. for the passed period
+	 * @param period The period in ms.
+	 * @param flushed Accumulates the number of traces written to the transport
+	 * @throws Exception thrown on any error
+	 */
+	void flushFor(final long period, final AtomicLong flushed) throws Exception {
+		final long end = System.currentTimeMillis() + period;
+		while(System.currentTimeMillis() < end) {
+			flushed.addAndGet(conn.flush(false)[1]);
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Kills the TSD while a tracer is running, restarts it, and checks that every traced point arrives
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testKillTSDMidStream() throws Exception {
+		tsd = new FakeTSD(0).start();
+		final int port = tsd.getPort();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", port);
+		final DiskSpool spool = conn.getSpool();
+		Assert.assertNotNull("Spool not enabled", spool);
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong traced = new AtomicLong();
+		final Thread tracer = new Thread("SpoolTestTracer") {
+			@Override
+			public void run() {
+				long i = 0;
+				while(running.get()) {
+					submitter.trace("spool.test", i, "series", "s" + (i % 50));
+					traced.incrementAndGet();
+					if(++i % 50 == 0) {
+						try { Thread.sleep(1); } catch (InterruptedException iex) { return; }
+					}
+				}
+			}
+		};
+		tracer.setDaemon(true);
+		tracer.start();
+		final AtomicLong flushed = new AtomicLong();
+		final AtomicLong beforeKill = new AtomicLong();
+		try {
+			flushFor(500, flushed);
+			// the TSD must have read what was sent, since data in its socket buffer dies with it
+			final long sent = flushed.get();
+			await("the TSD to receive " + sent + " points", 10000, new Check() {
+				@Override
+				public boolean done() {
+					return tsd.getPoints() >= sent;
+				}
+			});
+			beforeKill.set(tsd.getPoints());
+			tsd.stop();
+			await("the disconnect", 5000, new Check() {
+				@Override
+				public boolean done() {
+					return !conn.isConnected();
+				}
+			});
+			flushFor(1000, flushed);
+			Assert.assertTrue("Nothing spooled", spool.getSpooledBytes() > 0);
+			log("Spooled %s bytes in %s segments while down", spool.getSpooledBytes(), spool.getSegmentCount());
+			tsd = new FakeTSD(port).start();
+			flushFor(500, flushed);
+		} finally {
+			running.set(false);
+			tracer.join();
+		}
+		conn.flush(false);
+		// the restarted TSD only counts what it received
+		final long total = traced.get() - beforeKill.get();
+		await("the restarted TSD to receive " + total + " points", 20000, new Check() {
+			@Override
+			public boolean done() {
+				return tsd.getPoints() >= total && spool.getPendingBytes()==0;
+			}
+		});
+		log("Traced %s, received %s before the kill and %s after, replayed %s bytes", traced.get(), beforeKill.get(), tsd.getPoints(), spool.getReplayedBytes());
+		Assert.assertEquals(total, tsd.getPoints());
+		Assert.assertEquals(0L, spool.getDiscardedBytes());
+		Assert.assertEquals(spool.getSpooledBytes(), spool.getReplayedBytes());
+	}
+
+	/**
+	 * Tests that data flushed while spooled data is still being replayed queues behind it, so the TSD receives every point in order
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNewDataQueuesBehindReplay() throws Exception {
+		System.setProperty(DiskSpool.CONFIG_RATE, String.valueOf(64 * 1024));
+		tsd = new FakeTSD(0).start();
+		final int port = tsd.getPort();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", port);
+		final DiskSpool spool = conn.getSpool();
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		tsd.stop();
+		await("the disconnect", 5000, new Check() {
+			@Override
+			public boolean done() {
+				return !conn.isConnected();
+			}
+		});
+		final int half = 5000;
+		for(int i = 0; i < half; i++) submitter.trace(1418000000L + i, "order.test", i, Collections.singletonMap("series", "s1"));
+		conn.flush(false);
+		Assert.assertEquals("Not spooled", 0L, tsd.getPoints());
+		tsd = new FakeTSD(port).start();
+		await("the replay to reconnect", 5000, new Check() {
+			@Override
+			public boolean done() {
+				return conn.isConnected();
+			}
+		});
+		Assert.assertTrue("Replay already complete", spool.getPendingBytes() > 0);
+		for(int i = half; i < half * 2; i++) submitter.trace(1418000000L + i, "order.test", i, Collections.singletonMap("series", "s1"));
+		conn.flush(false);
+		await("the TSD to receive " + (half * 2) + " points", 20000, new Check() {
+			@Override
+			public boolean done() {
+				return tsd.getPoints() >= half * 2;
+			}
+		});
+		final List<String> lines = tsd.getPutLines();
+		Assert.assertEquals(half * 2, lines.size());
+		for(int i = 0; i < lines.size(); i++) {
+			Assert.assertEquals("Line #" + i + " out of order", String.valueOf(1418000000L + i), lines.get(i).split(" ")[2]);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.AnnotationBuilder;
+import com.heliosapm.opentsdb.ElasticSearchSink;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+import com.heliosapm.opentsdb.TSDBSubmitterImpl.ExpressionResult;
+import com.ning.http.client.AsyncHttpClient;
+
+/**
+ * <p>Title: ElasticSearchSinkTest</p>
+ * <p>Description: Tests {@link ElasticSearchSink} partial item retries, failure accounting and rebuilding on an ES address change
+ * against the {@link FakeTSD} bulk endpoint</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.ElasticSearchSinkTest</code></p>
+ */
+
+public class ElasticSearchSinkTest extends BaseTest {
+	/** The fake ES */
+	FakeTSD es = null;
+	/** The http client */
+	AsyncHttpClient client = null;
+
+	/**
+	 * Starts the fake ES and the http client
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void startES() throws Exception {
+		es = new FakeTSD(0).start();
+		client = new AsyncHttpClient();
+	}
+
+	/**
+	 * Stops the http client and the fake ES
+	 */
+	@After
+	public void stopES() {
+		if(client!=null) client.close();
+		if(es!=null) es.stop();
+	}
+
+	/**
+	 * Creates a sink posting to the fake ES
+	 * @param batchSize The maximum number of documents per request
+	 * @return the sink
+	 */
+	ElasticSearchSink sink(final int batchSize) {
+		final String base = "http://127.0.0.1:" + es.getPort() + "/";
+		return new ElasticSearchSink(null, ElasticSearchSink.DEFAULT_INDEX, ElasticSearchSink.DEFAULT_TYPE, true, true, 1000000, batchSize,
+				ElasticSearchSink.DEFAULT_BATCH_BYTES, 100L, ElasticSearchSink.DEFAULT_MAX_CONCURRENT, ElasticSearchSink.DEFAULT_MAX_RETRIES, 10L, 100L) {
+			@Override
+			protected AsyncHttpClient client() {
+				return client;
+			}
+			@Override
+			protected String baseURL() {
+				return base;
+			}
+		};
+	}
+
+	/**
+	 * Queues distinct data points
+	 * @param sink The sink
+	 * @param count The number of points
+	 */
+	static void points(final ElasticSearchSink sink, final int count) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		final Collection<String> rootTags = Collections.singletonList("host=test");
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < count; i++) {
+			tags.put("series", "s" + (i % 100));
+			Assert.assertTrue("Point dropped", sink.point(now + i, "sys.cpu.user", i, rootTags, tags));
+		}
+	}
+
+	/**
+	 * Fails every 10th new item with a 429 and every 50th with a 400, and checks only the retriable items are resent, 
+	 * nothing is indexed twice and the rejected ones are counted as failed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPartialRetry() throws Exception {
+		es.setEsFaults(10, 50);
+		final ElasticSearchSink sink = sink(500);
+		final int count = 20000;
+		final long start = System.nanoTime();
+		points(sink, count);
+		Assert.assertTrue("Not drained", sink.flush(30000));
+		log("Indexed %s documents in %s ms. %s", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), sink);
+		Assert.assertEquals("Lost documents", count, sink.getIndexed() + sink.getFailed());
+		Assert.assertEquals("Stored", sink.getIndexed(), es.getDocuments());
+		Assert.assertEquals("Duplicates", 0L, es.getDuplicates());
+		Assert.assertTrue("Nothing retried", sink.getRetriedItems() > 0L);
+		final long expectedFailed = count / 50;
+		Assert.assertTrue("Unexpected failed count: " + sink.getFailed(), sink.getFailed() >= expectedFailed && sink.getFailed() <= expectedFailed * 1.2);
+		sink.close(1000);
+	}
+
+	/**
+	 * Checks an unparseable bulk response counts the whole batch as failed rather than indexed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnparseableResponse() throws Exception {
+		es.setEsGarbage(true);
+		final ElasticSearchSink sink = sink(100);
+		points(sink, 250);
+		Assert.assertTrue("Not drained", sink.flush(10000));
+		log("%s", sink);
+		Assert.assertEquals("Indexed", 0L, sink.getIndexed());
+		Assert.assertEquals("Failed", 250L, sink.getFailed());
+		sink.close(1000);
+	}
+
+	/**
+	 * Checks changing the ES port replaces the connection's sink, closes the old one and sends to the new address
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRebuildOnAddressChange() throws Exception {
+		final FakeTSD tsd = new FakeTSD(0).start();
+		final FakeTSD es2 = new FakeTSD(0).start();
+		TSDBSubmitterConnection conn = null;
+		try {
+			conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+			conn.setEsHost("127.0.0.1").setEsPort(es.getPort());
+			final ElasticSearchSink first = conn.getElasticSearchSink();
+			Assert.assertNotNull("No sink", first);
+			final int startTime = (int)TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+			Assert.assertTrue("Dropped", first.annotation(new AnnotationBuilder(startTime).setDescription("first").build()));
+			conn.setEsPort(es.getPort());
+			Assert.assertSame("Rebuilt for the same address", first, conn.getElasticSearchSink());
+			conn.setEsPort(es2.getPort());
+			final ElasticSearchSink second = conn.getElasticSearchSink();
+			Assert.assertNotSame("Not rebuilt", first, second);
+			Assert.assertTrue("Dropped", second.annotation(new AnnotationBuilder(startTime).setDescription("second").build()));
+			Assert.assertTrue("Not drained", second.flush(5000));
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(es.getDocuments()==0L && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			Assert.assertTrue("Old sink not closed", first.isClosed());
+			Assert.assertEquals("Old address", 1L, es.getDocuments());
+			Assert.assertEquals("New address", 1L, es2.getDocuments());
+			conn.setEsPort(-1);
+			Assert.assertNull("Sink kept for an invalid address", conn.getElasticSearchSink());
+		} finally {
+			if(conn!=null) conn.close();
+			es2.stop();
+			tsd.stop();
+		}
+	}
+
+	/**
+	 * Checks that points flushed through an {@link ExpressionResult} are mirrored to the connection's sink as well as sent to the TSD
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testExpressionResultPointsMirrored() throws Exception {
+		final FakeTSD tsd = new FakeTSD(0).start();
+		TSDBSubmitterConnection conn = null;
+		System.setProperty(ElasticSearchSink.CONFIG_POINTS, "true");
+		try {
+			conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+			conn.setEsHost("127.0.0.1").setEsPort(es.getPort());
+			final ElasticSearchSink sink = conn.getElasticSearchSink();
+			Assert.assertNotNull("No sink", sink);
+			final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+			final ExpressionResult er = submitter.newExpressionResult();
+			final long now = System.currentTimeMillis() / 1000;
+			for(int i = 0; i < 3; i++) {
+				er.metric("er.es.test").tag("series", "s" + i).value(i).flush(now, null);
+			}
+			er.deepFlush();
+			Assert.assertTrue("Not drained", sink.flush(5000));
+			final long deadline = System.currentTimeMillis() + 5000;
+			while((es.getDocuments() < 3L || tsd.getPoints() < 3L) && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			Assert.assertEquals("Mirrored", 3L, es.getDocuments());
+			Assert.assertEquals("Sent", 3L, tsd.getPoints());
+		} finally {
+			System.clearProperty(ElasticSearchSink.CONFIG_POINTS);
+			if(conn!=null) conn.close();
+			tsd.stop();
+		}
+	}
+}
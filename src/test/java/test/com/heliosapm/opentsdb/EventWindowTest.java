@@ -0,0 +1,152 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.EventWindow;
+import com.heliosapm.opentsdb.EventWindowReporter;
+import com.heliosapm.opentsdb.PreAggregator;
+
+/**
+ * <p>Title: EventWindowTest</p>
+ * <p>Description: Tests {@link EventWindow} decay against the closed form averages, contended marking, and {@link EventWindowReporter} emission</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.EventWindowTest</code></p>
+ */
+
+public class EventWindowTest extends BaseTest {
+
+	/**
+	 * Asserts an actual value is within a relative tolerance of 1e-6 of the expected value
+	 * @param name The check name
+	 * @param actual The actual value
+	 * @param expected The expected value
+	 */
+	static void check(final String name, final double actual, final double expected) {
+		Assert.assertEquals(name, expected, actual, Math.abs(expected) * 1e-6);
+	}
+
+	/**
+	 * Tests the averages after a 10 to 100 events per second step and a minute with no events
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDecay() throws Exception {
+		// 10 events per second for 1 minute, 100 per second for 10 minutes, then 1 minute with none
+		final long start = 0L;
+		final EventWindow ew = new EventWindow(start);
+		for(int sec = 0; sec < 660; sec++) {
+			ew.mark(sec < 60 ? 10L : 100L, start + sec * 1000L);
+		}
+		long now = start + 660000L;
+		check("m1 after 10m step", ew.getRate(EventWindow.M1, now), 100D - 90D * Math.exp(-600D / 60D));
+		check("m5 after 10m step", ew.getRate(EventWindow.M5, now), 100D - 90D * Math.exp(-600D / 300D));
+		check("m15 after 10m step", ew.getRate(EventWindow.M15, now), 100D - 90D * Math.exp(-600D / 900D));
+		final double m1 = ew.getRate(EventWindow.M1, now);
+		final double m15 = ew.getRate(EventWindow.M15, now);
+		now += 60000L;
+		check("m1 after 1m idle", ew.getRate(EventWindow.M1, now), m1 * Math.exp(-1D));
+		// the reporter's idle time leaves the 15 minute rate at 1/e
+		now += EventWindowReporter.IDLE_TIME - 60000L;
+		check("m15 after the idle time", ew.getRate(EventWindow.M15, now), m15 * Math.exp(-1D));
+		Assert.assertEquals(60 * 10 + 600 * 100, ew.getCount());
+	}
+
+	/**
+	 * Tests that no marks are lost under contention, and logs the cost of a mark
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testContendedMarks() throws Exception {
+		final int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2), marks = 2000000;
+		final EventWindow contended = new EventWindow();
+		final CountDownLatch go = new CountDownLatch(1), done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			new Thread("EventWindowBench#" + t) {
+				@Override
+				public void run() {
+					try {
+						go.await();
+						for(int i = 0; i < marks; i++) contended.mark();
+					} catch (Exception ex) {
+						/* No Op */
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		final long startNanos = System.nanoTime();
+		go.countDown();
+		done.await();
+		final long elapsed = System.nanoTime() - startNanos;
+		final long total = (long)threads * marks;
+		log("%s threads, %s marks, count %s, %s ns/mark, %s marks/s", 
+				threads, total, contended.getCount(), elapsed / total, total * 1000000000L / elapsed);
+		Assert.assertEquals(total, contended.getCount());
+	}
+
+	/**
+	 * Tests that the reporter emits the three rates of each marked series every period
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReporter() throws Exception {
+		final Map<String, Double> emitted = new ConcurrentHashMap<String, Double>();
+		final CountDownLatch reported = new CountDownLatch(6);
+		final EventWindowReporter reporter = new EventWindowReporter(100L, new PreAggregator.RollupSink() {
+			@Override
+			public void rollup(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
+				emitted.put(metric + tags, value);
+				reported.countDown();
+			}
+		});
+		try {
+			reporter.mark(1L, "logins", Collections.singletonMap("app", "a"), 50L);
+			reporter.mark(2L, "logouts", Collections.singletonMap("app", "a"), 5L);
+			reporter.mark(1L, "logins", Collections.singletonMap("app", "a"), 50L);
+			Assert.assertEquals(2, reporter.getSeriesCount());
+			Assert.assertTrue("Rates not reported", reported.await(5, TimeUnit.SECONDS));
+			for(String metric: new String[]{"logins", "logouts"}) {
+				for(String suffix: new String[]{".m1", ".m5", ".m15"}) {
+					Assert.assertTrue("Missing " + metric + suffix, emitted.containsKey(metric + suffix + "{app=a}"));
+				}
+			}
+		} finally {
+			reporter.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.CardinalityLimiter;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+import com.heliosapm.opentsdb.TSDBSubmitterImpl.ExpressionResult;
+
+/**
+ * <p>Title: ExpressionResultTest</p>
+ * <p>Description: Tests for the puts traced through {@link ExpressionResult}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.ExpressionResultTest</code></p>
+ */
+
+public class ExpressionResultTest extends BaseTest {
+	/** The fake TSD the current test writes to */
+	FakeTSD tsd = null;
+	/** The connection under test */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * Closes the connection and stops the fake TSD
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		System.clearProperty(CardinalityLimiter.CONFIG_LIMIT);
+		System.clearProperty(CardinalityLimiter.CONFIG_MODE);
+	}
+
+	/**
+	 * Starts a fake TSD and returns a submitter connected to it
+	 * @return the submitter
+	 */
+	TSDBSubmitter start() {
+		tsd = new FakeTSD(0).start();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		return conn.submitter(Collections.singletonMap("host", "test"));
+	}
+
+	/**
+	 * Waits for the fake TSD to receive the expected number of points
+	 * @param expected The expected number of points
+	 * @return the received put lines
+	 * @throws Exception thrown on any error
+	 */
+	List<String> awaitLines(final int expected) throws Exception {
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(tsd.getPoints() < expected && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Thread.sleep(100);
+		final List<String> lines = tsd.getPutLines();
+		Assert.assertEquals("Put lines " + lines, expected, lines.size());
+		return lines;
+	}
+
+	/**
+	 * Tests that flushed results go straight to the connection's append buffer, carrying the root tags
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFlushAppendsToConnection() throws Exception {
+		final TSDBSubmitter submitter = start();
+		final ExpressionResult er = submitter.newExpressionResult();
+		er.metric("er.test").tag("k", "v").value(5L).flush(1418000000L, null);
+		er.metric("er.test").tag("k", "w").value(2.5D).flush(1418000000L, null);
+		Assert.assertEquals("Traces not in the connection's buffer", 2L, conn.getStats().getBufferedTraces());
+		conn.flush(false);
+		final List<String> lines = awaitLines(2);
+		Assert.assertEquals("put er.test 1418000000 5 host=test k=v", lines.get(0));
+		Assert.assertTrue(lines.get(1), lines.get(1).startsWith("put er.test 1418000000 2.5"));
+		Assert.assertTrue(lines.get(1), lines.get(1).endsWith("host=test k=w"));
+	}
+
+	/**
+	 * Tests that a duplicate series and timestamp is suppressed and that a deep flush writes to the endpoint
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDedupAndDeepFlush() throws Exception {
+		final TSDBSubmitter submitter = start();
+		final ExpressionResult er = submitter.newExpressionResult();
+		er.metric("er.test").tag("k", "v").value(1L).flush(1418000000L, null);
+		er.metric("er.test").tag("k", "v").value(2L).flush(1418000000L, null);
+		er.metric("er.test").tag("k", "v").value(3L).flush(1418000001L, null);
+		er.deepFlush();
+		final List<String> lines = awaitLines(2);
+		Assert.assertEquals("put er.test 1418000000 1 host=test k=v", lines.get(0));
+		Assert.assertEquals("put er.test 1418000001 3 host=test k=v", lines.get(1));
+		// the deep flush cleared the dedup table, so the same series and timestamp passes again
+		er.metric("er.test").tag("k", "v").value(4L).flush(1418000000L, null);
+		er.deepFlush();
+		Assert.assertEquals("put er.test 1418000000 4 host=test k=v", awaitLines(3).get(2));
+	}
+
+	/**
+	 * Tests that flushed results are offered to the connection's cardinality limiter
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCardinalityLimited() throws Exception {
+		System.setProperty(CardinalityLimiter.CONFIG_LIMIT, "10");
+		System.setProperty(CardinalityLimiter.CONFIG_MODE, "drop");
+		final TSDBSubmitter submitter = start();
+		final CardinalityLimiter limiter = conn.getCardinalityLimiter();
+		Assert.assertNotNull("Limiter not enabled", limiter);
+		final ExpressionResult er = submitter.newExpressionResult();
+		for(int i = 0; i < 100; i++) {
+			er.metric("er.sessions").tag("session", "s" + i).value(i).flush(1418000000L, null);
+		}
+		er.deepFlush();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(tsd.getPoints() + limiter.getDroppedPoints() < 100 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Thread.sleep(100);
+		final int received = tsd.getPutLines().size();
+		log("Received %s of 100 series: %s", received, limiter);
+		Assert.assertTrue("Nothing dropped", limiter.getDroppedPoints() > 0L);
+		Assert.assertEquals(100L, received + limiter.getDroppedPoints());
+	}
+}
@@ -0,0 +1,796 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashSet;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.heliosapm.opentsdb.SeriesHash;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: FakeTSD</p>
+ * <p>Description: An in-process OpenTSDB stand-in on Netty 3 for exercising and benchmarking submitters without a real TSD.</p>
+ * <p>Like OpenTSDB, one port serves both protocols: a connection whose first byte is an upper case letter is HTTP
+ * (<b><code>/api/put</code></b>, <b><code>/api/query</code></b>, <b><code>/api/query/last</code></b>, <b><code>/api/version</code></b>, 
+ * <b><code>/api/annotation</code></b> and <b><code>/api/annotation/bulk</code></b>), anything else is telnet (<b><code>put</code></b> and <b><code>version</code></b>).
+ * Puts are validated and counted, not stored. Query answers report one TSUID per sub query, derived from the series key. 
+ * Last data point answers do the same per time series, except that a metric named <b><code>unknown.*</code></b> fails the request 
+ * with a 400 the way OpenTSDB rejects a metric it has no UID for.</p>
+ * <p>Three switches degrade the server: a response latency delaying every HTTP and version reply, a read rate in bytes per second
+ * that throttles how fast each connection is read, and an error rate rejecting that fraction of puts the way OpenTSDB does.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.FakeTSD</code></p>
+ */
+
+public class FakeTSD {
+	/** The requested listening port, 0 for an ephemeral port */
+	protected final int requestedPort;
+	/** The server bootstrap */
+	protected ServerBootstrap bootstrap = null;
+	/** The server channel */
+	protected Channel serverChannel = null;
+	/** All open channels, closed on stop */
+	protected final ChannelGroup channels = new DefaultChannelGroup("FakeTSD");
+	/** The timer for delayed responses and read throttling */
+	protected final HashedWheelTimer timer = new HashedWheelTimer(daemonThreadFactory("FakeTSDTimer"), 5, TimeUnit.MILLISECONDS);
+
+	/** The delay in ms. added to every HTTP and version response */
+	protected volatile long latency = 0L;
+	/** The per connection read rate in bytes per second, or 0 for unlimited */
+	protected volatile long readRate = 0L;
+	/** The fraction of puts to reject */
+	protected volatile double errorRate = 0D;
+	/** The status every HTTP request is answered with, or 0 to process requests normally */
+	protected volatile int httpStatus = 0;
+	/** Indicates if the bulk annotation endpoint is served, which OpenTSDB versions before 2.1 do not */
+	protected volatile boolean bulkAnnotations = true;
+	/** Every n-th ES bulk item is answered 429 the first time it is seen, or 0 for none */
+	protected volatile int esRetryEvery = 0;
+	/** Every n-th ES bulk item is answered 400, or 0 for none */
+	protected volatile int esRejectEvery = 0;
+	/** Indicates if ES bulk requests are answered with an unparseable body */
+	protected volatile boolean esGarbage = false;
+	/** The number of HTTP puts still to fail with a storage exception */
+	protected final AtomicInteger storageErrors = new AtomicInteger(0);
+	/** The ES bulk item sequence */
+	protected final AtomicLong esItems = new AtomicLong(0L);
+	/** The ES documents answered 429 and stored */
+	protected final NonBlockingHashSet<String> esSeen = new NonBlockingHashSet<String>();
+
+	/** The number of accepted data points */
+	protected final Counter points = new Counter();
+	/** The number of rejected data points */
+	protected final Counter rejected = new Counter();
+	/** The number of bytes received */
+	protected final Counter bytes = new Counter();
+	/** The number of HTTP requests */
+	protected final Counter httpRequests = new Counter();
+	/** The number of annotations received */
+	protected final Counter annotations = new Counter();
+	/** The number of accepted connections */
+	protected final Counter connections = new Counter();
+	/** The number of ES documents stored */
+	protected final Counter documents = new Counter();
+	/** The number of ES documents stored more than once */
+	protected final Counter duplicates = new Counter();
+	/** The first {@link #MAX_RECORDED} accepted telnet put lines */
+	protected final List<String> putLines = new ArrayList<String>();
+
+	private static final Logger LOG = LoggerFactory.getLogger(FakeTSD.class);
+
+	/** The version reply */
+	public static final String VERSION = "net.opentsdb FakeTSD built at revision helios";
+	/** The second line of the telnet version reply, which contains colons like the real one */
+	public static final String BUILT = "Built on 2014/03/24 18:48:02 +0000 by helios@localhost:/tmp/opentsdb";
+	/** The maximum number of accepted telnet put lines recorded */
+	public static final int MAX_RECORDED = 10000;
+	/** The maximum telnet line length */
+	public static final int MAX_LINE = 64 * 1024;
+	/** The maximum HTTP request body size */
+	public static final int MAX_CONTENT = 16 * 1024 * 1024;
+
+	/**
+	 * Creates a new FakeTSD
+	 * @param port The listening port, 0 for an ephemeral port
+	 */
+	public FakeTSD(final int port) {
+		if(port < 0 || port > 65535) throw new IllegalArgumentException("Invalid port [" + port + "]");
+		requestedPort = port;
+	}
+
+	/**
+	 * Creates a daemon thread factory
+	 * @param name The thread name prefix
+	 * @return the thread factory
+	 */
+	static ThreadFactory daemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+			final AtomicInteger serial = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, name + "Thread#" + serial.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Starts the server on the loopback interface
+	 * @return this server
+	 */
+	public synchronized FakeTSD start() {
+		if(serverChannel!=null) return this;
+		bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(daemonThreadFactory("FakeTSDBoss")),
+				Executors.newCachedThreadPool(daemonThreadFactory("FakeTSDWorker"))));
+		bootstrap.setOption("child.tcpNoDelay", true);
+		bootstrap.setOption("reuseAddress", true);
+		bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+			@Override
+			public ChannelPipeline getPipeline() throws Exception {
+				return Channels.pipeline(new Throttle(), new Detector());
+			}
+		});
+		serverChannel = bootstrap.bind(new InetSocketAddress("127.0.0.1", requestedPort));
+		channels.add(serverChannel);
+		LOG.info("FakeTSD listening on [{}]", serverChannel.getLocalAddress());
+		return this;
+	}
+
+	/**
+	 * Stops the server and closes all connections
+	 */
+	public synchronized void stop() {
+		if(serverChannel==null) return;
+		channels.close().awaitUninterruptibly(5000);
+		bootstrap.releaseExternalResources();
+		timer.stop();
+		serverChannel = null;
+	}
+
+	/**
+	 * Returns the bound port
+	 * @return the bound port
+	 */
+	public int getPort() {
+		final Channel ch = serverChannel;
+		if(ch==null) throw new IllegalStateException("Not started");
+		return ((InetSocketAddress)ch.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Sets the delay added to every HTTP and version response
+	 * @param latency the delay in ms.
+	 * @return this server
+	 */
+	public FakeTSD setLatency(final long latency) {
+		if(latency < 0) throw new IllegalArgumentException("Invalid latency [" + latency + "]");
+		this.latency = latency;
+		return this;
+	}
+
+	/**
+	 * Sets the per connection read rate, simulating a TSD that reads slowly
+	 * @param bytesPerSecond the read rate in bytes per second, 0 for unlimited
+	 * @return this server
+	 */
+	public FakeTSD setReadRate(final long bytesPerSecond) {
+		if(bytesPerSecond < 0) throw new IllegalArgumentException("Invalid read rate [" + bytesPerSecond + "]");
+		readRate = bytesPerSecond;
+		return this;
+	}
+
+	/**
+	 * Sets the fraction of puts to reject
+	 * @param errorRate the fraction of puts to reject, between 0 and 1
+	 * @return this server
+	 */
+	public FakeTSD setErrorRate(final double errorRate) {
+		if(errorRate < 0D || errorRate > 1D) throw new IllegalArgumentException("Invalid error rate [" + errorRate + "]");
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * Sets the status every HTTP request is answered with, simulating a failing TSD
+	 * @param httpStatus the status code, or 0 to process requests normally
+	 * @return this server
+	 */
+	public FakeTSD setHttpStatus(final int httpStatus) {
+		if(httpStatus!=0 && (httpStatus < 100 || httpStatus > 599)) throw new IllegalArgumentException("Invalid HTTP status [" + httpStatus + "]");
+		this.httpStatus = httpStatus;
+		return this;
+	}
+
+	/**
+	 * Enables or disables the bulk annotation endpoint. When disabled it answers 404 like OpenTSDB versions before 2.1.
+	 * @param bulkAnnotations true to serve the bulk annotation endpoint, false to answer 404
+	 * @return this server
+	 */
+	public FakeTSD setBulkAnnotations(final boolean bulkAnnotations) {
+		this.bulkAnnotations = bulkAnnotations;
+		return this;
+	}
+
+	/**
+	 * Sets the ES bulk item faults. Items are numbered in arrival order across requests.
+	 * @param retryEvery Every n-th item is answered 429 the first time its document is seen, or 0 for none
+	 * @param rejectEvery Every n-th item is answered 400, or 0 for none
+	 * @return this server
+	 */
+	public FakeTSD setEsFaults(final int retryEvery, final int rejectEvery) {
+		esRetryEvery = retryEvery;
+		esRejectEvery = rejectEvery;
+		return this;
+	}
+
+	/**
+	 * Fails the next HTTP puts with a storage exception, which a retry gets past
+	 * @param count The number of data points to fail
+	 * @return this server
+	 */
+	public FakeTSD setStorageErrors(final int count) {
+		storageErrors.set(count);
+		return this;
+	}
+
+	/**
+	 * Enables or disables answering ES bulk requests with an unparseable body
+	 * @param esGarbage true to answer with an unparseable body
+	 * @return this server
+	 */
+	public FakeTSD setEsGarbage(final boolean esGarbage) {
+		this.esGarbage = esGarbage;
+		return this;
+	}
+
+	/**
+	 * Returns the number of ES documents stored
+	 * @return the number of ES documents stored
+	 */
+	public long getDocuments() {
+		return documents.get();
+	}
+
+	/**
+	 * Returns the number of ES documents stored more than once
+	 * @return the number of duplicate ES documents
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * Returns the number of accepted data points
+	 * @return the number of accepted data points
+	 */
+	public long getPoints() {
+		return points.get();
+	}
+
+	/**
+	 * Returns the number of rejected data points
+	 * @return the number of rejected data points
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of bytes received
+	 * @return the number of bytes received
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns the number of HTTP requests
+	 * @return the number of HTTP requests
+	 */
+	public long getHttpRequests() {
+		return httpRequests.get();
+	}
+
+	/**
+	 * Returns the number of annotations received
+	 * @return the number of annotations received
+	 */
+	public long getAnnotations() {
+		return annotations.get();
+	}
+
+	/**
+	 * Returns the number of accepted connections
+	 * @return the number of accepted connections
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Returns the accepted telnet put lines, up to {@link #MAX_RECORDED}, in arrival order
+	 * @return a copy of the recorded put lines
+	 */
+	public List<String> getPutLines() {
+		synchronized(putLines) {
+			return new ArrayList<String>(putLines);
+		}
+	}
+
+	/**
+	 * Resets the counters and the recorded put lines
+	 */
+	public void reset() {
+		synchronized(putLines) {
+			putLines.clear();
+		}
+		points.set(0L);
+		rejected.set(0L);
+		bytes.set(0L);
+		httpRequests.set(0L);
+		annotations.set(0L);
+		documents.set(0L);
+		duplicates.set(0L);
+	}
+
+	/**
+	 * Decides if the next put is rejected by error injection
+	 * @return true to reject
+	 */
+	protected boolean injectError() {
+		final double er = errorRate;
+		return er > 0D && ThreadLocalRandom.current().nextDouble() < er;
+	}
+
+	/**
+	 * Decides if the next HTTP put fails with a storage exception
+	 * @return true to fail
+	 */
+	protected boolean injectStorageError() {
+		while(true) {
+			final int remaining = storageErrors.get();
+			if(remaining < 1) return false;
+			if(storageErrors.compareAndSet(remaining, remaining - 1)) return true;
+		}
+	}
+
+	/**
+	 * Validates a telnet put line, <b><code>put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;k=v&gt;...</code></b>
+	 * @param tokens The whitespace separated tokens of the line
+	 * @return null if valid, otherwise the OpenTSDB style error message
+	 */
+	static String validatePut(final String[] tokens) {
+		if(tokens.length < 5) return "illegal argument: not enough arguments (need least 4, got " + (tokens.length - 1) + ")";
+		try {
+			Long.parseLong(tokens[2]);
+		} catch (NumberFormatException nex) {
+			return "illegal argument: invalid timestamp: '" + tokens[2] + "'";
+		}
+		try {
+			Double.parseDouble(tokens[3]);
+		} catch (NumberFormatException nex) {
+			return "illegal argument: invalid value: '" + tokens[3] + "'";
+		}
+		for(int i = 4; i < tokens.length; i++) {
+			final int eq = tokens[i].indexOf('=');
+			if(eq < 1 || eq==tokens[i].length() - 1) return "illegal argument: invalid tag: '" + tokens[i] + "'";
+		}
+		return null;
+	}
+
+	/**
+	 * Writes a message, after the configured latency if one is set
+	 * @param ch The channel to write to
+	 * @param message The message
+	 * @param close true to close the channel after the write
+	 */
+	protected void respond(final Channel ch, final Object message, final boolean close) {
+		final long delay = latency;
+		if(delay < 1) {
+			final ChannelFuture f = ch.write(message);
+			if(close) f.addListener(ChannelFutureListener.CLOSE);
+			return;
+		}
+		timer.newTimeout(new TimerTask() {
+			@Override
+			public void run(final Timeout timeout) throws Exception {
+				if(!ch.isConnected()) return;
+				final ChannelFuture f = ch.write(message);
+				if(close) f.addListener(ChannelFutureListener.CLOSE);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * <p>Title: Throttle</p>
+	 * <p>Description: Counts received bytes and, when a read rate is set, suspends reading long enough to hold the connection to that rate</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.FakeTSD.Throttle</code></p>
+	 */
+	class Throttle extends SimpleChannelUpstreamHandler {
+		@Override
+		public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+			channels.add(e.getChannel());
+			connections.increment();
+			super.channelOpen(ctx, e);
+		}
+
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+			final int size = ((ChannelBuffer)e.getMessage()).readableBytes();
+			bytes.add(size);
+			final long rate = readRate;
+			if(rate > 0) {
+				final Channel ch = e.getChannel();
+				final long pause = size * 1000L / rate;
+				if(pause > 0) {
+					ch.setReadable(false);
+					timer.newTimeout(new TimerTask() {
+						@Override
+						public void run(final Timeout timeout) throws Exception {
+							if(ch.isOpen()) ch.setReadable(true);
+						}
+					}, pause, TimeUnit.MILLISECONDS);
+				}
+			}
+			super.messageReceived(ctx, e);
+		}
+	}
+
+	/**
+	 * <p>Title: Detector</p>
+	 * <p>Description: Inspects the first byte of a connection and replaces itself with the HTTP or telnet pipeline</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.FakeTSD.Detector</code></p>
+	 */
+	class Detector extends FrameDecoder {
+		@Override
+		protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer buffer) throws Exception {
+			if(buffer.readableBytes() < 1) return null;
+			final byte first = buffer.getByte(buffer.readerIndex());
+			final ChannelPipeline p = ctx.getPipeline();
+			if(first >= 'A' && first <= 'Z') {
+				p.addLast("decoder", new HttpRequestDecoder());
+				p.addLast("inflater", new HttpContentDecompressor());
+				p.addLast("aggregator", new HttpChunkAggregator(MAX_CONTENT));
+				p.addLast("encoder", new HttpResponseEncoder());
+				p.addLast("handler", new HttpHandler());
+			} else {
+				// split on \n alone: with the \r\n delimiter too, every frame would scan the whole buffer for a \r\n that never comes
+				p.addLast("framer", new DelimiterBasedFrameDecoder(MAX_LINE, ChannelBuffers.wrappedBuffer(new byte[]{'\n'})));
+				p.addLast("handler", new TelnetHandler());
+			}
+			p.remove(this);
+			return buffer.readBytes(buffer.readableBytes());
+		}
+	}
+
+	/**
+	 * <p>Title: TelnetHandler</p>
+	 * <p>Description: Handles telnet <b><code>put</code></b> and <b><code>version</code></b> lines</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.FakeTSD.TelnetHandler</code></p>
+	 */
+	class TelnetHandler extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+			final String line = ((ChannelBuffer)e.getMessage()).toString(TSDBSubmitterConnection.CHARSET).trim();
+			if(line.isEmpty()) return;
+			final String[] tokens = line.split("\\s+");
+			final Channel ch = e.getChannel();
+			if("put".equals(tokens[0])) {
+				String error = validatePut(tokens);
+				if(error==null && injectError()) error = "unknown metric: No such name for 'metrics': '" + tokens[1] + "'";
+				if(error==null) {
+					points.increment();
+					synchronized(putLines) {
+						if(putLines.size() < MAX_RECORDED) putLines.add(line);
+					}
+				} else {
+					rejected.increment();
+					ch.write(ChannelBuffers.copiedBuffer("put: " + error + "\n", TSDBSubmitterConnection.CHARSET));
+				}
+			} else if("version".equals(tokens[0])) {
+				respond(ch, ChannelBuffers.copiedBuffer(VERSION + "\n" + BUILT + "\n", TSDBSubmitterConnection.CHARSET), false);
+			} else if("exit".equals(tokens[0])) {
+				ch.close();
+			} else {
+				ch.write(ChannelBuffers.copiedBuffer("unknown command: " + tokens[0] + ".  Try `help'.\n", TSDBSubmitterConnection.CHARSET));
+			}
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+			LOG.debug("Telnet connection error", e.getCause());
+			e.getChannel().close();
+		}
+	}
+
+	/**
+	 * <p>Title: HttpHandler</p>
+	 * <p>Description: Handles the OpenTSDB HTTP API endpoints used by the submitters</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.FakeTSD.HttpHandler</code></p>
+	 */
+	class HttpHandler extends SimpleChannelUpstreamHandler {
+		@Override
+		public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+			final HttpRequest request = (HttpRequest)e.getMessage();
+			httpRequests.increment();
+			final QueryStringDecoder qs = new QueryStringDecoder(request.getUri());
+			final String path = qs.getPath();
+			HttpResponseStatus status = HttpResponseStatus.OK;
+			String body;
+			final int forced = httpStatus;
+			try {
+				if(forced!=0) {
+					status = HttpResponseStatus.valueOf(forced);
+					body = error(forced, "Forced status " + forced);
+				} else if("/api/put".equals(path)) {
+					final JSONObject result = put(request.getContent().toString(TSDBSubmitterConnection.CHARSET), qs.getParameters().containsKey("details"));
+					status = result.getInt("failed") > 0 ? HttpResponseStatus.BAD_REQUEST : HttpResponseStatus.NO_CONTENT;
+					body = status==HttpResponseStatus.NO_CONTENT ? null : result.toString();
+				} else if("/api/query".equals(path)) {
+					body = query(qs.getParameters()).toString();
+				} else if("/api/query/last".equals(path)) {
+					body = last(qs.getParameters()).toString();
+				} else if("/api/version".equals(path)) {
+					body = new JSONObject().put("version", VERSION).toString();
+				} else if("/api/annotation".equals(path)) {
+					final JSONObject annotation = new JSONObject(request.getContent().toString(TSDBSubmitterConnection.CHARSET));
+					annotations.increment();
+					body = annotation.toString();
+				} else if("/api/annotation/bulk".equals(path) && bulkAnnotations) {
+					final JSONArray arr = new JSONArray(request.getContent().toString(TSDBSubmitterConnection.CHARSET));
+					annotations.add(arr.length());
+					body = arr.toString();
+				} else if(path.endsWith("/_bulk")) {
+					body = bulk(request.getContent().toString(TSDBSubmitterConnection.CHARSET));
+				} else {
+					status = HttpResponseStatus.NOT_FOUND;
+					body = error(404, "Endpoint not found: " + path);
+				}
+			} catch (IllegalArgumentException iex) {
+				status = HttpResponseStatus.BAD_REQUEST;
+				body = error(400, iex.getMessage());
+			} catch (Exception ex) {
+				status = HttpResponseStatus.BAD_REQUEST;
+				body = error(400, "Unable to parse the given JSON: " + ex.getMessage());
+			}
+			final HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+			if(body!=null) {
+				response.setContent(ChannelBuffers.copiedBuffer(body, TSDBSubmitterConnection.CHARSET));
+				response.headers().set(HttpHeaders.Names.CONTENT_TYPE, "application/json; charset=UTF-8");
+			}
+			HttpHeaders.setContentLength(response, response.getContent().readableBytes());
+			final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+			if(keepAlive) response.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+			respond(e.getChannel(), response, !keepAlive);
+		}
+
+		@Override
+		public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent e) throws Exception {
+			LOG.debug("HTTP connection error", e.getCause());
+			e.getChannel().close();
+		}
+	}
+
+	/**
+	 * Renders an OpenTSDB style error body
+	 * @param code The HTTP status code
+	 * @param message The error message
+	 * @return the error body
+	 */
+	static String error(final int code, final String message) {
+		return new JSONObject().put("error", new JSONObject().put("code", code).put("message", message)).toString();
+	}
+
+	/**
+	 * Processes an HTTP put body, a JSON data point or array of data points
+	 * @param json The request body
+	 * @param details true to include the rejected data points in the result
+	 * @return the put result
+	 */
+	protected JSONObject put(final String json, final boolean details) {
+		final String trimmed = json.trim();
+		final JSONArray dps = trimmed.startsWith("[") ? new JSONArray(trimmed) : new JSONArray().put(new JSONObject(trimmed));
+		int success = 0;
+		final JSONArray errors = new JSONArray();
+		for(int i = 0; i < dps.length(); i++) {
+			final JSONObject dp = dps.getJSONObject(i);
+			String error = null;
+			if(!dp.has("metric") || !dp.has("timestamp") || !dp.has("value")) {
+				error = "Missing metric, timestamp or value";
+			} else {
+				final JSONObject tags = dp.optJSONObject("tags");
+				if(tags==null || tags.length()==0) error = "Missing tags";
+				else if(injectStorageError()) error = "Storage exception: org.hbase.async.RemoteException: Call timed out";
+				else if(injectError()) error = "Unknown metric: No such name for 'metrics': '" + dp.getString("metric") + "'";
+			}
+			if(error==null) {
+				success++;
+			} else if(details) {
+				errors.put(new JSONObject().put("datapoint", dp).put("error", error));
+			}
+		}
+		points.add(success);
+		rejected.add(dps.length() - success);
+		final JSONObject result = new JSONObject().put("success", success).put("failed", dps.length() - success);
+		if(details) result.put("errors", errors);
+		return result;
+	}
+
+	/**
+	 * Answers a query with one result per <b><code>m</code></b> sub query, each with a TSUID derived from the series key
+	 * @param params The query parameters
+	 * @return the query results
+	 */
+	protected JSONArray query(final Map<String, List<String>> params) {
+		final List<String> subQueries = params.get("m");
+		if(subQueries==null || subQueries.isEmpty()) throw new IllegalArgumentException("Missing sub queries");
+		final JSONArray results = new JSONArray();
+		for(String m: subQueries) {
+			final int colon = m.lastIndexOf(':');
+			final String key = m.substring(colon + 1);
+			final int brace = key.indexOf('{');
+			final String metric = brace==-1 ? key : key.substring(0, brace);
+			final JSONObject tags = new JSONObject();
+			if(brace!=-1) {
+				for(String tag: key.substring(brace + 1, key.length() - 1).split(",")) {
+					final int eq = tag.indexOf('=');
+					if(eq > 0) tags.put(tag.substring(0, eq), tag.substring(eq + 1));
+				}
+			}
+			if(injectError()) throw new IllegalArgumentException("No such name for 'metrics': '" + metric + "'");
+			results.put(new JSONObject().put("metric", metric).put("tags", tags).put("aggregateTags", new JSONArray())
+				.put("tsuids", new JSONArray().put(Long.toHexString(SeriesHash.hash(key)).toUpperCase()))
+				.put("dps", new JSONObject()));
+		}
+		return results;
+	}
+
+	/**
+	 * Answers a last data point query with one resolved result per <b><code>timeseries</code></b>, each with a TSUID derived from the series key
+	 * @param params The query parameters
+	 * @return the last data points
+	 */
+	protected JSONArray last(final Map<String, List<String>> params) {
+		final List<String> timeseries = params.get("timeseries");
+		if(timeseries==null || timeseries.isEmpty()) throw new IllegalArgumentException("Missing time series");
+		final JSONArray results = new JSONArray();
+		for(String key: timeseries) {
+			final int brace = key.indexOf('{');
+			final String metric = brace==-1 ? key : key.substring(0, brace);
+			if(metric.startsWith("unknown.")) throw new IllegalArgumentException("No such name for 'metrics': '" + metric + "'");
+			final JSONObject tags = new JSONObject();
+			if(brace!=-1) {
+				for(String tag: key.substring(brace + 1, key.length() - 1).split(",")) {
+					final int eq = tag.indexOf('=');
+					if(eq > 0) tags.put(tag.substring(0, eq), tag.substring(eq + 1));
+				}
+			}
+			results.put(new JSONObject().put("metric", metric).put("tags", tags).put("timestamp", System.currentTimeMillis())
+				.put("value", "0").put("tsuid", Long.toHexString(SeriesHash.hash(key)).toUpperCase()));
+		}
+		return results;
+	}
+
+	/**
+	 * Answers an ES bulk request of index actions with a per item status, applying the configured item faults
+	 * @param ndjson The request body
+	 * @return the bulk response
+	 */
+	protected String bulk(final String ndjson) {
+		if(esGarbage) return "<html>Bad Gateway</html>";
+		final String[] lines = ndjson.split("\n");
+		final JSONArray items = new JSONArray();
+		boolean errors = false;
+		for(int i = 0; i + 1 < lines.length; i += 2) {
+			final String index = new JSONObject(lines[i]).getJSONObject("index").getString("_index");
+			final String source = lines[i + 1];
+			final long n = esItems.incrementAndGet();
+			final int retryEvery = esRetryEvery, rejectEvery = esRejectEvery;
+			final int status;
+			if(rejectEvery > 0 && n % rejectEvery==0) status = 400;
+			else if(retryEvery > 0 && n % retryEvery==0 && esSeen.add(source)) status = 429;
+			else status = 201;
+			final JSONObject result = new JSONObject().put("_index", index).put("status", status);
+			if(status==400) result.put("error", new JSONObject().put("type", "mapper_parsing_exception").put("reason", "fake"));
+			if(status==201) {
+				documents.increment();
+				if(!esSeen.add(source + "#stored")) duplicates.increment();
+			}
+			errors |= status!=201;
+			items.put(new JSONObject().put("index", result));
+		}
+		return new JSONObject().put("took", 1).put("errors", errors).put("items", items).toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "FakeTSD [points:" + getPoints() + ", rejected:" + getRejected() + ", bytes:" + getBytes() + ", http:" + getHttpRequests()
+			+ ", connections:" + getConnections() + "]";
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.FilterIndex;
+
+/**
+ * <p>Title: FilterIndexTest</p>
+ * <p>Description: Tests that {@link FilterIndex} matches like a linear walk of the filter definitions, and compares their speed</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.FilterIndexTest</code></p>
+ */
+
+public class FilterIndexTest extends BaseTest {
+	/** The number of metric filters */
+	static final int FILTERS = 400;
+	/** The number of test series */
+	static final int SERIES = 50000;
+
+	/**
+	 * Creates filter definitions on {@link #FILTERS} metrics, half with a wildcard tag value, plus a wildcard metric filter
+	 * @return the filter definitions
+	 */
+	static Map<String, Map<String, String>> filters() {
+		final Map<String, Map<String, String>> filters = new LinkedHashMap<String, Map<String, String>>();
+		for(int i = 0; i < FILTERS; i++) {
+			final Map<String, String> f = new LinkedHashMap<String, String>();
+			f.put("type", "MemoryPool");
+			f.put("name", (i % 2)==0 ? FilterIndex.WILDCARD : "Pool " + (i % 97));
+			filters.put("java.lang.metric" + i, f);
+		}
+		filters.put(FilterIndex.WILDCARD, Collections.singletonMap("type", FilterIndex.WILDCARD));
+		return filters;
+	}
+
+	/**
+	 * Returns the tags of test series #n. Every 7th series has no type tag, so it fails the wildcard metric filter.
+	 * @param n The series number
+	 * @return the tags
+	 */
+	static Map<String, String> tags(final int n) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		if(n % 7 != 0) tags.put("type", (n % 5)==0 ? "GarbageCollector" : "MemoryPool");
+		tags.put("name", "Pool " + (n % 97));
+		tags.put("instance", "inst-" + n);
+		return tags;
+	}
+
+	/**
+	 * Returns the metric name of test series #n, half of which have a filter
+	 * @param n The series number
+	 * @return the metric name
+	 */
+	static String metric(final int n) {
+		return "java.lang.metric" + (n % (FILTERS * 2));
+	}
+
+	/**
+	 * The linear filter walk the index replaces
+	 * @param filters The filter definitions
+	 * @param metric The metric name
+	 * @param tags The tags
+	 * @return true for a match, false otherwise
+	 */
+	static boolean linearMatches(final Map<String, Map<String, String>> filters, final String metric, final Map<String, String> tags) {
+		for(final Map.Entry<String, Map<String, String>> entry: filters.entrySet()) {
+			final String fmet = entry.getKey();
+			if(FilterIndex.WILDCARD.equals(fmet) || metric.equals(fmet)) {
+				for(Map.Entry<String, String> f: entry.getValue().entrySet()) {
+					final String v = tags.get(f.getKey());
+					if(v==null) return false;
+					if(!FilterIndex.WILDCARD.equals(f.getValue()) && !v.equals(f.getValue())) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests the index against the linear walk for every test series
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testMatchesLinearWalk() throws Exception {
+		final Map<String, Map<String, String>> filters = filters();
+		final FilterIndex index = new FilterIndex(filters);
+		Assert.assertEquals(FILTERS + 1, index.size());
+		int matched = 0;
+		for(int n = 0; n < SERIES; n++) {
+			final boolean expected = linearMatches(filters, metric(n), tags(n));
+			Assert.assertEquals("Series #" + n, expected, index.matches(metric(n), tags(n)));
+			if(expected) matched++;
+		}
+		log("Matched %s of %s", matched, SERIES);
+		Assert.assertTrue(matched > 0 && matched < SERIES);
+	}
+
+	/**
+	 * Tests the conditions of a single filter
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConditions() throws Exception {
+		final Map<String, Map<String, String>> filters = new HashMap<String, Map<String, String>>();
+		final Map<String, String> f = new LinkedHashMap<String, String>();
+		f.put("type", "MemoryPool");
+		f.put("name", FilterIndex.WILDCARD);
+		filters.put("m", f);
+		final FilterIndex index = new FilterIndex(filters);
+		final Map<String, String> tags = new HashMap<String, String>();
+		tags.put("type", "MemoryPool");
+		Assert.assertFalse("Matched without the wildcard key", index.matches("m", tags));
+		tags.put("name", "anything");
+		Assert.assertTrue(index.matches("m", tags));
+		tags.put("type", "Other");
+		Assert.assertFalse("Matched the wrong value", index.matches("m", tags));
+		Assert.assertTrue("Unfiltered metric did not match", index.matches("other", tags));
+		Assert.assertTrue(FilterIndex.EMPTY.matches("m", Collections.<String, String>emptyMap()));
+		Assert.assertEquals(0, FilterIndex.EMPTY.size());
+	}
+
+	/**
+	 * Compares the speed of the index against the linear walk. Timings are logged, not asserted.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		final Map<String, Map<String, String>> filters = filters();
+		final String[] metrics = new String[SERIES];
+		final Map<String, String>[] tags = newTagArray(SERIES);
+		for(int i = 0; i < SERIES; i++) {
+			metrics[i] = metric(i);
+			tags[i] = tags(i);
+		}
+		final FilterIndex index = new FilterIndex(filters);
+		for(int pass = 0; pass < 5; pass++) {
+			int linearMatches = 0, indexMatches = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < SERIES; i++) {
+				if(linearMatches(filters, metrics[i], tags[i])) linearMatches++;
+			}
+			final long linear = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < SERIES; i++) {
+				if(index.matches(metrics[i], tags[i])) indexMatches++;
+			}
+			final long indexed = System.nanoTime() - start;
+			log("Pass %s: linear %s ns/match (%s matched), indexed %s ns/match (%s matched)", 
+					pass, linear/SERIES, linearMatches, indexed/SERIES, indexMatches);
+			Assert.assertEquals(linearMatches, indexMatches);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, String>[] newTagArray(final int size) {
+		return (Map<String, String>[]) new Map<?, ?>[size];
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.FlushPolicy;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: FlushPolicyTest</p>
+ * <p>Description: Tests for the {@link FlushPolicy} age trigger</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.FlushPolicyTest</code></p>
+ */
+
+public class FlushPolicyTest extends BaseTest {
+
+	/**
+	 * Traces from one thread while another flushes manually, then checks that the age trigger alone
+	 * delivers whatever was appended while the last manual flush was draining
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAppendDuringFlushKeepsAge() throws Exception {
+		final FakeTSD tsd = new FakeTSD(0).start();
+		final TSDBSubmitterConnection conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		try {
+			final FlushPolicy policy = conn.getFlushPolicy().setMaxBytes(0).setMaxTraces(0).setMaxAge(200L);
+			final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+			final AtomicLong traced = new AtomicLong();
+			for(int round = 0; round < 5; round++) {
+				final AtomicBoolean running = new AtomicBoolean(true);
+				final Thread tracer = new Thread("FlushPolicyTestTracer") {
+					@Override
+					public void run() {
+						long i = 0;
+						try {
+							while(running.get()) {
+								submitter.trace("flush.test", i++, "round", "r");
+								traced.incrementAndGet();
+								if(i % 50 == 0) Thread.sleep(1);
+							}
+						} catch (InterruptedException iex) {
+							/* No Op */
+						}
+					}
+				};
+				tracer.start();
+				final long end = System.currentTimeMillis() + 300;
+				while(System.currentTimeMillis() < end) {
+					conn.flush(false);
+				}
+				running.set(false);
+				tracer.join();
+				conn.flush(false);
+			}
+			// nothing is flushed manually from here, so only the age trigger can deliver these
+			for(int i = 0; i < 10; i++) {
+				submitter.trace("flush.test", i, "round", "last");
+				traced.incrementAndGet();
+			}
+			final long ageFlushes = policy.getFlushCount(FlushPolicy.Trigger.AGE);
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(tsd.getPoints() < traced.get() && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			log("Traced %s, received %s, age flushes %s", traced.get(), tsd.getPoints(), policy.getFlushCount(FlushPolicy.Trigger.AGE));
+			Assert.assertEquals("Points received", traced.get(), tsd.getPoints());
+			Assert.assertTrue("No age flush", policy.getFlushCount(FlushPolicy.Trigger.AGE) > ageFlushes);
+		} finally {
+			conn.close();
+			tsd.stop();
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.HttpPutTransport;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: HttpPutTransportTest</p>
+ * <p>Description: Tests for {@link HttpPutTransport} against the {@link FakeTSD} HTTP API</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.HttpPutTransportTest</code></p>
+ */
+
+public class HttpPutTransportTest extends BaseTest {
+	/** The fake TSD the current test posts to */
+	FakeTSD tsd = null;
+	/** The connection under test */
+	TSDBSubmitterConnection conn = null;
+	/** The connection's transport */
+	HttpPutTransport transport = null;
+	/** A submitter on the connection */
+	TSDBSubmitter submitter = null;
+
+	/**
+	 * Starts a fake TSD and connects to it over HTTP with short retry backoffs
+	 */
+	@Before
+	public void connect() {
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, "http");
+		System.setProperty(HttpPutTransport.CONFIG_MAX_RETRIES, "3");
+		System.setProperty(HttpPutTransport.CONFIG_RETRY_BACKOFF, "300");
+		tsd = new FakeTSD(0).start();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		transport = (HttpPutTransport)conn.getTransport();
+		submitter = conn.submitter(Collections.singletonMap("host", "test"));
+	}
+
+	/**
+	 * Closes the connection, stops the fake TSD and clears the test properties
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT);
+		System.clearProperty(HttpPutTransport.CONFIG_MAX_RETRIES);
+		System.clearProperty(HttpPutTransport.CONFIG_RETRY_BACKOFF);
+		System.clearProperty(HttpPutTransport.CONFIG_BATCH_SIZE);
+		System.clearProperty(HttpPutTransport.CONFIG_MAX_CONCURRENT);
+		System.clearProperty(HttpPutTransport.CONFIG_PERMIT_WAIT);
+	}
+
+	/**
+	 * Replaces the connection with one created under the current system properties
+	 */
+	void reconnect() {
+		conn.close();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		transport = (HttpPutTransport)conn.getTransport();
+		submitter = conn.submitter(Collections.singletonMap("host", "test"));
+	}
+
+	/**
+	 * Waits for the fake TSD to have received or rejected the expected number of points
+	 * @param expected The expected number of points
+	 * @throws Exception thrown on any error
+	 */
+	void awaitProcessed(final long expected) throws Exception {
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(tsd.getPoints() + tsd.getRejected() < expected && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		while(transport.getInFlightRequests() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertEquals("Points processed", expected, tsd.getPoints() + tsd.getRejected());
+	}
+
+	/**
+	 * Tests that puts are delivered in full and compressed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testGzippedPuts() throws Exception {
+		for(int i = 0; i < 2000; i++) submitter.trace("http.test", i, "series", "s" + (i % 20));
+		conn.flush(false);
+		awaitProcessed(2000);
+		Assert.assertEquals(2000L, tsd.getPoints());
+		Assert.assertEquals(2000L, transport.getPostedPoints());
+		Assert.assertTrue("Requests not compressed", transport.getRawBytes() > transport.getSentBytes());
+	}
+
+	/**
+	 * Tests that points rejected with details are recorded and dropped rather than retried
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRejectedPointsAreNotRetried() throws Exception {
+		tsd.setErrorRate(1D);
+		for(int i = 0; i < 100; i++) submitter.trace("http.reject", i, "series", "s" + (i % 5));
+		conn.flush(false);
+		awaitProcessed(100);
+		// leave time for a retry to show up if one were scheduled
+		Thread.sleep(500);
+		Assert.assertEquals(100L, tsd.getRejected());
+		Assert.assertEquals(100L, transport.getFailedPoints());
+		Assert.assertEquals(100L, transport.getDroppedPoints());
+		Assert.assertEquals(0L, transport.getRetriedPoints());
+		Assert.assertEquals(0, transport.getInFlightRequests());
+		Assert.assertEquals("Rejections not recorded", 100L, conn.getRejections().getRejections());
+	}
+
+	/**
+	 * Tests that server errors are retried after a backoff, without holding a request permit while waiting
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testServerErrorsAreRetried() throws Exception {
+		tsd.setHttpStatus(503);
+		for(int i = 0; i < 100; i++) submitter.trace("http.retry", i, "series", "s" + (i % 5));
+		conn.flush(false);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(transport.getRetriedPoints()==0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		Assert.assertEquals(100L, transport.getRetriedPoints());
+		Thread.sleep(100);
+		Assert.assertEquals("Permit held during backoff", 0, transport.getInFlightRequests());
+		tsd.setHttpStatus(0);
+		awaitProcessed(100);
+		Assert.assertEquals(100L, tsd.getPoints());
+		Assert.assertEquals(0L, transport.getDroppedPoints());
+	}
+
+	/**
+	 * Tests that points failing for storage reasons are re-posted while the others in the request are kept
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStorageFailuresAreRetried() throws Exception {
+		tsd.setStorageErrors(30);
+		for(int i = 0; i < 100; i++) submitter.trace("http.storage", i, "series", "s" + (i % 5));
+		conn.flush(false);
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(tsd.getPoints() < 100 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertEquals(100L, tsd.getPoints());
+		Assert.assertEquals(30L, transport.getRetriedPoints());
+		Assert.assertEquals(0L, transport.getFailedPoints());
+		Assert.assertEquals(0L, transport.getDroppedPoints());
+		Assert.assertEquals("Storage failures recorded as rejections", 0L, conn.getRejections().getRejections());
+	}
+
+	/**
+	 * Tests that NaN and infinite values are dropped and counted when converted rather than posted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNonFiniteValuesAreFiltered() throws Exception {
+		submitter.trace("http.nan", Double.NaN, "series", "nan");
+		submitter.trace("http.inf", Double.POSITIVE_INFINITY, "series", "inf");
+		submitter.trace("http.ninf", Double.NEGATIVE_INFINITY, "series", "ninf");
+		for(int i = 0; i < 10; i++) submitter.trace("http.finite", i + 0.5D, "series", "s" + i);
+		conn.flush(false);
+		awaitProcessed(10);
+		Assert.assertEquals(10L, tsd.getPoints());
+		Assert.assertEquals(0L, tsd.getRejected());
+		Assert.assertEquals(3L, transport.getNonFinitePoints());
+		Assert.assertEquals(3L, transport.getDroppedPoints());
+	}
+
+	/**
+	 * Tests that a flush gives up on the batches it gets no request permit for within the permit wait, and counts them
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPermitWaitDropsBatches() throws Exception {
+		System.setProperty(HttpPutTransport.CONFIG_BATCH_SIZE, "10");
+		System.setProperty(HttpPutTransport.CONFIG_MAX_CONCURRENT, "1");
+		System.setProperty(HttpPutTransport.CONFIG_PERMIT_WAIT, "100");
+		reconnect();
+		tsd.setLatency(1000);
+		for(int i = 0; i < 30; i++) submitter.trace("http.permit", i, "series", "s" + i);
+		final long start = System.currentTimeMillis();
+		conn.flush(false);
+		Assert.assertTrue("Flush blocked", System.currentTimeMillis() - start < 900);
+		Assert.assertEquals(20L, transport.getDroppedPoints());
+		awaitProcessed(10);
+		Assert.assertEquals(10L, tsd.getPoints());
+	}
+
+	/**
+	 * Tests that closing waits for the in-flight requests
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseWaitsForInFlight() throws Exception {
+		tsd.setLatency(500);
+		for(int i = 0; i < 10; i++) submitter.trace("http.close", i, "series", "s" + i);
+		conn.flush(false);
+		Assert.assertEquals(1, transport.getInFlightRequests());
+		conn.close();
+		Assert.assertEquals("Requests in flight after close", 0, transport.getInFlightRequests());
+		Assert.assertEquals(10L, tsd.getPoints());
+		Assert.assertEquals(0L, transport.getDroppedPoints());
+	}
+}
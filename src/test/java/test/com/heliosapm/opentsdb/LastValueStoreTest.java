@@ -0,0 +1,256 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.LastValueStore;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: LastValueStoreTest</p>
+ * <p>Description: Tests {@link LastValueStore} rendering, partial scrapes, families, expiry, the series cap and contended updates</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.LastValueStoreTest</code></p>
+ */
+
+public class LastValueStoreTest extends BaseTest {
+	/** The pre-rendered root tags */
+	static final List<String> RAW_TAGS = Arrays.asList("host=web01");
+
+	/**
+	 * Renders a whole scrape as a string in small buffers
+	 * @param scrape The scrape
+	 * @return the rendered text
+	 */
+	static String render(final LastValueStore.Scrape scrape) {
+		final StringBuilder b = new StringBuilder();
+		final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(256);
+		boolean more = true;
+		while(more) {
+			buff.clear();
+			more = scrape.render(buff, 64);
+			b.append(buff.toString(TSDBSubmitterConnection.CHARSET));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Returns tags of one type tag
+	 * @param type The type tag value
+	 * @return the tags
+	 */
+	static Map<String, String> tags(final String type) {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("type", type);
+		return tags;
+	}
+
+	/**
+	 * Checks the latest value of each series is rendered with its type line, labels and timestamp
+	 */
+	@Test
+	public void testRendering() {
+		final LastValueStore store = new LastValueStore(1000, 0L);
+		store.put(1418000000L, "sys.cpu", 1.5D, RAW_TAGS, tags("Memory Pool"));
+		store.put(1418000001L, "sys.cpu", 2.5D, RAW_TAGS, tags("Memory Pool"));
+		store.put(1418000000L, "jvm.threads", 42L, RAW_TAGS, null);
+		final String text = render(store.scrape(0L, true));
+		log("%s", text);
+		Assert.assertTrue(text, text.contains("# TYPE sys_cpu untyped\nsys_cpu{host=\"web01\",type=\"Memory Pool\"} 2.5 1418000001000\n"));
+		Assert.assertTrue(text, text.contains("# TYPE jvm_threads untyped\njvm_threads{host=\"web01\"} 42 1418000000000\n"));
+		Assert.assertEquals(2, store.getSize());
+	}
+
+	/**
+	 * Checks metric names rendering the same share one family, so the type line and each series appear once
+	 */
+	@Test
+	public void testSanitizedFamilies() {
+		final LastValueStore store = new LastValueStore(1000, 0L);
+		store.put(1418000000L, "sys.cpu", 1L, RAW_TAGS, tags("user"));
+		store.put(1418000001L, "sys_cpu", 2L, RAW_TAGS, tags("user"));
+		store.put(1418000002L, "sys cpu", 3L, RAW_TAGS, tags("system"));
+		final String text = render(store.scrape(0L, false));
+		log("%s", text);
+		Assert.assertEquals("Families", 1, store.getFamilies());
+		Assert.assertEquals("Series", 2, store.getSize());
+		Assert.assertEquals(text, text.indexOf("# TYPE sys_cpu untyped\n"), text.lastIndexOf("# TYPE"));
+		Assert.assertTrue(text, text.contains("sys_cpu{host=\"web01\",type=\"user\"} 2\n"));
+		Assert.assertTrue(text, text.contains("sys_cpu{host=\"web01\",type=\"system\"} 3\n"));
+	}
+
+	/**
+	 * Checks a partial scrape renders only the series changed since an earlier scrape, and unchanged values are not changes
+	 */
+	@Test
+	public void testPartialScrape() {
+		final LastValueStore store = new LastValueStore(1000, 0L);
+		store.put(1418000000L, "sys.cpu", 1.5D, RAW_TAGS, tags("Memory Pool"));
+		store.put(1418000000L, "jvm.threads", 42L, RAW_TAGS, null);
+		LastValueStore.Scrape scrape = store.scrape(0L, false);
+		render(scrape);
+		final long since = scrape.epoch;
+		store.put(1418000002L, "jvm.threads", 42L, RAW_TAGS, null);
+		Assert.assertFalse("Unchanged value reported as changed", store.changedSince(since));
+		scrape = store.scrape(since, false);
+		String text = render(scrape);
+		Assert.assertEquals(text, 0, scrape.getRendered());
+		store.put(1418000003L, "sys.cpu", 3.5D, RAW_TAGS, tags("Memory Pool"));
+		Assert.assertTrue("Changed value not reported", store.changedSince(scrape.epoch));
+		final LastValueStore.Scrape changed = store.scrape(scrape.epoch, false);
+		text = render(changed);
+		Assert.assertEquals(text, 1, changed.getRendered());
+		Assert.assertEquals("# TYPE sys_cpu untyped\nsys_cpu{host=\"web01\",type=\"Memory Pool\"} 3.5\n", text);
+	}
+
+	/**
+	 * Checks new series are dropped at the cap, expired series are removed by a scrape and the removal counts as a change
+	 */
+	@Test
+	public void testCapAndExpiry() {
+		final LastValueStore store = new LastValueStore(100, 60000L);
+		final long now = System.currentTimeMillis();
+		for(int i = 0; i < 150; i++) {
+			final Map<String, String> idTags = new LinkedHashMap<String, String>();
+			idTags.put("id", "" + i);
+			store.put(i < 50 ? now - 120000L : now, "capped", (long)i, RAW_TAGS, idTags);
+		}
+		Assert.assertEquals("Size", 100, store.getSize());
+		Assert.assertEquals("Dropped", 50L, store.getDropped());
+		final LastValueStore.Scrape before = store.scrape(0L, true);
+		final LastValueStore.Scrape expiring = store.scrape(0L, true);
+		render(expiring);
+		Assert.assertEquals("Rendered", 50, expiring.getRendered());
+		Assert.assertEquals("Size", 50, store.getSize());
+		Assert.assertEquals("Expired", 50L, store.getExpired());
+		Assert.assertTrue("Expiry not a change", store.changedSince(before.epoch));
+	}
+
+	/**
+	 * Updates one series from several threads while scraping, checking no scrape renders a torn value
+	 * and the last write wins once the writers stop
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testContendedUpdates() throws Exception {
+		final LastValueStore store = new LastValueStore(10, 0L);
+		final int threads = 4, loops = 100000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicReference<String> torn = new AtomicReference<String>();
+		for(int t = 0; t < threads; t++) {
+			final int id = t;
+			final Thread writer = new Thread("LastValueWriter#" + t) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int i = 0; i < loops; i++) {
+							// the value is the ms. timestamp, so a torn read renders a mismatch
+							final long ts = 1418000000000L + id * 1000000L + i;
+							store.put(ts, "contended", ts, RAW_TAGS, null);
+						}
+					} catch (Exception ex) {
+						torn.set(ex.toString());
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+		start.countDown();
+		int scrapes = 0;
+		while(done.getCount() > 0 || scrapes==0) {
+			final String text = render(store.scrape(0L, true));
+			for(String line: text.split("\n")) {
+				if(line.startsWith("#") || line.isEmpty()) continue;
+				final String[] parts = line.split(" ");
+				if(!parts[1].equals(parts[2])) torn.set(line);
+			}
+			scrapes++;
+		}
+		Assert.assertNull("Torn value: " + torn.get(), torn.get());
+		store.put(1418999999999L, "contended", 7L, RAW_TAGS, null);
+		Assert.assertTrue(render(store.scrape(0L, true)).contains("contended{host=\"web01\"} 7 1418999999999\n"));
+		log("%s scrapes during %s contended updates", scrapes, threads * loops);
+	}
+
+	/**
+	 * Checks updates of existing series do not allocate once warmed up, and logs the update and scrape times
+	 */
+	@Test
+	public void testUpdateAllocation() {
+		final int seriesCount = 10000, loops = 1000000;
+		final LastValueStore store = new LastValueStore(seriesCount, 0L);
+		@SuppressWarnings("unchecked")
+		final Map<String, String>[] seriesTags = (Map<String, String>[]) new Map<?, ?>[seriesCount];
+		for(int i = 0; i < seriesCount; i++) {
+			seriesTags[i] = tags("Memory Pool");
+			seriesTags[i].put("id", "" + i);
+		}
+		final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long tid = Thread.currentThread().getId();
+		for(int pass = 0; pass < 3; pass++) {
+			final long startBytes = tmx.getThreadAllocatedBytes(tid);
+			final long start = System.nanoTime();
+			for(int i = 0; i < loops; i++) {
+				store.put(1418000000L + i, "bench.metric", i * 1.5D, RAW_TAGS, seriesTags[i % seriesCount]);
+			}
+			final long elapsed = System.nanoTime() - start;
+			final long allocated = (tmx.getThreadAllocatedBytes(tid) - startBytes) / loops;
+			final ChannelBuffer buff = ChannelBuffers.dynamicBuffer(16384);
+			final LastValueStore.Scrape s = store.scrape(0L, true);
+			long rbytes = 0;
+			final long rstart = System.nanoTime();
+			while(true) {
+				buff.clear();
+				final boolean more = s.render(buff, 16384);
+				rbytes += buff.readableBytes();
+				if(!more) break;
+			}
+			log("put: %s ns/op, %s bytes/op.  scrape: %s series, %s bytes in %s us", elapsed / loops, allocated, s.getRendered(), rbytes, (System.nanoTime() - rstart) / 1000);
+			Assert.assertEquals("Rendered", seriesCount, s.getRendered());
+			// only the tag iterators, if escape analysis keeps them
+			if(pass==2) Assert.assertTrue("Allocated " + allocated + " bytes/op", allocated <= 64);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.NettyTransport;
+import com.heliosapm.opentsdb.PutEncoder;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: NettyTransportTest</p>
+ * <p>Description: Tests for {@link NettyTransport} against a {@link FakeTSD}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.NettyTransportTest</code></p>
+ */
+
+public class NettyTransportTest extends BaseTest {
+	/** The fake TSD the current test writes to */
+	FakeTSD tsd = null;
+	/** The connection the current test writes through */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * <p>Title: RecordingSpiller</p>
+	 * <p>Description: A spiller that counts what it is handed</p>
+	 */
+	static class RecordingSpiller implements NettyTransport.Spiller {
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong lines = new AtomicLong();
+		volatile boolean replaying = false;
+		@Override
+		public boolean spill(final ChannelBuffer buffer) {
+			final int size = buffer.readableBytes();
+			for(int i = buffer.readerIndex(); i < buffer.writerIndex(); i++) {
+				if(buffer.getByte(i)=='\n') lines.incrementAndGet();
+			}
+			buffer.skipBytes(size);
+			bytes.addAndGet(size);
+			return true;
+		}
+		@Override
+		public boolean isReplaying() {
+			return replaying;
+		}
+	}
+
+	/**
+	 * Closes the connection and stops the fake TSD
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT);
+		System.clearProperty(NettyTransport.CONFIG_FULL_POLICY);
+		System.clearProperty(NettyTransport.CONFIG_HIGH_WATERMARK);
+		System.clearProperty(NettyTransport.CONFIG_LOW_WATERMARK);
+		System.clearProperty(NettyTransport.CONFIG_MAX_PENDING);
+	}
+
+	/**
+	 * Starts a fake TSD and a netty connection to it
+	 * @param policy The full buffer policy
+	 * @param highWatermark The in-flight high watermark
+	 * @return the netty transport
+	 */
+	NettyTransport start(final NettyTransport.FullBufferPolicy policy, final int highWatermark) {
+		tsd = new FakeTSD(0).start();
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, "netty");
+		System.setProperty(NettyTransport.CONFIG_FULL_POLICY, policy.name());
+		System.setProperty(NettyTransport.CONFIG_HIGH_WATERMARK, "" + highWatermark);
+		System.setProperty(NettyTransport.CONFIG_LOW_WATERMARK, "" + highWatermark/2);
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort()).connect();
+		return (NettyTransport)conn.getTransport();
+	}
+
+	/**
+	 * Creates a buffer of put lines
+	 * @param start The first timestamp
+	 * @param count The number of lines
+	 * @return the buffer
+	 */
+	static ChannelBuffer puts(final long start, final int count) {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(count * 64);
+		for(int i = 0; i < count; i++) {
+			PutEncoder.encode(buffer, "netty.test", start + i, i, null, null);
+			buffer.setByte(buffer.writerIndex()-1, ' ');
+			buffer.writeBytes("host=test\n".getBytes(TSDBSubmitterConnection.CHARSET));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Waits for the fake TSD to receive the expected number of points
+	 * @param expected The expected number of points
+	 * @param timeout The timeout in ms.
+	 */
+	void awaitPoints(final long expected, final long timeout) {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while(tsd.getPoints() < expected && System.currentTimeMillis() < deadline) {
+			try { Thread.sleep(20); } catch (InterruptedException iex) { throw new RuntimeException(iex); }
+		}
+		Assert.assertEquals("Points received", expected, tsd.getPoints());
+	}
+
+	/**
+	 * Tests that writes under the high watermark go straight through
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testWriteThrough() throws Exception {
+		final NettyTransport transport = start(NettyTransport.FullBufferPolicy.BLOCK, NettyTransport.DEFAULT_HIGH_WATERMARK);
+		Assert.assertTrue(transport.isConnected());
+		for(int i = 0; i < 10; i++) {
+			transport.write(puts(1418000000L + i * 100, 100));
+		}
+		awaitPoints(1000, 5000);
+		Assert.assertEquals(0L, transport.getDroppedTraces());
+		Assert.assertEquals(FakeTSD.VERSION + "\n" + FakeTSD.BUILT, transport.getVersion().trim());
+		Assert.assertEquals("Version text counted as a rejection", 0L, conn.getRejections().getRejections());
+	}
+
+	/**
+	 * Tests that a write which fails after it was handed to netty is spilled rather than dropped
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAsyncWriteFailureSpills() throws Exception {
+		final NettyTransport transport = start(NettyTransport.FullBufferPolicy.SPILL, 64 * 1024 * 1024);
+		final RecordingSpiller spiller = new RecordingSpiller();
+		transport.setSpiller(spiller);
+		tsd.setReadRate(64 * 1024);
+		// more than the loopback socket buffers hold, so the write is still in flight when the TSD goes away
+		transport.write(puts(1418000000L, 400000));
+		Assert.assertTrue("Nothing in flight", transport.getInFlightBytes() > 0);
+		tsd.stop();
+		final long deadline = System.currentTimeMillis() + 10000;
+		while(spiller.bytes.get()==0 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		log("Spilled %s bytes in %s lines", spiller.bytes.get(), spiller.lines.get());
+		Assert.assertEquals(400000L, spiller.lines.get());
+		Assert.assertEquals(spiller.bytes.get(), transport.getSpilledBytes());
+		Assert.assertEquals(0L, transport.getDroppedTraces());
+	}
+
+	/**
+	 * Tests that writes over the high watermark block instead of spilling while the spiller is replaying
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNoSpillWhileReplaying() throws Exception {
+		final NettyTransport transport = start(NettyTransport.FullBufferPolicy.SPILL, 8 * 1024);
+		final RecordingSpiller spiller = new RecordingSpiller();
+		spiller.replaying = true;
+		transport.setSpiller(spiller);
+		tsd.setReadRate(1024 * 1024);
+		for(int i = 0; i < 50; i++) {
+			transport.write(puts(1418000000L + i * 200, 200));
+		}
+		awaitPoints(10000, 20000);
+		Assert.assertEquals(0L, spiller.bytes.get());
+		Assert.assertEquals(0L, transport.getDroppedTraces());
+	}
+
+	/**
+	 * Tests that under {@link NettyTransport.FullBufferPolicy#DROP_OLDEST} a write larger than the pending limit is dropped
+	 * and counted, leaving the writes already queued in place
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDropOldestOversizedWrite() throws Exception {
+		System.setProperty(NettyTransport.CONFIG_MAX_PENDING, "" + 16 * 1024);
+		final NettyTransport transport = start(NettyTransport.FullBufferPolicy.DROP_OLDEST, 64 * 1024);
+		tsd.setReadRate(64 * 1024);
+		// more than the loopback socket buffers hold, so the following writes are queued
+		transport.write(puts(1418000000L, 400000));
+		Assert.assertTrue("Nothing in flight", transport.getInFlightBytes() > 0);
+		final ChannelBuffer small = puts(1419000000L, 100);
+		final int smallSize = small.readableBytes();
+		transport.write(small);
+		Assert.assertEquals(smallSize, transport.getPendingBytes());
+		final ChannelBuffer oversized = puts(1420000000L, 1000);
+		final int oversizedSize = oversized.readableBytes();
+		Assert.assertTrue(oversizedSize > 16 * 1024);
+		transport.write(oversized);
+		Assert.assertEquals("Oversized write not consumed", 0, oversized.readableBytes());
+		Assert.assertEquals("Queued write evicted", smallSize, transport.getPendingBytes());
+		Assert.assertEquals(1000L, transport.getDroppedTraces());
+		Assert.assertEquals(oversizedSize, transport.getDroppedBytes());
+		Assert.assertEquals(1L, transport.getDroppedBuffers());
+	}
+}
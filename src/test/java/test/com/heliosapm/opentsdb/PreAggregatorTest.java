@@ -0,0 +1,180 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.PreAggregator;
+import com.heliosapm.opentsdb.PreAggregator.Aggregate;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: PreAggregatorTest</p>
+ * <p>Description: Tests for {@link PreAggregator} windowing, emission and close</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.PreAggregatorTest</code></p>
+ */
+
+public class PreAggregatorTest extends BaseTest {
+	/** A window long enough that the rollup timer never fires during a test */
+	static final long LONG_WINDOW = TimeUnit.HOURS.toMillis(1);
+	/** The start of a window well in the past */
+	static final long T0 = 1418000000000L - (1418000000000L % LONG_WINDOW);
+	/** Test series tags */
+	static final Map<String, String> TAGS = Collections.singletonMap("host", "test");
+
+	/**
+	 * <p>Title: RecordingSink</p>
+	 * <p>Description: A rollup sink that records what it receives</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.PreAggregatorTest.RecordingSink</code></p>
+	 */
+	static class RecordingSink implements PreAggregator.RollupSink {
+		/** The received rollups as <b><code>timestamp metric value</code></b> strings */
+		final List<String> rollups = Collections.synchronizedList(new ArrayList<String>());
+		@Override
+		public void rollup(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
+			rollups.add(timestamp + " " + metric + " " + value);
+		}
+	}
+
+	/**
+	 * Tests that samples are bucketed by their timestamp, and that a sample for a later window emits the earlier one
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBucketsBySampleTimestamp() throws Exception {
+		final RecordingSink sink = new RecordingSink();
+		final PreAggregator agg = new PreAggregator(LONG_WINDOW, sink, Aggregate.MIN, Aggregate.MAX, Aggregate.AVG, Aggregate.COUNT);
+		try {
+			agg.add(1L, "m", TAGS, T0 + 10, 4D);
+			agg.add(1L, "m", TAGS, T0 + 20, 8D);
+			agg.add(1L, "m", TAGS, T0 + LONG_WINDOW - 1, 6D);
+			Assert.assertTrue("Emitted before the window ended", sink.rollups.isEmpty());
+			agg.add(1L, "m", TAGS, T0 + LONG_WINDOW, 100D);
+			Assert.assertEquals(Arrays.asList(T0 + " m.min 4.0", T0 + " m.max 8.0", T0 + " m.avg 6.0", T0 + " m.count 3.0"), sink.rollups);
+			// a sample for the emitted window cannot amend it
+			agg.add(1L, "m", TAGS, T0 + 30, 1D);
+			Assert.assertEquals(1L, agg.getLateSamples());
+			Assert.assertEquals(4L, agg.getSamples());
+		} finally {
+			agg.close();
+		}
+		final long t1 = T0 + LONG_WINDOW;
+		Assert.assertEquals(8, sink.rollups.size());
+		Assert.assertEquals(t1 + " m.max 100.0", sink.rollups.get(5));
+	}
+
+	/**
+	 * Tests that a single selected aggregate keeps the metric name
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSingleAggregateName() throws Exception {
+		final RecordingSink sink = new RecordingSink();
+		final PreAggregator agg = new PreAggregator(LONG_WINDOW, sink, Aggregate.SUM);
+		agg.add(1L, "m", TAGS, T0, 1D);
+		agg.add(1L, "m", TAGS, T0 + 1, 2D);
+		agg.add(2L, "n", TAGS, T0, 5D);
+		agg.close();
+		Collections.sort(sink.rollups);
+		Assert.assertEquals(Arrays.asList(T0 + " m 3.0", T0 + " n 5.0"), sink.rollups);
+	}
+
+	/**
+	 * Tests that the rollup timer emits ended windows, and that close waits for a running rollup 
+	 * and then emits the window in progress
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseWaitsForRunningRollup() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1), release = new CountDownLatch(1);
+		final RecordingSink sink = new RecordingSink() {
+			@Override
+			public void rollup(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
+				entered.countDown();
+				try { release.await(); } catch (InterruptedException iex) { throw new RuntimeException(iex); }
+				super.rollup(timestamp, metric, value, tags);
+			}
+		};
+		final long window = 200L;
+		final PreAggregator agg = new PreAggregator(window, sink, Aggregate.MAX);
+		agg.add(1L, "first", TAGS, System.currentTimeMillis(), 1D);
+		Assert.assertTrue("Rollup did not run", entered.await(5, TimeUnit.SECONDS));
+		// the timer rollup is now blocked in the sink, and this sample is in the window in progress
+		final long now = System.currentTimeMillis();
+		agg.add(2L, "second", TAGS, now, 2D);
+		final Thread closer = new Thread("PreAggregatorCloser") {
+			@Override
+			public void run() {
+				agg.close();
+			}
+		};
+		closer.start();
+		closer.join(300);
+		Assert.assertTrue("close() did not wait for the running rollup", closer.isAlive());
+		release.countDown();
+		closer.join(5000);
+		Assert.assertFalse(closer.isAlive());
+		Assert.assertEquals(2, sink.rollups.size());
+		Assert.assertTrue(sink.rollups.get(0).endsWith(" first 1.0"));
+		Assert.assertEquals((now - now % window) + " second 2.0", sink.rollups.get(1));
+	}
+
+	/**
+	 * Tests that the window in progress when a submitter closes reaches the TSD
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseDeliversFinalWindow() throws Exception {
+		final FakeTSD tsd = new FakeTSD(0).start();
+		try {
+			final TSDBSubmitterConnection conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+			final TSDBSubmitter submitter = conn.submitter(TAGS).setAggregation(LONG_WINDOW, Aggregate.AVG, Aggregate.MAX);
+			for(int i = 0; i < 100; i++) submitter.trace("aggregated", i, Collections.singletonMap("series", "a"));
+			Assert.assertEquals(0L, tsd.getPoints());
+			submitter.close();
+			final long deadline = System.currentTimeMillis() + 5000;
+			while(tsd.getPoints() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			Assert.assertEquals(2L, tsd.getPoints());
+		} finally {
+			tsd.stop();
+		}
+	}
+}
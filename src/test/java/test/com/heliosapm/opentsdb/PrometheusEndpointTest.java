@@ -0,0 +1,230 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.LastValueStore;
+import com.heliosapm.opentsdb.PrometheusEndpoint;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: PrometheusEndpointTest</p>
+ * <p>Description: Tests {@link PrometheusEndpoint} full, revalidated, partial, gzipped and large scrapes over HTTP,
+ * and the lifecycle of the configured endpoint</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.PrometheusEndpointTest</code></p>
+ */
+
+public class PrometheusEndpointTest extends BaseTest {
+	/** The values served */
+	LastValueStore store = null;
+	/** The endpoint under test */
+	PrometheusEndpoint endpoint = null;
+	/** The scrape URL */
+	String url = null;
+	/** The host tag */
+	final Map<String, String> tags = new LinkedHashMap<String, String>();
+
+	/**
+	 * Starts an endpoint on an ephemeral port
+	 */
+	@Before
+	public void startEndpoint() {
+		store = new LastValueStore(200000, 0L);
+		endpoint = new PrometheusEndpoint("127.0.0.1", 0, store, true).start();
+		url = "http://127.0.0.1:" + endpoint.getPort() + PrometheusEndpoint.PATH;
+		tags.put("host", "web01");
+	}
+
+	/**
+	 * Stops the endpoint and clears the endpoint configuration
+	 */
+	@After
+	public void stopEndpoint() {
+		if(endpoint!=null) endpoint.stop();
+		System.clearProperty(PrometheusEndpoint.CONFIG_PORT);
+		System.clearProperty(PrometheusEndpoint.CONFIG_BIND);
+	}
+
+	/**
+	 * Checks a full scrape, and that If-None-Match gets a 304 while nothing changed and a full scrape once anything did
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRevalidation() throws Exception {
+		store.put(1418000000L, "sys.cpu", 1.5D, (Map<String, String>)null, tags);
+		store.put(1418000000L, "jvm.threads", 42L, (Map<String, String>)null, tags);
+		Object[] r = get(url, null, false);
+		final String etag = (String)r[1];
+		log("Full scrape, ETag %s:\n%s", etag, r[2]);
+		Assert.assertEquals(200, r[0]);
+		Assert.assertTrue((String)r[2], ((String)r[2]).contains("sys_cpu{host=\"web01\"} 1.5 1418000000000\n"));
+		r = get(url, etag, false);
+		Assert.assertEquals(304, r[0]);
+		Assert.assertEquals(etag, r[1]);
+		store.put(1418000001L, "sys.cpu", 2.5D, (Map<String, String>)null, tags);
+		r = get(url, etag, true);
+		log("Revalidated scrape, ETag %s:\n%s", r[1], r[2]);
+		Assert.assertEquals(200, r[0]);
+		Assert.assertFalse("Same ETag", etag.equals(r[1]));
+		Assert.assertTrue("Partial response to If-None-Match:\n" + r[2], ((String)r[2]).contains("jvm_threads{host=\"web01\"} 42 1418000000000\n"));
+		Assert.assertTrue((String)r[2], ((String)r[2]).contains("sys_cpu{host=\"web01\"} 2.5 1418000001000\n"));
+		Assert.assertEquals("Full scrapes", 2L, endpoint.getScrapes());
+		Assert.assertEquals("Not modified", 1L, endpoint.getNotModified());
+	}
+
+	/**
+	 * Checks the since parameter gets only the series changed since that scrape, or a 304 if none did
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPartialScrape() throws Exception {
+		store.put(1418000000L, "sys.cpu", 1.5D, (Map<String, String>)null, tags);
+		store.put(1418000000L, "jvm.threads", 42L, (Map<String, String>)null, tags);
+		Object[] r = get(url, null, false);
+		final String since = ((String)r[1]).replace("\"", "");
+		r = get(url + "?since=" + since, null, false);
+		Assert.assertEquals(304, r[0]);
+		store.put(1418000001L, "sys.cpu", 2.5D, (Map<String, String>)null, tags);
+		r = get(url + "?since=" + since, null, true);
+		log("Gzipped partial scrape, ETag %s:\n%s", r[1], r[2]);
+		Assert.assertEquals(200, r[0]);
+		Assert.assertEquals("# TYPE sys_cpu untyped\nsys_cpu{host=\"web01\"} 2.5 1418000001000\n", r[2]);
+		Assert.assertEquals("Conditional scrapes", 2L, endpoint.getConditionalScrapes());
+	}
+
+	/**
+	 * Scrapes 100,000 series plain and gzipped, checking every series arrives
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeScrape() throws Exception {
+		final int seriesCount = 100000;
+		for(int i = 0; i < seriesCount; i++) {
+			final Map<String, String> t = new LinkedHashMap<String, String>(tags);
+			t.put("id", "" + i);
+			store.put(1418000000L, "large.metric", (long)i, (Map<String, String>)null, t);
+		}
+		for(boolean gzip: new boolean[]{false, true}) {
+			final long start = System.nanoTime();
+			final Object[] r = get(url, null, gzip);
+			final long elapsed = System.nanoTime() - start;
+			final String body = (String)r[2];
+			int lines = 0;
+			for(int i = body.indexOf('\n'); i!=-1; i = body.indexOf('\n', i + 1)) lines++;
+			log("Scraped %s series, %s bytes on the wire (gzip:%s) in %s ms", seriesCount, r[3], gzip, elapsed / 1000000);
+			Assert.assertEquals("Lines", seriesCount + 1, lines);
+		}
+	}
+
+	/**
+	 * Checks the configured endpoint runs while acquired, by connections or directly, and stops on the last release
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConfiguredLifecycle() throws Exception {
+		final ServerSocket ss = new ServerSocket(0);
+		final int port = ss.getLocalPort();
+		ss.close();
+		System.setProperty(PrometheusEndpoint.CONFIG_PORT, "" + port);
+		System.setProperty(PrometheusEndpoint.CONFIG_BIND, "127.0.0.1");
+		Assert.assertNull("Started before acquired", PrometheusEndpoint.configured());
+		final FakeTSD tsd = new FakeTSD(0).start();
+		try {
+			final PrometheusEndpoint held = PrometheusEndpoint.acquire();
+			final TSDBSubmitterConnection conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+			Assert.assertSame("Not shared", held.getStore(), conn.getLastValues());
+			Assert.assertEquals(port, held.getPort());
+			conn.close();
+			conn.close();
+			Assert.assertSame("Stopped while acquired", held, PrometheusEndpoint.configured());
+			Assert.assertEquals(200, get("http://127.0.0.1:" + port + PrometheusEndpoint.PATH, null, false)[0]);
+			PrometheusEndpoint.release(held);
+			Assert.assertNull("Not stopped on the last release", PrometheusEndpoint.configured());
+			Assert.assertEquals("Still listening", -1, held.getPort());
+			final PrometheusEndpoint again = PrometheusEndpoint.acquire();
+			try {
+				Assert.assertNotSame("Stopped endpoint reused", held, again);
+				Assert.assertEquals(200, get("http://127.0.0.1:" + port + PrometheusEndpoint.PATH, null, false)[0]);
+			} finally {
+				PrometheusEndpoint.release(again);
+			}
+		} finally {
+			tsd.stop();
+		}
+	}
+
+	/**
+	 * Issues a scrape request
+	 * @param url The scrape URL
+	 * @param etag The ETag to send in If-None-Match, or null
+	 * @param gzip true to accept a gzipped response
+	 * @return the status, ETag, body text and wire byte count
+	 * @throws Exception on any error
+	 */
+	static Object[] get(final String url, final String etag, final boolean gzip) throws Exception {
+		final HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+		if(etag!=null) conn.setRequestProperty("If-None-Match", etag);
+		if(gzip) conn.setRequestProperty("Accept-Encoding", "gzip");
+		final int status = conn.getResponseCode();
+		final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		if(status==200) {
+			final InputStream is = conn.getInputStream();
+			final byte[] b = new byte[8192];
+			int n;
+			while((n = is.read(b))!=-1) wire.write(b, 0, n);
+			is.close();
+		}
+		byte[] body = wire.toByteArray();
+		if("gzip".equals(conn.getContentEncoding())) {
+			final InputStream is = new GZIPInputStream(new ByteArrayInputStream(body));
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] b = new byte[8192];
+			int n;
+			while((n = is.read(b))!=-1) out.write(b, 0, n);
+			body = out.toByteArray();
+		} else if(gzip && status==200) {
+			Assert.fail("Expected a gzipped response");
+		}
+		return new Object[]{status, conn.getHeaderField("ETag"), new String(body, TSDBSubmitterConnection.CHARSET), wire.size()};
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.PutEncoder;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+import com.heliosapm.opentsdb.TSDBSubmitterImpl;
+
+/**
+ * <p>Title: PutEncoderTest</p>
+ * <p>Description: Tests for {@link PutEncoder}, comparing against the string based rendering it replaced</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.PutEncoderTest</code></p>
+ */
+
+public class PutEncoderTest extends BaseTest {
+	/** Sample root tags */
+	static final List<String> ROOT_TAGS = Arrays.asList("host=tpsolaris", "app=MyApp");
+
+	/**
+	 * Renders a put line the way the string based submitter did
+	 * @param metric The metric name
+	 * @param timestamp The timestamp
+	 * @param value The rendered value
+	 * @param tags The tags
+	 * @return the put line
+	 */
+	static String stringPut(final String metric, final long timestamp, final String value, final Map<String, String> tags) {
+		final StringBuilder b = new StringBuilder(128);
+		b.append("put ").append(TSDBSubmitterImpl.clean(metric)).append(" ").append(timestamp).append(" ").append(value).append(" ");
+		for(String t: ROOT_TAGS) b.append(t).append(" ");
+		for(Map.Entry<String, String> e: tags.entrySet()) b.append(TSDBSubmitterImpl.clean(e.getKey())).append("=").append(TSDBSubmitterImpl.clean(e.getValue())).append(" ");
+		return b.deleteCharAt(b.length()-1).append("\n").toString();
+	}
+
+	/**
+	 * Returns the readable content of the passed buffer as a string
+	 * @param buffer The buffer
+	 * @return the content
+	 */
+	static String str(final ChannelBuffer buffer) {
+		return buffer.toString(TSDBSubmitterConnection.CHARSET);
+	}
+
+	/**
+	 * Tests that long put lines match the string based rendering
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLongPutMatchesStringRendering() throws Exception {
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("type", "MemoryPool");
+		tags.put(" name ", "PS Old Gen");
+		tags.put("metric", "java.lang:type/Usage.used");
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(256);
+		final long[] values = {0L, 1L, -1L, 9L, 10L, 99L, 100L, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+		for(long value: values) {
+			buffer.clear();
+			PutEncoder.encode(buffer, "java.lang.mempool", 1418000000L, value, ROOT_TAGS, tags);
+			Assert.assertEquals(stringPut("java.lang.mempool", 1418000000L, Long.toString(value), tags), str(buffer));
+		}
+		for(int i = 0; i < 10000; i++) {
+			final long value = RANDOM.nextLong() >> RANDOM.nextInt(64);
+			buffer.clear();
+			PutEncoder.encode(buffer, "java.lang.mempool", 1418000000L + i, value, ROOT_TAGS, tags);
+			Assert.assertEquals(stringPut("java.lang.mempool", 1418000000L + i, Long.toString(value), tags), str(buffer));
+		}
+	}
+
+	/**
+	 * Tests that doubles round trip to within the encoder's precision
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDoubleRoundTrip() throws Exception {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(64);
+		for(int i = 0; i < 100000; i++) {
+			final double value = (RANDOM.nextDouble() - 0.5d) * Math.pow(10, RANDOM.nextInt(40) - 20);
+			buffer.clear();
+			PutEncoder.writeDouble(buffer, value);
+			final String rendered = str(buffer);
+			final double parsed = Double.parseDouble(rendered);
+			Assert.assertEquals("Rendered [" + rendered + "]", value, parsed, Math.abs(value) * 1e-13);
+		}
+	}
+
+	/**
+	 * Tests the rendering of special and integral doubles
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSpecialDoubles() throws Exception {
+		final Object[][] expected = {
+			{0d, "0.0"}, {-0d, "0.0"}, {1d, "1.0"}, {-1.5d, "-1.5"}, {100d, "100.0"}, {0.001d, "0.001"},
+			{Double.NaN, "NaN"}, {Double.POSITIVE_INFINITY, "Infinity"}, {Double.NEGATIVE_INFINITY, "-Infinity"}
+		};
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(64);
+		for(Object[] pair: expected) {
+			buffer.clear();
+			PutEncoder.writeDouble(buffer, (Double)pair[0]);
+			Assert.assertEquals(pair[1], str(buffer));
+		}
+		buffer.clear();
+		PutEncoder.writeDouble(buffer, 1.5e20);
+		Assert.assertEquals(1.5e20, Double.parseDouble(str(buffer)), 1e6);
+		Assert.assertTrue(str(buffer).contains("E"));
+	}
+
+	/**
+	 * Tests that illegal characters are replaced while legal unicode is written as UTF-8
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCleaning() throws Exception {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(64);
+		PutEncoder.writeCleaned(buffer, "  a:b c*dé中 ");
+		Assert.assertEquals("a_b_c_dé中", str(buffer));
+		buffer.clear();
+		PutEncoder.writeCleaned(buffer, "prefix/x.y-z_1");
+		Assert.assertEquals("x.y-z_1", str(buffer));
+		buffer.clear();
+		PutEncoder.writeRaw(buffer, "k=v w");
+		Assert.assertEquals("k=v w", str(buffer));
+	}
+
+	/**
+	 * Measures the per trace cost of the encoder against the string based rendering.
+	 * Only asserts that the encoder allocates less, since timings on shared build boxes are noise.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAllocation() throws Exception {
+		final java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+		Assert.assertTrue(mx instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)mx;
+		final long tid = Thread.currentThread().getId();
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(8192);
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("type", "MemoryPool");
+		tags.put("name", "PS Old Gen");
+		tags.put("metric", "Usage.used");
+		final int loops = 200000;
+		long encoderBytes = 0, stringBytes = 0;
+		for(int pass = 0; pass < 3; pass++) {
+			long startBytes = tmx.getThreadAllocatedBytes(tid);
+			long start = System.nanoTime();
+			for(int i = 0; i < loops; i++) {
+				buffer.clear();
+				PutEncoder.encode(buffer, "java.lang.mempool", 1418000000L + i, i * 1.5d, ROOT_TAGS, tags);
+			}
+			long elapsed = System.nanoTime() - start;
+			encoderBytes = (tmx.getThreadAllocatedBytes(tid) - startBytes)/loops;
+			log("Encoder: %s ns/trace, %s bytes/trace", elapsed/loops, encoderBytes);
+			startBytes = tmx.getThreadAllocatedBytes(tid);
+			start = System.nanoTime();
+			for(int i = 0; i < loops; i++) {
+				buffer.clear();
+				buffer.writeBytes(stringPut("java.lang.mempool", 1418000000L + i, Double.toString(i * 1.5d), tags).getBytes(TSDBSubmitterConnection.CHARSET));
+			}
+			elapsed = System.nanoTime() - start;
+			stringBytes = (tmx.getThreadAllocatedBytes(tid) - startBytes)/loops;
+			log("StringBuilder: %s ns/trace, %s bytes/trace", elapsed/loops, stringBytes);
+		}
+		Assert.assertTrue("Encoder allocated " + encoderBytes + " bytes/trace", encoderBytes < stringBytes);
+	}
+}
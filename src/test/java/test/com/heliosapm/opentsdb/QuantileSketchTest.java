@@ -0,0 +1,217 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.PreAggregator;
+import com.heliosapm.opentsdb.QuantileSketch;
+import com.heliosapm.opentsdb.QuantileSummaries;
+
+/**
+ * <p>Title: QuantileSketchTest</p>
+ * <p>Description: Tests {@link QuantileSketch} accuracy, contended updates and footprint, and {@link QuantileSummaries} periodic emission</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.QuantileSketchTest</code></p>
+ */
+
+public class QuantileSketchTest extends BaseTest {
+
+	/**
+	 * Returns log-normal latencies in microseconds centered around 2ms
+	 * @param size The number of samples
+	 * @return the samples
+	 */
+	static long[] samples(final int size) {
+		final Random r = new Random(42);
+		final long[] samples = new long[size];
+		for(int i = 0; i < samples.length; i++) {
+			samples[i] = (long)Math.exp(Math.log(2000) + r.nextGaussian());
+		}
+		return samples;
+	}
+	
+	/**
+	 * Checks reported quantiles against exact quantiles
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAccuracy() throws Exception {
+		final long[] samples = samples(1000000);
+		final QuantileSketch sketch = new QuantileSketch();
+		final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+		for(long v: samples) sketch.update(v);
+		sketch.update(-1L);
+		Assert.assertTrue("No snapshot", sketch.snapshot(snapshot));
+		Assert.assertFalse("Snapshot did not reset", sketch.snapshot(new QuantileSketch.Snapshot()));
+		final long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		Assert.assertEquals("Count", samples.length, snapshot.count);
+		Assert.assertEquals("Max", sorted[sorted.length - 1], snapshot.max);
+		for(int i = 0; i < QuantileSketch.QUANTILES.length; i++) {
+			final long exact = sorted[(int)Math.ceil(QuantileSketch.QUANTILES[i] * sorted.length) - 1];
+			log("p%s: exact %s, reported %s", QuantileSketch.QUANTILES[i], exact, snapshot.quantiles[i]);
+			Assert.assertEquals("p" + QuantileSketch.QUANTILES[i], exact, snapshot.quantiles[i], exact / 64D + 1);
+		}
+	}
+	
+	/**
+	 * Updates one sketch from several threads while it is drained, checks no value is lost or counted twice, 
+	 * and compares contended with uncontended update costs
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testContendedUpdates() throws Exception {
+		final long[] samples = samples(100000);
+		final int threads = 4, perThread = 1000000;
+		final QuantileSketch single = new QuantileSketch();
+		long start = System.nanoTime();
+		for(int i = 0; i < perThread; i++) single.update(samples[i % samples.length]);
+		final long uncontended = (System.nanoTime() - start) / perThread;
+		
+		final QuantileSketch sketch = new QuantileSketch();
+		final AtomicLong drained = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final int offset = t;
+			final Thread th = new Thread("QuantileSketchUpdater#" + t) {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						for(int i = 0; i < perThread; i++) sketch.update(samples[(i + offset) % samples.length]);
+					} catch (InterruptedException iex) {
+						/* No Op */
+					} finally {
+						endLatch.countDown();
+					}
+				}
+			};
+			th.setDaemon(true);
+			th.start();
+		}
+		final Thread drainer = new Thread("QuantileSketchDrainer") {
+			@Override
+			public void run() {
+				final QuantileSketch.Snapshot snapshot = new QuantileSketch.Snapshot();
+				while(!done.get()) {
+					if(sketch.snapshot(snapshot)) drained.addAndGet(snapshot.count);
+					Thread.yield();
+				}
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+		start = System.nanoTime();
+		startLatch.countDown();
+		Assert.assertTrue("Updaters timed out", endLatch.await(60, TimeUnit.SECONDS));
+		final long contended = (System.nanoTime() - start) / ((long)threads * perThread);
+		done.set(true);
+		drainer.join(5000);
+		final QuantileSketch.Snapshot last = new QuantileSketch.Snapshot();
+		if(sketch.snapshot(last)) drained.addAndGet(last.count);
+		log("Update cost: uncontended %s ns, %s threads contended %s ns per update (%s CPUs)", uncontended, threads, contended, Runtime.getRuntime().availableProcessors());
+		Assert.assertEquals("Values lost or double counted", (long)threads * perThread, drained.get());
+	}
+	
+	/**
+	 * Measures the heap used per sketch and compares it with the approximate size
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFootprint() throws Exception {
+		final int sketches = 500;
+		final Runtime rt = Runtime.getRuntime();
+		final QuantileSketch[] held = new QuantileSketch[sketches];
+		final long before = usedAfterGc(rt);
+		for(int i = 0; i < sketches; i++) held[i] = new QuantileSketch();
+		final long after = usedAfterGc(rt);
+		final long measured = (after - before) / sketches;
+		log("Buckets: %s, measured bytes per sketch: %s, approximate: %s", QuantileSketch.BUCKETS, measured, QuantileSketch.getApproximateSize());
+		Assert.assertEquals("Held", sketches, held.length);
+		Assert.assertTrue("Measured " + measured + " far from approximate " + QuantileSketch.getApproximateSize(), 
+				measured > QuantileSketch.getApproximateSize() / 2 && measured < QuantileSketch.getApproximateSize() * 2);
+	}
+	
+	/**
+	 * Returns the heap in use after a few garbage collections
+	 * @param rt The runtime
+	 * @return the used heap in bytes
+	 * @throws InterruptedException thrown if interrupted while settling
+	 */
+	static long usedAfterGc(final Runtime rt) throws InterruptedException {
+		for(int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+	
+	/**
+	 * Checks quantiles are emitted every period without a manual emit, and on close
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPeriodicEmit() throws Exception {
+		final Map<String, Double> emitted = new ConcurrentHashMap<String, Double>();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final QuantileSummaries summaries = new QuantileSummaries(200, new PreAggregator.RollupSink() {
+			@Override
+			public void rollup(final long timestamp, final String metric, final double value, final Map<String, String> tags) {
+				emitted.put(metric, value);
+				if(metric.endsWith(".max")) latch.countDown();
+			}
+		});
+		try {
+			final Map<String, String> tags = Collections.singletonMap("host", "a");
+			for(int i = 1; i <= 1000; i++) summaries.update(1L, "latency", tags, i);
+			Assert.assertTrue("No periodic emit", latch.await(5, TimeUnit.SECONDS));
+			log("Emitted: %s", emitted);
+			Assert.assertEquals("max", 1000D, emitted.get("latency.max"), 0D);
+			Assert.assertEquals("p50", 500D, emitted.get("latency.p50"), 500D / 64 + 1);
+			emitted.clear();
+			summaries.update(1L, "latency", tags, 7L);
+		} finally {
+			summaries.close();
+		}
+		Assert.assertEquals("Close did not emit the remaining values", 7D, emitted.get("latency.max"), 0D);
+	}
+}
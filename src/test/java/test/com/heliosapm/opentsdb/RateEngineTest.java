@@ -0,0 +1,188 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.DeltaManager;
+import com.heliosapm.opentsdb.RateEngine;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: RateEngineTest</p>
+ * <p>Description: Tests {@link RateEngine} counter wraps, resets and sample ordering, and the puts traced by {@link TSDBSubmitter#traceRate(long, String, long, int, Map)}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.RateEngineTest</code></p>
+ */
+
+public class RateEngineTest extends BaseTest {
+	/** The time of the first sample in ms. */
+	static final long T0 = 1418000000000L;
+	/** The series key */
+	static final long KEY = DeltaManager.key("host", "test", "metric", "rate.test");
+	/** The fake TSD the end to end test writes to */
+	FakeTSD tsd = null;
+	/** The connection the end to end test traces through */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * Closes the connection and stops the fake TSD
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+	}
+
+	/**
+	 * Checks that the first sample produces no rate and the next produces the increase per second of elapsed time
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testFirstSample() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		Assert.assertTrue("First sample produced a rate", Double.isNaN(rates.rate(KEY, 100L, T0, RateEngine.COUNTER_64)));
+		Assert.assertEquals(50D, rates.rate(KEY, 200L, T0 + 2000, RateEngine.COUNTER_64), 0D);
+		// the rate uses the actual elapsed time, not a nominal period
+		Assert.assertEquals(200D, rates.rate(KEY, 300L, T0 + 2500, RateEngine.COUNTER_64), 0D);
+	}
+
+	/**
+	 * Checks that a 32 bit counter going from the top quarter of its range to the bottom quarter is treated as a wrap
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testWrap32() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		rates.rate(KEY, 0xFFFFFF00L, T0, RateEngine.COUNTER_32);
+		Assert.assertEquals(0x200, rates.rate(KEY, 0x100L, T0 + 1000, RateEngine.COUNTER_32), 0D);
+		// the high bits of a 32 bit counter read into a long are ignored
+		rates.rate(KEY, 0x1C0000000L, T0 + 2000, RateEngine.COUNTER_32);
+		Assert.assertEquals(0x10, rates.rate(KEY, 0x2C0000010L, T0 + 3000, RateEngine.COUNTER_32), 0D);
+	}
+
+	/**
+	 * Checks that a 64 bit counter going from the top quarter of the unsigned range to the bottom quarter is treated as a wrap,
+	 * and that values past 2^63 compare as unsigned
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testWrap64() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		rates.rate(KEY, Long.MAX_VALUE - 9, T0, RateEngine.COUNTER_64);
+		// crossing 2^63 is an increase, not a reset
+		Assert.assertEquals(20D, rates.rate(KEY, Long.MIN_VALUE + 10, T0 + 1000, RateEngine.COUNTER_64), 0D);
+		rates.rate(KEY, -16L, T0 + 2000, RateEngine.COUNTER_64);
+		Assert.assertEquals(32D, rates.rate(KEY, 16L, T0 + 3000, RateEngine.COUNTER_64), 0D);
+	}
+
+	/**
+	 * Checks that a counter going backwards without a wrap is treated as a reset, producing no rate, and the next sample rates from the reset value
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReset() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		rates.rate(KEY, 5000L, T0, RateEngine.COUNTER_64);
+		Assert.assertTrue("Reset produced a rate", Double.isNaN(rates.rate(KEY, 10L, T0 + 1000, RateEngine.COUNTER_64)));
+		Assert.assertEquals(90D, rates.rate(KEY, 100L, T0 + 2000, RateEngine.COUNTER_64), 0D);
+		// a 32 bit counter dropping from the middle of its range is a reset, not a wrap
+		rates.rate(KEY, 0x80000000L, T0 + 3000, RateEngine.COUNTER_32);
+		Assert.assertTrue("Mid range drop treated as a wrap", Double.isNaN(rates.rate(KEY, 0x10L, T0 + 4000, RateEngine.COUNTER_32)));
+		// as is a 64 bit counter dropping from below the top quarter
+		rates.rate(KEY, Long.MAX_VALUE, T0 + 5000, RateEngine.COUNTER_64);
+		Assert.assertTrue("Mid range drop treated as a wrap", Double.isNaN(rates.rate(KEY, 0x10L, T0 + 6000, RateEngine.COUNTER_64)));
+	}
+
+	/**
+	 * Checks that a sample at the same time as, or earlier than, the prior sample produces no rate and does not replace it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLateSamples() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		rates.rate(KEY, 100L, T0, RateEngine.COUNTER_64);
+		rates.rate(KEY, 200L, T0 + 1000, RateEngine.COUNTER_64);
+		Assert.assertTrue("Repeated sample produced a rate", Double.isNaN(rates.rate(KEY, 250L, T0 + 1000, RateEngine.COUNTER_64)));
+		Assert.assertTrue("Late sample produced a rate", Double.isNaN(rates.rate(KEY, 150L, T0 + 500, RateEngine.COUNTER_64)));
+		// rated from the sample at T0 + 1000
+		Assert.assertEquals(200D, rates.rate(KEY, 400L, T0 + 2000, RateEngine.COUNTER_64), 0D);
+	}
+
+	/**
+	 * Checks that an invalid counter width is rejected
+	 * @throws Exception thrown on any error
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidWidth() throws Exception {
+		final RateEngine rates = new RateEngine(new DeltaManager());
+		rates.rate(KEY, 1L, T0, 16);
+		rates.rate(KEY, 2L, T0 + 1000, 16);
+	}
+
+	/**
+	 * Traces counter samples through a submitter and checks the rate puts the TSD receives
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTraceRate() throws Exception {
+		tsd = new FakeTSD(0).start();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		final Map<String, String> tags = Collections.singletonMap("port", "eth0");
+		final long t = T0 / 1000;
+		submitter.traceRate(t, "net.bytes", 1000L, RateEngine.COUNTER_32, tags);
+		submitter.traceRate(t + 10, "net.bytes", 6000L, RateEngine.COUNTER_32, tags);
+		// late, so discarded
+		submitter.traceRate(t + 5, "net.bytes", 9000L, RateEngine.COUNTER_32, tags);
+		// wraps
+		submitter.traceRate(t + 20, "net.bytes", 0xFFFFF000L, RateEngine.COUNTER_32, tags);
+		submitter.traceRate(t + 30, "net.bytes", 0x1000L, RateEngine.COUNTER_32, tags);
+		// resets
+		submitter.traceRate(t + 40, "net.bytes", 0x800L, RateEngine.COUNTER_32, tags);
+		submitter.traceRate(t + 50, "net.bytes", 0x1800L, RateEngine.COUNTER_32, tags);
+		conn.flush(false);
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(tsd.getPoints() < 4 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Thread.sleep(100);
+		final List<String> lines = tsd.getPutLines();
+		log("Rate puts: %s", lines);
+		Assert.assertEquals(4, lines.size());
+		Assert.assertEquals("put net.bytes " + (t + 10) + " 500.0 host=test port=eth0", lines.get(0));
+		Assert.assertEquals("put net.bytes " + (t + 20) + " 429495720.0 host=test port=eth0", lines.get(1));
+		Assert.assertEquals("put net.bytes " + (t + 30) + " 819.2 host=test port=eth0", lines.get(2));
+		Assert.assertEquals("put net.bytes " + (t + 50) + " 409.6 host=test port=eth0", lines.get(3));
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.RejectionLog;
+
+/**
+ * <p>Title: RejectionLogTest</p>
+ * <p>Description: Tests for the {@link RejectionLog} response line parser</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.RejectionLogTest</code></p>
+ */
+
+public class RejectionLogTest extends BaseTest {
+	/** A telnet put rejection */
+	static final String UNKNOWN = "put: unknown metric: No such name for 'metrics': 'sys.cpu.foo'";
+	/** A telnet put rejection for a bad value */
+	static final String INVALID = "put: illegal argument: invalid value: 'abc'";
+
+	/**
+	 * Tests that a line split across chunks is parsed once it is complete
+	 */
+	@Test
+	public void testPartialLine() {
+		final RejectionLog log = new RejectionLog("test", 10, 60000L);
+		log.onResponse(UNKNOWN.substring(0, 10));
+		log.onResponse(UNKNOWN.substring(10, 30));
+		Assert.assertEquals("Counted before the line was complete", 0L, log.getRejections());
+		log.onResponse(UNKNOWN.substring(30) + "\r\n");
+		Assert.assertEquals(1L, log.getRejections());
+		Assert.assertEquals(Collections.singletonMap("unknown metric", 1L), log.getRejectionsByReason());
+		final List<String> samples = log.getSamples();
+		Assert.assertEquals(1, samples.size());
+		Assert.assertTrue(samples.get(0), samples.get(0).contains("sys.cpu.foo"));
+	}
+
+	/**
+	 * Tests that one chunk carrying several lines counts each of them, keeping the trailing partial line
+	 */
+	@Test
+	public void testMultiLineChunk() {
+		final RejectionLog log = new RejectionLog("test", 10, 60000L);
+		log.onResponse(UNKNOWN + "\n" + INVALID + "\n" + UNKNOWN + "\n" + INVALID.substring(0, 12));
+		Assert.assertEquals(3L, log.getRejections());
+		log.onResponse(INVALID.substring(12) + "\n");
+		Assert.assertEquals(4L, log.getRejections());
+		Assert.assertEquals(Long.valueOf(2L), log.getRejectionsByReason().get("unknown metric"));
+		Assert.assertEquals(Long.valueOf(2L), log.getRejectionsByReason().get("illegal argument"));
+	}
+
+	/**
+	 * Tests that text which is not a put error, such as the version reply, is not counted as a rejection
+	 */
+	@Test
+	public void testNonErrorText() {
+		final RejectionLog log = new RejectionLog("test", 10, 60000L);
+		log.onResponse("net.opentsdb.tools.BuildData built at revision a000000 (MODIFIED)\n");
+		log.onResponse("Built on 2014/03/24 18:48:02 +0000 by helios@localhost:/tmp/opentsdb\n");
+		log.onResponse("unknown command: foo.  Try `help'.\n\n");
+		Assert.assertEquals(0L, log.getRejections());
+		Assert.assertEquals(3L, log.getOtherLines());
+		Assert.assertTrue(log.getRejectionsByReason().isEmpty());
+	}
+
+	/**
+	 * Tests the reason key: the text between the prefix and the next colon, or {@link RejectionLog#OTHER} without one
+	 */
+	@Test
+	public void testReasonKey() {
+		final RejectionLog log = new RejectionLog("test", 10, 60000L);
+		log.onResponse("put:   illegal argument  : not enough arguments (need least 4, got 2)\n");
+		log.onResponse("put: something went wrong\n");
+		log.onResponse("put: : empty reason\n");
+		Assert.assertEquals(Long.valueOf(1L), log.getRejectionsByReason().get("illegal argument"));
+		Assert.assertEquals(Long.valueOf(2L), log.getRejectionsByReason().get(RejectionLog.OTHER));
+		Assert.assertEquals(2, log.getRejectionsByReason().size());
+	}
+
+	/**
+	 * Tests that a reply interleaved with rejections is collected line by line while the rejections are still counted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReplyCollection() throws Exception {
+		final RejectionLog log = new RejectionLog("test", 10, 60000L);
+		log.expectReply();
+		final Thread reader = new Thread("ReplyReader") {
+			@Override
+			public void run() {
+				try {
+					log.onResponse(UNKNOWN + "\nnet.opentsdb built at ");
+					Thread.sleep(20);
+					log.onResponse("revision a000000\n" + INVALID + "\nBuilt on 2014/03/24 18:48:02");
+					Thread.sleep(20);
+					log.onResponse(" +0000\n");
+				} catch (InterruptedException iex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		reader.start();
+		final String reply = log.awaitReply(5000L, 200L);
+		reader.join();
+		Assert.assertEquals("net.opentsdb built at revision a000000\nBuilt on 2014/03/24 18:48:02 +0000\n", reply);
+		Assert.assertEquals(2L, log.getRejections());
+		Assert.assertEquals(0L, log.getOtherLines());
+		log.onResponse("late line\n");
+		Assert.assertEquals("Line after the reply", 1L, log.getOtherLines());
+		log.expectReply();
+		Assert.assertNull("Reply without lines", log.awaitReply(50L, 10L));
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.PutEncoder;
+import com.heliosapm.opentsdb.SeriesPrefixCache;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: SeriesPrefixCacheTest</p>
+ * <p>Description: Tests for {@link SeriesPrefixCache} encoding, bounds and speed</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.SeriesPrefixCacheTest</code></p>
+ */
+
+public class SeriesPrefixCacheTest extends BaseTest {
+	/** Pre-rendered root tags */
+	static final List<String> ROOT_TAGS = Collections.unmodifiableList(Arrays.asList("host=tpsolaris", "app=MyApp"));
+
+	/**
+	 * Creates the tags of a number of distinct test series
+	 * @param count The number of series
+	 * @return the tags of each series
+	 */
+	static List<Map<String, String>> series(final int count) {
+		final List<Map<String, String>> series = new ArrayList<Map<String, String>>(count);
+		for(int i = 0; i < count; i++) {
+			final Map<String, String> tags = new LinkedHashMap<String, String>();
+			tags.put("type", "MemoryPool");
+			tags.put("name", "Pool " + (i % 97));
+			tags.put("instance", "inst-" + i);
+			series.add(tags);
+		}
+		return series;
+	}
+
+	/**
+	 * Tests that lines encoded from cached prefixes match lines encoded directly
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testEncodingMatchesUncached() throws Exception {
+		final SeriesPrefixCache cache = new SeriesPrefixCache(1024);
+		final ChannelBuffer direct = ChannelBuffers.dynamicBuffer(256);
+		final ChannelBuffer cached = ChannelBuffers.dynamicBuffer(256);
+		for(Map<String, String> tags: series(100)) {
+			for(int pass = 0; pass < 2; pass++) {
+				direct.clear(); cached.clear();
+				PutEncoder.encode(direct, "java.lang:mem pool", 1418000000L + pass, 1.5d * pass, ROOT_TAGS, tags);
+				PutEncoder.encode(cached, cache.get("java.lang:mem pool", ROOT_TAGS, tags), 1418000000L + pass, 1.5d * pass);
+				Assert.assertEquals(direct.toString(TSDBSubmitterConnection.CHARSET), cached.toString(TSDBSubmitterConnection.CHARSET));
+				direct.clear(); cached.clear();
+				PutEncoder.encode(direct, "java.lang:mem pool", 1418000000L, 77L, ROOT_TAGS, tags);
+				PutEncoder.encode(cached, cache.get("java.lang:mem pool", ROOT_TAGS, tags), 1418000000L, 77L);
+				Assert.assertEquals(direct.toString(TSDBSubmitterConnection.CHARSET), cached.toString(TSDBSubmitterConnection.CHARSET));
+			}
+		}
+		Assert.assertEquals(100L, cache.getMisses());
+		Assert.assertEquals(300L, cache.getHits());
+		Assert.assertEquals(100, cache.getSize());
+	}
+
+	/**
+	 * Tests that the same tags as raw root tags and as a root tag map get separate entries, 
+	 * and that metrics with the same tags are not confused
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDistinctKeys() throws Exception {
+		final SeriesPrefixCache cache = new SeriesPrefixCache(64);
+		final Map<String, String> rootMap = new LinkedHashMap<String, String>();
+		rootMap.put("host", "tpsolaris");
+		rootMap.put("app", "MyApp");
+		final Map<String, String> tags = Collections.singletonMap("type", "x");
+		final SeriesPrefixCache.Prefix raw = cache.get("m", ROOT_TAGS, tags);
+		final SeriesPrefixCache.Prefix mapped = cache.get("m", rootMap, tags);
+		final SeriesPrefixCache.Prefix other = cache.get("n", ROOT_TAGS, tags);
+		Assert.assertNotSame(raw, mapped);
+		Assert.assertNotSame(raw, other);
+		Assert.assertSame(raw, cache.get("m", ROOT_TAGS, tags));
+		Assert.assertSame(mapped, cache.get("m", rootMap, tags));
+		Assert.assertTrue(other.toString().startsWith("n "));
+	}
+
+	/**
+	 * Tests that an undersized cache never grows past its capacity and counts its evictions
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBounded() throws Exception {
+		final SeriesPrefixCache cache = new SeriesPrefixCache(256);
+		for(Map<String, String> tags: series(5000)) {
+			cache.get("java.lang.mempool", ROOT_TAGS, tags);
+		}
+		log("%s", cache);
+		Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+		Assert.assertTrue(cache.getEvictions() >= 5000 - cache.getCapacity());
+		cache.clear();
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	/**
+	 * Compares cached against uncached encoding of 100k distinct series. Timings are logged, not asserted.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testThroughput() throws Exception {
+		final int seriesCount = 100000;
+		final List<Map<String, String>> series = series(seriesCount);
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(8192);
+		final SeriesPrefixCache fits = new SeriesPrefixCache(seriesCount * 2);
+		final SeriesPrefixCache small = new SeriesPrefixCache(seriesCount / 2);
+		for(int pass = 0; pass < 5; pass++) {
+			long start = System.nanoTime();
+			for(int i = 0; i < seriesCount; i++) {
+				buffer.clear();
+				PutEncoder.encode(buffer, "java.lang.mempool", 1418000000L + pass, i * 1.5d, ROOT_TAGS, series.get(i));
+			}
+			final long uncached = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < seriesCount; i++) {
+				buffer.clear();
+				PutEncoder.encode(buffer, fits.get("java.lang.mempool", ROOT_TAGS, series.get(i)), 1418000000L + pass, i * 1.5d);
+			}
+			final long cached = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i = 0; i < seriesCount; i++) {
+				buffer.clear();
+				PutEncoder.encode(buffer, small.get("java.lang.mempool", ROOT_TAGS, series.get(i)), 1418000000L + pass, i * 1.5d);
+			}
+			final long undersized = System.nanoTime() - start;
+			log("Pass %s: uncached %s ns/trace, cached %s ns/trace, undersized cache %s ns/trace", 
+					pass, uncached/seriesCount, cached/seriesCount, undersized/seriesCount);
+		}
+		log("%s", fits);
+		log("%s", small);
+		Assert.assertTrue("Full size cache hit rate not above the undersized cache", fits.getHitRate() > small.getHitRate());
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.PutEncoder;
+import com.heliosapm.opentsdb.StripedBuffer;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: StripedBufferTest</p>
+ * <p>Description: Tests for {@link StripedBuffer}, including a throughput comparison against the single synchronized buffer it replaced</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.StripedBufferTest</code></p>
+ */
+
+public class StripedBufferTest extends BaseTest {
+	/** Sample tags */
+	static final Map<String, String> TAGS = new HashMap<String, String>();
+	/** Sample root tags */
+	static final List<String> ROOT_TAGS = Collections.singletonList("app=bench");
+
+	static {
+		TAGS.put("host", "localhost");
+		TAGS.put("type", "MemoryPool");
+	}
+
+	/**
+	 * Encodes a put into the current thread's stripe
+	 * @param striped The striped buffer
+	 * @param value The value and timestamp to encode
+	 */
+	static void put(final StripedBuffer striped, final long value) {
+		final StripedBuffer.Stripe stripe = striped.stripe();
+		synchronized(stripe) {
+			final ChannelBuffer buff = stripe.buffer();
+			final int w = buff.writerIndex();
+			PutEncoder.encode(buff, "java.lang.mem", value, value, ROOT_TAGS, TAGS);
+			stripe.appended(buff.writerIndex() - w, 1);
+		}
+	}
+
+	/**
+	 * Tests that concurrent appends and drains lose, tear and duplicate nothing
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentAppendAndDrain() throws Exception {
+		final int threads = 8, puts = 20000;
+		final StripedBuffer striped = new StripedBuffer(HeapChannelBufferFactory.getInstance(), 4);
+		Assert.assertEquals(4, striped.getStripeCount());
+		final ChannelBuffer[] drained = new ChannelBuffer[striped.getStripeCount()];
+		final AtomicLong lines = new AtomicLong(), traces = new AtomicLong(), sum = new AtomicLong();
+		final Runnable flusher = new Runnable() {
+			@Override
+			public void run() {
+				traces.addAndGet(striped.drain(drained));
+				final ChannelBuffer gathered = StripedBuffer.gather(null, drained);
+				for(String line: gathered.toString(TSDBSubmitterConnection.CHARSET).split("\n")) {
+					if(line.isEmpty()) continue;
+					final String[] tokens = line.split(" ");
+					Assert.assertEquals("Torn line [" + line + "]", 7, tokens.length);
+					Assert.assertEquals(tokens[2], tokens[3]);
+					sum.addAndGet(Long.parseLong(tokens[2]));
+					lines.incrementAndGet();
+				}
+				striped.recycle(drained);
+			}
+		};
+		run(threads, new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < puts; i++) {
+					put(striped, i);
+				}
+			}
+		}, flusher);
+		final long expectedSum = threads * ((long)puts * (puts - 1) / 2);
+		Assert.assertEquals(threads * (long)puts, lines.get());
+		Assert.assertEquals(threads * (long)puts, traces.get());
+		Assert.assertEquals(expectedSum, sum.get());
+		Assert.assertEquals(0L, striped.getBufferedBytes());
+		Assert.assertEquals(0L, striped.getBufferedTraces());
+	}
+
+	/**
+	 * Tests that drained buffers are recycled as spares, so steady state appends reuse the same buffers
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRecycle() throws Exception {
+		final StripedBuffer striped = new StripedBuffer(HeapChannelBufferFactory.getInstance(), 1);
+		final ChannelBuffer[] drained = new ChannelBuffer[1];
+		put(striped, 1);
+		Assert.assertEquals(1, striped.drain(drained));
+		final ChannelBuffer first = drained[0];
+		Assert.assertNotNull(first);
+		striped.recycle(drained);
+		Assert.assertNull(drained[0]);
+		Assert.assertEquals(0, striped.drain(drained));
+		Assert.assertNull("Empty stripe drained", drained[0]);
+		put(striped, 2);
+		Assert.assertEquals(1, striped.drain(drained));
+		// the recycled buffer is now the active one
+		final StripedBuffer.Stripe stripe = striped.stripe();
+		synchronized(stripe) {
+			Assert.assertSame("Spare not reused", first, stripe.buffer());
+		}
+		striped.recycle(drained);
+		put(striped, 5);
+		final ChannelBuffer head = ChannelBuffers.copiedBuffer("head\n", TSDBSubmitterConnection.CHARSET);
+		Assert.assertEquals(1, striped.drain(drained));
+		final String gathered = StripedBuffer.gather(head, drained).toString(TSDBSubmitterConnection.CHARSET);
+		Assert.assertTrue(gathered, gathered.startsWith("head\nput java.lang.mem 5 5 "));
+		Assert.assertSame(ChannelBuffers.EMPTY_BUFFER, StripedBuffer.gather(null, new ChannelBuffer[1]));
+	}
+
+	/**
+	 * Compares the multi-threaded append throughput of a single synchronized buffer, the previous design, against a StripedBuffer.
+	 * Each writer encodes puts while a flusher drains and discards the data every millisecond.
+	 * Only logs the rates, since throughput on shared build boxes is noise.
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testThroughputComparison() throws Exception {
+		final int threads = 16, puts = 50000;
+		final ChannelBufferFactory factory = HeapChannelBufferFactory.getInstance();
+		for(int loop = 0; loop < 2; loop++) {
+			final ChannelBuffer single = ChannelBuffers.dynamicBuffer(factory);
+			final long singleRate = threads * (long)puts * 1000000000L / run(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i = 0; i < puts; i++) {
+						synchronized(single) {
+							PutEncoder.encode(single, "java.lang.mem", i, i, ROOT_TAGS, TAGS);
+						}
+					}
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					synchronized(single) {
+						single.clear();
+					}
+				}
+			});
+			final StripedBuffer striped = new StripedBuffer(factory, StripedBuffer.DEFAULT_STRIPES);
+			final ChannelBuffer[] drained = new ChannelBuffer[striped.getStripeCount()];
+			final long stripedRate = threads * (long)puts * 1000000000L / run(threads, new Runnable() {
+				@Override
+				public void run() {
+					for(int i = 0; i < puts; i++) {
+						put(striped, i);
+					}
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					striped.drain(drained);
+					StripedBuffer.gather(null, drained).readableBytes();
+					striped.recycle(drained);
+				}
+			});
+			log("Threads: %s, Single Buffer: %s puts/s, Striped (%s): %s puts/s", threads, singleRate, striped.getStripeCount(), stripedRate);
+		}
+	}
+
+	/**
+	 * Runs writers concurrently, running the flusher every ms. until they complete and once more after
+	 * @param threads The number of writer threads
+	 * @param writer The writer task
+	 * @param flusher The flush task
+	 * @return the elapsed time in ns.
+	 * @throws Exception thrown on any error
+	 */
+	static long run(final int threads, final Runnable writer, final Runnable flusher) throws Exception {
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(threads);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		for(int i = 0; i < threads; i++) {
+			final Thread t = new Thread("StripedBufferTestWriter#" + i) {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						writer.run();
+					} catch (Throwable ex) {
+						errors.add(ex);
+					} finally {
+						endLatch.countDown();
+					}
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		final long start = System.nanoTime();
+		startLatch.countDown();
+		while(!endLatch.await(1, TimeUnit.MILLISECONDS)) {
+			flusher.run();
+		}
+		flusher.run();
+		final long elapsed = System.nanoTime() - start;
+		Assert.assertTrue("Writer errors: " + errors, errors.isEmpty());
+		return elapsed;
+	}
+}
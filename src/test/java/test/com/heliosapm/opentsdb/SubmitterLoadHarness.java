@@ -0,0 +1,312 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.heliosapm.opentsdb.QuantileSketch;
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: SubmitterLoadHarness</p>
+ * <p>Description: End to end throughput harness that drives submitters on a configurable number of threads and series
+ * against an in-process {@link FakeTSD} and reports traced and received points per second, trace latency quantiles and allocation rate.</p>
+ * <p>Arguments are <b><code>key=value</code></b> pairs, all optional:<ul>
+ * 	<li><b><code>threads</code></b>: the number of tracing threads (default 4)</li>
+ * 	<li><b><code>series</code></b>: the number of distinct series per thread (default 1000)</li>
+ * 	<li><b><code>seconds</code></b>: the measured run time (default 30)</li>
+ * 	<li><b><code>warmup</code></b>: the unmeasured warm up time in seconds (default 5)</li>
+ * 	<li><b><code>rate</code></b>: the traces per second per thread, 0 for as fast as possible (default 0)</li>
+ * 	<li><b><code>transport</code></b>: <b><code>socket</code></b>, <b><code>netty</code></b> or <b><code>http</code></b> (default socket)</li>
+ * 	<li><b><code>latency</code></b>: the fake TSD response latency in ms. (default 0)</li>
+ * 	<li><b><code>readrate</code></b>: the fake TSD read rate per connection in bytes per second, 0 for unlimited (default 0)</li>
+ * 	<li><b><code>errors</code></b>: the fraction of puts the fake TSD rejects (default 0)</li>
+ * </ul></p>
+ * <p>Every 64th trace is timed so the timing itself does not dominate the measurement.
+ * Allocation is read from the HotSpot per thread allocation counters and is reported as unavailable on other JVMs.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.SubmitterLoadHarness</code></p>
+ */
+
+public class SubmitterLoadHarness {
+	/** The number of tracing threads */
+	protected final int threads;
+	/** The number of distinct series per thread */
+	protected final int series;
+	/** The measured run time in seconds */
+	protected final int seconds;
+	/** The warm up time in seconds */
+	protected final int warmup;
+	/** The traces per second per thread, or 0 for as fast as possible */
+	protected final int rate;
+	/** The fake TSD */
+	protected final FakeTSD tsd;
+
+	/** The sampled trace latencies in ns. */
+	protected final QuantileSketch latencies = new QuantileSketch();
+	/** The number of traces in the measured period */
+	protected final AtomicLong traces = new AtomicLong();
+	/** The bytes allocated by the tracing threads in the measured period, or -1 if not available */
+	protected final AtomicLong allocated = new AtomicLong();
+	/** Set while the measured period runs */
+	protected final AtomicBoolean measuring = new AtomicBoolean(false);
+	/** Set to stop the tracing threads */
+	protected final AtomicBoolean stopped = new AtomicBoolean(false);
+
+	/** The trace latency sampling mask, timing one in every 64 traces */
+	public static final int SAMPLE_MASK = 63;
+
+	/**
+	 * Creates a new SubmitterLoadHarness that traces as fast as possible
+	 * @param threads The number of tracing threads
+	 * @param series The number of distinct series per thread
+	 * @param seconds The measured run time in seconds
+	 * @param warmup The warm up time in seconds
+	 * @param tsd The started fake TSD
+	 */
+	public SubmitterLoadHarness(final int threads, final int series, final int seconds, final int warmup, final FakeTSD tsd) {
+		this(threads, series, seconds, warmup, 0, tsd);
+	}
+
+	/**
+	 * Creates a new SubmitterLoadHarness
+	 * @param threads The number of tracing threads
+	 * @param series The number of distinct series per thread
+	 * @param seconds The measured run time in seconds
+	 * @param warmup The warm up time in seconds
+	 * @param rate The traces per second per thread, or 0 for as fast as possible
+	 * @param tsd The started fake TSD
+	 */
+	public SubmitterLoadHarness(final int threads, final int series, final int seconds, final int warmup, final int rate, final FakeTSD tsd) {
+		if(threads < 1) throw new IllegalArgumentException("Invalid thread count [" + threads + "]");
+		if(series < 1) throw new IllegalArgumentException("Invalid series count [" + series + "]");
+		if(seconds < 1) throw new IllegalArgumentException("Invalid run time [" + seconds + "]");
+		if(warmup < 0) throw new IllegalArgumentException("Invalid warm up time [" + warmup + "]");
+		if(rate < 0) throw new IllegalArgumentException("Invalid rate [" + rate + "]");
+		if(tsd==null) throw new IllegalArgumentException("The passed fake TSD was null");
+		this.threads = threads;
+		this.series = series;
+		this.seconds = seconds;
+		this.warmup = warmup;
+		this.rate = rate;
+		this.tsd = tsd;
+	}
+
+	/**
+	 * Returns the current thread's allocated bytes, or -1 if the JVM does not provide them
+	 * @return the allocated bytes or -1
+	 */
+	static long allocatedBytes() {
+		final ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+		if(tmx instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean hs = (com.sun.management.ThreadMXBean)tmx;
+			if(hs.isThreadAllocatedMemorySupported() && hs.isThreadAllocatedMemoryEnabled()) {
+				return hs.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * Runs the harness and returns the results
+	 * @return the results keyed by name, in report order
+	 * @throws InterruptedException if interrupted while waiting for the run
+	 */
+	public Map<String, Object> run() throws InterruptedException {
+		final TSDBSubmitterConnection conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		final CountDownLatch done = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final Map<String, String> rootTags = new HashMap<String, String>();
+			rootTags.put("host", "harness");
+			rootTags.put("thread", "t" + t);
+			final TSDBSubmitter submitter = conn.submitter(rootTags);
+			final Thread thread = new Thread("SubmitterLoadHarness#" + t) {
+				@Override
+				public void run() {
+					try {
+						work(submitter);
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Thread.sleep(warmup * 1000L);
+		conn.flush(false);
+		tsd.reset();
+		final long startNs = System.nanoTime();
+		measuring.set(true);
+		Thread.sleep(seconds * 1000L);
+		measuring.set(false);
+		final long elapsedNs = System.nanoTime() - startNs;
+		conn.flush(false);
+		final long received = tsd.getPoints();
+		final long rejected = tsd.getRejected();
+		stopped.set(true);
+		done.await();
+		final double secs = elapsedNs / 1000000000D;
+		final QuantileSketch.Snapshot snap = new QuantileSketch.Snapshot();
+		latencies.snapshot(snap);
+		final long alloc = allocated.get();
+		final long traced = traces.get();
+		final Map<String, Object> results = new LinkedHashMap<String, Object>();
+		results.put("traced/s", Math.round(traced / secs));
+		results.put("received/s", Math.round(received / secs));
+		results.put("rejected", rejected);
+		results.put("trace p50 ns", snap.quantiles[0]);
+		results.put("trace p99 ns", snap.quantiles[2]);
+		results.put("trace p999 ns", snap.quantiles[3]);
+		results.put("trace max ns", snap.max);
+		results.put("alloc bytes/s", alloc < 0 ? "n/a" : Math.round(alloc / secs));
+		results.put("alloc bytes/trace", alloc < 0 || traced==0 ? "n/a" : alloc / traced);
+		results.put("server", tsd.toString());
+		conn.close();
+		return results;
+	}
+
+	/**
+	 * The tracing loop of one thread
+	 * @param submitter The thread's submitter
+	 */
+	protected void work(final TSDBSubmitter submitter) {
+		final String[] metrics = new String[series];
+		final Map<String, String>[] tags = newTagMaps(series);
+		for(int i = 0; i < series; i++) {
+			metrics[i] = "harness.metric" + (i % 10);
+			tags[i].put("series", "s" + i);
+		}
+		long count = 0L;
+		long measured = 0L;
+		long allocStart = -1L;
+		boolean wasMeasuring = false;
+		int s = 0;
+		final long startNs = System.nanoTime();
+		while(true) {
+			final boolean m = measuring.get() && !stopped.get();
+			if(m!=wasMeasuring) {
+				if(m) {
+					allocStart = allocatedBytes();
+				} else {
+					final long allocEnd = allocatedBytes();
+					if(allocStart < 0 || allocEnd < 0) allocated.set(-1L);
+					else if(allocated.get() >= 0) allocated.addAndGet(allocEnd - allocStart);
+				}
+				wasMeasuring = m;
+			}
+			if(!m && stopped.get()) break;
+			if((count & SAMPLE_MASK)==0) {
+				final long start = System.nanoTime();
+				submitter.trace(metrics[s], count, tags[s]);
+				if(m) latencies.update(System.nanoTime() - start);
+			} else {
+				submitter.trace(metrics[s], count, tags[s]);
+			}
+			if(m) measured++;
+			count++;
+			if(++s==series) s = 0;
+			if(rate > 0 && (count & SAMPLE_MASK)==0) {
+				// pace by the whole run so short stalls are caught up
+				final long aheadMs = (count * 1000L / rate) - (System.nanoTime() - startNs) / 1000000L;
+				if(aheadMs > 0) {
+					try { Thread.sleep(aheadMs); } catch (InterruptedException iex) { break; }
+				}
+			}
+		}
+		traces.addAndGet(measured);
+	}
+
+	/**
+	 * Creates an array of empty tag maps
+	 * @param size The array size
+	 * @return the tag maps
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, String>[] newTagMaps(final int size) {
+		final Map<String, String>[] maps = (Map<String, String>[]) new Map<?, ?>[size];
+		for(int i = 0; i < size; i++) {
+			maps[i] = new HashMap<String, String>(4);
+		}
+		return maps;
+	}
+
+	/**
+	 * Parses the <b><code>key=value</code></b> arguments
+	 * @param args The arguments
+	 * @return the arguments keyed by lower case key
+	 */
+	static Map<String, String> parseArgs(final String[] args) {
+		final Map<String, String> map = new HashMap<String, String>();
+		for(String arg: args) {
+			final int eq = arg.indexOf('=');
+			if(eq < 1) throw new IllegalArgumentException("Invalid argument [" + arg + "], expected key=value");
+			map.put(arg.substring(0, eq).trim().toLowerCase(), arg.substring(eq + 1).trim());
+		}
+		return map;
+	}
+
+	/**
+	 * Runs the harness
+	 * @param args <b><code>key=value</code></b> arguments, see the class description
+	 */
+	public static void main(final String[] args) {
+		final Map<String, String> opts = parseArgs(args);
+		final String transport = opts.containsKey("transport") ? opts.get("transport") : TSDBSubmitterConnection.DEFAULT_TRANSPORT;
+		System.setProperty(TSDBSubmitterConnection.CONFIG_TRANSPORT, transport);
+		final FakeTSD tsd = new FakeTSD(0)
+			.setLatency(Long.parseLong(opts.containsKey("latency") ? opts.get("latency") : "0"))
+			.setReadRate(Long.parseLong(opts.containsKey("readrate") ? opts.get("readrate") : "0"))
+			.setErrorRate(Double.parseDouble(opts.containsKey("errors") ? opts.get("errors") : "0"))
+			.start();
+		try {
+			final SubmitterLoadHarness harness = new SubmitterLoadHarness(
+				Integer.parseInt(opts.containsKey("threads") ? opts.get("threads") : "4"),
+				Integer.parseInt(opts.containsKey("series") ? opts.get("series") : "1000"),
+				Integer.parseInt(opts.containsKey("seconds") ? opts.get("seconds") : "30"),
+				Integer.parseInt(opts.containsKey("warmup") ? opts.get("warmup") : "5"),
+				Integer.parseInt(opts.containsKey("rate") ? opts.get("rate") : "0"),
+				tsd);
+			System.out.println("SubmitterLoadHarness: transport=" + transport + ", threads=" + harness.threads + ", series=" + harness.series
+				+ ", seconds=" + harness.seconds + ", rate=" + harness.rate + ", options=" + opts);
+			for(Map.Entry<String, Object> entry: harness.run().entrySet()) {
+				System.out.println(String.format("\t%-20s %s", entry.getKey(), entry.getValue()));
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace(System.err);
+		} finally {
+			tsd.stop();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+/**
+ * <p>Title: SubmitterLoadHarnessTest</p>
+ * <p>Description: Runs a short {@link SubmitterLoadHarness} pass against a {@link FakeTSD}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.SubmitterLoadHarnessTest</code></p>
+ */
+
+public class SubmitterLoadHarnessTest extends BaseTest {
+
+	/**
+	 * Runs the harness for two seconds and checks the fake TSD received what was traced
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testShortRun() throws Exception {
+		final FakeTSD tsd = new FakeTSD(0).start();
+		try {
+			// paced, so the run measures the pipeline rather than how fast unbounded buffers can grow
+			final Map<String, Object> results = new SubmitterLoadHarness(2, 100, 2, 1, 20000, tsd).run();
+			for(Map.Entry<String, Object> entry: results.entrySet()) {
+				log("\t%-20s %s", entry.getKey(), entry.getValue());
+			}
+			Assert.assertTrue("Nothing traced", ((Long)results.get("traced/s")) > 0L);
+			Assert.assertTrue("Nothing received", ((Long)results.get("received/s")) > 0L);
+			Assert.assertEquals("Rejected puts", 0L, ((Long)results.get("rejected")).longValue());
+		} finally {
+			tsd.stop();
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.TSDBSubmitter;
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+
+/**
+ * <p>Title: TSDBSubmitterConnectionTest</p>
+ * <p>Description: Tests for {@link TSDBSubmitterConnection} flushing, reconnecting and holding data while the TSD is down</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.TSDBSubmitterConnectionTest</code></p>
+ */
+
+public class TSDBSubmitterConnectionTest extends BaseTest {
+	/** The fake TSD the current test writes to */
+	FakeTSD tsd = null;
+	/** The connection under test */
+	TSDBSubmitterConnection conn = null;
+
+	/**
+	 * Sets short reconnect backoffs
+	 */
+	@Before
+	public void configure() {
+		System.setProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MIN, "100");
+		System.setProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MAX, "400");
+	}
+
+	/**
+	 * Closes the connection, stops the fake TSD and clears the test properties
+	 */
+	@After
+	public void closeAll() {
+		if(conn!=null) conn.close();
+		if(tsd!=null) tsd.stop();
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MIN);
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_RECONNECT_MAX);
+		System.clearProperty(TSDBSubmitterConnection.CONFIG_RETRY_MAX_BYTES);
+	}
+
+	/**
+	 * Stops the fake TSD and flushes probe traces until the connection notices.
+	 * A socket only reports a closed peer on a failed write, so probes written before that are lost.
+	 * @param submitter The submitter to probe with
+	 * @throws Exception thrown on any error
+	 */
+	void killTSD(final TSDBSubmitter submitter) throws Exception {
+		tsd.stop();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(conn.isConnected() && System.currentTimeMillis() < deadline) {
+			submitter.trace("probe", 1, "phase", "probe");
+			conn.flush(false);
+			Thread.sleep(20);
+		}
+		Assert.assertFalse("Disconnect not detected", conn.isConnected());
+	}
+
+	/**
+	 * Waits for the fake TSD to receive at least the expected number of points.
+	 * Probe traces that failed to write are held with the rest, so more may arrive.
+	 * @param expected The expected number of points
+	 * @param timeout The timeout in ms.
+	 * @throws Exception thrown on any error
+	 */
+	void awaitPoints(final long expected, final long timeout) throws Exception {
+		final long deadline = System.currentTimeMillis() + timeout;
+		while(tsd.getPoints() < expected && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertTrue("Expected " + expected + " points but received " + tsd.getPoints(), tsd.getPoints() >= expected);
+	}
+
+	/**
+	 * Tests that data traced while the TSD is down is held and delivered once the connection reconnects by itself
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testReconnectDeliversHeldData() throws Exception {
+		tsd = new FakeTSD(0).start();
+		final int port = tsd.getPort();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", port);
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		for(int i = 0; i < 100; i++) submitter.trace("reconnect.test", i, "phase", "before");
+		conn.flush(false);
+		awaitPoints(100, 5000);
+		killTSD(submitter);
+		for(int i = 0; i < 100; i++) submitter.trace("reconnect.test", i, "phase", "down");
+		Assert.assertArrayEquals("Flushed while down", new int[]{0, 0}, conn.flush(false));
+		Assert.assertArrayEquals("Flushed while down", new int[]{0, 0}, conn.flush(false));
+		tsd = new FakeTSD(port).start();
+		awaitPoints(100, 10000);
+		Assert.assertTrue(conn.isConnected());
+		Assert.assertEquals(0L, conn.getStats().getDroppedPoints());
+	}
+
+	/**
+	 * Tests that the socket transport reads the multi-line version reply through the response poller
+	 * while the rejection lines around it are still counted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSocketVersionWithRejections() throws Exception {
+		tsd = new FakeTSD(0).start().setErrorRate(1.0);
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", tsd.getPort());
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		for(int i = 0; i < 10; i++) submitter.trace("version.test", i, "phase", "rejected");
+		conn.flush(false);
+		Assert.assertEquals(FakeTSD.VERSION + "\n" + FakeTSD.BUILT, conn.getVersion().trim());
+		final long deadline = System.currentTimeMillis() + 5000;
+		while(conn.getRejections().getRejections() < 10 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+		Assert.assertEquals("Rejections", 10L, conn.getRejections().getRejections());
+		Assert.assertEquals("Reasons", Collections.singletonMap("unknown metric", 10L), conn.getRejections().getRejectionsByReason());
+	}
+
+	/**
+	 * Tests that the retry buffer discards its oldest lines beyond its cap and counts them
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRetryBufferCap() throws Exception {
+		System.setProperty(TSDBSubmitterConnection.CONFIG_RETRY_MAX_BYTES, "4096");
+		tsd = new FakeTSD(0).start();
+		final int port = tsd.getPort();
+		conn = TSDBSubmitterConnection.getTSDBSubmitterConnection("127.0.0.1", port);
+		final TSDBSubmitter submitter = conn.submitter(Collections.singletonMap("host", "test"));
+		killTSD(submitter);
+		for(int i = 0; i < 1000; i++) submitter.trace("retry.test", i, "phase", "down");
+		conn.flush(false);
+		final long dropped = conn.getStats().getDroppedPoints();
+		log("Dropped %s of 1000", dropped);
+		Assert.assertTrue("Nothing dropped", dropped > 0);
+		Assert.assertTrue("Everything dropped", dropped < 1000);
+		tsd = new FakeTSD(port).start();
+		awaitPoints(1000 - dropped, 10000);
+	}
+}
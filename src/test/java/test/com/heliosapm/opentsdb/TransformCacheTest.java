@@ -0,0 +1,136 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.TSDBJMXResultTransformer;
+import com.heliosapm.opentsdb.TransformCache;
+
+/**
+ * <p>Title: TransformCacheTest</p>
+ * <p>Description: Tests for {@link TransformCache} pattern resolution and verdict caching</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.TransformCacheTest</code></p>
+ */
+
+public class TransformCacheTest extends BaseTest {
+
+	/**
+	 * <p>Title: NamedTransformer</p>
+	 * <p>Description: A no-op transformer identified by name in assertion messages</p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.TransformCacheTest.NamedTransformer</code></p>
+	 */
+	static class NamedTransformer implements TSDBJMXResultTransformer {
+		/** The transformer name */
+		final String name;
+		/**
+		 * Creates a new NamedTransformer
+		 * @param name The transformer name
+		 */
+		NamedTransformer(final String name) {
+			this.name = name;
+		}
+		@Override
+		public Map<ObjectName, Number> transform(final ObjectName objectName, final Map<String, Object> attributes) {
+			return null;
+		}
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Tests exact and pattern resolution, the earliest registered pattern winning, and cached verdicts
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testResolution() throws Exception {
+		final TransformCache cache = new TransformCache(100);
+		final NamedTransformer exact = new NamedTransformer("exact"), byType = new NamedTransformer("byType"), any = new NamedTransformer("any");
+		final ObjectName on = new ObjectName("java.lang:type=MemoryPool,name=Eden");
+		cache.register(on, exact);
+		cache.register(new ObjectName("java.lang:type=MemoryPool,*"), byType);
+		cache.register(new ObjectName("*:*"), any);
+		Assert.assertSame(exact, cache.getTransformer(on));
+		final ObjectName survivor = new ObjectName("java.lang:type=MemoryPool,name=Survivor");
+		Assert.assertSame(byType, cache.getTransformer(survivor));
+		Assert.assertSame(byType, cache.getTransformer(survivor));
+		Assert.assertEquals(1L, cache.getHits());
+		Assert.assertSame(any, cache.getTransformer(new ObjectName("java.lang:type=Threading")));
+		Assert.assertSame(any, cache.remove(new ObjectName("*:*")));
+		Assert.assertEquals("Verdicts not cleared on remove", 0, cache.getVerdictCount());
+		Assert.assertNull(cache.getTransformer(new ObjectName("java.lang:type=Threading")));
+		Assert.assertNull("No-match verdict not cached", cache.getTransformer(new ObjectName("java.lang:type=Threading")));
+		Assert.assertEquals(2L, cache.getHits());
+	}
+
+	/**
+	 * Tests that lookups racing a pattern being registered and removed never leave a stale verdict behind
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNoStaleVerdicts() throws Exception {
+		final TransformCache cache = new TransformCache(100);
+		final NamedTransformer t = new NamedTransformer("t");
+		final ObjectName pattern = new ObjectName("test:type=Racing,*");
+		final ObjectName on = new ObjectName("test:type=Racing,name=x");
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread reader = new Thread("TransformCacheReader") {
+			@Override
+			public void run() {
+				while(running.get()) cache.getTransformer(on);
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+		try {
+			for(int i = 0; i < 2000; i++) {
+				cache.register(pattern, t);
+				Thread.yield();
+				Assert.assertSame("Stale verdict after register #" + i, t, cache.getTransformer(on));
+				cache.remove(pattern);
+				Thread.yield();
+				Assert.assertNull("Stale verdict after remove #" + i, cache.getTransformer(on));
+			}
+		} finally {
+			running.set(false);
+			reader.join();
+		}
+		log("Hits: %s, misses: %s", cache.getHits(), cache.getMisses());
+	}
+}
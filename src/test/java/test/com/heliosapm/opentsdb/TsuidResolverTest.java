@@ -0,0 +1,188 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.heliosapm.opentsdb.SeriesHash;
+import com.heliosapm.opentsdb.TsuidResolver;
+import com.ning.http.client.AsyncHttpClient;
+
+/**
+ * <p>Title: TsuidResolverTest</p>
+ * <p>Description: Tests {@link TsuidResolver} batching, de-duplication, bad request splitting, 5xx backoff and warm-loading against a {@link FakeTSD}</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.TsuidResolverTest</code></p>
+ */
+
+public class TsuidResolverTest extends BaseTest {
+	/** The fake TSD */
+	FakeTSD tsd = null;
+	/** The http client */
+	AsyncHttpClient client = null;
+	
+	/**
+	 * Starts the fake TSD and the http client
+	 * @throws Exception thrown on any error
+	 */
+	@Before
+	public void startTSD() throws Exception {
+		tsd = new FakeTSD(0).start();
+		client = new AsyncHttpClient();
+	}
+	
+	/**
+	 * Stops the http client and the fake TSD
+	 */
+	@After
+	public void stopTSD() {
+		if(client!=null) client.close();
+		if(tsd!=null) tsd.stop();
+	}
+	
+	/**
+	 * Creates a resolver against the fake TSD
+	 * @param retries The number of retries after a 5xx
+	 * @param retryDelay The delay before the first retry in ms.
+	 * @return the resolver
+	 */
+	TsuidResolver resolver(final int retries, final long retryDelay) {
+		final String base = "http://127.0.0.1:" + tsd.getPort() + "/";
+		return new TsuidResolver(null, TsuidResolver.DEFAULT_CACHE_SPEC, TsuidResolver.DEFAULT_BATCH_SIZE, TsuidResolver.DEFAULT_BATCH_DELAY, 
+				TsuidResolver.DEFAULT_BACK_SCAN, retries, retryDelay) {
+			@Override
+			protected AsyncHttpClient client() {
+				return client;
+			}
+			@Override
+			protected String baseURL() {
+				return base;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the tags of the indexed series
+	 * @param i The series index
+	 * @return the tags
+	 */
+	static Map<String, String> tags(final int i) {
+		final Map<String, String> tags = new TreeMap<String, String>();
+		tags.put("host", "host" + (i % 10));
+		tags.put("instance", "" + i);
+		return tags;
+	}
+	
+	/**
+	 * Resolves a set of series and checks batching, de-duplication, that an unknown metric only fails itself, and warm-loading
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testResolve() throws Exception {
+		final TsuidResolver resolver = resolver(TsuidResolver.DEFAULT_RETRIES, TsuidResolver.DEFAULT_RETRY_DELAY);
+		final int series = 1000;
+		final List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>();
+		for(int i = 0; i < series; i++) {
+			futures.add(resolver.resolve("sys.cpu", tags(i)));
+			Assert.assertSame("Duplicate lookup was not shared", futures.get(i), resolver.resolve("sys.cpu", tags(i)));
+		}
+		final ListenableFuture<String> unknown = resolver.resolve("unknown.metric", tags(0));
+		for(int i = 0; i < series; i++) {
+			final String key = TsuidResolver.key("sys.cpu", tags(i));
+			Assert.assertEquals("TSUID of " + key, Long.toHexString(SeriesHash.hash(key)).toUpperCase(), futures.get(i).get(10, TimeUnit.SECONDS));
+		}
+		try {
+			unknown.get(10, TimeUnit.SECONDS);
+			Assert.fail("Unknown metric resolved");
+		} catch (ExecutionException eex) {
+			log("Unknown metric failed: %s", eex.getCause().getMessage());
+		}
+		log("Resolved %s series in %s requests", series, resolver.getRequests());
+		// 32 per batch, plus the halves of the one batch the unknown metric failed and a few partial batches
+		Assert.assertTrue("Too many requests: " + resolver.getRequests(), resolver.getRequests() <= 2 * (series / TsuidResolver.DEFAULT_BATCH_SIZE + 1));
+		Assert.assertEquals("Cached", series, resolver.getCache().size());
+		final long requests = resolver.getRequests();
+		Assert.assertEquals("Cached lookup", futures.get(0).get(), resolver.resolve("sys.cpu", tags(0)).get(1, TimeUnit.SECONDS));
+		Assert.assertEquals("Cached lookup sent a request", requests, resolver.getRequests());
+		Assert.assertEquals("Cache hits", 1L, resolver.getCacheHits());
+
+		final File snapshot = File.createTempFile("tsuids", ".snapshot");
+		try {
+			Assert.assertEquals("Saved", series, resolver.save(snapshot));
+			final TsuidResolver warm = resolver(0, 1);
+			Assert.assertEquals("Warm-loaded", series, warm.load(snapshot));
+			Assert.assertEquals("Warm lookup", futures.get(5).get(), warm.resolve("sys.cpu", tags(5)).get(1, TimeUnit.SECONDS));
+			Assert.assertEquals("Warm lookup sent a request", 0L, warm.getRequests());
+		} finally {
+			snapshot.delete();
+		}
+	}
+	
+	/**
+	 * Checks a batch failed with a 5xx is retried whole after a backoff rather than split, and fails once the retries are exhausted
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRetryOnServerError() throws Exception {
+		tsd.setHttpStatus(503);
+		final TsuidResolver failing = resolver(2, 50);
+		final List<ListenableFuture<String>> futures = new ArrayList<ListenableFuture<String>>();
+		for(int i = 0; i < 4; i++) futures.add(failing.resolve("sys.cpu", tags(i)));
+		for(ListenableFuture<String> f: futures) {
+			try {
+				f.get(10, TimeUnit.SECONDS);
+				Assert.fail("Resolved against a failing TSD");
+			} catch (ExecutionException eex) {
+				/* expected */
+			}
+		}
+		Assert.assertEquals("Batch was split or not retried", 3L, failing.getRequests());
+		
+		final TsuidResolver recovering = resolver(5, 200);
+		final ListenableFuture<String> f = recovering.resolve("sys.cpu", tags(0));
+		Thread.sleep(300);
+		Assert.assertFalse("Resolved against a failing TSD", f.isDone());
+		tsd.setHttpStatus(0);
+		final String key = TsuidResolver.key("sys.cpu", tags(0));
+		Assert.assertEquals("TSUID after recovery", Long.toHexString(SeriesHash.hash(key)).toUpperCase(), f.get(10, TimeUnit.SECONDS));
+		log("Resolved after %s requests", recovering.getRequests());
+		Assert.assertTrue("Not retried", recovering.getRequests() > 1);
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package test.com.heliosapm.opentsdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.jmx.BaseTest;
+
+import com.heliosapm.opentsdb.TSDBSubmitterConnection;
+import com.heliosapm.opentsdb.WireCodec;
+
+/**
+ * <p>Title: WireCodecTest</p>
+ * <p>Description: Checks each {@link WireCodec}'s output against golden lines, codec selection and encoding allocation</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.opentsdb.WireCodecTest</code></p>
+ */
+
+public class WireCodecTest extends BaseTest {
+	/** The pre-rendered root tags */
+	static final List<String> RAW_TAGS = Arrays.asList("host=web01");
+	/** The tags, with characters each backend escapes differently */
+	static final Map<String, String> TAGS = new LinkedHashMap<String, String>();
+
+	static {
+		TAGS.put("type", "Memory Pool");
+		TAGS.put("name", "a,b=c;d\"e");
+	}
+
+	/**
+	 * Encodes a 1.5 double at a seconds timestamp, a 42 long at a ms. timestamp and a NaN
+	 * @param codec The codec
+	 * @return the three encoded lines
+	 */
+	static String[] encode(final WireCodec codec) {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(1024);
+		final String[] actual = new String[3];
+		codec.encode(buffer, "sys cpu.user", 1418000000L, 1.5D, RAW_TAGS, TAGS);
+		actual[0] = buffer.toString(TSDBSubmitterConnection.CHARSET);
+		buffer.clear();
+		codec.encode(buffer, "sys cpu.user", 1418000000123L, 42L, RAW_TAGS, TAGS);
+		actual[1] = buffer.toString(TSDBSubmitterConnection.CHARSET);
+		buffer.clear();
+		codec.encode(buffer, "sys cpu.user", 1418000000L, Double.NaN, RAW_TAGS, TAGS);
+		actual[2] = buffer.toString(TSDBSubmitterConnection.CHARSET);
+		return actual;
+	}
+
+	/**
+	 * Checks the OpenTSDB put lines
+	 */
+	@Test
+	public void testOpenTSDB() {
+		Assert.assertArrayEquals(new String[] {
+			"put sys_cpu.user 1418000000 1.5 host=web01 type=Memory_Pool name=a_b_c_d_e\n",
+			"put sys_cpu.user 1418000000123 42 host=web01 type=Memory_Pool name=a_b_c_d_e\n",
+			"put sys_cpu.user 1418000000 NaN host=web01 type=Memory_Pool name=a_b_c_d_e\n"
+		}, encode(WireCodec.OPENTSDB));
+	}
+
+	/**
+	 * Checks the OpenTSDB codec writes root tag maps the same as tags
+	 */
+	@Test
+	public void testOpenTSDBRootTags() {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(1024);
+		final Map<String, String> rootTags = new LinkedHashMap<String, String>();
+		rootTags.put("host", "web 01");
+		WireCodec.OPENTSDB.encode(buffer, "sys.cpu", 1418000000L, 7L, rootTags, TAGS);
+		Assert.assertEquals("put sys.cpu 1418000000 7 host=web_01 type=Memory_Pool name=a_b_c_d_e\n", buffer.toString(TSDBSubmitterConnection.CHARSET));
+	}
+
+	/**
+	 * Checks the Graphite tagged plaintext lines, and that non finite values are skipped
+	 */
+	@Test
+	public void testGraphite() {
+		Assert.assertArrayEquals(new String[] {
+			"sys_cpu.user;host=web01;type=Memory_Pool;name=a,b=c_d\"e 1.5 1418000000\n",
+			"sys_cpu.user;host=web01;type=Memory_Pool;name=a,b=c_d\"e 42 1418000000\n",
+			""
+		}, encode(WireCodec.GRAPHITE));
+	}
+
+	/**
+	 * Checks the InfluxDB line protocol lines, and that non finite values are skipped
+	 */
+	@Test
+	public void testInflux() {
+		Assert.assertArrayEquals(new String[] {
+			"sys\\ cpu.user,host=web01,type=Memory\\ Pool,name=a\\,b\\=c;d\"e value=1.5 1418000000000000000\n",
+			"sys\\ cpu.user,host=web01,type=Memory\\ Pool,name=a\\,b\\=c;d\"e value=42i 1418000000123000000\n",
+			""
+		}, encode(WireCodec.INFLUX));
+	}
+
+	/**
+	 * Checks codec selection by name and class name, and that Prometheus is not a push codec
+	 */
+	@Test
+	public void testForName() {
+		Assert.assertSame(WireCodec.OPENTSDB, WireCodec.forName("OpenTSDB"));
+		Assert.assertSame(WireCodec.GRAPHITE, WireCodec.forName("graphite"));
+		Assert.assertSame(WireCodec.INFLUX, WireCodec.forName(" influxdb "));
+		Assert.assertEquals("custom", WireCodec.forName(CustomCodec.class.getName()).getName());
+		try {
+			WireCodec.forName("prometheus");
+			Assert.fail("Prometheus selected as a push codec");
+		} catch (IllegalArgumentException expected) {
+			/* No Op */
+		}
+	}
+
+	/**
+	 * Checks a custom codec writing tags through the base class splits raw tags and skips null values
+	 */
+	@Test
+	public void testCustomCodec() {
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(1024);
+		final Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("a", "1");
+		tags.put("b", null);
+		new CustomCodec().encode(buffer, "m", 1L, 2L, Arrays.asList("host=web01", "bad"), tags);
+		Assert.assertEquals("m[host:web01|a:1] 2\n", buffer.toString(TSDBSubmitterConnection.CHARSET));
+	}
+
+	/**
+	 * Checks encoding does not allocate once warmed up, and logs the time per line for each codec
+	 */
+	@Test
+	public void testAllocation() {
+		final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long tid = Thread.currentThread().getId();
+		final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(8192);
+		final WireCodec[] codecs = {WireCodec.OPENTSDB, WireCodec.GRAPHITE, WireCodec.INFLUX};
+		final int loops = 200000;
+		for(int pass = 0; pass < 3; pass++) {
+			for(WireCodec codec: codecs) {
+				final long startBytes = tmx.getThreadAllocatedBytes(tid);
+				final long start = System.nanoTime();
+				for(int i = 0; i < loops; i++) {
+					buffer.clear();
+					codec.encode(buffer, "java.lang.mempool", 1418000000L + i, i * 1.5D, RAW_TAGS, TAGS);
+				}
+				final long elapsed = System.nanoTime() - start;
+				final long allocated = (tmx.getThreadAllocatedBytes(tid) - startBytes) / loops;
+				log("%-10s %s ns/trace, %s bytes/trace", codec.getName(), elapsed / loops, allocated);
+				// only the tag iterators, if escape analysis keeps them
+				if(pass==2) Assert.assertTrue(codec.getName() + " allocated " + allocated + " bytes/trace", allocated <= 64);
+			}
+		}
+	}
+
+	/**
+	 * <p>Title: CustomCodec</p>
+	 * <p>Description: A codec loaded by class name, writing <b><code>metric[k:v|...] value</code></b></p>
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>test.com.heliosapm.opentsdb.WireCodecTest.CustomCodec</code></p>
+	 */
+	public static class CustomCodec extends WireCodec {
+		@Override
+		public String getName() {
+			return "custom";
+		}
+
+		@Override
+		protected void encode(final ChannelBuffer buffer, final CharSequence metric, final long timestamp, final boolean isDouble, final long longValue,
+				final double doubleValue, final Collection<String> rawTags, final Map<String, String> rootTags, final Map<String, String> tags) {
+			buffer.writeBytes(metric.toString().getBytes(TSDBSubmitterConnection.CHARSET));
+			if(writeTags(buffer, rawTags, rootTags, tags) > 0) buffer.writeByte(']');
+			buffer.writeByte(' ');
+			buffer.writeBytes((isDouble ? Double.toString(doubleValue) : Long.toString(longValue)).getBytes(TSDBSubmitterConnection.CHARSET));
+			buffer.writeByte('\n');
+		}
+
+		@Override
+		protected boolean writeTag(final ChannelBuffer buffer, final CharSequence key, final int keyStart, final int keyEnd,
+				final CharSequence value, final int valueStart, final int valueEnd, final boolean first) {
+			buffer.writeByte(first ? '[' : '|');
+			buffer.writeBytes(key.subSequence(keyStart, keyEnd).toString().getBytes(TSDBSubmitterConnection.CHARSET));
+			buffer.writeByte(':');
+			buffer.writeBytes(value.subSequence(valueStart, valueEnd).toString().getBytes(TSDBSubmitterConnection.CHARSET));
+			return true;
+		}
+	}
+}